@@ -2,13 +2,17 @@ package uk.ac.ebi.pride.spectracluster.binning;
 
 import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
 import uk.ac.ebi.pride.spectracluster.clustering.BinaryClusterFileReference;
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryFileSlice;
+import uk.ac.ebi.pride.spectracluster.clustering.VirtualBinaryFile;
 import uk.ac.ebi.pride.spectracluster.io.BinaryClusterAppender;
 import uk.ac.ebi.pride.spectracluster.io.BinaryClusterIterable;
+import uk.ac.ebi.pride.spectracluster.util.CompletionJobRunner;
 
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * Writes the binary spectra / cluster from the input
@@ -19,6 +23,30 @@ import java.util.List;
  * Created by jg on 14.03.16.
  */
 public class BinaryFileRebinner {
+    private final File outputDirectory;
+    private final double windowSize;
+    private final int nInputFiles;
+
+    private int nProcessedFiles = 0;
+    private double maxMz;
+    private File outputFile;
+    private ObjectOutputStream outputStream;
+    private double outputMinMz = Double.MAX_VALUE, outputMaxMz = 0;
+    private int nCluster = 0;
+
+    /**
+     * Creates a rebinner that processes the input files one after the other.
+     * This allows the re-binning to start before all input files are available.
+     * @param outputDirectory Directory to write the re-binned files to.
+     * @param windowSize Size of the overlapping region IN EACH FILE.
+     * @param nInputFiles The total number of input files (at least 2).
+     */
+    public BinaryFileRebinner(File outputDirectory, double windowSize, int nInputFiles) {
+        this.outputDirectory = outputDirectory;
+        this.windowSize = windowSize;
+        this.nInputFiles = nInputFiles;
+    }
+
     /**
      * Writes the spectra / cluster from the input files into
      * new files where spectra within the windowSize of each
@@ -40,93 +68,462 @@ public class BinaryFileRebinner {
         // sort the input files according to m/z
         Collections.sort(inputFiles);
 
-        // set the current max m/z
-        double maxMz = inputFiles.get(0).getMaxMz() - windowSize;
-        File outputFile = getResultFile(outputDirectory, inputFiles.get(0).getMinMz(), maxMz);
-        ObjectOutputStream outputStream = new ObjectOutputStream(new BufferedOutputStream(
-                new FileOutputStream(outputFile)));
-
+        BinaryFileRebinner rebinner = new BinaryFileRebinner(outputDirectory, windowSize, inputFiles.size());
         List<BinaryClusterFileReference> outputFiles = new ArrayList<BinaryClusterFileReference>();
-        double outputMinMz = Double.MAX_VALUE, outputMaxMz = 0;
-        int nCluster = 0;
 
         for (int i = 0; i < inputFiles.size(); i++) {
-            BinaryClusterFileReference clusterFileReference = inputFiles.get(i);
+            BinaryClusterFileReference nextInputFile = (i < inputFiles.size() - 1) ? inputFiles.get(i + 1) : null;
+            outputFiles.addAll(rebinner.processInputFile(inputFiles.get(i), nextInputFile));
+        }
 
-            // open the file
-            ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(
-                    new FileInputStream(clusterFileReference.getResultFile())));
-            BinaryClusterIterable clusterIterable = new BinaryClusterIterable(inputStream);
+        return outputFiles;
+    }
 
-            // make sure the clusters are sorted according to m/z
-            double lastClusterMz = 0;
-
-            for (ICluster cluster : clusterIterable) {
-                // if the cluster's precursor m/z is larger than the current maximum, create the next output file
-                if (cluster.getPrecursorMz() > maxMz) {
-                    BinaryClusterAppender.INSTANCE.appendEnd(outputStream);
-                    outputStream.close();
-
-                    // save the file reference
-                    outputFiles.add(new BinaryClusterFileReference(outputFile, outputMinMz, outputMaxMz, nCluster));
-
-                    // set the next max m/z
-                    if (i < inputFiles.size() - 2) {
-                        // use the next file's maximum but at least the current window size
-                        maxMz = Math.max(maxMz + windowSize, inputFiles.get(i + 1).getMaxMz() - windowSize);
-                    } else if (i == inputFiles.size() - 2) {
-                        // if there is only one file left, use this file's max
-                        maxMz = inputFiles.get(i + 1).getMaxMz();
-                    } else {
-                        // if this is the last file, use this file's max
-                        maxMz = clusterFileReference.getMaxMz();
-                    }
+    /**
+     * Re-bins the next input file. Input files must be passed in order of m/z.
+     * @param clusterFileReference The input file to process.
+     * @param nextInputFile The following input file which must already be known to define
+     *                      the size of the re-binned file. Null for the last file.
+     * @return The re-binned files that were completed while processing this file.
+     * @throws Exception
+     */
+    public List<BinaryClusterFileReference> processInputFile(BinaryClusterFileReference clusterFileReference,
+                                                             BinaryClusterFileReference nextInputFile)
+            throws Exception {
+        int i = nProcessedFiles;
 
-                    // create the new file
-                    outputFile = getResultFile(outputDirectory, outputMaxMz, maxMz);
-                    outputStream = new ObjectOutputStream(new BufferedOutputStream(
-                            new FileOutputStream(outputFile)));
-
-                    // reset the lastClusterMz
-                    lastClusterMz = 0;
-                    // reset the statistics for the output file
-                    outputMinMz = Double.MAX_VALUE;
-                    outputMaxMz = 0;
-                    nCluster = 0;
-                }
+        if (i >= nInputFiles) {
+            throw new IllegalStateException("All " + nInputFiles + " input files were already processed");
+        }
+        if (nextInputFile == null && i < nInputFiles - 1) {
+            throw new IllegalArgumentException("The next input file is required to process " +
+                    clusterFileReference.getResultFile().getName());
+        }
 
-                // make sure the clusters are sorted according to m/z
-                if (lastClusterMz > cluster.getPrecursorMz() + 0.1 ) {
-                    throw new Exception("Clusters are not sorted according to precursor m/z in " +
-                            clusterFileReference.getResultFile().getName());
-                }
+        List<BinaryClusterFileReference> outputFiles = new ArrayList<BinaryClusterFileReference>();
 
-                lastClusterMz = cluster.getPrecursorMz();
+        if (i == 0) {
+            // set the current max m/z
+            maxMz = clusterFileReference.getMaxMz() - windowSize;
+            outputFile = getResultFile(outputDirectory, clusterFileReference.getMinMz(), maxMz);
+            outputStream = new ObjectOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(outputFile)));
+        }
 
-                // write the cluster
-                BinaryClusterAppender.INSTANCE.appendCluster(outputStream, cluster);
+        // open the file
+        ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(
+                new FileInputStream(clusterFileReference.getResultFile())));
+        BinaryClusterIterable clusterIterable = new BinaryClusterIterable(inputStream);
 
-                // update the file statistics
-                if (cluster.getPrecursorMz() < outputMinMz) {
-                    outputMinMz = cluster.getPrecursorMz();
-                }
-                if (cluster.getPrecursorMz() > outputMaxMz) {
-                    outputMaxMz = cluster.getPrecursorMz();
+        // make sure the clusters are sorted according to m/z
+        double lastClusterMz = 0;
+
+        for (ICluster cluster : clusterIterable) {
+            // if the cluster's precursor m/z is larger than the current maximum, create the next output file
+            if (cluster.getPrecursorMz() > maxMz) {
+                BinaryClusterAppender.INSTANCE.appendEnd(outputStream);
+                outputStream.close();
+
+                // save the file reference
+                outputFiles.add(new BinaryClusterFileReference(outputFile, outputMinMz, outputMaxMz, nCluster));
+
+                // set the next max m/z
+                if (i < nInputFiles - 2) {
+                    // use the next file's maximum but at least the current window size
+                    maxMz = Math.max(maxMz + windowSize, nextInputFile.getMaxMz() - windowSize);
+                } else if (i == nInputFiles - 2) {
+                    // if there is only one file left, use this file's max
+                    maxMz = nextInputFile.getMaxMz();
+                } else {
+                    // if this is the last file, use this file's max
+                    maxMz = clusterFileReference.getMaxMz();
                 }
-                nCluster++;
+
+                // create the new file
+                outputFile = getResultFile(outputDirectory, outputMaxMz, maxMz);
+                outputStream = new ObjectOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(outputFile)));
+
+                // reset the lastClusterMz
+                lastClusterMz = 0;
+                // reset the statistics for the output file
+                outputMinMz = Double.MAX_VALUE;
+                outputMaxMz = 0;
+                nCluster = 0;
+            }
+
+            // make sure the clusters are sorted according to m/z
+            if (lastClusterMz > cluster.getPrecursorMz() + 0.1 ) {
+                throw new Exception("Clusters are not sorted according to precursor m/z in " +
+                        clusterFileReference.getResultFile().getName());
             }
 
-            inputStream.close();
+            lastClusterMz = cluster.getPrecursorMz();
+
+            // write the cluster
+            BinaryClusterAppender.INSTANCE.appendCluster(outputStream, cluster);
+
+            // update the file statistics
+            if (cluster.getPrecursorMz() < outputMinMz) {
+                outputMinMz = cluster.getPrecursorMz();
+            }
+            if (cluster.getPrecursorMz() > outputMaxMz) {
+                outputMaxMz = cluster.getPrecursorMz();
+            }
+            nCluster++;
         }
 
+        inputStream.close();
+        nProcessedFiles++;
+
         // close the currently written file and save it
-        BinaryClusterAppender.INSTANCE.appendEnd(outputStream);
-        outputStream.close();
-        outputFiles.add(new BinaryClusterFileReference(outputFile, outputMinMz, outputMaxMz, nCluster));
+        if (nProcessedFiles == nInputFiles) {
+            BinaryClusterAppender.INSTANCE.appendEnd(outputStream);
+            outputStream.close();
+            outputFiles.add(new BinaryClusterFileReference(outputFile, outputMinMz, outputMaxMz, nCluster));
+        }
 
         return outputFiles;
     }
 
+    /**
+     * Re-bins the input files using nJobs parallel jobs. The boundaries of the
+     * re-binned files are derived from the input file references so that every
+     * re-binned file can be written independently. The result is identical to
+     * rebinBinaryFiles(inputFiles, outputDirectory, windowSize). If the boundaries
+     * cannot be derived from the references, the files are re-binned sequentially.
+     * @param inputFiles
+     * @param outputDirectory
+     * @param windowSize Size of the overlapping region IN EACH FILE.
+     * @param nJobs Number of parallel jobs.
+     */
+    public static List<BinaryClusterFileReference> rebinBinaryFiles(List<BinaryClusterFileReference> inputFiles,
+                                                                    File outputDirectory, double windowSize, int nJobs)
+            throws Exception {
+        if (inputFiles.size() < 2 || nJobs < 2) {
+            return rebinBinaryFiles(inputFiles, outputDirectory, windowSize);
+        }
+
+        Collections.sort(inputFiles);
+
+        List<RebinningPlan> plans = planOutputFiles(inputFiles, windowSize);
+
+        if (plans == null) {
+            return rebinBinaryFiles(inputFiles, outputDirectory, windowSize);
+        }
+
+        // write all files under temporary names since the final names depend on the previous file
+        final List<BinaryClusterFileReference> sortedFiles = inputFiles;
+        CompletionJobRunner<RebinningPlan> jobRunner = new CompletionJobRunner<RebinningPlan>(nJobs);
+
+        for (final RebinningPlan plan : plans) {
+            plan.temporaryFile = File.createTempFile("rebinning", ".cls", outputDirectory);
+
+            jobRunner.submit(new Callable<RebinningPlan>() {
+                @Override
+                public RebinningPlan call() throws Exception {
+                    writeOutputFile(plan, sortedFiles);
+                    return plan;
+                }
+            });
+        }
+
+        try {
+            jobRunner.awaitAll(null);
+        }
+        catch (Exception e) {
+            for (RebinningPlan plan : plans) {
+                plan.temporaryFile.delete();
+            }
+
+            // the references did not match the files' content
+            if (e instanceof RebinningPlanException) {
+                return rebinBinaryFiles(inputFiles, outputDirectory, windowSize);
+            }
+
+            throw e;
+        }
+
+        // rename the files as they would have been named by the sequential re-binning
+        List<BinaryClusterFileReference> outputFiles = new ArrayList<BinaryClusterFileReference>(plans.size());
+        double lastOutputMaxMz = inputFiles.get(0).getMinMz();
+
+        for (RebinningPlan plan : plans) {
+            File outputFile = getResultFile(outputDirectory, lastOutputMaxMz, plan.maxMz);
+
+            if (outputFile.exists() && !outputFile.delete()) {
+                throw new Exception("Failed to delete existing file " + outputFile);
+            }
+            if (!plan.temporaryFile.renameTo(outputFile)) {
+                throw new Exception("Failed to rename " + plan.temporaryFile + " to " + outputFile);
+            }
+
+            outputFiles.add(new BinaryClusterFileReference(outputFile, plan.outputMinMz, plan.outputMaxMz, plan.nCluster));
+            lastOutputMaxMz = plan.outputMaxMz;
+        }
+
+        return outputFiles;
+    }
+
+    /**
+     * Re-bins the input files without writing any data. Every re-binned file is
+     * returned as a VirtualBinaryFile that references the slices of the input
+     * files it consists of. The input files must therefore be kept until the
+     * re-binned files were processed. Clusters are assigned to the slices based
+     * on their precursor m/z instead of their position in the file. If the
+     * boundaries cannot be derived from the references, the files are re-binned
+     * using rebinBinaryFiles(inputFiles, outputDirectory, windowSize, nJobs).
+     * @param inputFiles
+     * @param outputDirectory Directory the (physically) re-binned files are written to.
+     * @param windowSize Size of the overlapping region IN EACH FILE.
+     * @param nJobs Number of parallel jobs used if the files have to be re-binned physically.
+     */
+    public static List<BinaryClusterFileReference> rebinBinaryFilesVirtually(List<BinaryClusterFileReference> inputFiles,
+                                                                             File outputDirectory, double windowSize,
+                                                                             int nJobs)
+            throws Exception {
+        if (inputFiles.size() < 2) {
+            return inputFiles;
+        }
+
+        Collections.sort(inputFiles);
+
+        List<RebinningPlan> plans = planOutputFiles(inputFiles, windowSize);
+
+        if (plans == null) {
+            return rebinBinaryFiles(inputFiles, outputDirectory, windowSize, nJobs);
+        }
+
+        List<BinaryClusterFileReference> outputFiles = new ArrayList<BinaryClusterFileReference>(plans.size());
+
+        for (RebinningPlan plan : plans) {
+            List<BinaryFileSlice> slices = new ArrayList<BinaryFileSlice>();
+            int nSpectra = 0;
+
+            for (int i = plan.firstFile; i <= plan.lastFile; i++) {
+                BinaryClusterFileReference inputFile = inputFiles.get(i);
+
+                // the boundaries are only set in the files that are split
+                double fromMz = (i == plan.firstFile && plan.startMz >= 0) ? Math.nextUp(plan.startMz) : 0;
+                double toMz = (i == plan.lastFile && !plan.isLast) ? plan.maxMz : Double.MAX_VALUE;
+
+                double sliceMinMz = Math.max(fromMz, inputFile.getMinMz());
+                double sliceMaxMz = Math.min(toMz, inputFile.getMaxMz());
+                int sliceSpectra = estimateSpectra(inputFile, sliceMinMz, sliceMaxMz);
+
+                slices.add(new BinaryFileSlice(inputFile.getResultFile(), sliceMinMz, sliceMaxMz, sliceSpectra,
+                        fromMz, toMz));
+                nSpectra += sliceSpectra;
+            }
+
+            double lowerBoundary = (plan.startMz >= 0) ? plan.startMz : inputFiles.get(0).getMinMz();
+            File outputFile = getResultFile(outputDirectory, lowerBoundary, plan.maxMz);
+
+            outputFiles.add(new VirtualBinaryFile(outputFile, slices.get(0).getMinMz(),
+                    slices.get(slices.size() - 1).getMaxMz(), nSpectra, slices));
+        }
+
+        return outputFiles;
+    }
+
+    /**
+     * Estimates the number of clusters of a file within the defined m/z range
+     * assuming that the clusters are evenly distributed.
+     */
+    private static int estimateSpectra(BinaryClusterFileReference inputFile, double minMz, double maxMz) {
+        double fileRange = inputFile.getMaxMz() - inputFile.getMinMz();
+
+        if (fileRange <= 0) {
+            return inputFile.getnSpectra();
+        }
+
+        double fraction = Math.max(0, Math.min(1, (maxMz - minMz) / fileRange));
+
+        return (int) Math.round(inputFile.getnSpectra() * fraction);
+    }
+
+    /**
+     * Describes a single re-binned file.
+     */
+    private static class RebinningPlan {
+        /**
+         * The input file in which this output file starts
+         */
+        public int firstFile;
+        /**
+         * The input file in which this output file ends
+         */
+        public int lastFile;
+        /**
+         * Clusters of the first file are only added after the first cluster above this
+         * m/z. Not used for the first output file.
+         */
+        public double startMz = -1;
+        /**
+         * The output file ends with the first cluster above this m/z in the last file.
+         */
+        public double maxMz;
+        /**
+         * Indicates whether this is the last output file which contains all remaining clusters.
+         */
+        public boolean isLast = false;
+
+        public File temporaryFile;
+        public double outputMinMz = Double.MAX_VALUE, outputMaxMz = 0;
+        public int nCluster = 0;
+    }
+
+    /**
+     * Thrown if the content of an input file does not match its reference.
+     */
+    private static class RebinningPlanException extends Exception {
+        public RebinningPlanException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Derives the output files that the sequential re-binning would create. A new file
+     * is started in every input file whose maximum m/z exceeds the current maximum.
+     * @return The planned output files or null if they cannot be derived from the references.
+     */
+    private static List<RebinningPlan> planOutputFiles(List<BinaryClusterFileReference> inputFiles, double windowSize) {
+        List<RebinningPlan> plans = new ArrayList<RebinningPlan>();
+        int nInputFiles = inputFiles.size();
+
+        RebinningPlan currentPlan = new RebinningPlan();
+        currentPlan.firstFile = 0;
+        currentPlan.maxMz = inputFiles.get(0).getMaxMz() - windowSize;
+
+        for (int i = 0; i < nInputFiles; i++) {
+            double fileMaxMz = inputFiles.get(i).getMaxMz();
+
+            if (fileMaxMz <= currentPlan.maxMz) {
+                continue;
+            }
+
+            // the next file is started within this file
+            double nextMaxMz;
+            if (i < nInputFiles - 2) {
+                nextMaxMz = Math.max(currentPlan.maxMz + windowSize, inputFiles.get(i + 1).getMaxMz() - windowSize);
+            } else if (i == nInputFiles - 2) {
+                nextMaxMz = inputFiles.get(i + 1).getMaxMz();
+            } else {
+                nextMaxMz = fileMaxMz;
+            }
+
+            // if the file may contain a second boundary it depends on the order of the clusters
+            if (nextMaxMz < fileMaxMz) {
+                return null;
+            }
+
+            currentPlan.lastFile = i;
+            plans.add(currentPlan);
+
+            RebinningPlan nextPlan = new RebinningPlan();
+            nextPlan.firstFile = i;
+            nextPlan.startMz = currentPlan.maxMz;
+            nextPlan.maxMz = nextMaxMz;
+            currentPlan = nextPlan;
+        }
+
+        currentPlan.lastFile = nInputFiles - 1;
+        currentPlan.isLast = true;
+        plans.add(currentPlan);
+
+        return plans;
+    }
+
+    /**
+     * Writes a single planned output file.
+     * @throws RebinningPlanException If the content of the input files does not match the plan.
+     */
+    private static void writeOutputFile(RebinningPlan plan, List<BinaryClusterFileReference> inputFiles)
+            throws Exception {
+        ObjectOutputStream outputStream = new ObjectOutputStream(new BufferedOutputStream(
+                new FileOutputStream(plan.temporaryFile)));
+
+        try {
+            for (int i = plan.firstFile; i <= plan.lastFile; i++) {
+                BinaryClusterFileReference clusterFileReference = inputFiles.get(i);
+                boolean isStarted = i > plan.firstFile || plan.startMz < 0;
+                boolean isEnded = false;
+
+                ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(
+                        new FileInputStream(clusterFileReference.getResultFile())));
+
+                try {
+                    double lastClusterMz = 0;
+
+                    for (ICluster cluster : new BinaryClusterIterable(inputStream)) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            throw new InterruptedException();
+                        }
+
+                        // skip the clusters that belong to the previous output file
+                        if (!isStarted) {
+                            if (cluster.getPrecursorMz() <= plan.startMz) {
+                                continue;
+                            }
+
+                            isStarted = true;
+                            lastClusterMz = 0;
+                        }
+                        // the remaining clusters belong to the next output file
+                        else if (cluster.getPrecursorMz() > plan.maxMz) {
+                            if (i != plan.lastFile || plan.isLast) {
+                                throw new RebinningPlanException("Unexpected boundary in " +
+                                        clusterFileReference.getResultFile().getName());
+                            }
+
+                            isEnded = true;
+                            break;
+                        }
+
+                        // make sure the clusters are sorted according to m/z
+                        if (lastClusterMz > cluster.getPrecursorMz() + 0.1 ) {
+                            throw new Exception("Clusters are not sorted according to precursor m/z in " +
+                                    clusterFileReference.getResultFile().getName());
+                        }
+
+                        lastClusterMz = cluster.getPrecursorMz();
+
+                        BinaryClusterAppender.INSTANCE.appendCluster(outputStream, cluster);
+
+                        if (cluster.getPrecursorMz() < plan.outputMinMz) {
+                            plan.outputMinMz = cluster.getPrecursorMz();
+                        }
+                        if (cluster.getPrecursorMz() > plan.outputMaxMz) {
+                            plan.outputMaxMz = cluster.getPrecursorMz();
+                        }
+                        plan.nCluster++;
+                    }
+                }
+                finally {
+                    inputStream.close();
+                }
+
+                if (!isStarted || (i == plan.lastFile && !plan.isLast && !isEnded)) {
+                    throw new RebinningPlanException("Expected boundary not found in " +
+                            clusterFileReference.getResultFile().getName());
+                }
+            }
+
+            BinaryClusterAppender.INSTANCE.appendEnd(outputStream);
+        }
+        finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Indicates whether all input files were processed.
+     * @return
+     */
+    public boolean isComplete() {
+        return nProcessedFiles == nInputFiles;
+    }
+
     /**
      * Create a result file object for the current bin. Basically just
      * generates the output filename.
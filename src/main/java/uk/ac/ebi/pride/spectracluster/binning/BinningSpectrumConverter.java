@@ -7,16 +7,14 @@ import uk.ac.ebi.pride.spectracluster.spectra_list.IPeaklistScanner;
 import uk.ac.ebi.pride.spectracluster.spectra_list.ParsingClusteringScanner;
 import uk.ac.ebi.pride.spectracluster.spectra_list.ParsingMgfScanner;
 import uk.ac.ebi.pride.spectracluster.spectra_list.SpectrumReference;
+import uk.ac.ebi.pride.spectracluster.util.CompletionJobRunner;
+import uk.ac.ebi.pride.spectracluster.util.CompressedFiles;
 import uk.ac.ebi.pride.spectracluster.util.IProgressListener;
 import uk.ac.ebi.pride.spectracluster.util.ProgressUpdate;
 import uk.ac.ebi.pride.tools.jmzreader.model.IndexElement;
 
 import java.io.File;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Processes the input files and bins the spectra
@@ -32,14 +30,18 @@ public class BinningSpectrumConverter {
 
     private List<IBinaryClusteringResultListener> listeners = new ArrayList<IBinaryClusteringResultListener>();
     private List<IProgressListener> progressListeners = new ArrayList<IProgressListener>();
-    private ExecutorService writingJobsExecutorService;
-    private List<Future<BinaryClusterFileReference>> writtenBinaryFileFutures;
+    private List<IBinningPlanListener> binningPlanListeners = new ArrayList<IBinningPlanListener>();
+    private CompletionJobRunner<BinaryClusterFileReference> writingJobRunner;
 
     private final File outputDirectory;
     private final int nJobs;
     private final boolean fastMode;
     private List<BinaryClusterFileReference> writtenFiles;
     private List<SpectrumReference> spectrumReferences;
+    /**
+     * Temporary copies of compressed .clustering files
+     */
+    private List<File> decompressedFiles = new ArrayList<File>();
 
     private ClusteringSettings.LOADING_MODE loadingMode = ClusteringSettings.DEFAULT_LOADING_MODE;
 
@@ -68,6 +70,13 @@ public class BinningSpectrumConverter {
             else if (filename.toLowerCase().endsWith(".clustering")) {
                 clusteringFilenames.add(filename);
             }
+            else if (filename.toLowerCase().endsWith(".clustering" + CompressedFiles.GZIP_SUFFIX)) {
+                // the .clustering files are accessed using an index and therefore have to be decompressed
+                File decompressedFile = File.createTempFile("decompressed_", ".clustering", outputDirectory);
+                CompressedFiles.decompress(new File(filename), decompressedFile);
+                decompressedFiles.add(decompressedFile);
+                clusteringFilenames.add(decompressedFile.getAbsolutePath());
+            }
             else {
                 throw new Exception("Unsupported filetype in " + filename);
             }
@@ -91,50 +100,30 @@ public class BinningSpectrumConverter {
         launchFileWritingJobs(binnedSpectrumReferences, mgfFilenames, clusteringFilenames);
 
         // wait for the completed jobs
-        waitForCompletedJobs();
+        try {
+            waitForCompletedJobs();
+        } finally {
+            for (File decompressedFile : decompressedFiles) {
+                decompressedFile.delete();
+            }
+            decompressedFiles.clear();
+        }
     }
 
     private void waitForCompletedJobs() throws Exception {
-        try {
-            boolean allDone = false;
-            writtenFiles = new ArrayList<BinaryClusterFileReference>();
-            Set<Integer> completedWritingJobs = new HashSet<Integer>();
-
-            while (!allDone) {
-                allDone = true;
-
-                for (int i = 0; i < writtenBinaryFileFutures.size(); i++) {
-                    if (Thread.currentThread().isInterrupted()) {
-                        throw new InterruptedException();
-                    }
-
-                    if (completedWritingJobs.contains(i))
-                        continue;
-
-                    Future<BinaryClusterFileReference> fileFuture = writtenBinaryFileFutures.get(i);
-
-                    if (!fileFuture.isDone()) {
-                        allDone = false;
-                    } else {
-                        // save the written file
-                        BinaryClusterFileReference writtenFile = fileFuture.get();
-                        writtenFiles.add(writtenFile);
-                        // notify all listeners
-                        notifyListeners(writtenFile);
-                        notifyProgressListeners(writtenFiles.size(), writtenBinaryFileFutures.size());
-
-                        completedWritingJobs.add(i);
-                    }
-                }
+        writtenFiles = new ArrayList<BinaryClusterFileReference>();
+
+        // blocks until the next file is written
+        writingJobRunner.awaitAll(new CompletionJobRunner.IJobListener<BinaryClusterFileReference>() {
+            @Override
+            public void onJobCompleted(BinaryClusterFileReference writtenFile, int completedJobs, int totalJobs) {
+                // save the written file
+                writtenFiles.add(writtenFile);
+                // notify all listeners
+                notifyListeners(writtenFile);
+                notifyProgressListeners(completedJobs, totalJobs);
             }
-
-            // terminate the executor service
-            writingJobsExecutorService.awaitTermination(1, TimeUnit.SECONDS);
-        }
-        catch (InterruptedException e) {
-            writingJobsExecutorService.shutdownNow();
-            throw(e);
-        }
+        });
     }
 
     private void notifyListeners(BinaryClusterFileReference writtenFile) {
@@ -158,8 +147,9 @@ public class BinningSpectrumConverter {
         if (outputDirectory == null || !outputDirectory.exists() || !outputDirectory.isDirectory())
             throw new Exception("Invalid output directory for converted spectra set");
 
-        writingJobsExecutorService = Executors.newFixedThreadPool(nJobs);
-        writtenBinaryFileFutures = new ArrayList<Future<BinaryClusterFileReference>>(binnedSpectrumReferences.size());
+        writingJobRunner = new CompletionJobRunner<BinaryClusterFileReference>(nJobs);
+
+        notifyBinningPlanListeners(binnedSpectrumReferences);
 
         // launch the jobs
         for (int i = 0; i < binnedSpectrumReferences.size(); i++) {
@@ -181,11 +171,37 @@ public class BinningSpectrumConverter {
                             outputFile,
                             fastMode);
 
-            Future<BinaryClusterFileReference> fileFuture = writingJobsExecutorService.submit(writerCallable);
-            writtenBinaryFileFutures.add(fileFuture);
+            writingJobRunner.submit(writerCallable);
+        }
+    }
+
+    private void notifyBinningPlanListeners(List<List<SpectrumReference>> binnedSpectrumReferences) {
+        if (binningPlanListeners.isEmpty()) {
+            return;
         }
 
-        writingJobsExecutorService.shutdown();
+        List<BinaryClusterFileReference> plannedFiles = new ArrayList<BinaryClusterFileReference>();
+
+        for (List<SpectrumReference> spectrumReferences : binnedSpectrumReferences) {
+            if (spectrumReferences.size() < 1) {
+                continue;
+            }
+
+            double minMz = Double.MAX_VALUE, maxMz = 0;
+            for (SpectrumReference spectrumReference : spectrumReferences) {
+                minMz = Math.min(minMz, spectrumReference.getPrecursorMz());
+                maxMz = Math.max(maxMz, spectrumReference.getPrecursorMz());
+            }
+
+            plannedFiles.add(new BinaryClusterFileReference(generateOutputfile(spectrumReferences), minMz, maxMz,
+                    spectrumReferences.size()));
+        }
+
+        Collections.sort(plannedFiles);
+
+        for (IBinningPlanListener listener : binningPlanListeners) {
+            listener.onBinningPlanned(plannedFiles);
+        }
     }
 
     public File generateOutputfile(List<SpectrumReference> spectrumReferences) {
@@ -221,6 +237,10 @@ public class BinningSpectrumConverter {
         return Collections.unmodifiableList(spectrumReferences);
     }
 
+    public void addBinningPlanListener(IBinningPlanListener listener) {
+        binningPlanListeners.add(listener);
+    }
+
     public void addProgressListener(IProgressListener listener) {
         progressListeners.add(listener);
     }
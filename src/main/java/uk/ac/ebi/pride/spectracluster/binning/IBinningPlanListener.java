@@ -0,0 +1,21 @@
+package uk.ac.ebi.pride.spectracluster.binning;
+
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryClusterFileReference;
+
+import java.util.List;
+
+/**
+ * Listener that is informed about all binary files a
+ * BinningSpectrumConverter is going to write before the
+ * first file is written.
+ *
+ * Created by jg on 19.10.26.
+ */
+public interface IBinningPlanListener {
+    /**
+     * Called once the spectra were binned.
+     * @param plannedFiles All files that will be written sorted by m/z. The m/z range and number of
+     *                     spectra are taken from the spectrum references.
+     */
+    public void onBinningPlanned(List<BinaryClusterFileReference> plannedFiles);
+}
@@ -3,14 +3,11 @@ package uk.ac.ebi.pride.spectracluster.cdf;
 import uk.ac.ebi.pride.spectracluster.spectra_list.IPeaklistScanner;
 import uk.ac.ebi.pride.spectracluster.spectra_list.ParsingMgfScanner;
 import uk.ac.ebi.pride.spectracluster.spectra_list.SpectrumReference;
+import uk.ac.ebi.pride.spectracluster.util.CompletionJobRunner;
 import uk.ac.ebi.pride.spectracluster.util.IProgressListener;
 import uk.ac.ebi.pride.spectracluster.util.ProgressUpdate;
 
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 
 /**
  * This class is used to learn the CDF based on
@@ -63,8 +60,7 @@ public class CdfLearner {
 
         // launch the comparison jobs, 10000 per thread
         List<SpectrumMatch> currentMatches = new ArrayList<SpectrumMatch>();
-        ExecutorService executorService = Executors.newFixedThreadPool(nJobs);
-        List<Future<CdfResult>> cdfResultFutures = new ArrayList<Future<CdfResult>>();
+        CompletionJobRunner<CdfResult> jobRunner = new CompletionJobRunner<CdfResult>(nJobs);
 
         for (SpectrumMatch spectrumMatch : matches) {
             currentMatches.add(spectrumMatch);
@@ -72,8 +68,7 @@ public class CdfLearner {
             if (currentMatches.size() >= COMPARISONS_PER_THREAD) {
                 CdfComparisonCallable cdfComparisonCallable = new CdfComparisonCallable(
                         currentMatches, spectrumReferences, peaklistFilenames, peaklistScanner.getFileIndices());
-                Future<CdfResult> cdfResultFuture = executorService.submit(cdfComparisonCallable);
-                cdfResultFutures.add(cdfResultFuture);
+                jobRunner.submit(cdfComparisonCallable);
 
                 currentMatches = new ArrayList<SpectrumMatch>();
             }
@@ -82,56 +77,27 @@ public class CdfLearner {
         if (currentMatches.size() > 0) {
             CdfComparisonCallable cdfComparisonCallable = new CdfComparisonCallable(
                     currentMatches, spectrumReferences, peaklistFilenames, peaklistScanner.getFileIndices());
-            Future<CdfResult> cdfResultFuture = executorService.submit(cdfComparisonCallable);
-            cdfResultFutures.add(cdfResultFuture);
+            jobRunner.submit(cdfComparisonCallable);
         }
 
-        // show that we are done
-        executorService.shutdown();
-
-        // wait for everything to complete
+        // merge the results as soon as a job completes
         CdfResult mergedCdfResult = null;
-        boolean threadsRunning = true;
-        Set<Integer> completedJobIds = new HashSet<Integer>();
         int completed = 0;
 
-        while (threadsRunning) {
-            threadsRunning = false;
-            for (int i = 0; i < cdfResultFutures.size(); i++) {
-                // ignore all threads that have completed before
-                if (completedJobIds.contains(i)) {
-                    continue;
-                }
-
-                Future<CdfResult> cdfResultFuture = cdfResultFutures.get(i);
-
-                // save new results
-                if (cdfResultFuture.isDone()) {
-                    // save the result
-                    CdfResult cdfResult = cdfResultFuture.get();
-                    completed += cdfResult.getTotalComparisons();
-                    if (mergedCdfResult == null) {
-                        mergedCdfResult = cdfResult;
-                    } else {
-                        mergedCdfResult.addCdfResult(cdfResult);
-                    }
-
-                    notifyListeners(completed, numberOfComparisons);
-
-                    completedJobIds.add(i);
-                }
-                else {
-                    // indicate that some threads are still running
-                    threadsRunning = true;
-                }
+        while (jobRunner.getCompletedJobs() < jobRunner.getSubmittedJobs()) {
+            CdfResult cdfResult = jobRunner.takeCompleted();
+            completed += cdfResult.getTotalComparisons();
+
+            if (mergedCdfResult == null) {
+                mergedCdfResult = cdfResult;
+            } else {
+                mergedCdfResult.addCdfResult(cdfResult);
             }
 
-            // wait a second for new threads to complete
-            Thread.sleep(1000);
+            notifyListeners(completed, numberOfComparisons);
         }
 
-        // only wait 1 second since everything should be done already
-        executorService.awaitTermination(1, TimeUnit.SECONDS);
+        jobRunner.shutdown();
 
         // create the cumulative distribution function from the results
         return mergedCdfResult;
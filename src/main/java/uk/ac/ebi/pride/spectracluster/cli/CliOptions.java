@@ -24,6 +24,7 @@ public class CliOptions {
         BINARY_TMP_DIR("binary_directory"),
         KEEP_BINARY_FILE("keep_binary_files"),
         REUSE_BINARY_FILES("reuse_binary_files"),
+        RESUME("resume"),
         REMOVE_REPORTER_PEAKS("remove_reporters"),
         FAST_MODE("fast_mode"),
         ADD_SCORES("add_scores"),
@@ -43,7 +44,22 @@ public class CliOptions {
         ADVANCED_MIN_CONSENSUS_PEAKS_TO_KEEP("x_min_consensus_peaks_to_keep"),
         ADVANCED_MERGE_BINARY_FILES("x_merge_binary_files"),
         ADVANCED_CONVERT_CGF("x_convert_cgf"),
-        ADVANCED_FILTER_PEAKS_PER_MZ("x_filter_peaks_mz");
+        ADVANCED_FILTER_PEAKS_PER_MZ("x_filter_peaks_mz"),
+        ADVANCED_RESULT_THRESHOLDS("x_result_thresholds"),
+        ADVANCED_WINDOW_MEMORY_BUDGET("x_window_memory_budget"),
+        ADVANCED_STREAMING("x_streaming"),
+        ADVANCED_IO_THREADS("x_io_threads"),
+        ADVANCED_BOUNDARY_MERGE("x_boundary_merge"),
+        ADVANCED_MERGE_FINAL_THRESHOLD_ONLY("x_merge_final_threshold_only"),
+        ADVANCED_VIRTUAL_REBINNING("x_virtual_rebinning"),
+        ADVANCED_SPLIT_BINS("x_split_bins"),
+        ADVANCED_HALO_BIN_SIZE("x_halo_bin_size"),
+        ADVANCED_WORKER_PROCESSES("x_worker_processes"),
+        ADVANCED_COORDINATOR_PORT("x_coordinator_port"),
+        ADVANCED_HEAP_FRACTION("x_heap_fraction"),
+        ADVANCED_BIN_TIME_BUDGET("x_bin_time_budget"),
+        ADVANCED_COMPRESS_OUTPUT("x_compress_output"),
+        ADVANCED_QUERY_INDEX("x_query_index");
 
         private String value;
 
@@ -130,6 +146,13 @@ public class CliOptions {
                 .create(OPTIONS.REUSE_BINARY_FILES.getValue());
         options.addOption(reuseBinaryFiles);
 
+        Option resume = OptionBuilder
+                .withDescription("if this option is set, completed jobs are recorded in the binary file directory. An " +
+                        "interrupted run can then be resumed by launching it again with the same settings. Requires -" +
+                        OPTIONS.BINARY_TMP_DIR.getValue())
+                .create(OPTIONS.RESUME.getValue());
+        options.addOption(resume);
+
         Option fastMode = OptionBuilder
                 .withDescription("if this option is set the 'fast mode' is enabled. In this mode, the radical peak filtering used for the comparison function is already applied during spectrum conversion. Thereby, the clustering and consensus spectrum quality is slightly decreased but speed increases 2-3 fold.")
                 .create(OPTIONS.FAST_MODE.getValue());
@@ -241,6 +264,147 @@ public class CliOptions {
                 .create(OPTIONS.ADVANCED_FILTER_PEAKS_PER_MZ.getValue());
         options.addOption(xFilterPeaksMz);
 
+        Option xResultThresholds = OptionBuilder
+                .hasArg()
+                .withArgName("thresholds")
+                .withDescription("(Advanced option) Comma separated list of final thresholds (ie. 0.99,0.995,0.999). " +
+                        "The clustering is only performed once and one result file is written per threshold. The " +
+                        "lowest threshold is used as final clustering threshold (cannot be combined with -" +
+                        OPTIONS.END_THRESHOLD.getValue() + ") and written to the set output path. For all other " +
+                        "thresholds the threshold is added to the output filename (ie. result_0.995.clustering). " +
+                        "Thresholds that are not already used by one of the -" + OPTIONS.ROUNDS.getValue() +
+                        " rounds are added as extra clustering rounds. This also changes the final result compared " +
+                        "to a run without this option.")
+                .create(OPTIONS.ADVANCED_RESULT_THRESHOLDS.getValue());
+        options.addOption(xResultThresholds);
+
+        Option xWindowMemoryBudget = OptionBuilder
+                .hasArg()
+                .withArgName("MB")
+                .withDescription("(Advanced option) Estimated memory in MB the open clusters of a single clustering " +
+                        "job may use. If this budget is exceeded, the least recently matched clusters are temporarily " +
+                        "written to disk and reloaded when a cluster they may be compared with is added. This prevents " +
+                        "out of memory errors in very dense precursor regions without changing the result but " +
+                        "requires additional disk reads in these regions. By default no limit is set.")
+                .create(OPTIONS.ADVANCED_WINDOW_MEMORY_BUDGET.getValue());
+        options.addOption(xWindowMemoryBudget);
+
+        Option xStreaming = OptionBuilder
+                .withDescription("(Advanced option) Runs the conversion, clustering and merging as one overlapping " +
+                        "pipeline. Every bin is clustered as soon as it was written and merged as soon as its neighbours " +
+                        "are clustered. Cannot be combined with -" + OPTIONS.RESUME.getValue() + " or -" +
+                        OPTIONS.ADVANCED_RESULT_THRESHOLDS.getValue() + ".")
+                .create(OPTIONS.ADVANCED_STREAMING.getValue());
+        options.addOption(xStreaming);
+
+        Option xIoThreads = OptionBuilder
+                .hasArg()
+                .withArgName("threads")
+                .withDescription("(Advanced option) Number of threads used to write the binary files and to read ahead " +
+                        "the input of the clustering jobs. By default, the number of parallel jobs is used. Lower values " +
+                        "prevent network file systems from being overloaded.")
+                .create(OPTIONS.ADVANCED_IO_THREADS.getValue());
+        options.addOption(xIoThreads);
+
+        Option xBoundaryMerge = OptionBuilder
+                .withDescription("(Advanced option) Only re-clusters the clusters close to the boundaries of the " +
+                        "clustered files during merging instead of re-binning and rewriting all files. Falls back to " +
+                        "the default merging if the clustered files are too narrow. Cannot be combined with -" +
+                        OPTIONS.RESUME.getValue() + ".")
+                .create(OPTIONS.ADVANCED_BOUNDARY_MERGE.getValue());
+        options.addOption(xBoundaryMerge);
+
+        Option xMergeFinalThresholdOnly = OptionBuilder
+                .withDescription("(Advanced option) Only runs a single round with the final threshold when merging " +
+                        "neighbouring bins. The clusters at the boundaries are directly compared with each other instead " +
+                        "of repeating all clustering rounds. This speeds up the merging but may slightly change the " +
+                        "clusters at the bin boundaries.")
+                .create(OPTIONS.ADVANCED_MERGE_FINAL_THRESHOLD_ONLY.getValue());
+        options.addOption(xMergeFinalThresholdOnly);
+
+        Option xVirtualRebinning = OptionBuilder
+                .withDescription("(Advanced option) Re-bins the clustered files before merging without rewriting them. " +
+                        "The re-binned files are read directly from the clustered files. Cannot be combined with -" +
+                        OPTIONS.RESUME.getValue() + ".")
+                .create(OPTIONS.ADVANCED_VIRTUAL_REBINNING.getValue());
+        options.addOption(xVirtualRebinning);
+
+        Option xSplitBins = OptionBuilder
+                .withDescription("(Advanced option) Clusters the bins using work-stealing threads. Bins that would " +
+                        "become the tail of the run are split at gaps in the precursor m/z larger than twice the " +
+                        "precursor tolerance and the parts are clustered by idle threads.")
+                .create(OPTIONS.ADVANCED_SPLIT_BINS.getValue());
+        options.addOption(xSplitBins);
+
+        Option xHaloBinSize = OptionBuilder
+                .hasArg()
+                .withArgName("spectra")
+                .withDescription("(Advanced option) Bins containing more spectra are split into parts of this size " +
+                        "that are clustered in parallel. Every part also considers the spectra within one precursor " +
+                        "tolerance of its boundaries. Spectra that are clustered across a boundary are re-clustered " +
+                        "among themselves afterwards. This approximates clustering the whole bin and may slightly " +
+                        "change the result. Not used together with -" + OPTIONS.ADVANCED_RESULT_THRESHOLDS.getValue() + ".")
+                .create(OPTIONS.ADVANCED_HALO_BIN_SIZE.getValue());
+        options.addOption(xHaloBinSize);
+
+        Option xWorkerProcesses = OptionBuilder
+                .hasArg()
+                .withArgName("processes")
+                .withDescription("(Advanced option) Clusters the bins in this number of separate worker JVMs that " +
+                        "are launched on this machine. Bins of workers that die are re-assigned to the remaining " +
+                        "workers. Cannot be combined with -" + OPTIONS.RESUME.getValue() + ", -" +
+                        OPTIONS.ADVANCED_RESULT_THRESHOLDS.getValue() + " or -" + OPTIONS.ADVANCED_STREAMING.getValue() + ".")
+                .create(OPTIONS.ADVANCED_WORKER_PROCESSES.getValue());
+        options.addOption(xWorkerProcesses);
+
+        Option xCoordinatorPort = OptionBuilder
+                .hasArg()
+                .withArgName("port")
+                .withDescription("(Advanced option) Port the clustering workers connect to. Workers on other nodes " +
+                        "sharing the temporary directory can be started using 'java -cp spectra-cluster-cli.jar " +
+                        "uk.ac.ebi.pride.spectracluster.distributed.ClusteringWorker [host] [port]'. If set, the bins are " +
+                        "clustered by workers even if -" + OPTIONS.ADVANCED_WORKER_PROCESSES.getValue() + " is not set.")
+                .create(OPTIONS.ADVANCED_COORDINATOR_PORT.getValue());
+        options.addOption(xCoordinatorPort);
+
+        Option xHeapFraction = OptionBuilder
+                .hasArg()
+                .withArgName("fraction")
+                .withDescription("(Advanced option) Only starts a clustering job once its estimated heap requirement " +
+                        "(based on the bin's number of spectra and peaks per spectrum) fits into this fraction of the " +
+                        "maximum heap (-Xmx) together with the running jobs. Must be between 0 and 1.")
+                .create(OPTIONS.ADVANCED_HEAP_FRACTION.getValue());
+        options.addOption(xHeapFraction);
+
+        Option xBinTimeBudget = OptionBuilder
+                .hasArg()
+                .withArgName("seconds")
+                .withDescription("(Advanced option) Maximum time a single bin may be clustered for. Bins exceeding " +
+                        "this time are clustered again in fast mode, only comparing spectra that share their " +
+                        "highest peak. These bins are listed in the run report written next to the result file. Cannot be " +
+                        "combined with -" + OPTIONS.ADVANCED_SPLIT_BINS.getValue() + " or -" +
+                        OPTIONS.ADVANCED_HALO_BIN_SIZE.getValue() + ".")
+                .create(OPTIONS.ADVANCED_BIN_TIME_BUDGET.getValue());
+        options.addOption(xBinTimeBudget);
+
+        Option xCompressOutput = OptionBuilder
+                .withDescription("(Advanced option) Write the result file gzip compressed. \".gz\" is added to the " +
+                        "result file's name. The file is compressed in blocks using the number of parallel jobs as " +
+                        "threads and can be read by the standard gzip tools. Result files ending in \".gz\" are always " +
+                        "written compressed.")
+                .create(OPTIONS.ADVANCED_COMPRESS_OUTPUT.getValue());
+        options.addOption(xCompressOutput);
+
+        Option xQueryIndex = OptionBuilder
+                .hasArg()
+                .withArgName("query")
+                .withDescription("(Advanced option) Prints the clusters of the passed .clustering file matching the " +
+                        "query instead of clustering. Supported queries are \"cluster=<id>\", \"spectrum=<id>\" " +
+                        "(the id as written in the SPEC line), and \"mz=<min>:<max>\". The lookup uses the index " +
+                        "written next to every .clustering file, files without an index are indexed first.")
+                .create(OPTIONS.ADVANCED_QUERY_INDEX.getValue());
+        options.addOption(xQueryIndex);
+
         options.addOption(xMergeBinaryfiles);
     }
 
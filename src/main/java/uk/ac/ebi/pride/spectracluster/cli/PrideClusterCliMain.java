@@ -6,14 +6,18 @@ import uk.ac.ebi.pride.spectracluster.binning.BinningSpectrumConverter;
 import uk.ac.ebi.pride.spectracluster.binning.FixedReferenceMzBinner;
 import uk.ac.ebi.pride.spectracluster.cdf.*;
 import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.clustering.BinCostEstimator;
 import uk.ac.ebi.pride.spectracluster.clustering.BinaryClusterFileReference;
 import uk.ac.ebi.pride.spectracluster.clustering.BinaryFileClusterer;
+import uk.ac.ebi.pride.spectracluster.clustering.SlicedClusterIterable;
+import uk.ac.ebi.pride.spectracluster.clustering.VirtualBinaryFile;
+import uk.ac.ebi.pride.spectracluster.conversion.ParallelClusterFormatter;
 import uk.ac.ebi.pride.spectracluster.implementation.ClusteringSettings;
 import uk.ac.ebi.pride.spectracluster.implementation.ScoreCalculator;
 import uk.ac.ebi.pride.spectracluster.implementation.SpectraClusterStandalone;
+import uk.ac.ebi.pride.spectracluster.index.ClusteringIndex;
 import uk.ac.ebi.pride.spectracluster.io.BinaryClusterAppender;
 import uk.ac.ebi.pride.spectracluster.io.BinaryClusterIterable;
-import uk.ac.ebi.pride.spectracluster.io.DotClusterClusterAppender;
 import uk.ac.ebi.pride.spectracluster.merging.BinaryFileMergingClusterer;
 import uk.ac.ebi.pride.spectracluster.util.*;
 import uk.ac.ebi.pride.spectracluster.util.function.peak.BinnedHighestNPeakFunction;
@@ -42,7 +46,9 @@ public class PrideClusterCliMain implements IProgressListener {
         MERGE_BINARY_FILE("merge_binary"),
         CLUSTER_BINARY_FILE("cluster_binary"),
         CONVERT_BINARY_FILE("convert_binary"),
-        CLUSTER_MERGE_BINARY_FILES("cluster_merge_binary");
+        CLUSTER_MERGE_BINARY_FILES("cluster_merge_binary"),
+        SHARD("shard"),
+        GATHER_SHARDS("gather_shards");
 
         private String value;
 
@@ -90,6 +96,18 @@ public class PrideClusterCliMain implements IProgressListener {
             orgOptions.addOption(OptionBuilder
                     .withDescription("Performs the clustering merging step on the passed binary files.")
                     .create(OPTIONS.CLUSTER_MERGE_BINARY_FILES.getValue()));
+            orgOptions.addOption(OptionBuilder
+                    .hasArg()
+                    .withArgName("i/n")
+                    .withDescription("Only processes shard i (starting at 1) of n shards of the bins in " +
+                            OPTIONS.CLUSTER_BINARY_FILE.getValue() + " and " + OPTIONS.CLUSTER_MERGE_BINARY_FILES.getValue() +
+                            " mode. All shards must be passed the same input files. The shard's result files are " +
+                            "recorded in the output directory.")
+                    .create(OPTIONS.SHARD.getValue()));
+            orgOptions.addOption(OptionBuilder
+                    .withDescription("Validates that the results of all shards are present in the passed directories " +
+                            "and converts them to the specified result file in the .clustering format")
+                    .create(OPTIONS.GATHER_SHARDS.getValue()));
 
             CommandLine commandLine = parser.parse(CliOptions.getOptions(), args);
 
@@ -288,6 +306,12 @@ public class PrideClusterCliMain implements IProgressListener {
             // MGF COMMENT SUPPORT
             ClusteringSettings.disableMGFCommentSupport = commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_DISABLE_MGF_COMMENTS.getValue());
 
+            // SHARD
+            BinShard shard = null;
+            if (commandLine.hasOption(OPTIONS.SHARD.getValue())) {
+                shard = BinShard.parse(commandLine.getOptionValue(OPTIONS.SHARD.getValue()));
+            }
+
             // MERGE BINARY FILES
             boolean mergeBinaryFilesMode = commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_MERGE_BINARY_FILES.getValue());
 
@@ -358,19 +382,25 @@ public class PrideClusterCliMain implements IProgressListener {
 
             if (commandLine.hasOption(OPTIONS.CLUSTER_BINARY_FILE.getValue())) {
                 System.out.println("Clustering files...");
-                clusterBinaryFile(peaklistFilenames, finalResultFile, paralellJobs, thresholds, spectraClusterStandalone.isVerbose());
+                clusterBinaryFile(peaklistFilenames, finalResultFile, paralellJobs, thresholds, spectraClusterStandalone.isVerbose(), shard);
                 System.exit(0);
             }
 
             if (commandLine.hasOption(OPTIONS.CONVERT_BINARY_FILE.getValue())) {
                 System.out.println("Converting binary files...");
-                convertBinaryFiles(peaklistFilenames, finalResultFile);
+                convertBinaryFiles(peaklistFilenames, finalResultFile, paralellJobs);
                 System.exit(0);
             }
 
             if (commandLine.hasOption(OPTIONS.CLUSTER_MERGE_BINARY_FILES.getValue())) {
                 System.out.println("Clustering and merging binary files...");
-                mergeClusterBinaryFiles(peaklistFilenames, finalResultFile, paralellJobs, thresholds, spectraClusterStandalone.isVerbose());
+                mergeClusterBinaryFiles(peaklistFilenames, finalResultFile, paralellJobs, thresholds, spectraClusterStandalone.isVerbose(), shard);
+                System.exit(0);
+            }
+
+            if (commandLine.hasOption(OPTIONS.GATHER_SHARDS.getValue())) {
+                System.out.println("Gathering shards...");
+                gatherShards(peaklistFilenames, finalResultFile, paralellJobs);
                 System.exit(0);
             }
 
@@ -452,8 +482,10 @@ public class PrideClusterCliMain implements IProgressListener {
      * @param paralellJobs Number of parallel jobs
      * @param thresholds List of thresholds to use
      * @param verbose Indicates whether verbose output should be used.
+     * @param shard If set, only the re-binned files of this shard are merged.
      */
-    public void mergeClusterBinaryFiles(String[] peaklistFilenames, File finalResultFile, int paralellJobs, List<Float> thresholds, boolean verbose) throws Exception {
+    public void mergeClusterBinaryFiles(String[] peaklistFilenames, File finalResultFile, int paralellJobs, List<Float> thresholds, boolean verbose,
+                                        BinShard shard) throws Exception {
         if (!finalResultFile.isDirectory()) {
             throw new Exception("Error: Result file must be a directory.");
         }
@@ -477,16 +509,35 @@ public class PrideClusterCliMain implements IProgressListener {
         List<BinaryClusterFileReference> clusterReferences = BinaryFileScanner.scanBinaryFiles(
                 spectraPerBinNumberComparisonAssessor,
                 null,
+                ClusteringSettings.getIoThreads(paralellJobs),
                 filenames.toArray(new File[filenames.size()]));
 
-        // rebin the files
-        List<BinaryClusterFileReference> rebinnedFiles = BinaryFileRebinner.rebinBinaryFiles(clusterReferences,
-                tmpRebinned, Defaults.getDefaultPrecursorIonTolerance());
+        // rebin the files - every shard plans the re-binning of all files, it is therefore only done virtually
+        List<BinaryClusterFileReference> rebinnedFiles;
+
+        if (shard != null) {
+            rebinnedFiles = BinaryFileRebinner.rebinBinaryFilesVirtually(clusterReferences, tmpRebinned,
+                    Defaults.getDefaultPrecursorIonTolerance(), paralellJobs);
+        } else {
+            rebinnedFiles = BinaryFileRebinner.rebinBinaryFiles(clusterReferences,
+                    tmpRebinned, Defaults.getDefaultPrecursorIonTolerance());
+        }
 
         // Create the merger
         BinaryFileMergingClusterer merger = new BinaryFileMergingClusterer(paralellJobs, finalResultFile, thresholds,
                 false, Defaults.getDefaultPrecursorIonTolerance() * 2, false, tmpDir);
 
+        if (shard != null) {
+            List<File> shardFiles = new ArrayList<File>();
+            for (BinaryClusterFileReference rebinnedFile : shard.selectFiles(rebinnedFiles,
+                    new BinCostEstimator(Defaults.getDefaultPrecursorIonTolerance() * 2))) {
+                shardFiles.add(rebinnedFile.getResultFile());
+            }
+
+            merger.setSelectedFiles(shardFiles);
+            System.out.println(String.format("Merging shard %s: %d of %d files", shard, shardFiles.size(), rebinnedFiles.size()));
+        }
+
         if (verbose)
             merger.addProgressListener(this);
 
@@ -496,27 +547,92 @@ public class PrideClusterCliMain implements IProgressListener {
         // make sure all files were copied to the target directory
         List<BinaryClusterFileReference> processedFiles = merger.getResultFiles();
 
+        List<BinaryClusterFileReference> writtenFiles = new ArrayList<BinaryClusterFileReference>();
+
         for (BinaryClusterFileReference reference : processedFiles) {
-            if (reference.getResultFile().getParentFile() != finalResultFile) {
-                File targetName = new File(finalResultFile, reference.getResultFile().getName());
+            File targetName = new File(finalResultFile, reference.getResultFile().getName());
+
+            // the (unmerged) first file may only exist as slices of the clustered files
+            if (reference instanceof VirtualBinaryFile) {
+                writeVirtualFile((VirtualBinaryFile) reference, targetName);
+            }
+            else if (reference.getResultFile().getParentFile() != finalResultFile) {
                 Files.copy(reference.getResultFile().toPath(), targetName.toPath());
             }
+
+            writtenFiles.add(new BinaryClusterFileReference(targetName, reference.getMinMz(), reference.getMaxMz(),
+                    reference.getnSpectra()));
+        }
+
+        if (shard != null) {
+            shard.writeMarker(finalResultFile, writtenFiles);
         }
 
         System.out.println("Result files written to " + finalResultFile.toString());
     }
 
     /**
-     * Converts the passed binary files to the cgf format
+     * Writes the clusters of a virtual binary file to a real binary file.
+     * @param virtualFile The virtual file to write.
+     * @param targetFile The binary file to create.
+     */
+    private void writeVirtualFile(VirtualBinaryFile virtualFile, File targetFile) throws Exception {
+        SlicedClusterIterable clusterIterable = new SlicedClusterIterable(virtualFile.getSlices());
+        ObjectOutputStream outputStream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(targetFile)));
+
+        try {
+            for (ICluster cluster : clusterIterable) {
+                BinaryClusterAppender.INSTANCE.appendCluster(outputStream, cluster);
+            }
+
+            BinaryClusterAppender.INSTANCE.appendEnd(outputStream);
+        }
+        finally {
+            outputStream.close();
+            clusterIterable.close();
+        }
+    }
+
+    /**
+     * Validates that the results of all shards are present and converts them to
+     * a single result file in the .clustering format.
+     * @param shardDirectories The directories containing the shards' results.
+     * @param finalResultFile The .clustering file to create.
+     * @param nJobs Number of threads used to format the clusters.
+     */
+    public void gatherShards(String[] shardDirectories, File finalResultFile, int nJobs) throws Exception {
+        File[] directories = new File[shardDirectories.length];
+        for (int i = 0; i < shardDirectories.length; i++) {
+            directories[i] = new File(shardDirectories[i]);
+        }
+
+        List<BinaryClusterFileReference> resultFiles = BinShard.gatherShards(directories);
+
+        String[] resultFilenames = new String[resultFiles.size()];
+        for (int i = 0; i < resultFiles.size(); i++) {
+            resultFilenames[i] = resultFiles.get(i).getResultFile().getAbsolutePath();
+        }
+
+        System.out.println(String.format("All shards found, converting %d result files...", resultFilenames.length));
+
+        convertBinaryFiles(resultFilenames, finalResultFile, nJobs);
+    }
+
+    /**
+     * Converts the passed binary files to the .clustering format. If the result file ends
+     * in ".gz" it is written compressed. A ClusteringIndex is written next to the result file.
      * @param peaklistFilenames
      * @param finalResultFile
+     * @param nJobs Number of threads used to format the clusters.
      */
-    public void convertBinaryFiles(String[] peaklistFilenames, File finalResultFile) throws Exception {
-        FileWriter writer = new FileWriter(finalResultFile);
+    public void convertBinaryFiles(String[] peaklistFilenames, File finalResultFile, int nJobs) throws Exception {
+        ParallelClusterFormatter formatter = new ParallelClusterFormatter(
+                CompressedFiles.openOutputStream(finalResultFile, nJobs), nJobs);
+        formatter.writeIndex(ClusteringIndex.getIndexFile(finalResultFile));
 
         String[] options = {"PrideCluster 2.0"};
 
-        DotClusterClusterAppender.INSTANCE.appendStart(writer, options);
+        formatter.appendStart((Object[]) options);
 
         for (String binaryFile : peaklistFilenames) {
             System.out.println("Converting " + binaryFile + "...");
@@ -524,12 +640,12 @@ public class PrideClusterCliMain implements IProgressListener {
             BinaryClusterIterable binaryClusterIterable = new BinaryClusterIterable(new ObjectInputStream(new FileInputStream(binaryFile)));
 
             for (ICluster cluster : binaryClusterIterable) {
-                DotClusterClusterAppender.INSTANCE.appendCluster(writer, cluster);
+                formatter.appendCluster(cluster);
             }
         }
 
-        DotClusterClusterAppender.INSTANCE.appendEnd(writer);
-        writer.close();
+        formatter.appendEnd();
+        formatter.close();
 
         System.out.println("Result written to " + finalResultFile.toString());
     }
@@ -539,7 +655,8 @@ public class PrideClusterCliMain implements IProgressListener {
      * @param peaklistFilenames
      * @param finalResultFile
      */
-    public void clusterBinaryFile(String[] peaklistFilenames, File finalResultFile, int nJobs, List<Float> clusteringThresholds, boolean verbose) throws Exception {
+    public void clusterBinaryFile(String[] peaklistFilenames, File finalResultFile, int nJobs, List<Float> clusteringThresholds, boolean verbose,
+                                  BinShard shard) throws Exception {
         if (!finalResultFile.isDirectory()) {
             throw new Exception("Error: Result file must be a directory.");
         }
@@ -562,6 +679,7 @@ public class PrideClusterCliMain implements IProgressListener {
         List<BinaryClusterFileReference> clusterReferences = BinaryFileScanner.scanBinaryFiles(
                 spectraPerBinNumberComparisonAssessor,
                 null,
+                ClusteringSettings.getIoThreads(nJobs),
                 filenames.toArray(new File[filenames.size()]));
 
         // set the cluster predicate
@@ -589,9 +707,21 @@ public class PrideClusterCliMain implements IProgressListener {
             binaryFileClusterer.addProgressListener(this);
         }
 
+        // all files are scanned so that every shard counts the same spectra per bin
+        if (shard != null) {
+            int nFiles = clusterReferences.size();
+            clusterReferences = shard.selectFiles(clusterReferences,
+                    new BinCostEstimator(Defaults.getDefaultPrecursorIonTolerance() * 2));
+            System.out.println(String.format("Clustering shard %s: %d of %d files", shard, clusterReferences.size(), nFiles));
+        }
+
         // start the clustering
         binaryFileClusterer.clusterFiles(clusterReferences);
 
+        if (shard != null) {
+            shard.writeMarker(finalResultFile, binaryFileClusterer.getResultFiles());
+        }
+
         // TODO: delete temporary directory
     }
 
@@ -8,6 +8,9 @@ import uk.ac.ebi.pride.spectracluster.cdf.*;
 import uk.ac.ebi.pride.spectracluster.implementation.ClusteringSettings;
 import uk.ac.ebi.pride.spectracluster.implementation.ScoreCalculator;
 import uk.ac.ebi.pride.spectracluster.implementation.SpectraClusterStandalone;
+import uk.ac.ebi.pride.spectracluster.index.ClusteringIndex;
+import uk.ac.ebi.pride.spectracluster.index.ClusteringIndexWriter;
+import uk.ac.ebi.pride.spectracluster.util.CompressedFiles;
 import uk.ac.ebi.pride.spectracluster.util.Defaults;
 import uk.ac.ebi.pride.spectracluster.util.IProgressListener;
 import uk.ac.ebi.pride.spectracluster.util.MissingParameterException;
@@ -22,6 +25,7 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -55,6 +59,12 @@ public class SpectraClusterCliMain implements IProgressListener {
                 return;
             }
 
+            // QUERY INDEX
+            if (commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_QUERY_INDEX.getValue())) {
+                queryIndex(commandLine.getArgs(), commandLine.getOptionValue(CliOptions.OPTIONS.ADVANCED_QUERY_INDEX.getValue()));
+                return;
+            }
+
             // create the clustering standalone object
             SpectraClusterStandalone spectraClusterStandalone = new SpectraClusterStandalone();
 
@@ -63,6 +73,12 @@ public class SpectraClusterCliMain implements IProgressListener {
                 throw new MissingParameterException("Missing required option " + CliOptions.OPTIONS.OUTPUT_PATH.getValue());
             File finalResultFile = new File(commandLine.getOptionValue(CliOptions.OPTIONS.OUTPUT_PATH.getValue()));
 
+            // COMPRESSED OUTPUT
+            if (commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_COMPRESS_OUTPUT.getValue()) &&
+                    !CompressedFiles.isCompressed(finalResultFile)) {
+                finalResultFile = new File(finalResultFile.getPath() + CompressedFiles.GZIP_SUFFIX);
+            }
+
             if (finalResultFile.exists())
                 throw new Exception("Result file " + finalResultFile + " already exists");
 
@@ -88,6 +104,40 @@ public class SpectraClusterCliMain implements IProgressListener {
             if (commandLine.hasOption(CliOptions.OPTIONS.END_THRESHOLD.getValue()))
                 endThreshold = Float.parseFloat(commandLine.getOptionValue(CliOptions.OPTIONS.END_THRESHOLD.getValue()));
 
+            // ADDITIONAL RESULT THRESHOLDS
+            List<Float> resultThresholds = new ArrayList<Float>();
+            if (commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_RESULT_THRESHOLDS.getValue())) {
+                if (commandLine.hasOption(CliOptions.OPTIONS.END_THRESHOLD.getValue())) {
+                    throw new Exception(CliOptions.OPTIONS.ADVANCED_RESULT_THRESHOLDS.getValue() + " cannot be used " +
+                            "together with " + CliOptions.OPTIONS.END_THRESHOLD.getValue() + ", the lowest result " +
+                            "threshold is used as final threshold");
+                }
+
+                for (String thresholdString : commandLine.getOptionValue(CliOptions.OPTIONS.ADVANCED_RESULT_THRESHOLDS.getValue()).split(",")) {
+                    resultThresholds.add(Float.parseFloat(thresholdString.trim()));
+                }
+
+                // the lowest threshold becomes the final clustering threshold
+                endThreshold = Collections.min(resultThresholds);
+
+                List<Float> additionalResultThresholds = new ArrayList<Float>();
+                for (Float resultThreshold : resultThresholds) {
+                    if (resultThreshold != endThreshold && !additionalResultThresholds.contains(resultThreshold)) {
+                        additionalResultThresholds.add(resultThreshold);
+
+                        File thresholdResultFile = SpectraClusterStandalone.getResultFileForThreshold(finalResultFile, resultThreshold);
+                        if (thresholdResultFile.exists())
+                            throw new Exception("Result file " + thresholdResultFile + " already exists");
+                    }
+                }
+
+                spectraClusterStandalone.setAdditionalResultThresholds(additionalResultThresholds);
+
+                // record the score of every spectrum when it is added to a cluster
+                Defaults.setSaveAddingScore(true);
+                ClusteringSettings.saveAddingScore = true;
+            }
+
             List<Float> thresholds = spectraClusterStandalone.generateClusteringThresholds(startThreshold, endThreshold, rounds);
 
             // PRECURSOR TOLERANCE
@@ -125,6 +175,77 @@ public class SpectraClusterCliMain implements IProgressListener {
                 spectraClusterStandalone.setTemporaryDirectory(binaryTmpDirectory);
             }
 
+            // RESUME
+            if (commandLine.hasOption(CliOptions.OPTIONS.RESUME.getValue())) {
+                if (!commandLine.hasOption(CliOptions.OPTIONS.BINARY_TMP_DIR.getValue()))
+                    throw new MissingParameterException("Missing required option '" + CliOptions.OPTIONS.BINARY_TMP_DIR.getValue() + "' with " + CliOptions.OPTIONS.RESUME.getValue());
+
+                spectraClusterStandalone.setResumable(true);
+            }
+
+            // STREAMING
+            if (commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_STREAMING.getValue())) {
+                if (commandLine.hasOption(CliOptions.OPTIONS.RESUME.getValue()) ||
+                        commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_RESULT_THRESHOLDS.getValue())) {
+                    throw new Exception(CliOptions.OPTIONS.ADVANCED_STREAMING.getValue() + " cannot be combined with " +
+                            CliOptions.OPTIONS.RESUME.getValue() + " or " + CliOptions.OPTIONS.ADVANCED_RESULT_THRESHOLDS.getValue());
+                }
+
+                spectraClusterStandalone.setStreamingMode(true);
+            }
+
+            // BOUNDARY MERGE
+            if (commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_BOUNDARY_MERGE.getValue())) {
+                if (commandLine.hasOption(CliOptions.OPTIONS.RESUME.getValue())) {
+                    throw new Exception(CliOptions.OPTIONS.ADVANCED_BOUNDARY_MERGE.getValue() + " cannot be combined with " +
+                            CliOptions.OPTIONS.RESUME.getValue());
+                }
+
+                spectraClusterStandalone.setBoundaryMerge(true);
+            }
+
+            // MERGE FINAL THRESHOLD ONLY
+            if (commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_MERGE_FINAL_THRESHOLD_ONLY.getValue())) {
+                spectraClusterStandalone.setMergeFinalThresholdOnly(true);
+            }
+
+            // VIRTUAL RE-BINNING
+            if (commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_VIRTUAL_REBINNING.getValue())) {
+                if (commandLine.hasOption(CliOptions.OPTIONS.RESUME.getValue())) {
+                    throw new Exception(CliOptions.OPTIONS.ADVANCED_VIRTUAL_REBINNING.getValue() + " cannot be combined with " +
+                            CliOptions.OPTIONS.RESUME.getValue());
+                }
+
+                spectraClusterStandalone.setVirtualRebinning(true);
+            }
+
+            // WORKER PROCESSES
+            if (commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_WORKER_PROCESSES.getValue()) ||
+                    commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_COORDINATOR_PORT.getValue())) {
+                if (commandLine.hasOption(CliOptions.OPTIONS.RESUME.getValue()) ||
+                        commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_RESULT_THRESHOLDS.getValue()) ||
+                        commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_STREAMING.getValue())) {
+                    throw new Exception(CliOptions.OPTIONS.ADVANCED_WORKER_PROCESSES.getValue() + " cannot be combined with " +
+                            CliOptions.OPTIONS.RESUME.getValue() + ", " + CliOptions.OPTIONS.ADVANCED_RESULT_THRESHOLDS.getValue() +
+                            " or " + CliOptions.OPTIONS.ADVANCED_STREAMING.getValue());
+                }
+
+                if (commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_WORKER_PROCESSES.getValue())) {
+                    int workerProcesses = Integer.parseInt(commandLine.getOptionValue(CliOptions.OPTIONS.ADVANCED_WORKER_PROCESSES.getValue()));
+
+                    if (workerProcesses < 1) {
+                        throw new Exception(CliOptions.OPTIONS.ADVANCED_WORKER_PROCESSES.getValue() + " must be at least 1");
+                    }
+
+                    spectraClusterStandalone.setWorkerProcesses(workerProcesses);
+                }
+
+                if (commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_COORDINATOR_PORT.getValue())) {
+                    spectraClusterStandalone.setCoordinatorPort(
+                            Integer.parseInt(commandLine.getOptionValue(CliOptions.OPTIONS.ADVANCED_COORDINATOR_PORT.getValue())));
+                }
+            }
+
             // KEEP BINARY FILES
             if (commandLine.hasOption(CliOptions.OPTIONS.KEEP_BINARY_FILE.getValue())) {
                 spectraClusterStandalone.setKeepBinaryFiles(true);
@@ -152,6 +273,8 @@ public class SpectraClusterCliMain implements IProgressListener {
                 spectraClusterStandalone.setVerbose(true);
                 Defaults.setSaveDebugInformation(true);
                 Defaults.setSaveAddingScore(true);
+                ClusteringSettings.saveDebugInformation = true;
+                ClusteringSettings.saveAddingScore = true;
             }
 
             // REMOVE QUANT PEAKS
@@ -223,6 +346,7 @@ public class SpectraClusterCliMain implements IProgressListener {
                 int minComparisons = Integer.parseInt(commandLine.getOptionValue(CliOptions.OPTIONS.ADVANCED_MIN_ADAPTIVE_COMPARISONS.getValue()));
                 Defaults.setNumberOfComparisonAssessor(new SpectraPerBinNumberComparisonAssessor(Defaults.getDefaultPrecursorIonTolerance(),
                         minComparisons));
+                ClusteringSettings.minAdaptiveComparisons = minComparisons;
             } else {
                 Defaults.setNumberOfComparisonAssessor(new SpectraPerBinNumberComparisonAssessor(Defaults.getDefaultPrecursorIonTolerance()));
             }
@@ -240,8 +364,74 @@ public class SpectraClusterCliMain implements IProgressListener {
 
             // MIN CONSENSUS PEAKS TO KEEP
             if (commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_MIN_CONSENSUS_PEAKS_TO_KEEP.getValue())) {
-                Defaults.setDefaultConsensusMinPeaks(Integer.parseInt(
-                        commandLine.getOptionValue(CliOptions.OPTIONS.ADVANCED_MIN_CONSENSUS_PEAKS_TO_KEEP.getValue())));
+                ClusteringSettings.consensusMinPeaks = Integer.parseInt(
+                        commandLine.getOptionValue(CliOptions.OPTIONS.ADVANCED_MIN_CONSENSUS_PEAKS_TO_KEEP.getValue()));
+                Defaults.setDefaultConsensusMinPeaks(ClusteringSettings.consensusMinPeaks);
+            }
+
+            // WINDOW MEMORY BUDGET
+            if (commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_WINDOW_MEMORY_BUDGET.getValue())) {
+                long budgetMb = Long.parseLong(commandLine.getOptionValue(CliOptions.OPTIONS.ADVANCED_WINDOW_MEMORY_BUDGET.getValue()));
+
+                if (budgetMb < 1) {
+                    throw new Exception(CliOptions.OPTIONS.ADVANCED_WINDOW_MEMORY_BUDGET.getValue() + " must be at least 1 MB");
+                }
+
+                ClusteringSettings.windowMemoryBudget = budgetMb * 1024 * 1024;
+            }
+
+            // IO THREADS
+            if (commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_IO_THREADS.getValue())) {
+                int ioThreads = Integer.parseInt(commandLine.getOptionValue(CliOptions.OPTIONS.ADVANCED_IO_THREADS.getValue()));
+
+                if (ioThreads < 1) {
+                    throw new Exception(CliOptions.OPTIONS.ADVANCED_IO_THREADS.getValue() + " must be at least 1");
+                }
+
+                ClusteringSettings.ioThreads = ioThreads;
+            }
+
+            // SPLIT BINS
+            ClusteringSettings.splitSlowBins = commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_SPLIT_BINS.getValue());
+
+            // HALO BIN SIZE
+            if (commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_HALO_BIN_SIZE.getValue())) {
+                int haloBinSize = Integer.parseInt(commandLine.getOptionValue(CliOptions.OPTIONS.ADVANCED_HALO_BIN_SIZE.getValue()));
+
+                if (haloBinSize < 1) {
+                    throw new Exception(CliOptions.OPTIONS.ADVANCED_HALO_BIN_SIZE.getValue() + " must be at least 1");
+                }
+
+                ClusteringSettings.haloBinClusters = haloBinSize;
+            }
+
+            // HEAP FRACTION
+            if (commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_HEAP_FRACTION.getValue())) {
+                double heapFraction = Double.parseDouble(commandLine.getOptionValue(CliOptions.OPTIONS.ADVANCED_HEAP_FRACTION.getValue()));
+
+                if (heapFraction <= 0 || heapFraction > 1) {
+                    throw new Exception(CliOptions.OPTIONS.ADVANCED_HEAP_FRACTION.getValue() + " must be between 0 and 1");
+                }
+
+                ClusteringSettings.heapFraction = heapFraction;
+            }
+
+            // BIN TIME BUDGET
+            if (commandLine.hasOption(CliOptions.OPTIONS.ADVANCED_BIN_TIME_BUDGET.getValue())) {
+                int binTimeBudget = Integer.parseInt(commandLine.getOptionValue(CliOptions.OPTIONS.ADVANCED_BIN_TIME_BUDGET.getValue()));
+
+                if (binTimeBudget < 1) {
+                    throw new Exception(CliOptions.OPTIONS.ADVANCED_BIN_TIME_BUDGET.getValue() + " must be at least 1");
+                }
+
+                // split bins are not covered by the time budget
+                if (ClusteringSettings.splitSlowBins || ClusteringSettings.haloBinClusters > 0) {
+                    throw new Exception(CliOptions.OPTIONS.ADVANCED_BIN_TIME_BUDGET.getValue() + " cannot be combined with " +
+                            CliOptions.OPTIONS.ADVANCED_SPLIT_BINS.getValue() + " or " +
+                            CliOptions.OPTIONS.ADVANCED_HALO_BIN_SIZE.getValue());
+                }
+
+                ClusteringSettings.binTimeBudget = binTimeBudget;
             }
 
             // MGF COMMENT SUPPORT
@@ -298,6 +488,8 @@ public class SpectraClusterCliMain implements IProgressListener {
                 reader.close();
 
                 Defaults.setCumulativeDistributionFunction(CumulativeDistributionFunction.fromString(cdfString.toString()));
+                ClusteringSettings.cdfFile = new File(commandLine.getOptionValue(
+                        CliOptions.OPTIONS.ADVANCED_LOAD_CDF_FILE.getValue())).getAbsolutePath();
             }
 
             /**
@@ -305,7 +497,7 @@ public class SpectraClusterCliMain implements IProgressListener {
              */
             printSettings(finalResultFile, paralellJobs, startThreshold, endThreshold, rounds, spectraClusterStandalone.isKeepBinaryFiles(),
                     spectraClusterStandalone.getTemporaryDirectory(), peaklistFilenames, reUseBinaryFiles, spectraClusterStandalone.isUseFastMode(),
-                    addedFilters);
+                    addedFilters, spectraClusterStandalone.getAdditionalResultThresholds());
 
             spectraClusterStandalone.addProgressListener(this);
 
@@ -357,6 +549,11 @@ public class SpectraClusterCliMain implements IProgressListener {
                 System.out.println("Adding scores to output file...");
                 ScoreCalculator scoreCalculator = new ScoreCalculator();
                 scoreCalculator.processClusteringResult(finalResultFile, mgfDirs);
+
+                for (Float resultThreshold : spectraClusterStandalone.getAdditionalResultThresholds()) {
+                    scoreCalculator.processClusteringResult(
+                            SpectraClusterStandalone.getResultFileForThreshold(finalResultFile, resultThreshold), mgfDirs);
+                }
             }
         } catch (MissingParameterException e) {
             System.out.println("Error: " + e.getMessage() + "\n\n");
@@ -371,6 +568,66 @@ public class SpectraClusterCliMain implements IProgressListener {
         }
     }
 
+    /**
+     * Prints all clusters of the .clustering file that match the query.
+     * @param inputFiles The .clustering file to query.
+     * @param query The query in the format "cluster=<id>", "spectrum=<id>", or "mz=<min>:<max>".
+     */
+    private void queryIndex(String[] inputFiles, String query) throws Exception {
+        if (inputFiles.length != 1) {
+            throw new Exception("Only one .clustering file can be queried");
+        }
+
+        File clusteringFile = new File(inputFiles[0]);
+        if (!clusteringFile.isFile()) {
+            throw new Exception(clusteringFile + " does not exist");
+        }
+
+        int separatorIndex = query.indexOf('=');
+        if (separatorIndex < 0) {
+            throw new Exception("Invalid query '" + query + "'");
+        }
+
+        String field = query.substring(0, separatorIndex);
+        String value = query.substring(separatorIndex + 1);
+
+        if (!ClusteringIndex.getIndexFile(clusteringFile).exists()) {
+            System.out.println("Indexing " + clusteringFile + "...");
+            ClusteringIndexWriter.indexClusteringFile(clusteringFile);
+        }
+
+        ClusteringIndex index = new ClusteringIndex(clusteringFile);
+        List<String> clusters;
+
+        try {
+            if (field.equals("cluster")) {
+                clusters = index.findCluster(value);
+            } else if (field.equals("spectrum")) {
+                clusters = index.findClustersBySpectrum(value);
+            } else if (field.equals("mz")) {
+                String[] range = value.split(":");
+
+                if (range.length != 2) {
+                    throw new Exception("Invalid m/z range '" + value + "', must be <min>:<max>");
+                }
+
+                clusters = index.findClustersByMz(Double.parseDouble(range[0]), Double.parseDouble(range[1]));
+            } else {
+                throw new Exception("Unknown query field '" + field + "', must be cluster, spectrum, or mz");
+            }
+        } finally {
+            index.close();
+        }
+
+        if (clusters.isEmpty()) {
+            System.out.println("No matching cluster found");
+        }
+
+        for (String cluster : clusters) {
+            System.out.print(cluster);
+        }
+    }
+
     /**
      * Convert the passed files from the .cgf format to the .clustering format.
      * @param inputFiles
@@ -391,13 +648,16 @@ public class SpectraClusterCliMain implements IProgressListener {
     private void printSettings(File finalResultFile, int nMajorPeakJobs, float startThreshold,
                                       float endThreshold, int rounds, boolean keepBinaryFiles, File binaryTmpDirectory,
                                       String[] peaklistFilenames, boolean reUseBinaryFiles, boolean fastMode,
-                                      List<String> addedFilters) {
+                                      List<String> addedFilters, List<Float> additionalResultThresholds) {
         System.out.println("spectra-cluster API Version 1.0.11");
         System.out.println("Created by Rui Wang & Johannes Griss\n");
 
         System.out.println("-- Settings --");
         System.out.println("Number of threads: " + String.valueOf(nMajorPeakJobs));
         System.out.println("Thresholds: " + String.valueOf(startThreshold) + " - " + String.valueOf(endThreshold) + " in " + rounds + " rounds");
+        if (!additionalResultThresholds.isEmpty()) {
+            System.out.println("Additional result thresholds: " + additionalResultThresholds);
+        }
         System.out.println("Keeping binary files: " + (keepBinaryFiles ? "true" : "false"));
         System.out.println("Binary file directory: " + binaryTmpDirectory);
         System.out.println("Result file: " + finalResultFile);
@@ -0,0 +1,109 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import java.util.*;
+
+/**
+ * Estimates the processing cost of clustering a binary file and
+ * orders the files using the longest-processing-time-first (LPT)
+ * policy. Thereby, large bins are not started last and become
+ * the tail of the run.
+ *
+ * Every spectrum is only compared to the clusters within the
+ * precursor tolerance window. The cost is therefore estimated as
+ * the number of spectra times the expected number of spectra in
+ * this window based on the bin's precursor density.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class BinCostEstimator {
+    private final double windowSize;
+
+    /**
+     * Creates a new estimator.
+     * @param windowSize The m/z window in which spectra are compared (ie. twice the precursor tolerance).
+     */
+    public BinCostEstimator(double windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    public double getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Estimates the cost of clustering the file in arbitrary units.
+     * @param binaryFile The file to estimate.
+     * @return The estimated cost.
+     */
+    public double estimateCost(BinaryClusterFileReference binaryFile) {
+        double nSpectra = binaryFile.getnSpectra();
+        double mzRange = Math.max(binaryFile.getMaxMz() - binaryFile.getMinMz(), windowSize);
+
+        // expected number of spectra within the comparison window
+        double spectraInWindow = nSpectra * windowSize / mzRange;
+
+        return nSpectra * (1 + spectraInWindow);
+    }
+
+    /**
+     * Sorts the files from highest to lowest estimated cost.
+     * @param binaryFiles The files to sort.
+     * @return A new sorted list.
+     */
+    public List<BinaryClusterFileReference> sortByCost(List<BinaryClusterFileReference> binaryFiles) {
+        final Map<BinaryClusterFileReference, Double> costs = new HashMap<BinaryClusterFileReference, Double>();
+        for (BinaryClusterFileReference binaryFile : binaryFiles) {
+            costs.put(binaryFile, estimateCost(binaryFile));
+        }
+
+        List<BinaryClusterFileReference> sortedFiles = new ArrayList<BinaryClusterFileReference>(binaryFiles);
+        Collections.sort(sortedFiles, new Comparator<BinaryClusterFileReference>() {
+            @Override
+            public int compare(BinaryClusterFileReference o1, BinaryClusterFileReference o2) {
+                return Double.compare(costs.get(o2), costs.get(o1));
+            }
+        });
+
+        return sortedFiles;
+    }
+
+    /**
+     * Predicts the makespan (total cost of the busiest job slot) if the files
+     * are processed in the passed order by nJobs parallel jobs. Every file
+     * is started in the slot that becomes available first.
+     * @param binaryFiles The files in order of submission.
+     * @param nJobs Number of parallel jobs.
+     * @return The predicted makespan in cost units.
+     */
+    public double predictMakespan(List<BinaryClusterFileReference> binaryFiles, int nJobs) {
+        PriorityQueue<Double> slots = new PriorityQueue<Double>();
+        for (int i = 0; i < nJobs; i++) {
+            slots.add(0.0);
+        }
+
+        double makespan = 0;
+
+        for (BinaryClusterFileReference binaryFile : binaryFiles) {
+            double finishedAt = slots.poll() + estimateCost(binaryFile);
+            slots.add(finishedAt);
+            makespan = Math.max(makespan, finishedAt);
+        }
+
+        return makespan;
+    }
+
+    /**
+     * Returns the total estimated cost of all files.
+     * @param binaryFiles The files to estimate.
+     * @return The summed cost.
+     */
+    public double getTotalCost(List<BinaryClusterFileReference> binaryFiles) {
+        double totalCost = 0;
+
+        for (BinaryClusterFileReference binaryFile : binaryFiles) {
+            totalCost += estimateCost(binaryFile);
+        }
+
+        return totalCost;
+    }
+}
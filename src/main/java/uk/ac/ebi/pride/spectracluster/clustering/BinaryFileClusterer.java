@@ -1,17 +1,22 @@
 package uk.ac.ebi.pride.spectracluster.clustering;
 
 import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.implementation.ClusteringSettings;
 import uk.ac.ebi.pride.spectracluster.util.ClusteringJobReference;
+import uk.ac.ebi.pride.spectracluster.util.ClusteringJobStatistics;
+import uk.ac.ebi.pride.spectracluster.util.CompletionJobRunner;
+import uk.ac.ebi.pride.spectracluster.util.Defaults;
 import uk.ac.ebi.pride.spectracluster.util.IProgressListener;
 import uk.ac.ebi.pride.spectracluster.util.ProgressUpdate;
+import uk.ac.ebi.pride.spectracluster.util.RunManifest;
+import uk.ac.ebi.pride.spectracluster.util.RunReport;
 import uk.ac.ebi.pride.spectracluster.util.predicate.IPredicate;
 
 import java.io.File;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Created by jg on 30.05.15.
@@ -23,13 +28,43 @@ public class BinaryFileClusterer {
     private final boolean fastMode;
     private final File temporaryDirectory;
 
-    private ExecutorService clusteringExecuteService;
+    private CompletionJobRunner<ClusteringJobReference> clusteringJobRunner;
+    /**
+     * Reads ahead the input files while the clustering jobs are running.
+     */
+    private ExecutorService ioExecutor;
     private ClusteringProcessLauncher clusteringProcessLauncher;
     private List<IBinaryClusteringResultListener> listeners = new ArrayList<IBinaryClusteringResultListener>();
     private List<IProgressListener> progressListeners = new ArrayList<IProgressListener>();
 
     private List<BinaryClusterFileReference> resultFiles;
 
+    /**
+     * Directories to store copies of the results at intermediate thresholds
+     */
+    private Map<Float, File> snapshotDirectories = Collections.emptyMap();
+    private Map<Float, List<BinaryClusterFileReference>> snapshotFiles = new HashMap<Float, List<BinaryClusterFileReference>>();
+
+    /**
+     * If set, completed jobs are recorded in the manifest and jobs
+     * that were already completed in a previous run are not repeated.
+     */
+    private RunManifest runManifest;
+    private List<ClusteringJobReference> resumedJobs = new ArrayList<ClusteringJobReference>();
+
+    /**
+     * If set, bins that required a fallback (splitting or fewer comparisons) are recorded.
+     */
+    private RunReport runReport;
+
+    /**
+     * Jobs are submitted from highest to lowest estimated cost. The predicted
+     * makespan is compared to the actual one once all jobs are completed.
+     */
+    private final BinCostEstimator costEstimator = new BinCostEstimator(Defaults.getDefaultPrecursorIonTolerance() * 2);
+    private List<BinaryClusterFileReference> scheduledFiles = new ArrayList<BinaryClusterFileReference>();
+    private long totalProcessingTime = 0;
+
     /**
      * If this predicate is set, only clusters that do not fulfill this predicate
      * are being ignored and will not be reported.
@@ -46,73 +81,207 @@ public class BinaryFileClusterer {
     }
 
     public void clusterFiles(List<BinaryClusterFileReference> binaryFiles) throws Exception {
-        launchClusteringJobs(binaryFiles);
+        ioExecutor = Executors.newFixedThreadPool(ClusteringSettings.getIoThreads(nJobs));
 
-        waitForCompletedJobs();
+        try {
+            launchClusteringJobs(binaryFiles);
+
+            waitForCompletedJobs();
+        }
+        finally {
+            // stops all readers in case a job failed
+            ioExecutor.shutdownNow();
+        }
     }
 
     private void waitForCompletedJobs() throws Exception {
-        try {
-            List<Future<ClusteringJobReference>> fileFutures = clusteringProcessLauncher.getResultFileFutures();
+        final int totalJobs = clusteringJobRunner.getSubmittedJobs() + resumedJobs.size();
+        resultFiles = new ArrayList<BinaryClusterFileReference>();
 
-            boolean allDone = false;
-            resultFiles = new ArrayList<BinaryClusterFileReference>();
-            Set<Integer> completedJobs = new HashSet<Integer>();
+        // report the jobs completed in a previous run first
+        for (ClusteringJobReference jobReference : resumedJobs) {
+            processCompletedJob(jobReference, totalJobs);
+        }
 
-            while (!allDone) {
-                allDone = true;
+        long startTime = System.currentTimeMillis();
 
-                for (int i = 0; i < fileFutures.size(); i++) {
-                    if (Thread.currentThread().isInterrupted()) {
-                        clusteringExecuteService.shutdownNow();
-                        throw new InterruptedException();
-                    }
+        // report every job as soon as it completes
+        clusteringJobRunner.awaitAll(new CompletionJobRunner.IJobListener<ClusteringJobReference>() {
+            @Override
+            public void onJobCompleted(ClusteringJobReference jobReference, int completedJobs, int submittedJobs) throws Exception {
+                totalProcessingTime += jobReference.getStatistics().getProcessingTime();
+                reportEvents(jobReference);
+                recordCompletedJob(jobReference);
+                processCompletedJob(jobReference, totalJobs);
+            }
+        });
 
-                    if (completedJobs.contains(i))
-                        continue;
+        notifyMakespan(System.currentTimeMillis() - startTime);
+    }
 
-                    Future<ClusteringJobReference> fileFuture = fileFutures.get(i);
+    /**
+     * Reports the predicted and the actual makespan of the clustering jobs. The
+     * cost estimates are converted to seconds using the average processing time per
+     * cost unit of all jobs.
+     * @param actualMakespan The actual makespan in milliseconds.
+     */
+    private void notifyMakespan(long actualMakespan) {
+        double totalCost = costEstimator.getTotalCost(scheduledFiles);
 
-                    if (!fileFuture.isDone()) {
-                        allDone = false;
-                    } else {
-                        // save the written file
-                        BinaryClusterFileReference resultFile = fileFuture.get().getOutputFile();
-                        resultFiles.add(resultFile);
-                        // notify all listeners
-                        notifyListeners(resultFiles.size(), fileFutures.size(), resultFile);
+        if (scheduledFiles.isEmpty() || totalCost <= 0) {
+            return;
+        }
 
-                        completedJobs.add(i);
-                    }
-                }
+        double timePerCost = totalProcessingTime / totalCost;
+        double predictedMakespan = costEstimator.predictMakespan(scheduledFiles, nJobs) * timePerCost;
 
-                Thread.sleep(1000); // only check every second
-            }
+        ProgressUpdate progressUpdate = new ProgressUpdate(
+                String.format("Clustered %d files: predicted makespan %.1f s, actual makespan %.1f s",
+                        scheduledFiles.size(), predictedMakespan / 1000, actualMakespan / 1000.0),
+                ProgressUpdate.CLUSTERING_STAGE.CLUSTERING);
 
-            // terminate the executor service
-            clusteringExecuteService.awaitTermination(2, TimeUnit.SECONDS);
+        notifyProgressListeners(progressUpdate);
+    }
+
+    private void processCompletedJob(ClusteringJobReference jobReference, int totalJobs) {
+        // save the written file
+        resultFiles.add(jobReference.getOutputFile());
+
+        for (Map.Entry<Float, BinaryClusterFileReference> snapshot : jobReference.getSnapshotFiles().entrySet()) {
+            snapshotFiles.get(snapshot.getKey()).add(snapshot.getValue());
+        }
+        // notify all listeners
+        notifyListeners(resultFiles.size(), totalJobs, jobReference);
+    }
+
+    private void reportEvents(ClusteringJobReference jobReference) {
+        if (runReport == null) {
+            return;
+        }
+
+        ClusteringJobStatistics statistics = jobReference.getStatistics();
+
+        if (statistics.getOutOfMemoryParts() > 0) {
+            runReport.addEvent(ProgressUpdate.CLUSTERING_STAGE.CLUSTERING, jobReference.getInputFile(),
+                    RunReport.OUT_OF_MEMORY, String.format("Split into %d parts", statistics.getOutOfMemoryParts()));
         }
-        catch (InterruptedException e) {
-            clusteringExecuteService.shutdownNow();
-            throw(e);
+        if (statistics.isTimeBudgetExceeded()) {
+            runReport.addEvent(ProgressUpdate.CLUSTERING_STAGE.CLUSTERING, jobReference.getInputFile(),
+                    RunReport.TIME_BUDGET_EXCEEDED, String.format("Re-clustered in fast mode with fewer comparisons after %d s",
+                            ClusteringSettings.binTimeBudget));
         }
     }
 
+    private void recordCompletedJob(ClusteringJobReference jobReference) throws Exception {
+        if (runManifest == null) {
+            return;
+        }
+
+        for (Map.Entry<Float, BinaryClusterFileReference> snapshot : jobReference.getSnapshotFiles().entrySet()) {
+            runManifest.recordCompletedJob(getSnapshotStage(snapshot.getKey()), jobReference.getInputFile(),
+                    snapshot.getValue());
+        }
+
+        // the actual result is recorded last since it marks the job as complete
+        runManifest.recordCompletedJob(RunManifest.CLUSTERING, jobReference.getInputFile(),
+                jobReference.getOutputFile());
+    }
+
+    /**
+     * Returns the job's result from a previous run.
+     * @param binaryFile The job's input file.
+     * @return The job's results or null if the job has to be processed.
+     */
+    private ClusteringJobReference getResumedJob(BinaryClusterFileReference binaryFile) {
+        if (runManifest == null) {
+            return null;
+        }
+
+        File inputFile = binaryFile.getResultFile();
+        BinaryClusterFileReference outputFile = runManifest.getCompletedJob(RunManifest.CLUSTERING, inputFile);
+
+        if (outputFile == null) {
+            return null;
+        }
+
+        Map<Float, BinaryClusterFileReference> jobSnapshotFiles = new HashMap<Float, BinaryClusterFileReference>();
+
+        for (Float threshold : snapshotDirectories.keySet()) {
+            BinaryClusterFileReference snapshotFile = runManifest.getCompletedJob(getSnapshotStage(threshold), inputFile);
+
+            if (snapshotFile == null) {
+                return null;
+            }
+
+            jobSnapshotFiles.put(threshold, snapshotFile);
+        }
+
+        return new ClusteringJobReference(inputFile, outputFile, new ClusteringJobStatistics(), jobSnapshotFiles);
+    }
+
+    private String getSnapshotStage(Float threshold) {
+        return RunManifest.CLUSTERING + "_" + threshold;
+    }
+
     private void launchClusteringJobs(List<BinaryClusterFileReference> binaryFiles) {
-        clusteringExecuteService = Executors.newFixedThreadPool(nJobs);
-        clusteringProcessLauncher = new ClusteringProcessLauncher(clusteringExecuteService, outputDirectory,
+        // idle workers of a ForkJoinPool take over the sub-bins of split bins
+        if (ClusteringSettings.splitSlowBins) {
+            clusteringJobRunner = new CompletionJobRunner<ClusteringJobReference>(new ForkJoinPool(nJobs));
+        } else {
+            clusteringJobRunner = new CompletionJobRunner<ClusteringJobReference>(nJobs);
+        }
+
+        clusteringProcessLauncher = new ClusteringProcessLauncher(clusteringJobRunner, outputDirectory,
                 thresholds, fastMode, temporaryDirectory, clusterPredicate);
+        clusteringProcessLauncher.setSnapshotDirectories(snapshotDirectories);
+        clusteringProcessLauncher.setIoExecutor(ioExecutor);
+        clusteringProcessLauncher.setHaloSplitting(ClusteringSettings.haloBinClusters, nJobs);
+        // warnings are reported from the jobs' threads
+        clusteringProcessLauncher.addProgressListener(new IProgressListener() {
+            @Override
+            public void onProgressUpdate(ProgressUpdate progressUpdate) {
+                notifyProgressListeners(progressUpdate);
+            }
+        });
+
+        // large bins are only started once enough heap is available
+        if (ClusteringSettings.heapFraction > 0) {
+            clusteringProcessLauncher.setAdmissionController(
+                    HeapAdmissionController.fromHeapFraction(ClusteringSettings.heapFraction));
+        }
+
+        for (Float threshold : snapshotDirectories.keySet()) {
+            snapshotFiles.put(threshold, new ArrayList<BinaryClusterFileReference>());
+        }
 
         for (BinaryClusterFileReference binaryFile : binaryFiles) {
+            ClusteringJobReference resumedJob = getResumedJob(binaryFile);
+
+            if (resumedJob != null) {
+                resumedJobs.add(resumedJob);
+                continue;
+            }
+
+            scheduledFiles.add(binaryFile);
+        }
+
+        // start the most expensive bins first so that they do not become the tail of the run
+        scheduledFiles = costEstimator.sortByCost(scheduledFiles);
+
+        // bins that exceed their share of the total cost are split right away
+        if (ClusteringSettings.splitSlowBins) {
+            clusteringProcessLauncher.setBinSplitting(costEstimator,
+                    costEstimator.getTotalCost(scheduledFiles) / nJobs);
+        }
+
+        for (BinaryClusterFileReference binaryFile : scheduledFiles) {
             if (Thread.currentThread().isInterrupted()) {
-                clusteringExecuteService.shutdownNow();
+                clusteringJobRunner.cancelAll();
                 return;
             }
 
             clusteringProcessLauncher.onNewResultFile(binaryFile);
         }
-
-        clusteringExecuteService.shutdown();
     }
 
     public void addListener(IBinaryClusteringResultListener listener) {
@@ -123,22 +292,88 @@ public class BinaryFileClusterer {
         return Collections.unmodifiableList(resultFiles);
     }
 
+    /**
+     * Store a copy of every result after the round with the respective threshold
+     * was completed. The copies are written to the directory set for the threshold
+     * and can be retrieved through getSnapshotFiles once the clustering is complete.
+     * @param snapshotDirectories Map with the threshold as key and the target directory as value.
+     */
+    public void setSnapshotDirectories(Map<Float, File> snapshotDirectories) {
+        this.snapshotDirectories = snapshotDirectories;
+    }
+
+    /**
+     * Returns the copies of the results taken after the round with the defined
+     * threshold was completed.
+     * @param threshold The threshold as set through setSnapshotDirectories.
+     * @return List of result files or null if no copies were created for this threshold.
+     */
+    public List<BinaryClusterFileReference> getSnapshotFiles(Float threshold) {
+        if (!snapshotFiles.containsKey(threshold)) {
+            return null;
+        }
+
+        return Collections.unmodifiableList(snapshotFiles.get(threshold));
+    }
+
+    /**
+     * Sets the manifest to record completed jobs in. Jobs found to be completed
+     * in the manifest are not launched again, their results are reported to the
+     * listeners as if they had just been completed.
+     * @param runManifest The manifest to use. Set to null to disable.
+     */
+    public void setRunManifest(RunManifest runManifest) {
+        this.runManifest = runManifest;
+    }
+
+    public void setRunReport(RunReport runReport) {
+        this.runReport = runReport;
+    }
+
     public void addProgressListener(IProgressListener progressListener) {
         progressListeners.add(progressListener);
     }
 
-    private void notifyListeners(int completedJobs, int totalJobs, BinaryClusterFileReference writtenFile) {
+    private void notifyProgressListeners(ProgressUpdate progressUpdate) {
+        // progress listeners are not necessarily thread-safe
+        synchronized (progressListeners) {
+            for (IProgressListener progressListener : progressListeners) {
+                progressListener.onProgressUpdate(progressUpdate);
+            }
+        }
+    }
+
+    private void notifyListeners(int completedJobs, int totalJobs, ClusteringJobReference jobReference) {
+        BinaryClusterFileReference writtenFile = jobReference.getOutputFile();
+
         for (IBinaryClusteringResultListener listener : listeners) {
             listener.onNewResultFile(writtenFile);
         }
 
-        ProgressUpdate progressUpdate = new ProgressUpdate(
-                String.format("Completed clustering %d spectra (%.2f m/z to %.2f m/z)",
-                        writtenFile.getnSpectra(), writtenFile.getMinMz(), writtenFile.getMaxMz()),
-                ProgressUpdate.CLUSTERING_STAGE.CLUSTERING, completedJobs, totalJobs);
+        ClusteringJobStatistics statistics = jobReference.getStatistics();
+        String message = String.format("Completed clustering %d spectra (%.2f m/z to %.2f m/z)",
+                writtenFile.getnSpectra(), writtenFile.getMinMz(), writtenFile.getMaxMz());
 
-        for (IProgressListener progressListener : progressListeners) {
-            progressListener.onProgressUpdate(progressUpdate);
+        if (statistics.getScoreCacheHits() + statistics.getScoreCacheMisses() > 0) {
+            message += String.format(" - score cache hit rate %.1f%%", statistics.getScoreCacheHitRate() * 100);
         }
+
+        if (statistics.getSpilledClusters() > 0) {
+            message += String.format(" - spilled %d clusters (%.1f MB), reloaded %d", statistics.getSpilledClusters(),
+                    statistics.getSpilledBytes() / 1024.0 / 1024.0, statistics.getReloadedClusters());
+        }
+
+        if (statistics.getOutOfMemoryParts() > 0) {
+            message += String.format(" - split into %d parts after running out of memory", statistics.getOutOfMemoryParts());
+        }
+
+        if (statistics.isTimeBudgetExceeded()) {
+            message += " - re-clustered in fast mode with fewer comparisons after exceeding the time budget";
+        }
+
+        ProgressUpdate progressUpdate = new ProgressUpdate(message,
+                ProgressUpdate.CLUSTERING_STAGE.CLUSTERING, completedJobs, totalJobs);
+
+        notifyProgressListeners(progressUpdate);
     }
 }
@@ -6,11 +6,14 @@ import uk.ac.ebi.pride.spectracluster.engine.GreedyIncrementalClusteringEngine;
 import uk.ac.ebi.pride.spectracluster.engine.IIncrementalClusteringEngine;
 import uk.ac.ebi.pride.spectracluster.implementation.ClusteringSettings;
 import uk.ac.ebi.pride.spectracluster.io.BinaryClusterAppender;
-import uk.ac.ebi.pride.spectracluster.io.BinaryClusterIterable;
 import uk.ac.ebi.pride.spectracluster.similarity.CombinedFisherIntensityTest;
 import uk.ac.ebi.pride.spectracluster.similarity.ISimilarityChecker;
 import uk.ac.ebi.pride.spectracluster.spectrum.IPeak;
+import uk.ac.ebi.pride.spectracluster.spectrum.ISpectrum;
+import uk.ac.ebi.pride.spectracluster.spectrum.Spectrum;
+import uk.ac.ebi.pride.spectracluster.util.ClusterUtilities;
 import uk.ac.ebi.pride.spectracluster.util.ClusteringJobReference;
+import uk.ac.ebi.pride.spectracluster.util.ClusteringJobStatistics;
 import uk.ac.ebi.pride.spectracluster.util.Defaults;
 import uk.ac.ebi.pride.spectracluster.util.function.IFunction;
 import uk.ac.ebi.pride.spectracluster.util.predicate.ComparisonPredicates;
@@ -24,8 +27,11 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Created by jg on 15.05.15.
@@ -33,6 +39,16 @@ import java.util.concurrent.Callable;
 public class BinaryFileClusteringCallable implements Callable<ClusteringJobReference> {
     public static final ISimilarityChecker SIMILARITY_CHECKER = new CombinedFisherIntensityTest(Defaults.getFragmentIonTolerance());
     public static final int DEFAULT_MAJOR_PEAK_COUNT = 5;
+    /**
+     * Compares every pair of clusters within the precursor tolerance. Used if only
+     * the final round is run on clusters that already converged.
+     */
+    public static final IComparisonPredicate<ICluster> ALL_CLUSTERS_PREDICATE = new IComparisonPredicate<ICluster>() {
+        @Override
+        public boolean apply(ICluster o1, ICluster o2) {
+            return true;
+        }
+    };
 
     public final IFunction<List<IPeak>, List<IPeak>> peakFilterFunction;
 
@@ -47,6 +63,48 @@ public class BinaryFileClusteringCallable implements Callable<ClusteringJobRefer
 
     private final File temporaryDirectory;
 
+    /**
+     * Directories to store a copy of the result after the round with
+     * the respective threshold was completed.
+     */
+    private Map<Float, File> snapshotDirectories = Collections.emptyMap();
+
+    /**
+     * Executor used to read the input files. If not set, the files are
+     * read in the clustering thread.
+     */
+    private ExecutorService ioExecutor = null;
+
+    /**
+     * If set, only the round with the final threshold is run and all
+     * clusters are compared with each other.
+     */
+    private boolean finalRoundOnly = false;
+
+    /**
+     * If set, the first round reads the clusters from these slices
+     * instead of the input file.
+     */
+    private List<BinaryFileSlice> inputSlices = null;
+
+    /**
+     * Wall-clock time (in milliseconds) after which the job is aborted using a
+     * TimeBudgetExceededException. 0 disables the limit.
+     */
+    private long timeBudget = 0;
+
+    /**
+     * Number of major peaks of which clusters must share at least one to be
+     * compared in the first round.
+     */
+    private int majorPeakCount = DEFAULT_MAJOR_PEAK_COUNT;
+
+    /**
+     * If set, this filter is applied to the peaks of every single-spectrum cluster
+     * read in the first round.
+     */
+    private IFunction<List<IPeak>, List<IPeak>> loadingPeakFilter = null;
+
     public BinaryFileClusteringCallable(File outputFile, File inputFile, List<Float> thresholds, boolean fastMode, File temporaryDirectory) {
         this(outputFile, inputFile, thresholds, fastMode, -1, -1, temporaryDirectory, null);
     }
@@ -88,98 +146,193 @@ public class BinaryFileClusteringCallable implements Callable<ClusteringJobRefer
     @Override
     public ClusteringJobReference call() throws Exception {
         try {
+            long startTime = System.currentTimeMillis();
+            long deadline = (timeBudget > 0) ? startTime + timeBudget : Long.MAX_VALUE;
             File currentInputFile = inputFile;
             int nSpectra = 0;
             float fileMinMz = Float.MAX_VALUE, fileMaxMz = 0;
+            Map<Float, BinaryClusterFileReference> snapshotFiles = new HashMap<Float, BinaryClusterFileReference>();
+
+            // the score cache is kept across all rounds of this job
+            CachingSimilarityChecker similarityChecker = null;
+            if (ClusteringSettings.cacheSimilarityScores) {
+                similarityChecker = new CachingSimilarityChecker(Defaults.getFragmentIonTolerance());
+            }
+
+            ClusteringJobStatistics statistics = new ClusteringJobStatistics();
+
+            List<Float> roundThresholds = finalRoundOnly ?
+                    thresholds.subList(thresholds.size() - 1, thresholds.size()) : thresholds;
+
+            for (int nRound = 0; nRound < roundThresholds.size(); nRound++) {
+                float threshold = roundThresholds.get(nRound);
 
-            for (int nRound = 0; nRound < thresholds.size(); nRound++) {
-                float threshold = thresholds.get(nRound);
+                if (similarityChecker != null) {
+                    similarityChecker.startNewRound();
+                }
+
+                float roundMinMz = Float.MAX_VALUE, roundMaxMz = 0;
 
-                IComparisonPredicate<ICluster> comparisonPredicate;
+                final IComparisonPredicate<ICluster> comparisonPredicate;
 
-                if (nRound == 0) {
+                if (finalRoundOnly) {
+                    // the clusters already converged, so they are directly compared with each other
+                    comparisonPredicate = ALL_CLUSTERS_PREDICATE;
+                } else if (nRound == 0) {
                     // first round only compare spectra that share a major peak
-                    comparisonPredicate = new ClusterShareMajorPeakPredicate(DEFAULT_MAJOR_PEAK_COUNT);
+                    comparisonPredicate = new ClusterShareMajorPeakPredicate(majorPeakCount);
                 } else {
                     // subsequent rounds only compare known matches
                     comparisonPredicate = new IsKnownComparisonsPredicate();
                 }
 
-                IIncrementalClusteringEngine incrementalClusteringEngine =
-                        createIncrementalClusteringEngine(threshold, comparisonPredicate);
+                final ISimilarityChecker roundSimilarityChecker = similarityChecker != null ? similarityChecker : SIMILARITY_CHECKER;
+                final float roundThreshold = threshold;
+                final boolean firstRound = nRound == 0;
+
+                // the window spills clusters to disk if it exceeds the memory budget
+                SpillingClusteringWindow clusteringWindow = new SpillingClusteringWindow(
+                        new SpillingClusteringWindow.IEngineFactory() {
+                            @Override
+                            public IIncrementalClusteringEngine createEngine(IComparisonPredicate<ICluster> windowPredicate) {
+                                return createIncrementalClusteringEngine(roundThreshold,
+                                        ComparisonPredicates.and(windowPredicate, comparisonPredicate),
+                                        roundSimilarityChecker);
+                            }
+
+                            @Override
+                            public SpillingClusteringWindow.ISpilledClusterKey createSpilledClusterKey(ICluster cluster) {
+                                if (finalRoundOnly) {
+                                    return SpilledClusterKeys.ALL_CLUSTERS;
+                                } else if (firstRound) {
+                                    return SpilledClusterKeys.sharesMajorPeak(cluster, majorPeakCount);
+                                } else {
+                                    return SpilledClusterKeys.isKnownComparison(cluster);
+                                }
+                            }
+                        },
+                        ClusteringSettings.windowMemoryBudget, Defaults.getDefaultPrecursorIonTolerance(),
+                        temporaryDirectory);
 
                 // create the result file
                 File tmpOutputfile = File.createTempFile("clustering_tmp", ".cls", temporaryDirectory);
                 ObjectOutputStream outputStream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmpOutputfile)));
 
-                // read the clusters
-                ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(currentInputFile)));
-                BinaryClusterIterable clusterIterable = new BinaryClusterIterable(inputStream);
+                // read the clusters - if an I/O executor is set, the clusters are read ahead in its threads
+                PrefetchingClusterIterable clusterIterable;
+
+                if (nRound == 0 && inputSlices != null) {
+                    clusterIterable = new PrefetchingClusterIterable(inputSlices, ioExecutor,
+                            ClusteringSettings.prefetchQueueSize);
+                } else {
+                    clusterIterable = new PrefetchingClusterIterable(currentInputFile, ioExecutor,
+                            ClusteringSettings.prefetchQueueSize);
+                }
+
+                try {
+                    // do the actual clustering
+                    for (ICluster clusterToAdd : clusterIterable) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            outputStream.close();
+                            clusterIterable.close();
+                            clusteringWindow.deleteSpillFiles();
+                            throw new InterruptedException();
+                        }
+
+                        if (System.currentTimeMillis() > deadline) {
+                            releaseAfterError(outputStream, clusterIterable, clusteringWindow, tmpOutputfile);
+                            throw new TimeBudgetExceededException(String.format("Clustering %s exceeded its time budget of %d s",
+                                    inputFile.getName(), timeBudget / 1000));
+                        }
+
+                        // in the first round, reset all comparison matches
+                        if (nRound == 0 && !finalRoundOnly) {
+                            clusterToAdd.setComparisonMatches(Collections.emptyList());
+                        }
+
+                        // ignore any cluster that does not fulfill the predicate
+                        if (nRound == 0 && clusterPredicate != null && !clusterPredicate.apply(clusterToAdd)) {
+                            continue;
+                        }
+
+                        // the spectra are only filtered once as the clusters are written out in the first round
+                        if (nRound == 0 && loadingPeakFilter != null && clusterToAdd.getClusteredSpectraCount() == 1) {
+                            ISpectrum spectrum = clusterToAdd.getClusteredSpectra().get(0);
+                            clusterToAdd = ClusterUtilities.asCluster(
+                                    new Spectrum(spectrum, loadingPeakFilter.apply(spectrum.getPeaks())));
+                        }
+
+                        if (nRound == 0) {
+                            nSpectra++;
+                        }
+
+                        // update the file statistics - the ones of the last round are reported
+                        if (clusterToAdd.getPrecursorMz() < roundMinMz)
+                            roundMinMz = clusterToAdd.getPrecursorMz();
+                        if (clusterToAdd.getPrecursorMz() > roundMaxMz)
+                            roundMaxMz = clusterToAdd.getPrecursorMz();
+
+                        // write out clusters that are below of above the set m/z limit
+                        if (clusterToAdd.getPrecursorMz() < minMz ||
+                                (maxMz > -1 && clusterToAdd.getPrecursorMz() > maxMz)) {
+                            List<ICluster> clusterList = new ArrayList<ICluster>(1);
+                            clusterList.add(clusterToAdd);
+                            writeOutClusters(clusterList, outputStream);
+                            continue;
+                        }
+
+                        // do the clustering
+                        Collection<ICluster> removedClusters = clusteringWindow.addClusterIncremental(clusterToAdd);
+
+                        // write out the removed clusters
+                        if (!removedClusters.isEmpty()) {
+                            writeOutClusters(removedClusters, outputStream);
+                        }
+                    }
 
-                // do the actual clustering
-                for (ICluster clusterToAdd : clusterIterable) {
                     if (Thread.currentThread().isInterrupted()) {
                         outputStream.close();
-                        inputStream.close();
+                        clusterIterable.close();
+                        clusteringWindow.deleteSpillFiles();
                         throw new InterruptedException();
                     }
 
-                    // in the first round, reset all comparison matches
-                    if (nRound == 0) {
-                        clusterToAdd.setComparisonMatches(Collections.emptyList());
-                    }
+                    // write out the final clusters
+                    Collection<ICluster> clusters = clusteringWindow.getClusters();
+                    writeOutClusters(clusters, outputStream);
 
-                    // ignore any cluster that does not fulfill the predicate
-                    if (nRound == 0 && clusterPredicate != null && !clusterPredicate.apply(clusterToAdd)) {
-                        continue;
-                    }
+                    // close the output file
+                    BinaryClusterAppender.INSTANCE.appendEnd(outputStream);
+                    outputStream.close();
 
-                    if (nRound == 0) {
-                        nSpectra++;
-                    }
+                    // close the input file
+                    clusterIterable.close();
+                } catch (OutOfMemoryError e) {
+                    // release the job's resources so that the bin can be retried in parts
+                    releaseAfterError(outputStream, clusterIterable, clusteringWindow, tmpOutputfile);
+                    throw e;
+                }
 
-                    // update the file statistics in the last round
-                    if (nRound == thresholds.size() - 1) {
-                        if (clusterToAdd.getPrecursorMz() < fileMinMz)
-                            fileMinMz = clusterToAdd.getPrecursorMz();
-                        if (clusterToAdd.getPrecursorMz() > fileMaxMz)
-                            fileMaxMz = clusterToAdd.getPrecursorMz();
-                    }
+                // merge the spilled clusters back into the sorted output
+                List<File> spillFiles = clusteringWindow.getSpillFiles();
 
-                    // write out clusters that are below of above the set m/z limit
-                    if (clusterToAdd.getPrecursorMz() < minMz ||
-                            (maxMz > -1 && clusterToAdd.getPrecursorMz() > maxMz)) {
-                        List<ICluster> clusterList = new ArrayList<ICluster>(1);
-                        clusterList.add(clusterToAdd);
-                        writeOutClusters(clusterList, outputStream);
-                        continue;
-                    }
+                if (!spillFiles.isEmpty()) {
+                    List<File> sortedFiles = new ArrayList<File>(spillFiles);
+                    sortedFiles.add(tmpOutputfile);
 
-                    // do the clustering
-                    Collection<ICluster> removedClusters = incrementalClusteringEngine.addClusterIncremental(clusterToAdd);
+                    File mergedOutputFile = File.createTempFile("clustering_tmp", ".cls", temporaryDirectory);
+                    SpillingClusteringWindow.mergeSortedFiles(sortedFiles, mergedOutputFile);
 
-                    // write out the removed clusters
-                    if (!removedClusters.isEmpty()) {
-                        writeOutClusters(removedClusters, outputStream);
+                    clusteringWindow.deleteSpillFiles();
+                    if (!tmpOutputfile.delete()) {
+                        throw new Exception("Failed to delete temporary file");
                     }
+                    tmpOutputfile = mergedOutputFile;
                 }
 
-                if (Thread.currentThread().isInterrupted()) {
-                    outputStream.close();
-                    inputStream.close();
-                    throw new InterruptedException();
-                }
-
-                // write out the final clusters
-                Collection<ICluster> clusters = incrementalClusteringEngine.getClusters();
-                writeOutClusters(clusters, outputStream);
-
-                // close the output file
-                BinaryClusterAppender.INSTANCE.appendEnd(outputStream);
-                outputStream.close();
-
-                // close the input file
-                inputStream.close();
+                statistics.setSpilledClusters(statistics.getSpilledClusters() + clusteringWindow.getSpilledClusters());
+                statistics.setSpilledBytes(statistics.getSpilledBytes() + clusteringWindow.getSpilledBytes());
+                statistics.setReloadedClusters(statistics.getReloadedClusters() + clusteringWindow.getReloadedClusters());
 
                 // copy the output file
                 if (outputFile.exists()) {
@@ -199,9 +352,29 @@ public class BinaryFileClusteringCallable implements Callable<ClusteringJobRefer
 
                 // read from the last output the next time
                 currentInputFile = outputFile;
+                fileMinMz = roundMinMz;
+                fileMaxMz = roundMaxMz;
+
+                // keep a copy of the result at this threshold if requested
+                if (snapshotDirectories.containsKey(threshold)) {
+                    File snapshotFile = new File(snapshotDirectories.get(threshold), outputFile.getName());
+                    FileUtils.copyFile(outputFile, snapshotFile);
+                    snapshotFiles.put(threshold, new BinaryClusterFileReference(snapshotFile, roundMinMz, roundMaxMz, nSpectra));
+                }
+            }
+
+            if (similarityChecker != null) {
+                statistics.setScoreCacheHits(similarityChecker.getScoreCache().getHits());
+                statistics.setScoreCacheMisses(similarityChecker.getScoreCache().getMisses());
             }
 
-            return new ClusteringJobReference(inputFile, new BinaryClusterFileReference(outputFile, fileMinMz, fileMaxMz, nSpectra));
+            statistics.setProcessingTime(System.currentTimeMillis() - startTime);
+
+            return new ClusteringJobReference(inputFile, new BinaryClusterFileReference(outputFile, fileMinMz, fileMaxMz, nSpectra),
+                    statistics, snapshotFiles);
+        } catch (TimeBudgetExceededException e) {
+            // handled by the caller
+            throw e;
         } catch (Exception e) {
             System.out.println("Error: " + e.getMessage());
             e.printStackTrace();
@@ -209,7 +382,96 @@ public class BinaryFileClusteringCallable implements Callable<ClusteringJobRefer
         }
     }
 
-    private IIncrementalClusteringEngine createIncrementalClusteringEngine(double clusteringPrecision, IComparisonPredicate<ICluster> comparisonPredicate) {
+    /**
+     * Closes the files of a round that failed and deletes its temporary files.
+     */
+    private void releaseAfterError(OutputStream outputStream, Closeable clusterIterable,
+                                   SpillingClusteringWindow clusteringWindow, File tmpOutputFile) {
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            // the file is deleted anyway
+        }
+        try {
+            clusterIterable.close();
+        } catch (IOException e) {
+            // ignore
+        }
+
+        clusteringWindow.deleteSpillFiles();
+        tmpOutputFile.delete();
+    }
+
+    /**
+     * Directories to store a copy of the result after the round with the
+     * respective threshold is completed. Thereby, results for several final
+     * thresholds can be created in a single run.
+     * @param snapshotDirectories Map with the threshold as key and the target directory as value.
+     */
+    public void setSnapshotDirectories(Map<Float, File> snapshotDirectories) {
+        this.snapshotDirectories = snapshotDirectories;
+    }
+
+    /**
+     * Reads the clusters from the passed slices instead of the input file. This
+     * is used to cluster re-binned files that were not written to disk. The input
+     * file is then only used to identify the job.
+     * @param inputSlices The slices to read in order of precursor m/z. Set to null to read the input file.
+     */
+    public void setInputSlices(List<BinaryFileSlice> inputSlices) {
+        this.inputSlices = inputSlices;
+    }
+
+    /**
+     * Sets the executor used to read the input file. The clusters are then
+     * read ahead while the current ones are clustered.
+     * @param ioExecutor The executor to use. Set to null to read the file in the clustering thread.
+     */
+    public void setIoExecutor(ExecutorService ioExecutor) {
+        this.ioExecutor = ioExecutor;
+    }
+
+    /**
+     * If set, only the round with the final threshold is run and all clusters
+     * within the precursor tolerance are compared with each other. This is meant
+     * for merging clusters that already converged within their own bins.
+     * @param finalRoundOnly
+     */
+    public void setFinalRoundOnly(boolean finalRoundOnly) {
+        this.finalRoundOnly = finalRoundOnly;
+    }
+
+    /**
+     * Aborts the job using a TimeBudgetExceededException if it runs longer than
+     * the set time.
+     * @param timeBudget The time budget in milliseconds. 0 disables the limit.
+     */
+    public void setTimeBudget(long timeBudget) {
+        this.timeBudget = timeBudget;
+    }
+
+    /**
+     * Sets the number of major peaks of which clusters must share at least one to
+     * be compared in the first round. Fewer peaks reduce the number of comparisons.
+     * @param majorPeakCount The number of major peaks.
+     */
+    public void setMajorPeakCount(int majorPeakCount) {
+        this.majorPeakCount = majorPeakCount;
+    }
+
+    /**
+     * Sets a filter that is applied to the peaks of every single-spectrum cluster
+     * when the input file is read. This way, spectra that were converted without
+     * fast mode can still be clustered in fast mode. Larger clusters are not changed.
+     * @param loadingPeakFilter The filter to use. Set to null to keep the peaks unchanged.
+     */
+    public void setLoadingPeakFilter(IFunction<List<IPeak>, List<IPeak>> loadingPeakFilter) {
+        this.loadingPeakFilter = loadingPeakFilter;
+    }
+
+    private IIncrementalClusteringEngine createIncrementalClusteringEngine(double clusteringPrecision,
+                                                                           IComparisonPredicate<ICluster> comparisonPredicate,
+                                                                           ISimilarityChecker similarityChecker) {
         // if the threshold is set in ppm, add a PPM predicate
         if (ClusteringSettings.ppmThreshold != null) {
             comparisonPredicate = ComparisonPredicates.and(comparisonPredicate,
@@ -217,7 +479,7 @@ public class BinaryFileClusteringCallable implements Callable<ClusteringJobRefer
         }
 
         IIncrementalClusteringEngine clusteringEngine = new GreedyIncrementalClusteringEngine(
-                SIMILARITY_CHECKER,
+                similarityChecker,
                 Defaults.getDefaultSpectrumComparator(),
                 Defaults.getDefaultPrecursorIonTolerance(),
                 clusteringPrecision,
@@ -0,0 +1,54 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import java.io.File;
+
+/**
+ * References the clusters of a binary file within a certain
+ * precursor m/z range. The file itself is not changed, the
+ * clusters outside of the range have to be skipped when
+ * reading it.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class BinaryFileSlice extends BinaryClusterFileReference {
+    /**
+     * Lowest precursor m/z (inclusive) of the slice
+     */
+    private final double fromMz;
+    /**
+     * Highest precursor m/z (inclusive) of the slice
+     */
+    private final double toMz;
+
+    /**
+     * Creates a new slice.
+     * @param resultFile The complete binary file.
+     * @param minMz Lowest precursor m/z found in the slice.
+     * @param maxMz Highest precursor m/z found in the slice.
+     * @param nSpectra Number of clusters in the slice.
+     * @param fromMz Lower boundary of the slice (inclusive).
+     * @param toMz Upper boundary of the slice (inclusive).
+     */
+    public BinaryFileSlice(File resultFile, double minMz, double maxMz, int nSpectra, double fromMz, double toMz) {
+        super(resultFile, minMz, maxMz, nSpectra);
+        this.fromMz = fromMz;
+        this.toMz = toMz;
+    }
+
+    public double getFromMz() {
+        return fromMz;
+    }
+
+    public double getToMz() {
+        return toMz;
+    }
+
+    /**
+     * Indicates whether a cluster with the passed precursor m/z is part of the slice.
+     * @param precursorMz The cluster's precursor m/z.
+     * @return
+     */
+    public boolean contains(double precursorMz) {
+        return precursorMz >= fromMz && precursorMz <= toMz;
+    }
+}
@@ -0,0 +1,127 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import uk.ac.ebi.pride.spectracluster.similarity.CombinedFisherIntensityTest;
+import uk.ac.ebi.pride.spectracluster.spectrum.IPeak;
+import uk.ac.ebi.pride.spectracluster.spectrum.ISpectrum;
+
+import java.util.Arrays;
+
+/**
+ * CombinedFisherIntensityTest that memorises the calculated scores
+ * across clustering rounds. The rounds after the first one only compare
+ * known matches, which are mostly pairs whose consensus spectra did
+ * not change since the previous round.
+ *
+ * Calculating a spectrum's version stamp requires reading all of its
+ * peaks. The stamp is therefore only calculated once per spectrum object
+ * and kept in a small identity-keyed table. The consensus spectrum of a
+ * cluster is re-created whenever the cluster changes, a changed cluster
+ * therefore also gets a new stamp. Stamps are only re-used if the
+ * spectrum's peak count and precursor m/z are unchanged.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class CachingSimilarityChecker extends CombinedFisherIntensityTest {
+    /**
+     * Number of spectra whose version stamp is remembered. Must be a power of 2.
+     */
+    public static final int STAMP_TABLE_SIZE = 1 << 14;
+
+    private final SimilarityScoreCache scoreCache;
+
+    /**
+     * Direct-mapped table of the last stamped spectra (by identity)
+     */
+    private final ISpectrum[] stampedSpectra = new ISpectrum[STAMP_TABLE_SIZE];
+    private final long[] stamps = new long[STAMP_TABLE_SIZE];
+    private final int[] stampedPeakCounts = new int[STAMP_TABLE_SIZE];
+    private final float[] stampedPrecursors = new float[STAMP_TABLE_SIZE];
+
+    public CachingSimilarityChecker(float fragmentIonTolerance) {
+        this(fragmentIonTolerance, new SimilarityScoreCache());
+    }
+
+    public CachingSimilarityChecker(float fragmentIonTolerance, SimilarityScoreCache scoreCache) {
+        super(fragmentIonTolerance);
+        this.scoreCache = scoreCache;
+    }
+
+    @Override
+    public double assessSimilarity(ISpectrum spectrum1, ISpectrum spectrum2) {
+        long versionStamp1 = getCachedVersionStamp(spectrum1);
+        long versionStamp2 = getCachedVersionStamp(spectrum2);
+        // guards against colliding stamps
+        int check = getCheck(spectrum1) * 31 + getCheck(spectrum2);
+
+        double score = scoreCache.getScore(versionStamp1, versionStamp2, check);
+
+        if (Double.isNaN(score)) {
+            score = super.assessSimilarity(spectrum1, spectrum2);
+            scoreCache.putScore(versionStamp1, versionStamp2, check, score);
+        }
+
+        return score;
+    }
+
+    /**
+     * Must be called before a new clustering round is started.
+     */
+    public void startNewRound() {
+        scoreCache.startNewRound();
+
+        // the spectra of the previous round are no longer needed
+        Arrays.fill(stampedSpectra, null);
+    }
+
+    public SimilarityScoreCache getScoreCache() {
+        return scoreCache;
+    }
+
+    private long getCachedVersionStamp(ISpectrum spectrum) {
+        int slot = System.identityHashCode(spectrum) & (STAMP_TABLE_SIZE - 1);
+        int nPeaks = spectrum.getPeaks().size();
+        float precursorMz = spectrum.getPrecursorMz();
+
+        if (stampedSpectra[slot] != spectrum || stampedPeakCounts[slot] != nPeaks ||
+                Float.floatToIntBits(stampedPrecursors[slot]) != Float.floatToIntBits(precursorMz)) {
+            stampedSpectra[slot] = spectrum;
+            stamps[slot] = getVersionStamp(spectrum);
+            stampedPeakCounts[slot] = nPeaks;
+            stampedPrecursors[slot] = precursorMz;
+        }
+
+        return stamps[slot];
+    }
+
+    private static int getCheck(ISpectrum spectrum) {
+        return spectrum.getPeaks().size() * 31 + Float.floatToIntBits(spectrum.getPrecursorMz());
+    }
+
+    /**
+     * The version stamp combines the id of the (consensus) spectrum with
+     * its precursor and its peaks. Whenever a cluster absorbs spectra its
+     * consensus spectrum changes and so does the version stamp. The stamp
+     * is identical for equal spectra in different rounds, even though the
+     * clusters are read again from disk.
+     * @param spectrum The spectrum to get the stamp for.
+     * @return The version stamp, never 0.
+     */
+    protected static long getVersionStamp(ISpectrum spectrum) {
+        long stamp = spectrum.getId() != null ? spectrum.getId().hashCode() : 0;
+        stamp = mix(stamp, Float.floatToIntBits(spectrum.getPrecursorMz()));
+
+        for (IPeak peak : spectrum.getPeaks()) {
+            stamp = mix(stamp, Float.floatToIntBits(peak.getMz()));
+            stamp = mix(stamp, Float.floatToIntBits(peak.getIntensity()));
+        }
+
+        // 0 marks empty slots in the cache
+        return stamp != 0 ? stamp : 1;
+    }
+
+    private static long mix(long stamp, int value) {
+        stamp = (stamp ^ value) * 0x9E3779B97F4A7C15L;
+
+        return stamp ^ (stamp >>> 31);
+    }
+}
@@ -1,32 +1,57 @@
 package uk.ac.ebi.pride.spectracluster.clustering;
 
 import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.implementation.ClusteringSettings;
 import uk.ac.ebi.pride.spectracluster.util.ClusteringJobReference;
+import uk.ac.ebi.pride.spectracluster.util.CompletionJobRunner;
+import uk.ac.ebi.pride.spectracluster.util.Defaults;
+import uk.ac.ebi.pride.spectracluster.util.IProgressListener;
 import uk.ac.ebi.pride.spectracluster.util.predicate.IPredicate;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by jg on 18.05.15.
  */
 public class ClusteringProcessLauncher implements  IBinaryClusteringResultListener {
-    private final ExecutorService executorService;
+    /**
+     * Number of major peaks used to select the comparisons of bins that are
+     * re-clustered after exceeding their time budget.
+     */
+    public static final int FALLBACK_MAJOR_PEAK_COUNT = 1;
+
+    private final CompletionJobRunner<ClusteringJobReference> jobRunner;
     private final File outputDirectory;
     private List<Future<ClusteringJobReference>> fileFutures = new ArrayList<Future<ClusteringJobReference>>();
     private final List<Float> thresholds;
     private final boolean fastMode;
     private final File temporaryDirectory;
     private final IPredicate<ICluster> clusterPredicate;
+    private Map<Float, File> snapshotDirectories = Collections.emptyMap();
+    private ExecutorService ioExecutor = null;
+    private BinCostEstimator costEstimator = null;
+    private double splitCostThreshold = 0;
+    private int haloBinClusters = 0;
+    private int haloJobs = 1;
+    private HeapAdmissionController admissionController = null;
+    /**
+     * Bins that ran out of memory are retried one at a time
+     */
+    private final Lock retryLock = new ReentrantLock();
+    private List<IProgressListener> progressListeners = new ArrayList<IProgressListener>();
 
-
-    public ClusteringProcessLauncher(ExecutorService executorService, File outputDirectory, List<Float> thresholds,
+    public ClusteringProcessLauncher(CompletionJobRunner<ClusteringJobReference> jobRunner, File outputDirectory, List<Float> thresholds,
                                      boolean fastMode, File temporaryDirectory, IPredicate<ICluster> clusterPredicate) {
-        this.executorService = executorService;
+        this.jobRunner = jobRunner;
         this.outputDirectory = outputDirectory;
         this.thresholds = thresholds;
         this.fastMode = fastMode;
@@ -37,14 +62,164 @@ public class ClusteringProcessLauncher implements  IBinaryClusteringResultListen
     @Override
     public void onNewResultFile(BinaryClusterFileReference binaryBinaryClusterFileReferenceFile) {
         File outputFile = new File(outputDirectory, binaryBinaryClusterFileReferenceFile.getResultFile().getName());
+
+        // dense bins are clustered in parts - this does not support snapshots
+        if (haloBinClusters > 0 && binaryBinaryClusterFileReferenceFile.getnSpectra() > haloBinClusters &&
+                snapshotDirectories.isEmpty()) {
+            int nParts = (int) Math.ceil(binaryBinaryClusterFileReferenceFile.getnSpectra() / (double) haloBinClusters);
+            HaloBinClusterer haloBinClusterer = new HaloBinClusterer(binaryBinaryClusterFileReferenceFile, outputFile,
+                    thresholds, fastMode, temporaryDirectory, clusterPredicate,
+                    Defaults.getDefaultPrecursorIonTolerance(), nParts, haloJobs);
+            haloBinClusterer.setIoExecutor(ioExecutor);
+            fileFutures.add(jobRunner.submit(admit(retryOutOfMemory(haloBinClusterer,
+                    binaryBinaryClusterFileReferenceFile, outputFile, nParts * 2), binaryBinaryClusterFileReferenceFile)));
+            return;
+        }
+
+        if (costEstimator != null) {
+            GapSplittingClusteringTask clusteringTask = new GapSplittingClusteringTask(
+                    binaryBinaryClusterFileReferenceFile, outputFile, thresholds, fastMode, temporaryDirectory,
+                    clusterPredicate, snapshotDirectories, costEstimator, splitCostThreshold, ioExecutor);
+            fileFutures.add(jobRunner.submit(admit(retryOutOfMemory(clusteringTask.asCallable(),
+                    binaryBinaryClusterFileReferenceFile, outputFile, 2), binaryBinaryClusterFileReferenceFile)));
+            return;
+        }
+
         BinaryFileClusteringCallable clusteringCallable = new
                 BinaryFileClusteringCallable(outputFile, binaryBinaryClusterFileReferenceFile.getResultFile(),
                 thresholds, fastMode, temporaryDirectory, clusterPredicate);
-        Future<ClusteringJobReference> fileFuture = executorService.submit(clusteringCallable);
+        clusteringCallable.setSnapshotDirectories(snapshotDirectories);
+        clusteringCallable.setIoExecutor(ioExecutor);
+
+        Callable<ClusteringJobReference> job = clusteringCallable;
+
+        // bins exceeding their time budget are re-clustered in fast mode with fewer comparisons
+        if (ClusteringSettings.binTimeBudget > 0) {
+            BinaryFileClusteringCallable fallbackCallable = new BinaryFileClusteringCallable(outputFile,
+                    binaryBinaryClusterFileReferenceFile.getResultFile(), thresholds, true, temporaryDirectory,
+                    clusterPredicate);
+            // in fast mode, the spectra were already filtered during the conversion
+            if (!fastMode) {
+                fallbackCallable.setLoadingPeakFilter(ClusteringSettings.getComparisonFilterFunction());
+            }
+            fallbackCallable.setSnapshotDirectories(snapshotDirectories);
+            fallbackCallable.setIoExecutor(ioExecutor);
+            fallbackCallable.setMajorPeakCount(FALLBACK_MAJOR_PEAK_COUNT);
+
+            TimeBudgetFallbackCallable fallbackJob = new TimeBudgetFallbackCallable(clusteringCallable,
+                    fallbackCallable, ClusteringSettings.binTimeBudget * 1000L);
+            for (IProgressListener progressListener : progressListeners) {
+                fallbackJob.addProgressListener(progressListener);
+            }
+
+            job = fallbackJob;
+        }
+
+        Future<ClusteringJobReference> fileFuture = jobRunner.submit(admit(retryOutOfMemory(job,
+                binaryBinaryClusterFileReferenceFile, outputFile, 2), binaryBinaryClusterFileReferenceFile));
 
         fileFutures.add(fileFuture);
     }
 
+    /**
+     * Wraps the job so that the bin is split and retried if the job runs out of
+     * memory. Split bins do not support snapshots, these jobs are not retried.
+     * @param job The clustering job.
+     * @param binaryFile The file clustered by the job.
+     * @param outputFile The job's output file.
+     * @param initialParts Number of parts used in the first retry.
+     * @return The (wrapped) job.
+     */
+    private Callable<ClusteringJobReference> retryOutOfMemory(Callable<ClusteringJobReference> job,
+                                                              BinaryClusterFileReference binaryFile, File outputFile,
+                                                              int initialParts) {
+        if (!snapshotDirectories.isEmpty()) {
+            return job;
+        }
+
+        OutOfMemoryRetryingCallable retryingCallable = new OutOfMemoryRetryingCallable(job, binaryFile, outputFile,
+                thresholds, fastMode, temporaryDirectory, clusterPredicate, Defaults.getDefaultPrecursorIonTolerance(),
+                initialParts, retryLock);
+        retryingCallable.setIoExecutor(ioExecutor);
+        for (IProgressListener progressListener : progressListeners) {
+            retryingCallable.addProgressListener(progressListener);
+        }
+
+        return retryingCallable;
+    }
+
+    /**
+     * Wraps the job so that it only starts once its estimated heap requirement fits
+     * into the admission controller's budget.
+     * @param job The clustering job.
+     * @param binaryFile The file clustered by the job.
+     * @return The (wrapped) job.
+     */
+    private Callable<ClusteringJobReference> admit(Callable<ClusteringJobReference> job, BinaryClusterFileReference binaryFile) {
+        if (admissionController == null) {
+            return job;
+        }
+
+        return admissionController.admit(job,
+                admissionController.estimateHeapRequirement(binaryFile, ClusteringSettings.windowMemoryBudget));
+    }
+
+    /**
+     * Directories to store copies of the results after the rounds with the
+     * respective thresholds.
+     * @param snapshotDirectories Map with the threshold as key.
+     */
+    public void setSnapshotDirectories(Map<Float, File> snapshotDirectories) {
+        this.snapshotDirectories = snapshotDirectories;
+    }
+
+    /**
+     * Executor used to read ahead the input files of the clustering jobs.
+     * @param ioExecutor The executor to use. Set to null to read the files in the clustering threads.
+     */
+    public void setIoExecutor(ExecutorService ioExecutor) {
+        this.ioExecutor = ioExecutor;
+    }
+
+    /**
+     * Splits bins that would become the tail of the run into sub-bins. This
+     * requires the job runner to use a ForkJoinPool.
+     * @param costEstimator Used to estimate the cost of a bin. Set to null to disable the splitting.
+     * @param splitCostThreshold Bins with a higher estimated cost are always split if possible.
+     */
+    public void setBinSplitting(BinCostEstimator costEstimator, double splitCostThreshold) {
+        this.costEstimator = costEstimator;
+        this.splitCostThreshold = splitCostThreshold;
+    }
+
+    /**
+     * Clusters bins with more than the set number of clusters in several parallel
+     * parts using a HaloBinClusterer.
+     * @param haloBinClusters Maximum number of clusters per part. 0 disables the splitting.
+     * @param haloJobs Number of parts of a bin that are clustered in parallel.
+     */
+    public void setHaloSplitting(int haloBinClusters, int haloJobs) {
+        this.haloBinClusters = haloBinClusters;
+        this.haloJobs = haloJobs;
+    }
+
+    /**
+     * Only starts jobs once their estimated heap requirement fits into the controller's budget.
+     * @param admissionController The controller to use. Set to null to start all jobs right away.
+     */
+    public void setAdmissionController(HeapAdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
+    /**
+     * Adds a listener that is notified about warnings of the clustering jobs. The
+     * listener is called from the jobs' threads.
+     * @param progressListener The listener to add.
+     */
+    public void addProgressListener(IProgressListener progressListener) {
+        progressListeners.add(progressListener);
+    }
+
     public List<Future<ClusteringJobReference>> getResultFileFutures() {
         return Collections.unmodifiableList(fileFutures);
     }
@@ -0,0 +1,439 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterAppender;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterIterable;
+import uk.ac.ebi.pride.spectracluster.util.ClusteringJobReference;
+import uk.ac.ebi.pride.spectracluster.util.ClusteringJobStatistics;
+import uk.ac.ebi.pride.spectracluster.util.predicate.IPredicate;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Clusters a single bin within a ForkJoinPool. If the bin is expected
+ * to become the tail of the run, it is split at a gap in the precursor
+ * m/z that is larger than the window size into two independent sub-bins.
+ * The sub-bins are forked and can therefore be stolen by idle workers.
+ * Since no cluster can be compared across such a gap, the results of
+ * the sub-bins are simply concatenated.
+ *
+ * A bin is split if its estimated cost exceeds the set threshold or if
+ * all bins were already started and no other work is queued.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class GapSplittingClusteringTask extends RecursiveTask<ClusteringJobReference> {
+    /**
+     * Bins with fewer clusters are never split.
+     */
+    public static final int MIN_SPLIT_CLUSTERS = 1000;
+
+    private final BinaryClusterFileReference inputFile;
+    private final File outputFile;
+    private final List<Float> thresholds;
+    private final boolean fastMode;
+    private final File temporaryDirectory;
+    private final IPredicate<ICluster> clusterPredicate;
+    private final Map<Float, File> snapshotDirectories;
+    private final BinCostEstimator costEstimator;
+    private final double splitCostThreshold;
+    private final ExecutorService ioExecutor;
+    private int minSplitClusters = MIN_SPLIT_CLUSTERS;
+
+    /**
+     * Creates a new task.
+     * @param inputFile The bin to cluster.
+     * @param outputFile File to write the result to.
+     * @param thresholds The clustering thresholds.
+     * @param fastMode If set, no peak filter is applied.
+     * @param temporaryDirectory Directory to write the sub-bins and temporary results to.
+     * @param clusterPredicate If set, clusters that do not fulfill this predicate are ignored.
+     * @param snapshotDirectories Directories to store copies of the result at intermediate thresholds.
+     * @param costEstimator Used to estimate the cost of the bin. The window size must be the
+     *                      one used to cluster the bins.
+     * @param splitCostThreshold Bins with a higher estimated cost are always split if possible.
+     * @param ioExecutor Executor used to read ahead the input files. May be null.
+     */
+    public GapSplittingClusteringTask(BinaryClusterFileReference inputFile, File outputFile, List<Float> thresholds,
+                                      boolean fastMode, File temporaryDirectory, IPredicate<ICluster> clusterPredicate,
+                                      Map<Float, File> snapshotDirectories, BinCostEstimator costEstimator,
+                                      double splitCostThreshold, ExecutorService ioExecutor) {
+        this.inputFile = inputFile;
+        this.outputFile = outputFile;
+        this.thresholds = thresholds;
+        this.fastMode = fastMode;
+        this.temporaryDirectory = temporaryDirectory;
+        this.clusterPredicate = clusterPredicate;
+        this.snapshotDirectories = snapshotDirectories;
+        this.costEstimator = costEstimator;
+        this.splitCostThreshold = splitCostThreshold;
+        this.ioExecutor = ioExecutor;
+    }
+
+    /**
+     * Sets the minimum number of clusters a bin must contain to be split.
+     * By default MIN_SPLIT_CLUSTERS is used.
+     * @param minSplitClusters The minimum number of clusters.
+     */
+    public void setMinSplitClusters(int minSplitClusters) {
+        this.minSplitClusters = minSplitClusters;
+    }
+
+    /**
+     * Wraps the task as a Callable that can be submitted to a CompletionJobRunner
+     * using a ForkJoinPool. The task's exceptions are rethrown unchanged.
+     * @return The callable.
+     */
+    public Callable<ClusteringJobReference> asCallable() {
+        final GapSplittingClusteringTask task = this;
+
+        return new Callable<ClusteringJobReference>() {
+            @Override
+            public ClusteringJobReference call() throws Exception {
+                try {
+                    return task.invoke();
+                }
+                catch (ClusteringTaskException e) {
+                    // exceptions of stolen sub-bins may be wrapped again by the pool
+                    Throwable cause = e.getCause();
+                    while (cause instanceof ClusteringTaskException) {
+                        cause = cause.getCause();
+                    }
+
+                    throw (Exception) cause;
+                }
+            }
+        };
+    }
+
+    @Override
+    protected ClusteringJobReference compute() {
+        try {
+            if (shouldSplit()) {
+                SplitResult split = splitAtGap();
+
+                if (split != null) {
+                    return clusterSubBins(split);
+                }
+            }
+
+            BinaryFileClusteringCallable clusteringCallable = new BinaryFileClusteringCallable(outputFile,
+                    inputFile.getResultFile(), thresholds, fastMode, temporaryDirectory, clusterPredicate);
+            clusteringCallable.setSnapshotDirectories(snapshotDirectories);
+            clusteringCallable.setIoExecutor(ioExecutor);
+
+            return clusteringCallable.call();
+        }
+        catch (ClusteringTaskException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new ClusteringTaskException(e);
+        }
+    }
+
+    /**
+     * A bin is split if it is expensive enough to become the tail of the run on its
+     * own or if there is no other work left for idle workers.
+     */
+    private boolean shouldSplit() {
+        if (inputFile.getnSpectra() < minSplitClusters) {
+            return false;
+        }
+
+        if (costEstimator.estimateCost(inputFile) > splitCostThreshold) {
+            return true;
+        }
+
+        ForkJoinPool pool = getPool();
+
+        return pool != null && pool.getQueuedSubmissionCount() == 0 && getSurplusQueuedTaskCount() <= 0;
+    }
+
+    /**
+     * The two sub-bins the bin was split into.
+     */
+    private static class SplitResult {
+        public BinaryClusterFileReference lowerFile;
+        public BinaryClusterFileReference upperFile;
+    }
+
+    /**
+     * Splits the input file at the gap larger than the window size that is closest
+     * to the middle of the file.
+     * @return The sub-bins or null if the file contains no such gap.
+     */
+    private SplitResult splitAtGap() throws Exception {
+        double windowSize = costEstimator.getWindowSize();
+
+        // find the gap closest to the middle
+        int splitIndex = -1;
+        int middleIndex = inputFile.getnSpectra() / 2;
+        int nCluster = 0;
+        double lastMaxMz = -1;
+
+        ObjectInputStream inputStream = openInputFile();
+
+        try {
+            for (ICluster cluster : new BinaryClusterIterable(inputStream)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+
+                if (lastMaxMz >= 0 && cluster.getPrecursorMz() - lastMaxMz > windowSize) {
+                    if (splitIndex < 0 || Math.abs(nCluster - middleIndex) < Math.abs(splitIndex - middleIndex)) {
+                        splitIndex = nCluster;
+                    }
+                }
+
+                lastMaxMz = Math.max(lastMaxMz, cluster.getPrecursorMz());
+                nCluster++;
+            }
+        }
+        finally {
+            inputStream.close();
+        }
+
+        if (splitIndex < 0) {
+            return null;
+        }
+
+        // write the sub-bins
+        File lowerFile = File.createTempFile("split_bin", ".cls", temporaryDirectory);
+        File upperFile = File.createTempFile("split_bin", ".cls", temporaryDirectory);
+        FileStatistics lowerStatistics = new FileStatistics();
+        FileStatistics upperStatistics = new FileStatistics();
+
+        try {
+            writeSubBins(splitIndex, lowerFile, upperFile, lowerStatistics, upperStatistics);
+        }
+        catch (Exception e) {
+            lowerFile.delete();
+            upperFile.delete();
+            throw e;
+        }
+
+        SplitResult splitResult = new SplitResult();
+        splitResult.lowerFile = lowerStatistics.createReference(lowerFile);
+        splitResult.upperFile = upperStatistics.createReference(upperFile);
+
+        return splitResult;
+    }
+
+    /**
+     * Writes the clusters before the split index to the lower and all others to the upper file.
+     */
+    private void writeSubBins(int splitIndex, File lowerFile, File upperFile, FileStatistics lowerStatistics,
+                              FileStatistics upperStatistics) throws Exception {
+        ObjectInputStream inputStream = openInputFile();
+        ObjectOutputStream lowerStream = null;
+        ObjectOutputStream upperStream = null;
+
+        try {
+            lowerStream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(lowerFile)));
+            upperStream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(upperFile)));
+            int index = 0;
+
+            for (ICluster cluster : new BinaryClusterIterable(inputStream)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+
+                if (index < splitIndex) {
+                    BinaryClusterAppender.INSTANCE.appendCluster(lowerStream, cluster);
+                    lowerStatistics.add(cluster);
+                } else {
+                    BinaryClusterAppender.INSTANCE.appendCluster(upperStream, cluster);
+                    upperStatistics.add(cluster);
+                }
+
+                index++;
+            }
+
+            BinaryClusterAppender.INSTANCE.appendEnd(lowerStream);
+            BinaryClusterAppender.INSTANCE.appendEnd(upperStream);
+        }
+        finally {
+            inputStream.close();
+            if (lowerStream != null) {
+                lowerStream.close();
+            }
+            if (upperStream != null) {
+                upperStream.close();
+            }
+        }
+    }
+
+    /**
+     * Clusters the two sub-bins in parallel and concatenates their results. All
+     * temporary files are deleted, also if clustering fails.
+     */
+    private ClusteringJobReference clusterSubBins(SplitResult split) throws Exception {
+        File lowerOutput = null;
+        File upperOutput = null;
+
+        try {
+            lowerOutput = File.createTempFile("split_result", ".cls", temporaryDirectory);
+            upperOutput = File.createTempFile("split_result", ".cls", temporaryDirectory);
+
+            GapSplittingClusteringTask lowerTask = createSubTask(split.lowerFile, lowerOutput);
+            GapSplittingClusteringTask upperTask = createSubTask(split.upperFile, upperOutput);
+
+            // the upper sub-bin can be stolen by an idle worker
+            upperTask.fork();
+            ClusteringJobReference lowerResult;
+
+            try {
+                lowerResult = lowerTask.invoke();
+            }
+            catch (Throwable e) {
+                // the upper task must not write any files once they are deleted - also after an OutOfMemoryError
+                upperTask.cancel(true);
+                upperTask.quietlyJoin();
+                throw e;
+            }
+
+            ClusteringJobReference upperResult = upperTask.join();
+
+            // concatenate the results
+            BinaryClusterFileReference outputReference = concatenateFiles(lowerResult.getOutputFile(),
+                    upperResult.getOutputFile(), outputFile);
+
+            Map<Float, BinaryClusterFileReference> snapshotFiles = new HashMap<Float, BinaryClusterFileReference>();
+
+            for (Map.Entry<Float, File> snapshotDirectory : snapshotDirectories.entrySet()) {
+                File snapshotFile = new File(snapshotDirectory.getValue(), outputFile.getName());
+                snapshotFiles.put(snapshotDirectory.getKey(), concatenateFiles(
+                        lowerResult.getSnapshotFiles().get(snapshotDirectory.getKey()),
+                        upperResult.getSnapshotFiles().get(snapshotDirectory.getKey()), snapshotFile));
+            }
+
+            return new ClusteringJobReference(inputFile.getResultFile(), outputReference,
+                    combineStatistics(lowerResult.getStatistics(), upperResult.getStatistics()), snapshotFiles);
+        }
+        finally {
+            split.lowerFile.getResultFile().delete();
+            split.upperFile.getResultFile().delete();
+
+            // the results were already deleted if they were concatenated
+            for (File subBinOutput : new File[]{lowerOutput, upperOutput}) {
+                if (subBinOutput == null) {
+                    continue;
+                }
+
+                subBinOutput.delete();
+
+                for (File snapshotDirectory : snapshotDirectories.values()) {
+                    new File(snapshotDirectory, subBinOutput.getName()).delete();
+                }
+            }
+        }
+    }
+
+    private GapSplittingClusteringTask createSubTask(BinaryClusterFileReference subBin, File subBinOutput) {
+        GapSplittingClusteringTask subTask = new GapSplittingClusteringTask(subBin, subBinOutput, thresholds,
+                fastMode, temporaryDirectory, clusterPredicate, snapshotDirectories, costEstimator, splitCostThreshold,
+                ioExecutor);
+        subTask.setMinSplitClusters(minSplitClusters);
+
+        return subTask;
+    }
+
+    /**
+     * Writes the clusters of the lower and then the upper file to the output file. The
+     * input files are deleted afterwards.
+     */
+    private BinaryClusterFileReference concatenateFiles(BinaryClusterFileReference lowerFile,
+                                                        BinaryClusterFileReference upperFile,
+                                                        File outputFile) throws Exception {
+        FileStatistics statistics = new FileStatistics();
+        ObjectOutputStream outputStream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)));
+
+        try {
+            for (BinaryClusterFileReference inputFile : new BinaryClusterFileReference[]{lowerFile, upperFile}) {
+                ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(
+                        new FileInputStream(inputFile.getResultFile())));
+
+                try {
+                    for (ICluster cluster : new BinaryClusterIterable(inputStream)) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            throw new InterruptedException();
+                        }
+
+                        BinaryClusterAppender.INSTANCE.appendCluster(outputStream, cluster);
+                        statistics.add(cluster);
+                    }
+                }
+                finally {
+                    inputStream.close();
+                }
+
+                if (!inputFile.getResultFile().delete()) {
+                    throw new Exception("Failed to delete temporary file " + inputFile.getResultFile());
+                }
+            }
+
+            BinaryClusterAppender.INSTANCE.appendEnd(outputStream);
+        }
+        finally {
+            outputStream.close();
+        }
+
+        return statistics.createReference(outputFile);
+    }
+
+    private static ClusteringJobStatistics combineStatistics(ClusteringJobStatistics lower, ClusteringJobStatistics upper) {
+        ClusteringJobStatistics statistics = new ClusteringJobStatistics();
+        statistics.setScoreCacheHits(lower.getScoreCacheHits() + upper.getScoreCacheHits());
+        statistics.setScoreCacheMisses(lower.getScoreCacheMisses() + upper.getScoreCacheMisses());
+        statistics.setSpilledClusters(lower.getSpilledClusters() + upper.getSpilledClusters());
+        statistics.setSpilledBytes(lower.getSpilledBytes() + upper.getSpilledBytes());
+        statistics.setReloadedClusters(lower.getReloadedClusters() + upper.getReloadedClusters());
+        // the processing time is used to calibrate the cost estimates and therefore summed up
+        statistics.setProcessingTime(lower.getProcessingTime() + upper.getProcessingTime());
+
+        return statistics;
+    }
+
+    private ObjectInputStream openInputFile() throws IOException {
+        return new ObjectInputStream(new BufferedInputStream(new FileInputStream(inputFile.getResultFile())));
+    }
+
+    /**
+     * Collects the m/z range and number of clusters of a written file.
+     */
+    private static class FileStatistics {
+        private double minMz = Double.MAX_VALUE, maxMz = 0;
+        private int nCluster = 0;
+
+        public void add(ICluster cluster) {
+            if (cluster.getPrecursorMz() < minMz) {
+                minMz = cluster.getPrecursorMz();
+            }
+            if (cluster.getPrecursorMz() > maxMz) {
+                maxMz = cluster.getPrecursorMz();
+            }
+            nCluster++;
+        }
+
+        public BinaryClusterFileReference createReference(File file) {
+            return new BinaryClusterFileReference(file, minMz, maxMz, nCluster);
+        }
+    }
+
+    /**
+     * Transports checked exceptions out of compute().
+     */
+    private static class ClusteringTaskException extends RuntimeException {
+        public ClusteringTaskException(Exception cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterAppender;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterIterable;
+import uk.ac.ebi.pride.spectracluster.spectrum.ISpectrum;
+import uk.ac.ebi.pride.spectracluster.util.BinaryFileScanner;
+import uk.ac.ebi.pride.spectracluster.util.ClusteringJobReference;
+import uk.ac.ebi.pride.spectracluster.util.ClusteringJobStatistics;
+import uk.ac.ebi.pride.spectracluster.util.CompletionJobRunner;
+import uk.ac.ebi.pride.spectracluster.util.predicate.IPredicate;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Clusters a single dense bin in several parallel parts. The bin is
+ * split into parts ("cores") with the same number of clusters, which
+ * may be narrower than the precursor tolerance. Every part additionally
+ * reads the clusters within one precursor tolerance on each side of its
+ * core (the "halo"). The halo is only used as context: a part only
+ * reports the clusters that exclusively consist of spectra from its core.
+ *
+ * Spectra of a core that were grouped with halo spectra straddle a part
+ * boundary. The input clusters holding them are read again from the bin
+ * and re-clustered in a final reconciliation job. Thereby, every spectrum
+ * is reported exactly once.
+ *
+ * The result is an approximation of clustering the whole bin: the straddling
+ * spectra are only re-clustered among themselves. They can therefore never
+ * join a settled cluster, even if they would have been added to it when
+ * clustering the whole bin. Additionally, the settled clusters of a part were
+ * formed without the spectra beyond its halo.
+ *
+ * If more than MAX_STRADDLING_FRACTION of the input clusters straddle a
+ * part boundary, the reconciliation would cluster most of the bin again.
+ * The parts are then discarded and the whole bin is clustered at once.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class HaloBinClusterer implements Callable<ClusteringJobReference> {
+    /**
+     * Maximum fraction of the input clusters that may straddle a part boundary
+     * before the split is given up.
+     */
+    public static final double MAX_STRADDLING_FRACTION = 0.5;
+
+    private final BinaryClusterFileReference inputFile;
+    private final File outputFile;
+    private final List<Float> thresholds;
+    private final boolean fastMode;
+    private final File temporaryDirectory;
+    private final IPredicate<ICluster> clusterPredicate;
+    private final double tolerance;
+    private final int nParts;
+    private final int nJobs;
+
+    private ExecutorService ioExecutor = null;
+
+    /**
+     * Creates a new HaloBinClusterer.
+     * @param inputFile The bin to cluster.
+     * @param outputFile File to write the result to.
+     * @param thresholds The clustering thresholds.
+     * @param fastMode If set, no peak filter is applied.
+     * @param temporaryDirectory Directory to write the parts to.
+     * @param clusterPredicate If set, clusters that do not fulfill this predicate are ignored.
+     * @param tolerance The precursor tolerance which is used as the size of the halo.
+     * @param nParts Number of parts to split the bin into.
+     * @param nJobs Number of parts to cluster in parallel.
+     */
+    public HaloBinClusterer(BinaryClusterFileReference inputFile, File outputFile, List<Float> thresholds,
+                            boolean fastMode, File temporaryDirectory, IPredicate<ICluster> clusterPredicate,
+                            double tolerance, int nParts, int nJobs) {
+        this.inputFile = inputFile;
+        this.outputFile = outputFile;
+        this.thresholds = thresholds;
+        this.fastMode = fastMode;
+        this.temporaryDirectory = temporaryDirectory;
+        this.clusterPredicate = clusterPredicate;
+        this.tolerance = tolerance;
+        this.nParts = nParts;
+        this.nJobs = nJobs;
+    }
+
+    @Override
+    public ClusteringJobReference call() throws Exception {
+        long startTime = System.currentTimeMillis();
+        List<File> temporaryFiles = new ArrayList<File>();
+
+        try {
+            double[] boundaries = getCoreBoundaries();
+
+            // the bin cannot be split, for example since all clusters share the same m/z
+            if (boundaries.length < 2) {
+                return clusterWholeBin();
+            }
+
+            InputClusterIndex inputClusters = new InputClusterIndex();
+            List<File> partFiles = writeParts(boundaries, inputClusters, temporaryFiles);
+            List<File> partResults = clusterParts(partFiles, temporaryFiles);
+
+            // keep the clusters that only consist of core spectra and mark the input clusters of the remaining ones
+            List<File> settledFiles = new ArrayList<File>(partResults.size() + 1);
+            BitSet straddlingClusters = new BitSet(inputClusters.size());
+
+            for (int part = 0; part < partResults.size(); part++) {
+                File settledFile = File.createTempFile("halo_settled", ".cls", temporaryDirectory);
+                temporaryFiles.add(settledFile);
+                settledFiles.add(settledFile);
+
+                separateStraddlingClusters(partResults.get(part), part, inputClusters, settledFile, straddlingClusters);
+            }
+
+            // the split did not help, most of the bin would be clustered again
+            if (straddlingClusters.cardinality() > inputClusters.size() * MAX_STRADDLING_FRACTION) {
+                for (File temporaryFile : temporaryFiles) {
+                    temporaryFile.delete();
+                }
+                temporaryFiles.clear();
+
+                return clusterWholeBin();
+            }
+
+            // re-cluster the input clusters that straddle a part boundary - only among themselves,
+            // settled clusters are final
+            if (!straddlingClusters.isEmpty()) {
+                File reconciliationInput = File.createTempFile("halo_reconciliation", ".cls", temporaryDirectory);
+                File reconciliationOutput = File.createTempFile("halo_reconciliation_result", ".cls", temporaryDirectory);
+                temporaryFiles.add(reconciliationInput);
+                temporaryFiles.add(reconciliationOutput);
+
+                writeStraddlingClusters(straddlingClusters, reconciliationInput);
+
+                BinaryFileClusteringCallable reconciliationCallable = new BinaryFileClusteringCallable(
+                        reconciliationOutput, reconciliationInput, thresholds, fastMode, temporaryDirectory);
+                reconciliationCallable.setIoExecutor(ioExecutor);
+                reconciliationCallable.call();
+
+                settledFiles.add(reconciliationOutput);
+            }
+
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+
+            SpillingClusteringWindow.mergeSortedFiles(settledFiles, outputFile);
+
+            BinaryClusterFileReference outputReference = BinaryFileScanner.scanBinaryFiles(outputFile).get(0);
+            ClusteringJobStatistics statistics = new ClusteringJobStatistics();
+            statistics.setProcessingTime(System.currentTimeMillis() - startTime);
+
+            return new ClusteringJobReference(inputFile.getResultFile(), outputReference, statistics);
+        }
+        finally {
+            for (File temporaryFile : temporaryFiles) {
+                temporaryFile.delete();
+            }
+        }
+    }
+
+    private ClusteringJobReference clusterWholeBin() throws Exception {
+        BinaryFileClusteringCallable clusteringCallable = new BinaryFileClusteringCallable(outputFile,
+                inputFile.getResultFile(), thresholds, fastMode, temporaryDirectory, clusterPredicate);
+        clusteringCallable.setIoExecutor(ioExecutor);
+
+        return clusteringCallable.call();
+    }
+
+    /**
+     * Determines the lower boundaries of all cores so that every core contains
+     * the same number of clusters. The first core starts at the lowest m/z.
+     * @return The lower boundaries of the cores in increasing order.
+     */
+    private double[] getCoreBoundaries() throws Exception {
+        float[] precursorMzs = new float[inputFile.getnSpectra()];
+        int nClusters = 0;
+
+        ObjectInputStream inputStream = openInputFile();
+
+        try {
+            for (ICluster cluster : new BinaryClusterIterable(inputStream)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+
+                if (nClusters == precursorMzs.length) {
+                    precursorMzs = Arrays.copyOf(precursorMzs, precursorMzs.length * 2 + 1);
+                }
+                precursorMzs[nClusters++] = cluster.getPrecursorMz();
+            }
+        }
+        finally {
+            inputStream.close();
+        }
+
+        Arrays.sort(precursorMzs, 0, nClusters);
+
+        List<Double> boundaries = new ArrayList<Double>(nParts);
+
+        for (int part = 0; part < nParts && nClusters > 0; part++) {
+            double boundary = precursorMzs[(int) ((long) nClusters * part / nParts)];
+
+            // cores are never empty
+            if (boundaries.isEmpty() || boundary > boundaries.get(boundaries.size() - 1)) {
+                boundaries.add(boundary);
+            }
+        }
+
+        double[] boundaryArray = new double[boundaries.size()];
+        for (int i = 0; i < boundaryArray.length; i++) {
+            boundaryArray[i] = boundaries.get(i);
+        }
+
+        return boundaryArray;
+    }
+
+    /**
+     * Writes every cluster to the part of its core and to all parts that contain
+     * it in their halo.
+     * @param boundaries The lower boundaries of the cores.
+     * @param inputClusters Filled with the core of every input cluster.
+     * @param temporaryFiles The written files are added to this list.
+     * @return The part files.
+     */
+    private List<File> writeParts(double[] boundaries, InputClusterIndex inputClusters,
+                                  List<File> temporaryFiles) throws Exception {
+        int nCores = boundaries.length;
+        List<File> partFiles = new ArrayList<File>(nCores);
+        ObjectOutputStream[] outputStreams = new ObjectOutputStream[nCores];
+
+        ObjectInputStream inputStream = openInputFile();
+
+        try {
+            for (int part = 0; part < nCores; part++) {
+                File partFile = File.createTempFile("halo_part", ".cls", temporaryDirectory);
+                temporaryFiles.add(partFile);
+                partFiles.add(partFile);
+
+                outputStreams[part] = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(partFile)));
+            }
+
+            for (ICluster cluster : new BinaryClusterIterable(inputStream)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+
+                double precursorMz = cluster.getPrecursorMz();
+                inputClusters.add(cluster, getCore(boundaries, precursorMz));
+
+                // the cluster is part of its core and of the halos of the neighbouring parts within the tolerance
+                int firstPart = getCore(boundaries, precursorMz - tolerance);
+                int lastPart = getCore(boundaries, precursorMz + tolerance);
+
+                for (int part = firstPart; part <= lastPart; part++) {
+                    BinaryClusterAppender.INSTANCE.appendCluster(outputStreams[part], cluster);
+                }
+            }
+
+            for (ObjectOutputStream outputStream : outputStreams) {
+                BinaryClusterAppender.INSTANCE.appendEnd(outputStream);
+            }
+        }
+        finally {
+            inputStream.close();
+
+            for (ObjectOutputStream outputStream : outputStreams) {
+                if (outputStream != null) {
+                    outputStream.close();
+                }
+            }
+        }
+
+        return partFiles;
+    }
+
+    /**
+     * Returns the index of the core that contains the m/z.
+     */
+    private static int getCore(double[] boundaries, double precursorMz) {
+        int core = 0;
+
+        while (core < boundaries.length - 1 && precursorMz >= boundaries[core + 1]) {
+            core++;
+        }
+
+        return core;
+    }
+
+    /**
+     * Clusters all parts in parallel.
+     * @return The result files in the order of the parts.
+     */
+    private List<File> clusterParts(List<File> partFiles, List<File> temporaryFiles) throws Exception {
+        CompletionJobRunner<ClusteringJobReference> jobRunner =
+                new CompletionJobRunner<ClusteringJobReference>(Math.min(nJobs, partFiles.size()));
+        List<File> partResults = new ArrayList<File>(partFiles.size());
+
+        for (File partFile : partFiles) {
+            File partResult = File.createTempFile("halo_part_result", ".cls", temporaryDirectory);
+            temporaryFiles.add(partResult);
+            partResults.add(partResult);
+
+            BinaryFileClusteringCallable clusteringCallable = new BinaryFileClusteringCallable(partResult, partFile,
+                    thresholds, fastMode, temporaryDirectory, clusterPredicate);
+            clusteringCallable.setIoExecutor(ioExecutor);
+            jobRunner.submit(clusteringCallable);
+        }
+
+        jobRunner.awaitAll(null);
+
+        return partResults;
+    }
+
+    /**
+     * Writes the clusters of a part that only consist of spectra from its core to the
+     * settled file. For all other clusters, the input clusters of their core spectra
+     * are marked as straddling.
+     */
+    private void separateStraddlingClusters(File partResult, int part, InputClusterIndex inputClusters,
+                                            File settledFile, BitSet straddlingClusters) throws Exception {
+        ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(partResult)));
+        ObjectOutputStream outputStream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(settledFile)));
+
+        try {
+            for (ICluster cluster : new BinaryClusterIterable(inputStream)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+
+                boolean isSettled = true;
+
+                for (ISpectrum spectrum : cluster.getClusteredSpectra()) {
+                    int inputCluster = inputClusters.getInputCluster(spectrum.getId());
+
+                    if (inputCluster < 0 || inputClusters.getCore(inputCluster) != part) {
+                        isSettled = false;
+                        break;
+                    }
+                }
+
+                if (isSettled) {
+                    BinaryClusterAppender.INSTANCE.appendCluster(outputStream, cluster);
+                    continue;
+                }
+
+                // only the part owning a spectrum reports it
+                for (ISpectrum spectrum : cluster.getClusteredSpectra()) {
+                    int inputCluster = inputClusters.getInputCluster(spectrum.getId());
+
+                    if (inputCluster >= 0 && inputClusters.getCore(inputCluster) == part) {
+                        straddlingClusters.set(inputCluster);
+                    }
+                }
+            }
+
+            BinaryClusterAppender.INSTANCE.appendEnd(outputStream);
+        }
+        finally {
+            inputStream.close();
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Copies the marked input clusters to the file. Since the bin is sorted, so is the file.
+     */
+    private void writeStraddlingClusters(BitSet straddlingClusters, File file) throws Exception {
+        ObjectInputStream inputStream = openInputFile();
+        ObjectOutputStream outputStream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+        try {
+            int inputCluster = 0;
+
+            for (ICluster cluster : new BinaryClusterIterable(inputStream)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+
+                if (straddlingClusters.get(inputCluster++)) {
+                    BinaryClusterAppender.INSTANCE.appendCluster(outputStream, cluster);
+                }
+            }
+
+            BinaryClusterAppender.INSTANCE.appendEnd(outputStream);
+        }
+        finally {
+            inputStream.close();
+            outputStream.close();
+        }
+    }
+
+    private ObjectInputStream openInputFile() throws IOException {
+        return new ObjectInputStream(new BufferedInputStream(new FileInputStream(inputFile.getResultFile())));
+    }
+
+    /**
+     * Sets the executor used to read ahead the input files of the parts.
+     * @param ioExecutor The executor to use. May be null.
+     */
+    public void setIoExecutor(ExecutorService ioExecutor) {
+        this.ioExecutor = ioExecutor;
+    }
+
+    /**
+     * Numbers the input clusters in the order of the bin and stores their core
+     * as well as the input cluster of every spectrum.
+     */
+    private static class InputClusterIndex {
+        private final Map<String, Integer> spectrumInputClusters = new HashMap<String, Integer>();
+        private int[] cores = new int[1024];
+        private int nClusters = 0;
+
+        public void add(ICluster cluster, int core) {
+            if (nClusters == cores.length) {
+                cores = Arrays.copyOf(cores, cores.length * 2);
+            }
+            cores[nClusters] = core;
+
+            for (ISpectrum spectrum : cluster.getClusteredSpectra()) {
+                spectrumInputClusters.put(spectrum.getId(), nClusters);
+            }
+
+            nClusters++;
+        }
+
+        /**
+         * @return The index of the spectrum's input cluster or -1 if the spectrum is unknown.
+         */
+        public int getInputCluster(String spectrumId) {
+            Integer inputCluster = spectrumInputClusters.get(spectrumId);
+
+            return inputCluster != null ? inputCluster : -1;
+        }
+
+        public int getCore(int inputCluster) {
+            return cores[inputCluster];
+        }
+
+        public int size() {
+            return nClusters;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterIterable;
+import uk.ac.ebi.pride.spectracluster.spectrum.ISpectrum;
+
+import java.io.*;
+import java.util.concurrent.Callable;
+
+/**
+ * Limits the heap used by concurrently running clustering jobs. Every
+ * job reserves its estimated heap requirement before it starts and
+ * releases it once it is completed. A job is only started if its
+ * reservation fits into the budget. Jobs that exceed the complete
+ * budget are started once no other job is running.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class HeapAdmissionController {
+    /**
+     * Estimated heap used by a single peak (object, list reference and the
+     * filtered copy used for the comparison)
+     */
+    public static final long ESTIMATED_BYTES_PER_PEAK = 64;
+    /**
+     * Estimated heap used by a spectrum and its cluster apart from the peaks
+     */
+    public static final long ESTIMATED_BYTES_PER_SPECTRUM = 1024;
+    /**
+     * Number of clusters read to determine the average number of peaks per spectrum
+     */
+    public static final int PEAK_SAMPLE_SIZE = 100;
+    /**
+     * Used if the number of peaks cannot be determined from the file
+     */
+    public static final int DEFAULT_PEAKS_PER_SPECTRUM = 100;
+
+    private final long heapBudget;
+    private long reservedHeap = 0;
+
+    /**
+     * @param heapBudget Heap (in bytes) that the running jobs may reserve.
+     */
+    public HeapAdmissionController(long heapBudget) {
+        this.heapBudget = heapBudget;
+    }
+
+    /**
+     * Creates a controller whose budget is the passed fraction of the maximum heap (-Xmx).
+     * @param heapFraction Fraction of the maximum heap the running jobs may reserve.
+     * @return The new controller.
+     */
+    public static HeapAdmissionController fromHeapFraction(double heapFraction) {
+        return new HeapAdmissionController((long) (Runtime.getRuntime().maxMemory() * heapFraction));
+    }
+
+    /**
+     * Estimates the heap required to cluster the passed file based on its number of
+     * spectra and the average number of peaks per spectrum in its first clusters.
+     * @param binaryFile The file to estimate.
+     * @param windowMemoryBudget If set (> 0), the window of the clustering job spills to disk
+     *                           at this size. The estimate is then limited to this budget.
+     * @return The estimated heap requirement in bytes.
+     */
+    public long estimateHeapRequirement(BinaryClusterFileReference binaryFile, long windowMemoryBudget) {
+        long spectrumSize = ESTIMATED_BYTES_PER_SPECTRUM +
+                (long) (samplePeaksPerSpectrum(binaryFile.getResultFile()) * ESTIMATED_BYTES_PER_PEAK);
+        long requirement = binaryFile.getnSpectra() * spectrumSize;
+
+        if (windowMemoryBudget > 0) {
+            requirement = Math.min(requirement, windowMemoryBudget);
+        }
+
+        return requirement;
+    }
+
+    private double samplePeaksPerSpectrum(File binaryFile) {
+        int nSpectra = 0;
+        long nPeaks = 0;
+
+        try {
+            ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(binaryFile)));
+
+            try {
+                int nClusters = 0;
+
+                for (ICluster cluster : new BinaryClusterIterable(inputStream)) {
+                    for (ISpectrum spectrum : cluster.getClusteredSpectra()) {
+                        nPeaks += spectrum.getPeaks().size();
+                        nSpectra++;
+                    }
+
+                    if (++nClusters >= PEAK_SAMPLE_SIZE) {
+                        break;
+                    }
+                }
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            // the job itself reports the problem
+            return DEFAULT_PEAKS_PER_SPECTRUM;
+        }
+
+        return (nSpectra > 0) ? (double) nPeaks / nSpectra : DEFAULT_PEAKS_PER_SPECTRUM;
+    }
+
+    /**
+     * Wraps the passed job so that it only starts once its heap requirement
+     * could be reserved. The reservation is released when the job completes.
+     * @param job The job to wrap.
+     * @param requiredHeap The job's estimated heap requirement in bytes.
+     * @return The wrapped job.
+     */
+    public <T> Callable<T> admit(final Callable<T> job, final long requiredHeap) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                reserve(requiredHeap);
+
+                try {
+                    return job.call();
+                }
+                finally {
+                    release(requiredHeap);
+                }
+            }
+        };
+    }
+
+    /**
+     * Blocks until the passed amount of heap can be reserved.
+     * @param requiredHeap The heap to reserve in bytes.
+     * @throws InterruptedException
+     */
+    public synchronized void reserve(long requiredHeap) throws InterruptedException {
+        // a job that exceeds the budget runs alone
+        while (reservedHeap > 0 && reservedHeap + requiredHeap > heapBudget) {
+            wait();
+        }
+
+        reservedHeap += requiredHeap;
+    }
+
+    public synchronized void release(long requiredHeap) {
+        reservedHeap -= requiredHeap;
+        notifyAll();
+    }
+
+    public synchronized long getReservedHeap() {
+        return reservedHeap;
+    }
+
+    public long getHeapBudget() {
+        return heapBudget;
+    }
+}
@@ -0,0 +1,18 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+/**
+ * Listener that additionally receives the position of every result
+ * file. This allows the listener to process the files in m/z order
+ * even though they are reported in the order they are completed.
+ *
+ * Created by jg on 19.10.26.
+ */
+public interface IOrderedClusteringResultListener extends IBinaryClusteringResultListener {
+    /**
+     * Called instead of onNewResultFile.
+     * @param resultFile The written file.
+     * @param index Position of the file in m/z order. The first file has index 0, all
+     *              files up to the total number of files are reported.
+     */
+    public void onNewResultFile(BinaryClusterFileReference resultFile, int index);
+}
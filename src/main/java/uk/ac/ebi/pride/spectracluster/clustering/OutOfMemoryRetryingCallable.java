@@ -0,0 +1,149 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.util.ClusteringJobReference;
+import uk.ac.ebi.pride.spectracluster.util.IProgressListener;
+import uk.ac.ebi.pride.spectracluster.util.ProgressUpdate;
+import uk.ac.ebi.pride.spectracluster.util.predicate.IPredicate;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Runs a clustering job and retries the bin if the job runs out of
+ * memory. The bin is then clustered by a HaloBinClusterer in parts
+ * that are processed one after the other. If this still exceeds the
+ * heap, the number of parts is doubled until the parts become too
+ * small.
+ *
+ * Retries of all jobs share a lock so that only one split bin is
+ * processed at a time. Every retry is reported to the progress
+ * listeners from the job's thread.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class OutOfMemoryRetryingCallable implements Callable<ClusteringJobReference> {
+    /**
+     * Parts must contain at least this number of clusters on average
+     */
+    public static final int MIN_PART_CLUSTERS = 100;
+
+    private final Callable<ClusteringJobReference> job;
+    private final BinaryClusterFileReference inputFile;
+    private final File outputFile;
+    private final List<Float> thresholds;
+    private final boolean fastMode;
+    private final File temporaryDirectory;
+    private final IPredicate<ICluster> clusterPredicate;
+    private final double tolerance;
+    private final int initialParts;
+    private final Lock retryLock;
+    private ExecutorService ioExecutor = null;
+    private final List<IProgressListener> progressListeners = new ArrayList<IProgressListener>();
+
+    /**
+     * @param job The clustering job to run first.
+     * @param inputFile The bin clustered by the job.
+     * @param outputFile The job's output file.
+     * @param thresholds The thresholds of the clustering rounds.
+     * @param fastMode If set, no peak filter is applied for the comparison.
+     * @param temporaryDirectory Directory for the temporary files of the parts.
+     * @param clusterPredicate If set, clusters that do not fulfill this predicate are ignored.
+     * @param tolerance Precursor tolerance used as the parts' halo.
+     * @param initialParts Number of parts used in the first retry.
+     * @param retryLock Lock shared by all retries.
+     */
+    public OutOfMemoryRetryingCallable(Callable<ClusteringJobReference> job, BinaryClusterFileReference inputFile,
+                                       File outputFile, List<Float> thresholds, boolean fastMode,
+                                       File temporaryDirectory, IPredicate<ICluster> clusterPredicate,
+                                       double tolerance, int initialParts, Lock retryLock) {
+        this.job = job;
+        this.inputFile = inputFile;
+        this.outputFile = outputFile;
+        this.thresholds = thresholds;
+        this.fastMode = fastMode;
+        this.temporaryDirectory = temporaryDirectory;
+        this.clusterPredicate = clusterPredicate;
+        this.tolerance = tolerance;
+        this.initialParts = initialParts;
+        this.retryLock = retryLock;
+    }
+
+    @Override
+    public ClusteringJobReference call() throws Exception {
+        try {
+            return job.call();
+        } catch (OutOfMemoryError e) {
+            // the failed job's objects are no longer referenced once the error was caught
+            notifyRetry(initialParts);
+        }
+
+        int nParts = initialParts;
+
+        while (true) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+
+            retryLock.lockInterruptibly();
+
+            try {
+                // the failed job may have left an incomplete result
+                if (outputFile.exists() && !outputFile.delete()) {
+                    throw new Exception("Failed to delete file " + outputFile.toString());
+                }
+
+                HaloBinClusterer haloBinClusterer = new HaloBinClusterer(inputFile, outputFile, thresholds, fastMode,
+                        temporaryDirectory, clusterPredicate, tolerance, nParts, 1);
+                haloBinClusterer.setIoExecutor(ioExecutor);
+
+                ClusteringJobReference result = haloBinClusterer.call();
+                result.getStatistics().setOutOfMemoryParts(nParts);
+
+                return result;
+            } catch (OutOfMemoryError e) {
+                if (inputFile.getnSpectra() / (nParts * 2) < MIN_PART_CLUSTERS) {
+                    throw new Exception(String.format("Clustering %s ran out of memory even when split into %d parts",
+                            inputFile.getResultFile().getName(), nParts));
+                }
+
+                nParts *= 2;
+                notifyRetry(nParts);
+            } finally {
+                retryLock.unlock();
+            }
+        }
+    }
+
+    private void notifyRetry(int nParts) {
+        ProgressUpdate progressUpdate = new ProgressUpdate(
+                String.format("Warning: Clustering %s ran out of memory, retrying in %d parts",
+                        inputFile.getResultFile().getName(), nParts),
+                ProgressUpdate.CLUSTERING_STAGE.CLUSTERING);
+
+        for (IProgressListener progressListener : progressListeners) {
+            progressListener.onProgressUpdate(progressUpdate);
+        }
+    }
+
+    /**
+     * Adds a listener that is notified about every retry. The listener is
+     * called from the job's thread.
+     * @param progressListener The listener to add.
+     */
+    public void addProgressListener(IProgressListener progressListener) {
+        progressListeners.add(progressListener);
+    }
+
+    /**
+     * Executor used to read the input files of the retried parts.
+     * @param ioExecutor The executor to use. Set to null to read the files in the clustering thread.
+     */
+    public void setIoExecutor(ExecutorService ioExecutor) {
+        this.ioExecutor = ioExecutor;
+    }
+}
@@ -0,0 +1,235 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterIterable;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads the clusters of a binary file ahead using the passed I/O
+ * executor. The decoded clusters are handed over to the iterating
+ * thread through a bounded queue.
+ *
+ * The file is read in short batches that fill the queue and then
+ * return their I/O thread. A new batch is submitted once the iterating
+ * thread drained the queue to half its size. Thereby, an I/O thread is
+ * never blocked by a slow clustering job and the number of I/O threads
+ * does not limit the number of clustering jobs that make progress.
+ *
+ * If no executor is set, the clusters are read in the iterating
+ * thread. The iterable must be closed once it is no longer used.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class PrefetchingClusterIterable implements Iterable<ICluster>, Closeable {
+    /**
+     * Marks the end of the file in the queue.
+     */
+    private static final Object END_OF_FILE = new Object();
+
+    private final Iterable<ICluster> source;
+    private final Closeable inputStream;
+    private final ExecutorService ioExecutor;
+    private final BlockingQueue<Object> queue;
+    /**
+     * A new batch is read once the queue holds no more than this number of clusters
+     */
+    private final int refillSize;
+    /**
+     * Set while a batch is submitted or running. Only one batch reads the file at a time.
+     */
+    private final AtomicBoolean reading = new AtomicBoolean(false);
+    private Iterator<ICluster> sourceIterator = null;
+    private volatile boolean completed = false;
+    private volatile boolean closed = false;
+
+    /**
+     * Opens the file and starts reading it if an executor is set.
+     * @param inputFile The binary file to read.
+     * @param ioExecutor The executor to read the file in. If null, the file is read in the iterating thread.
+     * @param queueSize Maximum number of clusters read ahead.
+     * @throws IOException
+     */
+    public PrefetchingClusterIterable(File inputFile, ExecutorService ioExecutor, int queueSize) throws IOException {
+        this(new ObjectInputStream(new BufferedInputStream(new FileInputStream(inputFile))), ioExecutor, queueSize);
+    }
+
+    /**
+     * Reads the clusters of the passed slices one after the other.
+     * @param slices The slices to read in order of precursor m/z.
+     * @param ioExecutor The executor to read the slices in. If null, the slices are read in the iterating thread.
+     * @param queueSize Maximum number of clusters read ahead.
+     */
+    public PrefetchingClusterIterable(List<BinaryFileSlice> slices, ExecutorService ioExecutor, int queueSize) {
+        this(new SlicedClusterIterable(slices), ioExecutor, queueSize);
+    }
+
+    private PrefetchingClusterIterable(ObjectInputStream inputStream, ExecutorService ioExecutor, int queueSize) {
+        this(new BinaryClusterIterable(inputStream), inputStream, ioExecutor, queueSize);
+    }
+
+    private PrefetchingClusterIterable(SlicedClusterIterable slicedClusterIterable, ExecutorService ioExecutor,
+                                       int queueSize) {
+        this(slicedClusterIterable, slicedClusterIterable, ioExecutor, queueSize);
+    }
+
+    private PrefetchingClusterIterable(Iterable<ICluster> source, Closeable inputStream, ExecutorService ioExecutor,
+                                       int queueSize) {
+        this.source = source;
+        this.inputStream = inputStream;
+        this.ioExecutor = ioExecutor;
+
+        if (ioExecutor == null) {
+            queue = null;
+            refillSize = 0;
+            return;
+        }
+
+        // one additional slot is reserved for the end of the file or the read error
+        queue = new ArrayBlockingQueue<Object>(Math.max(1, queueSize) + 1);
+        refillSize = Math.max(1, queueSize) / 2;
+
+        reading.set(true);
+        submitBatch();
+    }
+
+    private void submitBatch() {
+        ioExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                readBatch();
+            }
+        });
+    }
+
+    /**
+     * Reads clusters until the queue is full or the file is completely read.
+     */
+    private void readBatch() {
+        try {
+            if (sourceIterator == null) {
+                sourceIterator = source.iterator();
+            }
+
+            // there is only one batch at a time, so the reserved slot is always free
+            while (!closed && queue.remainingCapacity() > 1) {
+                if (!sourceIterator.hasNext()) {
+                    queue.add(END_OF_FILE);
+                    completed = true;
+                    break;
+                }
+
+                queue.add(sourceIterator.next());
+            }
+        }
+        catch (Exception e) {
+            queue.add(e);
+            completed = true;
+        }
+
+        if (closed || completed) {
+            // no further batch is started
+            closeInputStream();
+            return;
+        }
+
+        reading.set(false);
+
+        // the iterable may have been closed or drained while the flag was still set
+        if (closed && reading.compareAndSet(false, true)) {
+            closeInputStream();
+        } else {
+            refillIfNeeded();
+        }
+    }
+
+    private void refillIfNeeded() {
+        if (!completed && !closed && queue.size() <= refillSize && reading.compareAndSet(false, true)) {
+            submitBatch();
+        }
+    }
+
+    @Override
+    public Iterator<ICluster> iterator() {
+        if (queue == null) {
+            return source.iterator();
+        }
+
+        return new Iterator<ICluster>() {
+            private Object nextObject = null;
+
+            @Override
+            public boolean hasNext() {
+                if (nextObject == null) {
+                    nextObject = take();
+                }
+
+                return nextObject != END_OF_FILE;
+            }
+
+            @Override
+            public ICluster next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                ICluster cluster = (ICluster) nextObject;
+                nextObject = null;
+
+                return cluster;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Clusters cannot be removed from a binary file");
+            }
+        };
+    }
+
+    private Object take() {
+        try {
+            Object object = queue.take();
+            refillIfNeeded();
+
+            if (object instanceof Exception) {
+                throw new IllegalStateException("Failed to read clusters", (Exception) object);
+            }
+
+            return object;
+        }
+        catch (InterruptedException e) {
+            // end the iteration, the caller checks the interrupted flag
+            Thread.currentThread().interrupt();
+            return END_OF_FILE;
+        }
+    }
+
+    /**
+     * Stops reading the file. If a batch is currently read, the file is
+     * closed by its I/O thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        if (queue == null || reading.compareAndSet(false, true)) {
+            closeInputStream();
+        }
+    }
+
+    private void closeInputStream() {
+        try {
+            inputStream.close();
+        }
+        catch (IOException e) {
+            // ignore since the file was only read
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+/**
+ * A compact cache of similarity scores between two versioned
+ * clusters. Every cluster is represented by a 64 bit version stamp
+ * that combines the cluster's id with the state of its consensus
+ * spectrum. The stamp therefore changes whenever the cluster absorbs
+ * new spectra and outdated scores are never returned. Every score is
+ * additionally stored with a check value (for example derived from the
+ * spectra's peak counts) that must match for a hit, so that a collision
+ * of two stamps does not return another pair's score.
+ *
+ * Scores are kept for the current and the previous clustering round
+ * only. Calling startNewRound discards everything older.
+ *
+ * This class is not thread-safe. Every clustering job uses its own cache.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class SimilarityScoreCache {
+    /**
+     * Maximum number of scores stored per round. Once reached, new scores are
+     * no longer cached.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1 << 20;
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    private final int maxEntries;
+
+    private ScoreTable currentRound = new ScoreTable(INITIAL_CAPACITY);
+    private ScoreTable previousRound = new ScoreTable(INITIAL_CAPACITY);
+
+    private long hits = 0;
+    private long misses = 0;
+
+    public SimilarityScoreCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public SimilarityScoreCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Retrieves the score for the defined pair of clusters.
+     * @param versionStamp1 Version stamp of the first cluster.
+     * @param versionStamp2 Version stamp of the second cluster.
+     * @return The score or Double.NaN in case the pair is not known.
+     */
+    public double getScore(long versionStamp1, long versionStamp2) {
+        return getScore(versionStamp1, versionStamp2, 0);
+    }
+
+    /**
+     * Retrieves the score for the defined pair of clusters.
+     * @param versionStamp1 Version stamp of the first cluster.
+     * @param versionStamp2 Version stamp of the second cluster.
+     * @param check Check value that must match the one the score was stored with.
+     * @return The score or Double.NaN in case the pair is not known.
+     */
+    public double getScore(long versionStamp1, long versionStamp2, int check) {
+        double score = currentRound.get(versionStamp1, versionStamp2, check);
+
+        if (Double.isNaN(score)) {
+            score = previousRound.get(versionStamp1, versionStamp2, check);
+
+            // move the score to the current round so that it survives the next round as well
+            if (!Double.isNaN(score) && currentRound.size() < maxEntries) {
+                currentRound.put(versionStamp1, versionStamp2, check, score);
+            }
+        }
+
+        if (Double.isNaN(score)) {
+            misses++;
+        } else {
+            hits++;
+        }
+
+        return score;
+    }
+
+    /**
+     * Stores the score for the defined pair of clusters.
+     * @param versionStamp1 Version stamp of the first cluster.
+     * @param versionStamp2 Version stamp of the second cluster.
+     * @param score The score.
+     */
+    public void putScore(long versionStamp1, long versionStamp2, double score) {
+        putScore(versionStamp1, versionStamp2, 0, score);
+    }
+
+    /**
+     * Stores the score for the defined pair of clusters.
+     * @param versionStamp1 Version stamp of the first cluster.
+     * @param versionStamp2 Version stamp of the second cluster.
+     * @param check Check value required to retrieve the score.
+     * @param score The score.
+     */
+    public void putScore(long versionStamp1, long versionStamp2, int check, double score) {
+        if (currentRound.size() >= maxEntries) {
+            return;
+        }
+
+        currentRound.put(versionStamp1, versionStamp2, check, score);
+    }
+
+    /**
+     * Discards all scores of the previous round. The scores of the
+     * current round remain available.
+     */
+    public void startNewRound() {
+        previousRound = currentRound;
+        currentRound = new ScoreTable(INITIAL_CAPACITY);
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Simple open addressing hash table using a pair of longs as
+     * key. (0, 0) is used to mark empty slots.
+     */
+    private static class ScoreTable {
+        private long[] keys1;
+        private long[] keys2;
+        private int[] checks;
+        private double[] scores;
+        private int size = 0;
+
+        public ScoreTable(int capacity) {
+            keys1 = new long[capacity];
+            keys2 = new long[capacity];
+            checks = new int[capacity];
+            scores = new double[capacity];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public double get(long key1, long key2, int check) {
+            int mask = keys1.length - 1;
+
+            for (int slot = hash(key1, key2) & mask; ; slot = (slot + 1) & mask) {
+                if (keys1[slot] == 0 && keys2[slot] == 0) {
+                    return Double.NaN;
+                }
+                if (keys1[slot] == key1 && keys2[slot] == key2) {
+                    return checks[slot] == check ? scores[slot] : Double.NaN;
+                }
+            }
+        }
+
+        public void put(long key1, long key2, int check, double score) {
+            // keep the load factor below 0.5
+            if ((size + 1) * 2 > keys1.length) {
+                resize(keys1.length * 2);
+            }
+
+            int mask = keys1.length - 1;
+
+            for (int slot = hash(key1, key2) & mask; ; slot = (slot + 1) & mask) {
+                if (keys1[slot] == 0 && keys2[slot] == 0) {
+                    keys1[slot] = key1;
+                    keys2[slot] = key2;
+                    checks[slot] = check;
+                    scores[slot] = score;
+                    size++;
+                    return;
+                }
+                if (keys1[slot] == key1 && keys2[slot] == key2) {
+                    checks[slot] = check;
+                    scores[slot] = score;
+                    return;
+                }
+            }
+        }
+
+        private void resize(int newCapacity) {
+            long[] oldKeys1 = keys1;
+            long[] oldKeys2 = keys2;
+            int[] oldChecks = checks;
+            double[] oldScores = scores;
+
+            keys1 = new long[newCapacity];
+            keys2 = new long[newCapacity];
+            checks = new int[newCapacity];
+            scores = new double[newCapacity];
+            size = 0;
+
+            for (int i = 0; i < oldKeys1.length; i++) {
+                if (oldKeys1[i] != 0 || oldKeys2[i] != 0) {
+                    put(oldKeys1[i], oldKeys2[i], oldChecks[i], oldScores[i]);
+                }
+            }
+        }
+
+        private static int hash(long key1, long key2) {
+            long h = key1 * 0x9E3779B97F4A7C15L + key2;
+            h ^= (h >>> 32);
+            h *= 0xC2B2AE3D27D4EB4FL;
+
+            return (int) (h ^ (h >>> 29));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterIterable;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the clusters of several binary file slices one after
+ * the other. Clusters outside of a slice are skipped. Only one
+ * file is open at any time. The iterable can only be iterated
+ * once and must be closed once it is no longer used.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class SlicedClusterIterable implements Iterable<ICluster>, Closeable {
+    private final List<BinaryFileSlice> slices;
+
+    private ObjectInputStream currentInputStream;
+
+    public SlicedClusterIterable(List<BinaryFileSlice> slices) {
+        this.slices = slices;
+    }
+
+    @Override
+    public Iterator<ICluster> iterator() {
+        return new Iterator<ICluster>() {
+            private int currentSlice = -1;
+            private Iterator<ICluster> currentIterator = null;
+            private ICluster nextCluster = null;
+
+            @Override
+            public boolean hasNext() {
+                while (nextCluster == null) {
+                    if (currentIterator != null && currentIterator.hasNext()) {
+                        ICluster cluster = currentIterator.next();
+
+                        if (slices.get(currentSlice).contains(cluster.getPrecursorMz())) {
+                            nextCluster = cluster;
+                        }
+                        continue;
+                    }
+
+                    // open the next slice's file
+                    closeCurrentInputStream();
+                    currentSlice++;
+
+                    if (currentSlice >= slices.size()) {
+                        currentIterator = null;
+                        return false;
+                    }
+
+                    try {
+                        currentInputStream = new ObjectInputStream(new BufferedInputStream(
+                                new FileInputStream(slices.get(currentSlice).getResultFile())));
+                    }
+                    catch (IOException e) {
+                        throw new IllegalStateException("Failed to open " + slices.get(currentSlice).getResultFile(), e);
+                    }
+
+                    currentIterator = new BinaryClusterIterable(currentInputStream).iterator();
+                }
+
+                return true;
+            }
+
+            @Override
+            public ICluster next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                ICluster cluster = nextCluster;
+                nextCluster = null;
+
+                return cluster;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Clusters cannot be removed from a binary file");
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        closeCurrentInputStream();
+    }
+
+    private void closeCurrentInputStream() {
+        if (currentInputStream == null) {
+            return;
+        }
+
+        try {
+            currentInputStream.close();
+        }
+        catch (IOException e) {
+            // ignore since the file was only read
+        }
+
+        currentInputStream = null;
+    }
+}
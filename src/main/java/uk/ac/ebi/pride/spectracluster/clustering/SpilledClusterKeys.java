@@ -0,0 +1,77 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.util.ComparisonMatch;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Index keys of spilled clusters matching the comparison predicates
+ * used by the clustering rounds.
+ *
+ * Created by jg on 19.10.26.
+ */
+public final class SpilledClusterKeys {
+    /**
+     * Key of all spilled clusters if the engine compares all clusters within the tolerance
+     */
+    public static final SpillingClusteringWindow.ISpilledClusterKey ALL_CLUSTERS = new SpillingClusteringWindow.ISpilledClusterKey() {
+        @Override
+        public boolean mayCompare(ICluster cluster) {
+            return true;
+        }
+    };
+
+    private SpilledClusterKeys() {
+
+    }
+
+    /**
+     * Key matching ClusterShareMajorPeakPredicate. Only the major peaks of the spilled
+     * cluster's consensus spectrum are kept.
+     * @param spilledCluster The cluster that is spilled.
+     * @param nMajorPeaks The number of major peaks used by the predicate.
+     * @return The key.
+     */
+    public static SpillingClusteringWindow.ISpilledClusterKey sharesMajorPeak(ICluster spilledCluster, final int nMajorPeaks) {
+        final int[] majorPeaks = spilledCluster.getConsensusSpectrum().asMajorPeakMZs(nMajorPeaks);
+
+        return new SpillingClusteringWindow.ISpilledClusterKey() {
+            @Override
+            public boolean mayCompare(ICluster cluster) {
+                for (int majorPeak : cluster.getConsensusSpectrum().asMajorPeakMZs(nMajorPeaks)) {
+                    for (int spilledMajorPeak : majorPeaks) {
+                        if (majorPeak == spilledMajorPeak) {
+                            return true;
+                        }
+                    }
+                }
+
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Key matching IsKnownComparisonsPredicate. Only the ids of the spilled cluster's
+     * known comparison matches are kept.
+     * @param spilledCluster The cluster that is spilled.
+     * @return The key.
+     */
+    public static SpillingClusteringWindow.ISpilledClusterKey isKnownComparison(ICluster spilledCluster) {
+        final String spilledClusterId = spilledCluster.getId();
+        final Set<String> matchedIds = new HashSet<String>();
+
+        for (ComparisonMatch comparisonMatch : spilledCluster.getComparisonMatches()) {
+            matchedIds.add(comparisonMatch.getClusterId());
+        }
+
+        return new SpillingClusteringWindow.ISpilledClusterKey() {
+            @Override
+            public boolean mayCompare(ICluster cluster) {
+                return matchedIds.contains(cluster.getId()) || cluster.isKnownComparisonMatch(spilledClusterId);
+            }
+        };
+    }
+}
@@ -0,0 +1,593 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.engine.IIncrementalClusteringEngine;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterAppender;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterIterable;
+import uk.ac.ebi.pride.spectracluster.util.predicate.IComparisonPredicate;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Wraps the incremental clustering engine and limits the (estimated)
+ * memory used by the window of open clusters. If the window exceeds the
+ * memory budget, the least recently matched clusters are written to a
+ * spill file.
+ *
+ * Every spilled cluster is kept in a small in-memory index holding its
+ * precursor m/z, id, the key created by the engine factory (for example
+ * the consensus spectrum's major peaks) and its position in the spill
+ * file. Before a cluster is added, the keys of all spilled clusters within
+ * its precursor tolerance are checked and only the matching clusters are
+ * read back from the spill files. The added cluster is therefore compared
+ * with the same clusters as without a memory budget and spilling does not
+ * change the result.
+ *
+ * The engine does not support removing single clusters and only accepts
+ * clusters in order of precursor m/z. Therefore, the engine is re-created
+ * with the retained clusters whenever clusters are spilled or reloaded
+ * (reloaded clusters are always below the last added cluster). While the
+ * engine is rebuilt, the window predicate passed to the engine factory
+ * rejects all comparisons so that the clusters are not compared (and
+ * merged) again.
+ *
+ * Spilled clusters that are out of reach are final. getSpillFiles writes
+ * them to sorted spill files which have to be merged with the regular
+ * output using mergeSortedFiles.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class SpillingClusteringWindow {
+    /**
+     * Estimated heap usage of a single spectrum within a cluster (peaks
+     * after the loading filter, consensus spectrum share, and object overhead).
+     */
+    public static final long ESTIMATED_BYTES_PER_SPECTRUM = 4096;
+    /**
+     * The match state of the window is only updated every n added clusters.
+     */
+    public static final int SCAN_INTERVAL = 1000;
+    /**
+     * Fraction of the budget the window is reduced to when clusters are spilled.
+     */
+    public static final double SPILL_TARGET = 0.75;
+
+    public interface IEngineFactory {
+        /**
+         * Creates a new engine. The engine must only compare clusters that fulfill the
+         * window predicate (for example using ComparisonPredicates.and).
+         * @param windowPredicate Predicate rejecting all comparisons while the window is rebuilt.
+         * @return The new engine.
+         */
+        IIncrementalClusteringEngine createEngine(IComparisonPredicate<ICluster> windowPredicate);
+
+        /**
+         * Creates the index key of a cluster that is spilled. The key must only hold the
+         * properties the engines' comparison predicate needs, since it is kept in memory
+         * while the cluster itself is released.
+         * @param cluster The cluster that is spilled.
+         * @return The cluster's key.
+         */
+        ISpilledClusterKey createSpilledClusterKey(ICluster cluster);
+    }
+
+    public interface ISpilledClusterKey {
+        /**
+         * Indicates whether the engines may compare the spilled cluster with the passed
+         * cluster (in either order). Returning true for clusters that are not compared
+         * only causes unnecessary reloads.
+         * @param cluster The cluster that is about to be added.
+         * @return
+         */
+        boolean mayCompare(ICluster cluster);
+    }
+
+    private final IEngineFactory engineFactory;
+    private final long memoryBudget;
+    private final double precursorTolerance;
+    private final File temporaryDirectory;
+
+    private IIncrementalClusteringEngine engine;
+    private boolean rebuilding = false;
+    private final IComparisonPredicate<ICluster> windowPredicate = new IComparisonPredicate<ICluster>() {
+        @Override
+        public boolean apply(ICluster o1, ICluster o2) {
+            return !rebuilding;
+        }
+    };
+    private long windowSpectra = 0;
+    private long nAddedClusters = 0;
+    private float currentMz = 0;
+
+    /**
+     * The number of spectra of every cluster when the window was last scanned
+     */
+    private Map<String, Integer> knownSpectraCounts = new HashMap<String, Integer>();
+    /**
+     * Index of the add operation after which the cluster was last found to have changed
+     */
+    private Map<String, Long> lastMatched = new HashMap<String, Long>();
+
+    private List<SpillFile> spillFiles = new ArrayList<SpillFile>();
+
+    private long spilledClusters = 0;
+    private long spilledBytes = 0;
+    private long reloadedClusters = 0;
+
+    /**
+     * Creates a new window.
+     * @param engineFactory Factory to create the clustering engine.
+     * @param memoryBudget The memory budget in bytes. If 0, no clusters are spilled.
+     * @param precursorTolerance The precursor tolerance used by the engine.
+     * @param temporaryDirectory The directory to write the spill files to.
+     */
+    public SpillingClusteringWindow(IEngineFactory engineFactory, long memoryBudget, double precursorTolerance,
+                                    File temporaryDirectory) {
+        this.engineFactory = engineFactory;
+        this.memoryBudget = memoryBudget;
+        this.precursorTolerance = precursorTolerance;
+        this.temporaryDirectory = temporaryDirectory;
+
+        this.engine = engineFactory.createEngine(windowPredicate);
+    }
+
+    /**
+     * Adds a cluster to the engine.
+     * @param cluster The cluster to add. Clusters must be added in order of precursor m/z.
+     * @return The clusters that are no longer part of the window and have to be written to the output.
+     * @throws IOException
+     */
+    public Collection<ICluster> addClusterIncremental(ICluster cluster) throws IOException {
+        currentMz = cluster.getPrecursorMz();
+        nAddedClusters++;
+
+        if (memoryBudget <= 0) {
+            Collection<ICluster> removedClusters = engine.addClusterIncremental(cluster);
+            windowSpectra += cluster.getClusteredSpectraCount();
+            forgetClusters(removedClusters);
+
+            return removedClusters;
+        }
+
+        List<ICluster> clustersToWrite = new ArrayList<ICluster>();
+
+        // the cluster must see all spilled clusters it may be compared with
+        if (!spillFiles.isEmpty()) {
+            clustersToWrite.addAll(reloadClusters(cluster));
+        }
+
+        Collection<ICluster> removedClusters = engine.addClusterIncremental(cluster);
+        windowSpectra += cluster.getClusteredSpectraCount();
+        forgetClusters(removedClusters);
+        clustersToWrite.addAll(removedClusters);
+
+        if (nAddedClusters % SCAN_INTERVAL == 0) {
+            updateLastMatched();
+        }
+
+        if (getWindowMemory() > memoryBudget) {
+            clustersToWrite.addAll(spillClusters());
+        }
+
+        return clustersToWrite;
+    }
+
+    /**
+     * Returns the clusters currently held in the window (excluding any spilled clusters).
+     * @return
+     */
+    public Collection<ICluster> getClusters() {
+        return engine.getClusters();
+    }
+
+    /**
+     * The sorted spill files holding the clusters that are not part of the
+     * window anymore. These clusters have to be merged with the regular output.
+     * Must only be called once all clusters were added.
+     * @return
+     * @throws IOException
+     */
+    public List<File> getSpillFiles() throws IOException {
+        List<File> files = new ArrayList<File>(spillFiles.size());
+        List<SpillFile> sortedSpillFiles = new ArrayList<SpillFile>(spillFiles.size());
+
+        for (SpillFile spillFile : spillFiles) {
+            // the outdated copies of reloaded clusters are left out
+            File sortedFile = File.createTempFile("spilled_clusters", ".cls", temporaryDirectory);
+            sortedSpillFiles.add(new SpillFile(sortedFile, Collections.<SpilledCluster>emptyList()));
+
+            ObjectOutputStream outputStream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(sortedFile)));
+            RandomAccessFile spillInput = new RandomAccessFile(spillFile.file, "r");
+            int nClusters = 0;
+
+            try {
+                for (SpilledCluster spilledCluster : spillFile.clusters) {
+                    if (!spilledCluster.reloaded) {
+                        BinaryClusterAppender.INSTANCE.appendCluster(outputStream, readCluster(spillInput, spilledCluster));
+                        nClusters++;
+                    }
+                }
+
+                BinaryClusterAppender.INSTANCE.appendEnd(outputStream);
+            } finally {
+                outputStream.close();
+                spillInput.close();
+            }
+
+            spillFile.file.delete();
+
+            if (nClusters > 0) {
+                files.add(sortedFile);
+            }
+        }
+
+        spillFiles = sortedSpillFiles;
+
+        return files;
+    }
+
+    /**
+     * Deletes all remaining spill files.
+     */
+    public void deleteSpillFiles() {
+        for (SpillFile spillFile : spillFiles) {
+            spillFile.file.delete();
+        }
+
+        spillFiles.clear();
+    }
+
+    public long getSpilledClusters() {
+        return spilledClusters;
+    }
+
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    public long getReloadedClusters() {
+        return reloadedClusters;
+    }
+
+    /**
+     * The estimated memory currently used by the window.
+     * @return Estimated memory in bytes.
+     */
+    public long getWindowMemory() {
+        return windowSpectra * ESTIMATED_BYTES_PER_SPECTRUM;
+    }
+
+    /**
+     * Updates the time every cluster was last matched based on the
+     * changes in the clusters' spectra counts.
+     */
+    private void updateLastMatched() {
+        for (ICluster cluster : engine.getClusters()) {
+            Integer knownCount = knownSpectraCounts.get(cluster.getId());
+
+            if (knownCount == null || knownCount != cluster.getClusteredSpectraCount()) {
+                knownSpectraCounts.put(cluster.getId(), cluster.getClusteredSpectraCount());
+                lastMatched.put(cluster.getId(), nAddedClusters);
+            }
+        }
+    }
+
+    private long getLastMatched(ICluster cluster) {
+        Long matched = lastMatched.get(cluster.getId());
+
+        return matched != null ? matched : nAddedClusters;
+    }
+
+    private void forgetClusters(Collection<ICluster> clusters) {
+        for (ICluster cluster : clusters) {
+            windowSpectra -= cluster.getClusteredSpectraCount();
+            knownSpectraCounts.remove(cluster.getId());
+            lastMatched.remove(cluster.getId());
+        }
+    }
+
+    /**
+     * Writes the least recently matched clusters to a spill file until the window
+     * is reduced to the spill target.
+     * @return Clusters that were removed from the window while it was rebuilt.
+     * @throws IOException
+     */
+    private Collection<ICluster> spillClusters() throws IOException {
+        updateLastMatched();
+
+        List<ICluster> windowClusters = new ArrayList<ICluster>(engine.getClusters());
+        Collections.sort(windowClusters, new Comparator<ICluster>() {
+            @Override
+            public int compare(ICluster o1, ICluster o2) {
+                int result = Long.compare(getLastMatched(o1), getLastMatched(o2));
+
+                return result != 0 ? result : ClusterMzComparator.INSTANCE.compare(o1, o2);
+            }
+        });
+
+        long targetSpectra = (long) (memoryBudget * SPILL_TARGET / ESTIMATED_BYTES_PER_SPECTRUM);
+        long remainingSpectra = windowSpectra;
+        List<ICluster> clustersToSpill = new ArrayList<ICluster>();
+        List<ICluster> retainedClusters = new ArrayList<ICluster>();
+
+        for (ICluster cluster : windowClusters) {
+            if (remainingSpectra > targetSpectra) {
+                clustersToSpill.add(cluster);
+                remainingSpectra -= cluster.getClusteredSpectraCount();
+            }
+            else {
+                retainedClusters.add(cluster);
+            }
+        }
+
+        if (clustersToSpill.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        spillFiles.add(writeSpillFile(clustersToSpill));
+        spilledClusters += clustersToSpill.size();
+
+        return rebuildEngine(retainedClusters);
+    }
+
+    /**
+     * Reloads all spilled clusters that are within the precursor tolerance of
+     * the cluster and may be compared with it. Only the index is searched, the
+     * matching clusters are then read from the spill files. The spill files are
+     * not changed, the reloaded clusters are only marked in the index.
+     * @param cluster The cluster that is about to be added.
+     * @return Clusters that were removed from the window while it was rebuilt.
+     * @throws IOException
+     */
+    private Collection<ICluster> reloadClusters(ICluster cluster) throws IOException {
+        float minReachableMz = (float) (cluster.getPrecursorMz() - precursorTolerance);
+
+        List<ICluster> clustersToReload = new ArrayList<ICluster>();
+
+        for (SpillFile spillFile : spillFiles) {
+            List<SpilledCluster> matchingClusters = spillFile.findMatchingClusters(cluster, minReachableMz);
+
+            if (matchingClusters.isEmpty()) {
+                continue;
+            }
+
+            RandomAccessFile spillInput = new RandomAccessFile(spillFile.file, "r");
+
+            try {
+                for (SpilledCluster spilledCluster : matchingClusters) {
+                    clustersToReload.add(readCluster(spillInput, spilledCluster));
+                }
+            } finally {
+                spillInput.close();
+            }
+        }
+
+        if (clustersToReload.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        reloadedClusters += clustersToReload.size();
+
+        // reloaded clusters are not spilled again right away
+        for (ICluster reloadedCluster : clustersToReload) {
+            knownSpectraCounts.put(reloadedCluster.getId(), reloadedCluster.getClusteredSpectraCount());
+            lastMatched.put(reloadedCluster.getId(), nAddedClusters);
+        }
+
+        List<ICluster> windowClusters = new ArrayList<ICluster>(engine.getClusters());
+        windowClusters.addAll(clustersToReload);
+
+        return rebuildEngine(windowClusters);
+    }
+
+    /**
+     * Creates a new engine holding the passed clusters.
+     * @param clusters The clusters to add to the new engine.
+     * @return Clusters that were removed by the engine while it was rebuilt.
+     */
+    private Collection<ICluster> rebuildEngine(List<ICluster> clusters) {
+        Collections.sort(clusters, ClusterMzComparator.INSTANCE);
+
+        engine = engineFactory.createEngine(windowPredicate);
+        List<ICluster> removedClusters = new ArrayList<ICluster>();
+
+        // the clusters were already compared with each other
+        rebuilding = true;
+        try {
+            for (ICluster cluster : clusters) {
+                removedClusters.addAll(engine.addClusterIncremental(cluster));
+            }
+        } finally {
+            rebuilding = false;
+        }
+
+        windowSpectra = 0;
+        for (ICluster cluster : engine.getClusters()) {
+            windowSpectra += cluster.getClusteredSpectraCount();
+        }
+
+        for (ICluster cluster : removedClusters) {
+            knownSpectraCounts.remove(cluster.getId());
+            lastMatched.remove(cluster.getId());
+        }
+
+        return removedClusters;
+    }
+
+    /**
+     * Writes the clusters to a new spill file. Every cluster is written as a separate
+     * binary record (with its own stream header and end marker) so that single
+     * clusters can be read using their offset.
+     */
+    private SpillFile writeSpillFile(List<ICluster> clusters) throws IOException {
+        Collections.sort(clusters, ClusterMzComparator.INSTANCE);
+
+        File file = File.createTempFile("spilled_clusters", ".bin", temporaryDirectory);
+        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file));
+        List<SpilledCluster> spilledClusters = new ArrayList<SpilledCluster>(clusters.size());
+        long offset = 0;
+
+        try {
+            for (ICluster cluster : clusters) {
+                ByteArrayOutputStream record = new ByteArrayOutputStream();
+                ObjectOutputStream recordStream = new ObjectOutputStream(record);
+                BinaryClusterAppender.INSTANCE.appendCluster(recordStream, cluster);
+                BinaryClusterAppender.INSTANCE.appendEnd(recordStream);
+                recordStream.close();
+
+                record.writeTo(outputStream);
+                spilledClusters.add(new SpilledCluster(cluster.getPrecursorMz(),
+                        engineFactory.createSpilledClusterKey(cluster), offset, record.size()));
+                offset += record.size();
+
+                knownSpectraCounts.remove(cluster.getId());
+                lastMatched.remove(cluster.getId());
+            }
+        } finally {
+            outputStream.close();
+        }
+
+        spilledBytes += offset;
+
+        return new SpillFile(file, spilledClusters);
+    }
+
+    private ICluster readCluster(RandomAccessFile spillInput, SpilledCluster spilledCluster) throws IOException {
+        byte[] record = new byte[spilledCluster.length];
+        spillInput.seek(spilledCluster.offset);
+        spillInput.readFully(record);
+
+        ObjectInputStream inputStream = new ObjectInputStream(new ByteArrayInputStream(record));
+
+        try {
+            return new BinaryClusterIterable(inputStream).iterator().next();
+        }
+        finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Merges binary cluster files that are each sorted by precursor m/z into a
+     * single sorted file.
+     * @param inputFiles The sorted input files.
+     * @param outputFile The file to write the merged clusters to.
+     * @throws IOException
+     */
+    public static void mergeSortedFiles(List<File> inputFiles, File outputFile) throws IOException {
+        List<ObjectInputStream> inputStreams = new ArrayList<ObjectInputStream>(inputFiles.size());
+        PriorityQueue<MergeHead> heads = new PriorityQueue<MergeHead>();
+
+        ObjectOutputStream outputStream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)));
+
+        try {
+            for (File inputFile : inputFiles) {
+                ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(inputFile)));
+                inputStreams.add(inputStream);
+
+                Iterator<ICluster> iterator = new BinaryClusterIterable(inputStream).iterator();
+                if (iterator.hasNext()) {
+                    heads.add(new MergeHead(iterator.next(), iterator));
+                }
+            }
+
+            while (!heads.isEmpty()) {
+                MergeHead head = heads.poll();
+                BinaryClusterAppender.INSTANCE.appendCluster(outputStream, head.cluster);
+
+                if (head.iterator.hasNext()) {
+                    heads.add(new MergeHead(head.iterator.next(), head.iterator));
+                }
+            }
+
+            BinaryClusterAppender.INSTANCE.appendEnd(outputStream);
+        }
+        finally {
+            outputStream.close();
+
+            for (ObjectInputStream inputStream : inputStreams) {
+                inputStream.close();
+            }
+        }
+    }
+
+    private static class SpillFile {
+        public final File file;
+        /**
+         * Index of the spilled clusters, sorted by precursor m/z
+         */
+        public final List<SpilledCluster> clusters;
+        /**
+         * Clusters before this position are out of reach
+         */
+        private int firstReachable = 0;
+
+        public SpillFile(File file, List<SpilledCluster> clusters) {
+            this.file = file;
+            this.clusters = clusters;
+        }
+
+        /**
+         * Finds the spilled clusters that are within reach and may be compared with
+         * the cluster. These clusters are marked as reloaded.
+         * @param cluster The cluster that is about to be added.
+         * @param minReachableMz Lowest precursor m/z that is still within reach.
+         * @return The matching clusters in order of their offset.
+         */
+        public List<SpilledCluster> findMatchingClusters(ICluster cluster, float minReachableMz) {
+            // clusters out of reach are final, their keys are no longer needed
+            while (firstReachable < clusters.size() && clusters.get(firstReachable).precursorMz < minReachableMz) {
+                clusters.get(firstReachable).key = null;
+                firstReachable++;
+            }
+
+            List<SpilledCluster> matchingClusters = new ArrayList<SpilledCluster>();
+
+            for (int i = firstReachable; i < clusters.size(); i++) {
+                SpilledCluster spilledCluster = clusters.get(i);
+
+                if (!spilledCluster.reloaded && spilledCluster.key.mayCompare(cluster)) {
+                    spilledCluster.reloaded = true;
+                    spilledCluster.key = null;
+                    matchingClusters.add(spilledCluster);
+                }
+            }
+
+            return matchingClusters;
+        }
+    }
+
+    private static class SpilledCluster {
+        public final float precursorMz;
+        public final long offset;
+        public final int length;
+        public ISpilledClusterKey key;
+        /**
+         * Set once the cluster was reloaded into the window
+         */
+        public boolean reloaded = false;
+
+        public SpilledCluster(float precursorMz, ISpilledClusterKey key, long offset, int length) {
+            this.precursorMz = precursorMz;
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class MergeHead implements Comparable<MergeHead> {
+        public final ICluster cluster;
+        public final Iterator<ICluster> iterator;
+
+        public MergeHead(ICluster cluster, Iterator<ICluster> iterator) {
+            this.cluster = cluster;
+            this.iterator = iterator;
+        }
+
+        @Override
+        public int compareTo(MergeHead o) {
+            return ClusterMzComparator.INSTANCE.compare(cluster, o.cluster);
+        }
+    }
+}
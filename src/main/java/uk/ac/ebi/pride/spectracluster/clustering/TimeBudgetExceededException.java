@@ -0,0 +1,12 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+/**
+ * Thrown by a clustering job that exceeded its wall-clock time budget.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class TimeBudgetExceededException extends Exception {
+    public TimeBudgetExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,71 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import uk.ac.ebi.pride.spectracluster.util.ClusteringJobReference;
+import uk.ac.ebi.pride.spectracluster.util.IProgressListener;
+import uk.ac.ebi.pride.spectracluster.util.ProgressUpdate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs a clustering job with a wall-clock time budget. If the job
+ * exceeds its budget, the bin is clustered again by the fallback job,
+ * which is expected to use a cheaper configuration (fast mode and
+ * fewer comparisons). The fallback job has no time budget. Exceeding the
+ * budget is reported to the progress listeners from the job's thread.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class TimeBudgetFallbackCallable implements Callable<ClusteringJobReference> {
+    private final BinaryFileClusteringCallable job;
+    private final BinaryFileClusteringCallable fallbackJob;
+    private final long timeBudget;
+    private final List<IProgressListener> progressListeners = new ArrayList<IProgressListener>();
+
+    /**
+     * @param job The job to run first.
+     * @param fallbackJob The job to run if the first one exceeds its budget.
+     * @param timeBudget The first job's time budget in milliseconds.
+     */
+    public TimeBudgetFallbackCallable(BinaryFileClusteringCallable job, BinaryFileClusteringCallable fallbackJob,
+                                      long timeBudget) {
+        this.job = job;
+        this.fallbackJob = fallbackJob;
+        this.timeBudget = timeBudget;
+    }
+
+    @Override
+    public ClusteringJobReference call() throws Exception {
+        long startTime = System.currentTimeMillis();
+        job.setTimeBudget(timeBudget);
+
+        try {
+            return job.call();
+        } catch (TimeBudgetExceededException e) {
+            ProgressUpdate progressUpdate = new ProgressUpdate(
+                    "Warning: " + e.getMessage() + ", re-clustering in fast mode with fewer comparisons",
+                    ProgressUpdate.CLUSTERING_STAGE.CLUSTERING);
+
+            for (IProgressListener progressListener : progressListeners) {
+                progressListener.onProgressUpdate(progressUpdate);
+            }
+        }
+
+        ClusteringJobReference result = fallbackJob.call();
+        result.getStatistics().setTimeBudgetExceeded(true);
+        // the time spent on the aborted attempt is part of the bin's processing time
+        result.getStatistics().setProcessingTime(System.currentTimeMillis() - startTime);
+
+        return result;
+    }
+
+    /**
+     * Adds a listener that is notified if the job exceeds its budget. The
+     * listener is called from the job's thread.
+     * @param progressListener The listener to add.
+     */
+    public void addProgressListener(IProgressListener progressListener) {
+        progressListeners.add(progressListener);
+    }
+}
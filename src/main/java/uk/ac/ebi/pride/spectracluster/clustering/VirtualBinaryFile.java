@@ -0,0 +1,39 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A re-binned file that is not written to disk. Its clusters are
+ * described as consecutive slices of the clustered files and are
+ * read through a SlicedClusterIterable.
+ *
+ * The result file is only used as the name of the re-binned file,
+ * it does not exist.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class VirtualBinaryFile extends BinaryClusterFileReference {
+    /**
+     * The slices making up the file in order of precursor m/z
+     */
+    private final List<BinaryFileSlice> slices;
+
+    /**
+     * Creates a new virtual file.
+     * @param resultFile Name of the re-binned file. The file is not created.
+     * @param minMz Lower boundary of the file's precursor m/z.
+     * @param maxMz Upper boundary of the file's precursor m/z.
+     * @param nSpectra Estimated number of clusters in the file.
+     * @param slices The slices of the clustered files in order of precursor m/z.
+     */
+    public VirtualBinaryFile(File resultFile, double minMz, double maxMz, int nSpectra, List<BinaryFileSlice> slices) {
+        super(resultFile, minMz, maxMz, nSpectra);
+        this.slices = slices;
+    }
+
+    public List<BinaryFileSlice> getSlices() {
+        return Collections.unmodifiableList(slices);
+    }
+}
@@ -0,0 +1,259 @@
+package uk.ac.ebi.pride.spectracluster.conversion;
+
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryClusterFileReference;
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryFileSlice;
+import uk.ac.ebi.pride.spectracluster.clustering.IOrderedClusteringResultListener;
+import uk.ac.ebi.pride.spectracluster.clustering.SlicedClusterIterable;
+import uk.ac.ebi.pride.spectracluster.clustering.VirtualBinaryFile;
+import uk.ac.ebi.pride.spectracluster.index.ClusteringIndex;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterIterable;
+import uk.ac.ebi.pride.spectracluster.util.CompressedFiles;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Writes the clusters of the merged binary files directly to a
+ * .clustering file. The files are written in m/z order by a dedicated
+ * writer thread so that the thread reporting the files is not blocked
+ * while other merging jobs continue.
+ *
+ * Files reported with their position (see IOrderedClusteringResultListener)
+ * are held back until all files before them were reported. Files reported
+ * without a position are either written immediately (sortedInput) or only
+ * once close is called. The clusters are formatted by a
+ * ParallelClusterFormatter. Files ending in ".gz" are written
+ * compressed (see CompressedFiles). A ClusteringIndex is written next
+ * to the .clustering file.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class MergingClusteringConverter implements IOrderedClusteringResultListener {
+    private final File clusteringFile;
+    private final String clusteringName;
+    private final boolean deleteTemporaryClusteringFiles;
+    private final boolean sortedInput;
+
+    /**
+     * Files reported with a position that cannot be written yet
+     */
+    private final Map<Integer, BinaryClusterFileReference> reorderBuffer = new HashMap<Integer, BinaryClusterFileReference>();
+    private int nextIndex = 0;
+    /**
+     * Files reported without a position that are only written when closing
+     */
+    private final List<BinaryClusterFileReference> unsortedFiles = new ArrayList<BinaryClusterFileReference>();
+
+    private final ExecutorService writerExecutor;
+    private int formattingThreads = 1;
+    private final List<Future<Void>> writeJobs = new ArrayList<Future<Void>>();
+    /**
+     * Only used by the writer thread
+     */
+    private ParallelClusterFormatter formatter = null;
+    private volatile int nClustersWritten = 0;
+
+    /**
+     * Creates a new MergingClusteringConverter instance
+     * @param clusteringFile The .clustering file to write to. This file will be overwritten if it exists.
+     * @param clusteringName The name of the clustering written to the file's header.
+     * @param deleteTemporaryClusteringFiles whether to delete clustering result files.
+     * @param sortedInput If set, files reported without a position are reported in m/z order and written immediately.
+     */
+    public MergingClusteringConverter(File clusteringFile, String clusteringName,
+                                      boolean deleteTemporaryClusteringFiles, boolean sortedInput) {
+        this.clusteringFile = clusteringFile;
+        this.clusteringName = clusteringName;
+        this.deleteTemporaryClusteringFiles = deleteTemporaryClusteringFiles;
+        this.sortedInput = sortedInput;
+
+        // the writer thread must not keep the application running if the merging fails
+        this.writerExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "clustering-file-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public synchronized void onNewResultFile(BinaryClusterFileReference binaryClusteringResultFile) {
+        if (sortedInput) {
+            submitWriteJob(binaryClusteringResultFile);
+        } else {
+            unsortedFiles.add(binaryClusteringResultFile);
+        }
+    }
+
+    @Override
+    public synchronized void onNewResultFile(BinaryClusterFileReference resultFile, int index) {
+        if (index < nextIndex || reorderBuffer.containsKey(index)) {
+            throw new IllegalStateException(String.format("Result file %d was reported twice", index));
+        }
+
+        reorderBuffer.put(index, resultFile);
+
+        // pass all files to the writer whose predecessors were written
+        while (reorderBuffer.containsKey(nextIndex)) {
+            submitWriteJob(reorderBuffer.remove(nextIndex));
+            nextIndex++;
+        }
+    }
+
+    private void submitWriteJob(final BinaryClusterFileReference resultFile) {
+        writeJobs.add(writerExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                writeResultFile(resultFile);
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * Writes all remaining result files and closes the .clustering file.
+     * @throws Exception If a file could not be written or not all positions were reported.
+     */
+    public void close() throws Exception {
+        synchronized (this) {
+            if (!reorderBuffer.isEmpty()) {
+                abort();
+                throw new Exception(String.format("Result file %d was never reported, %d files could not be written",
+                        nextIndex, reorderBuffer.size()));
+            }
+
+            // the sort is stable, slices of the same file keep their order
+            Collections.sort(unsortedFiles);
+            for (BinaryClusterFileReference unsortedFile : unsortedFiles) {
+                submitWriteJob(unsortedFile);
+            }
+            unsortedFiles.clear();
+
+            // the header is also written if there are no clusters
+            writeJobs.add(writerExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    getFormatter().close();
+                    return null;
+                }
+            }));
+            writerExecutor.shutdown();
+        }
+
+        try {
+            // report the first failed file
+            for (Future<Void> writeJob : writeJobs) {
+                writeJob.get();
+            }
+        } catch (ExecutionException e) {
+            abort();
+            throw new Exception("Failed to write " + clusteringFile, e.getCause());
+        } catch (InterruptedException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the writer thread without writing the remaining files.
+     */
+    public void abort() {
+        writerExecutor.shutdownNow();
+
+        try {
+            writerExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+            if (formatter != null) {
+                formatter.abort();
+            }
+        } catch (Exception e) {
+            // the output is incomplete anyway
+        }
+    }
+
+    private ParallelClusterFormatter getFormatter() throws Exception {
+        if (formatter == null) {
+            // compressed files are also compressed in parallel
+            formatter = new ParallelClusterFormatter(CompressedFiles.openOutputStream(clusteringFile, formattingThreads),
+                    formattingThreads);
+            formatter.writeIndex(ClusteringIndex.getIndexFile(clusteringFile));
+            formatter.appendStart(clusteringName);
+        }
+
+        return formatter;
+    }
+
+    /**
+     * Appends the clusters of the result file to the .clustering file.
+     */
+    private void writeResultFile(BinaryClusterFileReference binaryClusteringResultFile) throws Exception {
+        ParallelClusterFormatter formatter = getFormatter();
+
+        // virtual files are read from their slices
+        Closeable objectInputStream;
+        Iterable<ICluster> binaryClusterIterable;
+
+        if (binaryClusteringResultFile instanceof VirtualBinaryFile) {
+            SlicedClusterIterable slicedClusterIterable = new SlicedClusterIterable(
+                    ((VirtualBinaryFile) binaryClusteringResultFile).getSlices());
+            objectInputStream = slicedClusterIterable;
+            binaryClusterIterable = slicedClusterIterable;
+        } else {
+            ObjectInputStream fileInputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(
+                    binaryClusteringResultFile.getResultFile())));
+            objectInputStream = fileInputStream;
+            binaryClusterIterable = new BinaryClusterIterable(fileInputStream);
+        }
+
+        // if only a slice of the file is reported, the remaining clusters are skipped
+        BinaryFileSlice slice = (binaryClusteringResultFile instanceof BinaryFileSlice) ?
+                (BinaryFileSlice) binaryClusteringResultFile : null;
+
+        try {
+            for (ICluster cluster : binaryClusterIterable) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+
+                if (slice != null && !slice.contains(cluster.getPrecursorMz())) {
+                    continue;
+                }
+
+                formatter.appendCluster(cluster);
+                nClustersWritten++;
+            }
+        } finally {
+            objectInputStream.close();
+        }
+
+        // the slices of virtual files may still be needed by other files
+        if (deleteTemporaryClusteringFiles && !(binaryClusteringResultFile instanceof VirtualBinaryFile)) {
+            binaryClusteringResultFile.getResultFile().delete();
+        }
+    }
+
+    /**
+     * Number of clusters written so far. Only complete once close returned.
+     * @return
+     */
+    public int getnClustersWritten() {
+        return nClustersWritten;
+    }
+
+    /**
+     * Sets the number of threads used to format the clusters. Must be set before
+     * the first file is reported.
+     * @param formattingThreads Number of threads. If less than 2, the clusters are formatted by the writer thread.
+     */
+    public void setFormattingThreads(int formattingThreads) {
+        this.formattingThreads = formattingThreads;
+    }
+
+    public File getClusteringFile() {
+        return clusteringFile;
+    }
+}
@@ -0,0 +1,279 @@
+package uk.ac.ebi.pride.spectracluster.conversion;
+
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.index.ClusterIndexEntry;
+import uk.ac.ebi.pride.spectracluster.index.ClusteringIndexWriter;
+import uk.ac.ebi.pride.spectracluster.io.DotClusterClusterAppender;
+import uk.ac.ebi.pride.spectracluster.util.ParallelGzipOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Writes clusters in the .clustering format. Formatting the clusters
+ * (mainly converting the peaks' m/z and intensity values to text) is
+ * CPU bound. The clusters are therefore collected in batches that are
+ * formatted by a pool of threads. The formatted batches are written
+ * in their original order by the thread adding the clusters.
+ *
+ * The text is encoded using the platform's default charset, the output
+ * is therefore identical to writing the clusters through a FileWriter.
+ *
+ * Optionally, a ClusteringIndex of the written file is created. The
+ * indexed fields are parsed by the formatting threads.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class ParallelClusterFormatter {
+    /**
+     * Number of clusters formatted by a single job
+     */
+    public static final int BATCH_SIZE = 1000;
+    /**
+     * Maximum number of formatted batches waiting to be written per thread
+     */
+    public static final int PENDING_BATCHES_PER_THREAD = 2;
+
+    private final OutputStream outputStream;
+    private final Charset charset = Charset.defaultCharset();
+    /**
+     * Null if the clusters are formatted by the calling thread
+     */
+    private final ExecutorService formattingExecutor;
+    private final int maxPendingBatches;
+
+    private final LinkedList<Future<FormattedBatch>> pendingBatches = new LinkedList<Future<FormattedBatch>>();
+    private List<ICluster> currentBatch = new ArrayList<ICluster>(BATCH_SIZE);
+
+    /**
+     * Null if no index is written
+     */
+    private ClusteringIndexWriter indexWriter = null;
+    private long bytesWritten = 0;
+
+    /**
+     * Creates a new ParallelClusterFormatter.
+     * @param outputStream The stream to write to. This stream is closed together with the formatter.
+     * @param nThreads Number of threads used to format the clusters. If less than 2, the
+     *                 clusters are formatted by the calling thread.
+     */
+    public ParallelClusterFormatter(OutputStream outputStream, int nThreads) {
+        this.outputStream = outputStream;
+
+        if (nThreads > 1) {
+            // the formatting threads must not keep the application running if the writing fails
+            formattingExecutor = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "cluster-formatter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            maxPendingBatches = nThreads * PENDING_BATCHES_PER_THREAD;
+        } else {
+            formattingExecutor = null;
+            maxPendingBatches = 0;
+        }
+    }
+
+    /**
+     * Writes the header of the .clustering file.
+     * @param options The options passed to DotClusterClusterAppender.appendStart.
+     * @throws Exception
+     */
+    public void appendStart(Object... options) throws Exception {
+        writePendingBatches();
+
+        StringBuilder text = new StringBuilder();
+        DotClusterClusterAppender.INSTANCE.appendStart(text, options);
+        write(text.toString().getBytes(charset));
+    }
+
+    public void appendCluster(ICluster cluster) throws Exception {
+        currentBatch.add(cluster);
+
+        if (currentBatch.size() >= BATCH_SIZE) {
+            submitBatch();
+        }
+    }
+
+    /**
+     * Writes the end of the .clustering file.
+     * @throws Exception
+     */
+    public void appendEnd() throws Exception {
+        writePendingBatches();
+
+        StringBuilder text = new StringBuilder();
+        DotClusterClusterAppender.INSTANCE.appendEnd(text);
+        write(text.toString().getBytes(charset));
+    }
+
+    /**
+     * Creates a ClusteringIndex of the written file. Must be set before the
+     * first text is written.
+     * @param indexFile The index file to write (see ClusteringIndex.getIndexFile).
+     * @throws IOException
+     */
+    public void writeIndex(File indexFile) throws IOException {
+        indexWriter = new ClusteringIndexWriter(indexFile);
+    }
+
+    /**
+     * Writes all remaining clusters and closes the output stream. The index
+     * is written once the output stream was closed.
+     * @throws Exception
+     */
+    public void close() throws Exception {
+        try {
+            writePendingBatches();
+            outputStream.close();
+
+            if (indexWriter != null) {
+                long fileLength = bytesWritten;
+
+                // compressed files are read starting at the gzip member containing the cluster
+                if (outputStream instanceof ParallelGzipOutputStream) {
+                    ParallelGzipOutputStream gzipOutputStream = (ParallelGzipOutputStream) outputStream;
+                    indexWriter.setCompressedBlocks(gzipOutputStream.getBlockSize(), gzipOutputStream.getMemberOffsets());
+                    fileLength = gzipOutputStream.getCompressedLength();
+                }
+
+                indexWriter.close(fileLength);
+                indexWriter = null;
+            }
+        } finally {
+            abort();
+        }
+    }
+
+    /**
+     * Stops the formatting threads and closes the output stream without
+     * writing the remaining clusters. An incomplete index is deleted.
+     */
+    public void abort() {
+        if (formattingExecutor != null) {
+            formattingExecutor.shutdownNow();
+        }
+
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            // the output is incomplete anyway
+        }
+
+        if (indexWriter != null) {
+            indexWriter.abort();
+            indexWriter = null;
+        }
+    }
+
+    private void submitBatch() throws Exception {
+        final List<ICluster> batch = currentBatch;
+        currentBatch = new ArrayList<ICluster>(BATCH_SIZE);
+
+        final boolean indexBatch = indexWriter != null;
+
+        if (formattingExecutor == null) {
+            writeBatch(formatBatch(batch, indexBatch));
+            return;
+        }
+
+        pendingBatches.add(formattingExecutor.submit(new Callable<FormattedBatch>() {
+            @Override
+            public FormattedBatch call() throws Exception {
+                return formatBatch(batch, indexBatch);
+            }
+        }));
+
+        // limit the number of clusters held in memory
+        while (pendingBatches.size() > maxPendingBatches) {
+            writeNextBatch();
+        }
+    }
+
+    private void writePendingBatches() throws Exception {
+        if (!currentBatch.isEmpty()) {
+            submitBatch();
+        }
+
+        while (!pendingBatches.isEmpty()) {
+            writeNextBatch();
+        }
+    }
+
+    private void writeNextBatch() throws Exception {
+        try {
+            writeBatch(pendingBatches.removeFirst().get());
+        } catch (ExecutionException e) {
+            throw new Exception("Failed to format clusters", e.getCause());
+        }
+    }
+
+    private void writeBatch(FormattedBatch batch) throws IOException {
+        if (indexWriter != null) {
+            for (int i = 0; i < batch.entries.size(); i++) {
+                indexWriter.addCluster(bytesWritten + batch.clusterOffsets[i], batch.entries.get(i));
+            }
+        }
+
+        write(batch.text);
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        outputStream.write(bytes);
+        bytesWritten += bytes.length;
+    }
+
+    private FormattedBatch formatBatch(List<ICluster> batch, boolean indexBatch) throws Exception {
+        if (!indexBatch) {
+            StringBuilder text = new StringBuilder();
+
+            for (ICluster cluster : batch) {
+                DotClusterClusterAppender.INSTANCE.appendCluster(text, cluster);
+            }
+
+            return new FormattedBatch(text.toString().getBytes(charset), null, new ArrayList<ClusterIndexEntry>(0));
+        }
+
+        // the clusters are encoded separately to get their exact offsets
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        int[] clusterOffsets = new int[batch.size()];
+        List<ClusterIndexEntry> entries = new ArrayList<ClusterIndexEntry>(batch.size());
+
+        for (int i = 0; i < batch.size(); i++) {
+            StringBuilder clusterText = new StringBuilder();
+            DotClusterClusterAppender.INSTANCE.appendCluster(clusterText, batch.get(i));
+            String formattedCluster = clusterText.toString();
+
+            clusterOffsets[i] = text.size();
+            entries.add(ClusterIndexEntry.fromText(formattedCluster));
+            text.write(formattedCluster.getBytes(charset));
+        }
+
+        return new FormattedBatch(text.toByteArray(), clusterOffsets, entries);
+    }
+
+    private static class FormattedBatch {
+        private final byte[] text;
+        /**
+         * Offset of every cluster within the text. Null if the batch is not indexed.
+         */
+        private final int[] clusterOffsets;
+        private final List<ClusterIndexEntry> entries;
+
+        private FormattedBatch(byte[] text, int[] clusterOffsets, List<ClusterIndexEntry> entries) {
+            this.text = text;
+            this.clusterOffsets = clusterOffsets;
+            this.entries = entries;
+        }
+    }
+}
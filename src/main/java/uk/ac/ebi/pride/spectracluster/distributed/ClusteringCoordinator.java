@@ -0,0 +1,496 @@
+package uk.ac.ebi.pride.spectracluster.distributed;
+
+import uk.ac.ebi.pride.spectracluster.clustering.BinCostEstimator;
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryClusterFileReference;
+import uk.ac.ebi.pride.spectracluster.clustering.IBinaryClusteringResultListener;
+import uk.ac.ebi.pride.spectracluster.util.ClusteringJobReference;
+import uk.ac.ebi.pride.spectracluster.util.ClusteringJobStatistics;
+import uk.ac.ebi.pride.spectracluster.util.Defaults;
+import uk.ac.ebi.pride.spectracluster.util.IProgressListener;
+import uk.ac.ebi.pride.spectracluster.util.ProgressUpdate;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Clusters the binary files in separate worker JVMs. The coordinator
+ * hands out one bin at a time to every connected ClusteringWorker. Bins
+ * of workers that die or stop sending heartbeats are re-assigned to the
+ * remaining workers.
+ *
+ * Workers are either launched locally by the coordinator or started
+ * manually on other nodes that share the file system. These connect to
+ * the coordinator's port.
+ *
+ * The connection threads report completed jobs, failures and the loss of
+ * the last local worker through a single queue the coordinator waits on.
+ *
+ * A worker that is considered lost may still be running (for example
+ * during a long garbage collection). Every assignment of a bin therefore
+ * writes to its own attempt file. Only the attempt whose result is
+ * accepted is renamed to the output file, the files of the other attempts
+ * are deleted.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class ClusteringCoordinator {
+    /**
+     * Number of workers a single bin may be assigned to before the run fails
+     */
+    public static final int MAX_ATTEMPTS = 3;
+
+    private final int port;
+    private final int nLocalWorkers;
+    private final File outputDirectory;
+    private final List<Float> thresholds;
+    private final boolean fastMode;
+    private final File temporaryDirectory;
+
+    /**
+     * Additional arguments (for example -Xmx) passed to the local worker JVMs
+     */
+    private List<String> workerJvmArguments = Collections.emptyList();
+
+    private List<IBinaryClusteringResultListener> listeners = new ArrayList<IBinaryClusteringResultListener>();
+    private List<IProgressListener> progressListeners = new ArrayList<IProgressListener>();
+
+    private List<BinaryClusterFileReference> resultFiles;
+
+    private ServerSocket serverSocket;
+    private Thread acceptingThread;
+    private final List<Process> localWorkers = new ArrayList<Process>();
+    private final List<Socket> workerSockets = Collections.synchronizedList(new ArrayList<Socket>());
+    private final List<Thread> connectionThreads = Collections.synchronizedList(new ArrayList<Thread>());
+    private final AtomicInteger connectedWorkers = new AtomicInteger(0);
+    private final AtomicInteger aliveLocalWorkers = new AtomicInteger(0);
+
+    private final BlockingDeque<DistributedJob> pendingJobs = new LinkedBlockingDeque<DistributedJob>();
+    private final BlockingQueue<JobEvent> jobEvents = new LinkedBlockingQueue<JobEvent>();
+    private volatile Exception failure = null;
+    private volatile boolean finished = false;
+
+    /**
+     * Creates a new ClusteringCoordinator.
+     * @param port The port the workers connect to. 0 uses any free port.
+     * @param nLocalWorkers Number of worker JVMs to launch on this machine.
+     * @param outputDirectory Directory to write the clustered files to.
+     * @param thresholds The thresholds of the clustering rounds.
+     * @param fastMode If set, no peak filter is applied for the comparison.
+     * @param temporaryDirectory Directory for the workers' temporary files.
+     */
+    public ClusteringCoordinator(int port, int nLocalWorkers, File outputDirectory, List<Float> thresholds,
+                                 boolean fastMode, File temporaryDirectory) {
+        this.port = port;
+        this.nLocalWorkers = nLocalWorkers;
+        this.outputDirectory = outputDirectory;
+        this.thresholds = thresholds;
+        this.fastMode = fastMode;
+        this.temporaryDirectory = temporaryDirectory;
+    }
+
+    /**
+     * Opens the coordinator's port and launches the local workers. This is
+     * done by clusterFiles if it was not called before.
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        if (serverSocket != null) {
+            return;
+        }
+
+        serverSocket = new ServerSocket(port);
+
+        acceptingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptWorkers();
+            }
+        }, "coordinator-accept");
+        acceptingThread.setDaemon(true);
+        acceptingThread.start();
+
+        String javaBinary = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        // a worker exiting early must not be mistaken for the last one
+        aliveLocalWorkers.set(nLocalWorkers);
+
+        for (int i = 0; i < nLocalWorkers; i++) {
+            List<String> command = new ArrayList<String>();
+            command.add(javaBinary);
+            command.addAll(workerJvmArguments);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(ClusteringWorker.class.getName());
+            command.add("localhost");
+            command.add(String.valueOf(getPort()));
+
+            ProcessBuilder processBuilder = new ProcessBuilder(command);
+            processBuilder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+            processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+
+            final Process process = processBuilder.start();
+            localWorkers.add(process);
+
+            Thread watchingThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        process.waitFor();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    aliveLocalWorkers.decrementAndGet();
+                    checkRemainingWorkers();
+                }
+            }, "coordinator-watch-worker-" + i);
+            watchingThread.setDaemon(true);
+            watchingThread.start();
+        }
+    }
+
+    /**
+     * Clusters the passed binary files using the connected workers. The method
+     * returns once all files were clustered.
+     * @param binaryFiles The binary files to cluster.
+     * @throws Exception If a bin could not be clustered or all local workers died.
+     */
+    public void clusterFiles(List<BinaryClusterFileReference> binaryFiles) throws Exception {
+        start();
+
+        try {
+            // start the most expensive bins first so that they do not become the tail of the run
+            BinCostEstimator costEstimator = new BinCostEstimator(Defaults.getDefaultPrecursorIonTolerance() * 2);
+            List<BinaryClusterFileReference> scheduledFiles = costEstimator.sortByCost(binaryFiles);
+
+            for (int i = 0; i < scheduledFiles.size(); i++) {
+                BinaryClusterFileReference inputFile = scheduledFiles.get(i);
+                pendingJobs.add(new DistributedJob(i, inputFile,
+                        new File(outputDirectory, inputFile.getResultFile().getName())));
+            }
+
+            if (nLocalWorkers < 1) {
+                notifyProgressListeners(new ProgressUpdate(
+                        String.format("Waiting for workers to connect to port %d", getPort()),
+                        ProgressUpdate.CLUSTERING_STAGE.CLUSTERING));
+            }
+
+            waitForCompletedJobs(scheduledFiles.size());
+        }
+        finally {
+            shutdown();
+        }
+    }
+
+    private void waitForCompletedJobs(int totalJobs) throws Exception {
+        resultFiles = new ArrayList<BinaryClusterFileReference>();
+
+        while (resultFiles.size() < totalJobs) {
+            JobEvent jobEvent = jobEvents.take();
+
+            if (jobEvent.failure != null) {
+                throw jobEvent.failure;
+            }
+
+            resultFiles.add(jobEvent.jobReference.getOutputFile());
+            notifyListeners(resultFiles.size(), totalJobs, jobEvent.jobReference);
+        }
+    }
+
+    /**
+     * Fails the run once the last local worker exited and no worker is connected.
+     * Remote workers may still connect, only the loss of all local workers is fatal.
+     */
+    private void checkRemainingWorkers() {
+        if (nLocalWorkers > 0 && !finished && aliveLocalWorkers.get() == 0 && connectedWorkers.get() == 0) {
+            fail(new Exception("All worker processes exited before the clustering was completed"));
+        }
+    }
+
+    /**
+     * Stops the assignment of further jobs and reports the failure to the waiting thread.
+     */
+    private void fail(Exception exception) {
+        failure = exception;
+        jobEvents.add(new JobEvent(null, exception));
+    }
+
+    /**
+     * Stops the idle workers, closes all connections and waits for the local
+     * worker processes to exit.
+     */
+    private void shutdown() throws InterruptedException {
+        finished = true;
+
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // the port is released anyway
+        }
+
+        // idle workers receive the shutdown message
+        for (Thread connectionThread : new ArrayList<Thread>(connectionThreads)) {
+            connectionThread.join(2000);
+        }
+
+        // busy workers (only if the run failed) are disconnected
+        for (Socket socket : new ArrayList<Socket>(workerSockets)) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        for (Process process : localWorkers) {
+            if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                process.destroy();
+            }
+        }
+    }
+
+    private void acceptWorkers() {
+        while (!finished) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setSoTimeout(WorkerProtocol.WORKER_TIMEOUT);
+                workerSockets.add(socket);
+
+                Thread connectionThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serveWorker(socket);
+                    }
+                }, "coordinator-worker-" + socket.getRemoteSocketAddress());
+                connectionThread.setDaemon(true);
+                connectionThreads.add(connectionThread);
+                connectionThread.start();
+            } catch (SocketException e) {
+                // the server socket was closed
+                return;
+            } catch (IOException e) {
+                notifyProgressListeners(new ProgressUpdate("Failed to accept worker: " + e.getMessage(),
+                        ProgressUpdate.CLUSTERING_STAGE.CLUSTERING));
+            }
+        }
+    }
+
+    /**
+     * Assigns jobs to a single worker until all jobs are completed or
+     * the worker is lost.
+     * @param socket The worker's connection.
+     */
+    private void serveWorker(Socket socket) {
+        DistributedJob currentJob = null;
+        connectedWorkers.incrementAndGet();
+
+        try {
+            DataInputStream inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            WorkerProtocol.send(outputStream, WorkerProtocol.createSettingsMessage(thresholds, fastMode, temporaryDirectory));
+
+            String[] message = WorkerProtocol.receive(inputStream);
+            if (!WorkerProtocol.READY.equals(message[0])) {
+                throw new IOException("Unexpected message from worker: " + message[0]);
+            }
+
+            while (!finished && failure == null) {
+                currentJob = pendingJobs.poll(500, TimeUnit.MILLISECONDS);
+
+                if (currentJob == null) {
+                    continue;
+                }
+
+                File attemptFile = currentJob.getAttemptFile(currentJob.attempts);
+                WorkerProtocol.send(outputStream, WorkerProtocol.JOB, String.valueOf(currentJob.id),
+                        currentJob.inputFile.getResultFile().getAbsolutePath(),
+                        attemptFile.getAbsolutePath());
+
+                // read until the job is done - the socket's timeout detects workers that stopped sending heartbeats
+                message = WorkerProtocol.receive(inputStream);
+                while (WorkerProtocol.HEARTBEAT.equals(message[0])) {
+                    message = WorkerProtocol.receive(inputStream);
+                }
+
+                if (WorkerProtocol.RESULT.equals(message[0]) && message.length == 6) {
+                    if (!acceptAttempt(currentJob, attemptFile)) {
+                        currentJob = null;
+                        break;
+                    }
+
+                    BinaryClusterFileReference outputFile = new BinaryClusterFileReference(currentJob.outputFile,
+                            Double.parseDouble(message[2]), Double.parseDouble(message[3]),
+                            Integer.parseInt(message[4]));
+                    ClusteringJobStatistics statistics = new ClusteringJobStatistics();
+                    statistics.setProcessingTime(Long.parseLong(message[5]));
+
+                    jobEvents.add(new JobEvent(new ClusteringJobReference(currentJob.inputFile.getResultFile(),
+                            outputFile, statistics), null));
+                    currentJob = null;
+                } else if (WorkerProtocol.FAILED.equals(message[0])) {
+                    // the clustering itself failed, another worker would fail as well
+                    attemptFile.delete();
+                    fail(new Exception("Failed to cluster " + currentJob.inputFile.getResultFile().getName() +
+                            ": " + message[message.length - 1]));
+                    currentJob = null;
+                } else {
+                    throw new IOException("Unexpected message from worker: " + message[0]);
+                }
+            }
+
+            WorkerProtocol.send(outputStream, WorkerProtocol.SHUTDOWN);
+        } catch (IOException e) {
+            if (currentJob != null && !finished) {
+                reassignJob(currentJob, socket, e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connectedWorkers.decrementAndGet();
+
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            workerSockets.remove(socket);
+
+            checkRemainingWorkers();
+        }
+    }
+
+    /**
+     * Renames the attempt's file to the job's output file and deletes the files of
+     * all other attempts. Fails the run if the file cannot be renamed.
+     * @return Whether the attempt was accepted.
+     */
+    private boolean acceptAttempt(DistributedJob job, File attemptFile) {
+        if (job.outputFile.exists() && !job.outputFile.delete()) {
+            fail(new Exception("Failed to delete file " + job.outputFile.toString()));
+            return false;
+        }
+
+        if (!attemptFile.renameTo(job.outputFile)) {
+            fail(new Exception("Failed to rename " + attemptFile.toString() + " to " + job.outputFile.toString()));
+            return false;
+        }
+
+        // lost workers may have written their attempts after these were re-assigned
+        for (int attempt = 0; attempt < job.attempts; attempt++) {
+            job.getAttemptFile(attempt).delete();
+        }
+
+        return true;
+    }
+
+    private void reassignJob(DistributedJob job, Socket socket, IOException cause) {
+        // the lost worker's result is never used
+        job.getAttemptFile(job.attempts).delete();
+        job.attempts++;
+
+        if (job.attempts >= MAX_ATTEMPTS) {
+            fail(new Exception(String.format("Failed to cluster %s on %d workers",
+                    job.inputFile.getResultFile().getName(), job.attempts), cause));
+            return;
+        }
+
+        notifyProgressListeners(new ProgressUpdate(
+                String.format("Lost worker %s (%s), re-assigning %s", socket.getRemoteSocketAddress(),
+                        cause.getMessage(), job.inputFile.getResultFile().getName()),
+                ProgressUpdate.CLUSTERING_STAGE.CLUSTERING));
+
+        // the job is the next one to be assigned since it was started first
+        pendingJobs.addFirst(job);
+    }
+
+    /**
+     * The port the workers have to connect to. Only available once the
+     * coordinator was started.
+     * @return The port.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void setWorkerJvmArguments(List<String> workerJvmArguments) {
+        this.workerJvmArguments = workerJvmArguments;
+    }
+
+    public void addListener(IBinaryClusteringResultListener listener) {
+        listeners.add(listener);
+    }
+
+    public void addProgressListener(IProgressListener progressListener) {
+        progressListeners.add(progressListener);
+    }
+
+    public List<BinaryClusterFileReference> getResultFiles() {
+        return Collections.unmodifiableList(resultFiles);
+    }
+
+    private void notifyProgressListeners(ProgressUpdate progressUpdate) {
+        // progress listeners are not necessarily thread-safe
+        synchronized (progressListeners) {
+            for (IProgressListener progressListener : progressListeners) {
+                progressListener.onProgressUpdate(progressUpdate);
+            }
+        }
+    }
+
+    private void notifyListeners(int completedJobs, int totalJobs, ClusteringJobReference jobReference) {
+        BinaryClusterFileReference writtenFile = jobReference.getOutputFile();
+
+        for (IBinaryClusteringResultListener listener : listeners) {
+            listener.onNewResultFile(writtenFile);
+        }
+
+        notifyProgressListeners(new ProgressUpdate(
+                String.format("Completed clustering %d spectra (%.2f m/z to %.2f m/z)",
+                        writtenFile.getnSpectra(), writtenFile.getMinMz(), writtenFile.getMaxMz()),
+                ProgressUpdate.CLUSTERING_STAGE.CLUSTERING, completedJobs, totalJobs));
+    }
+
+    /**
+     * A completed job or the failure of the run.
+     */
+    private static class JobEvent {
+        private final ClusteringJobReference jobReference;
+        private final Exception failure;
+
+        private JobEvent(ClusteringJobReference jobReference, Exception failure) {
+            this.jobReference = jobReference;
+            this.failure = failure;
+        }
+    }
+
+    private static class DistributedJob {
+        private final int id;
+        private final BinaryClusterFileReference inputFile;
+        private final File outputFile;
+        private int attempts = 0;
+
+        private DistributedJob(int id, BinaryClusterFileReference inputFile, File outputFile) {
+            this.id = id;
+            this.inputFile = inputFile;
+            this.outputFile = outputFile;
+        }
+
+        /**
+         * The file the worker of the passed attempt writes its result to.
+         */
+        private File getAttemptFile(int attempt) {
+            return new File(outputFile.getPath() + ".attempt" + attempt);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package uk.ac.ebi.pride.spectracluster.distributed;
+
+import uk.ac.ebi.pride.spectracluster.cdf.CumulativeDistributionFunction;
+import uk.ac.ebi.pride.spectracluster.cdf.MinNumberComparisonsAssessor;
+import uk.ac.ebi.pride.spectracluster.cdf.SpectraPerBinNumberComparisonAssessor;
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryClusterFileReference;
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryFileClusteringCallable;
+import uk.ac.ebi.pride.spectracluster.implementation.ClusteringSettings;
+import uk.ac.ebi.pride.spectracluster.util.BinaryFileScanner;
+import uk.ac.ebi.pride.spectracluster.util.ClusteringJobReference;
+import uk.ac.ebi.pride.spectracluster.util.Defaults;
+import uk.ac.ebi.pride.spectracluster.util.predicate.IPredicate;
+import uk.ac.ebi.pride.spectracluster.util.predicate.cluster.ClusterOnlyIdentifiedPredicate;
+import uk.ac.ebi.pride.spectracluster.util.predicate.cluster.ClusterOnlyUnidentifiedPredicate;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Connects to a ClusteringCoordinator and clusters the bins it is
+ * assigned until the coordinator shuts it down. Every worker runs in
+ * its own JVM and clusters one bin at a time. If a heartbeat cannot be
+ * sent, the coordinator considers the worker lost and re-assigns its bin.
+ * The running job is then aborted and the worker exits.
+ *
+ * Usage: java -cp spectra-cluster-cli.jar uk.ac.ebi.pride.spectracluster.distributed.ClusteringWorker [host] [port]
+ *
+ * Created by jg on 19.10.26.
+ */
+public class ClusteringWorker {
+    private final String host;
+    private final int port;
+
+    private List<Float> thresholds;
+    private boolean fastMode;
+    private File temporaryDirectory;
+    private IPredicate<ICluster> clusterPredicate;
+    /**
+     * Whether the adaptive number of comparisons is used
+     */
+    private boolean adaptiveComparisons;
+    /**
+     * Minimum number of comparisons of the adaptive assessor, null to use its default
+     */
+    private Integer minAdaptiveComparisons;
+
+    public ClusteringWorker(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Usage: ClusteringWorker [coordinator host] [coordinator port]");
+            System.exit(1);
+        }
+
+        try {
+            new ClusteringWorker(args[0], Integer.parseInt(args[1])).run();
+            System.exit(0);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Processes jobs until the coordinator sends the shutdown message.
+     * @throws Exception If the connection to the coordinator fails.
+     */
+    public void run() throws Exception {
+        Socket socket = new Socket(host, port);
+        ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor();
+
+        try {
+            DataInputStream inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            final Thread workerThread = Thread.currentThread();
+            final AtomicBoolean connectionLost = new AtomicBoolean(false);
+
+            applySettings(WorkerProtocol.parseSettings(WorkerProtocol.receive(inputStream)));
+            WorkerProtocol.send(outputStream, WorkerProtocol.READY);
+
+            while (true) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+
+                String[] message = WorkerProtocol.receive(inputStream);
+
+                if (WorkerProtocol.SHUTDOWN.equals(message[0])) {
+                    break;
+                }
+                if (!WorkerProtocol.JOB.equals(message[0]) || message.length != 4) {
+                    throw new IOException("Unexpected message from coordinator: " + message[0]);
+                }
+
+                // tell the coordinator that this worker is still alive while the job is running
+                ScheduledFuture<?> heartbeat = heartbeatExecutor.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            WorkerProtocol.send(outputStream, WorkerProtocol.HEARTBEAT);
+                        } catch (IOException e) {
+                            // the job was re-assigned, continuing would only waste resources
+                            connectionLost.set(true);
+                            workerThread.interrupt();
+                            // stops further heartbeats
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }, WorkerProtocol.HEARTBEAT_INTERVAL, WorkerProtocol.HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+
+                try {
+                    ClusteringJobReference result = clusterFile(new File(message[2]), new File(message[3]));
+                    BinaryClusterFileReference outputFile = result.getOutputFile();
+
+                    heartbeat.cancel(false);
+                    if (connectionLost.get()) {
+                        throw new IOException("Lost the connection to the coordinator");
+                    }
+                    WorkerProtocol.send(outputStream, WorkerProtocol.RESULT, message[1],
+                            String.valueOf(outputFile.getMinMz()), String.valueOf(outputFile.getMaxMz()),
+                            String.valueOf(outputFile.getnSpectra()),
+                            String.valueOf(result.getStatistics().getProcessingTime()));
+                } catch (InterruptedException e) {
+                    if (connectionLost.get()) {
+                        throw new IOException("Lost the connection to the coordinator, aborted job " + message[1]);
+                    }
+                    throw e;
+                } catch (Exception e) {
+                    heartbeat.cancel(false);
+                    if (connectionLost.get()) {
+                        throw new IOException("Lost the connection to the coordinator, aborted job " + message[1], e);
+                    }
+                    WorkerProtocol.send(outputStream, WorkerProtocol.FAILED, message[1], String.valueOf(e));
+                }
+            }
+        }
+        finally {
+            heartbeatExecutor.shutdownNow();
+            socket.close();
+        }
+    }
+
+    private void applySettings(Map<String, String> settings) throws Exception {
+        thresholds = WorkerProtocol.parseThresholds(settings.get("thresholds"));
+        fastMode = Boolean.parseBoolean(settings.get("fastMode"));
+        temporaryDirectory = new File(settings.get("temporaryDirectory"));
+
+        Defaults.setDefaultPrecursorIonTolerance(Float.parseFloat(settings.get("precursorTolerance")));
+        Defaults.setFragmentIonTolerance(Float.parseFloat(settings.get("fragmentTolerance")));
+
+        String ppmThreshold = settings.get("ppmThreshold");
+        ClusteringSettings.ppmThreshold = "null".equals(ppmThreshold) ? null : Float.parseFloat(ppmThreshold);
+        ClusteringSettings.cacheSimilarityScores = Boolean.parseBoolean(settings.get("cacheSimilarityScores"));
+        ClusteringSettings.windowMemoryBudget = Long.parseLong(settings.get("windowMemoryBudget"));
+        ClusteringSettings.setLoadingMode(ClusteringSettings.LOADING_MODE.valueOf(settings.get("loadingMode")));
+
+        switch (ClusteringSettings.getLoadingMode()) {
+            case ONLY_IDENTIFIED:
+                clusterPredicate = new ClusterOnlyIdentifiedPredicate();
+                break;
+            case ONLY_UNIDENTIFIED:
+                clusterPredicate = new ClusterOnlyUnidentifiedPredicate();
+                break;
+            default:
+                clusterPredicate = null;
+                break;
+        }
+
+        String minComparisons = settings.get("minComparisons");
+        adaptiveComparisons = "adaptive".equals(minComparisons);
+
+        if (!adaptiveComparisons) {
+            Defaults.setNumberOfComparisonAssessor(new MinNumberComparisonsAssessor(Integer.parseInt(minComparisons)));
+        }
+
+        String minAdaptiveComparisonsString = settings.get("minAdaptiveComparisons");
+        minAdaptiveComparisons = "null".equals(minAdaptiveComparisonsString) ? null : Integer.parseInt(minAdaptiveComparisonsString);
+
+        String consensusMinPeaks = settings.get("consensusMinPeaks");
+        if (!"null".equals(consensusMinPeaks)) {
+            Defaults.setDefaultConsensusMinPeaks(Integer.parseInt(consensusMinPeaks));
+        }
+
+        // the file system is shared with the coordinator
+        String cdfFile = settings.get("cdfFile");
+        if (!"null".equals(cdfFile)) {
+            Defaults.setCumulativeDistributionFunction(loadCdf(new File(cdfFile)));
+        }
+
+        Defaults.setSaveDebugInformation(Boolean.parseBoolean(settings.get("saveDebugInformation")));
+        Defaults.setSaveAddingScore(Boolean.parseBoolean(settings.get("saveAddingScore")));
+    }
+
+    private CumulativeDistributionFunction loadCdf(File cdfFile) throws Exception {
+        BufferedReader reader = new BufferedReader(new FileReader(cdfFile));
+        StringBuilder cdfString = new StringBuilder();
+
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                cdfString.append(line);
+            }
+        }
+        finally {
+            reader.close();
+        }
+
+        return CumulativeDistributionFunction.fromString(cdfString.toString());
+    }
+
+    private ClusteringJobReference clusterFile(File inputFile, File outputFile) throws Exception {
+        // the bins do not overlap, counting the spectra of the assigned bin is therefore sufficient
+        if (adaptiveComparisons) {
+            SpectraPerBinNumberComparisonAssessor assessor = (minAdaptiveComparisons != null) ?
+                    new SpectraPerBinNumberComparisonAssessor(Defaults.getDefaultPrecursorIonTolerance(), minAdaptiveComparisons) :
+                    new SpectraPerBinNumberComparisonAssessor(Defaults.getDefaultPrecursorIonTolerance());
+            Defaults.setNumberOfComparisonAssessor(assessor);
+            BinaryFileScanner.scanBinaryFiles(assessor, clusterPredicate, inputFile);
+        }
+
+        BinaryFileClusteringCallable clusteringCallable = new BinaryFileClusteringCallable(outputFile, inputFile,
+                thresholds, fastMode, temporaryDirectory, clusterPredicate);
+
+        return clusteringCallable.call();
+    }
+}
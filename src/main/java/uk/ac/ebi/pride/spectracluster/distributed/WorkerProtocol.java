@@ -0,0 +1,152 @@
+package uk.ac.ebi.pride.spectracluster.distributed;
+
+import uk.ac.ebi.pride.spectracluster.cdf.MinNumberComparisonsAssessor;
+import uk.ac.ebi.pride.spectracluster.implementation.ClusteringSettings;
+import uk.ac.ebi.pride.spectracluster.util.Defaults;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Messages exchanged between the ClusteringCoordinator and its
+ * ClusteringWorkers. Every message is a single UTF string whose
+ * fields are separated by tabs:
+ *
+ * coordinator -> worker: SETTINGS key=value..., JOB id inputFile attemptFile, SHUTDOWN
+ * worker -> coordinator: READY, HEARTBEAT, RESULT id minMz maxMz nSpectra processingTime, FAILED id message
+ *
+ * All files are referenced by their absolute path, the workers therefore
+ * have to share the file system with the coordinator. Every assignment of
+ * a job uses its own attempt file which the coordinator only renames to
+ * the final output file once it accepted the attempt's RESULT.
+ *
+ * Created by jg on 19.10.26.
+ */
+public final class WorkerProtocol {
+    public static final String SETTINGS = "SETTINGS";
+    public static final String JOB = "JOB";
+    public static final String SHUTDOWN = "SHUTDOWN";
+    public static final String READY = "READY";
+    public static final String HEARTBEAT = "HEARTBEAT";
+    public static final String RESULT = "RESULT";
+    public static final String FAILED = "FAILED";
+
+    /**
+     * Interval (in milliseconds) in which busy workers send a heartbeat
+     */
+    public static final int HEARTBEAT_INTERVAL = 5000;
+    /**
+     * Workers that did not send any message within this time (in milliseconds)
+     * are considered dead.
+     */
+    public static final int WORKER_TIMEOUT = 6 * HEARTBEAT_INTERVAL;
+
+    private static final String SEPARATOR = "\t";
+
+    private WorkerProtocol() {
+
+    }
+
+    public static void send(DataOutputStream outputStream, String... fields) throws IOException {
+        StringBuilder message = new StringBuilder();
+
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                message.append(SEPARATOR);
+            }
+            message.append(fields[i].replace(SEPARATOR, " "));
+        }
+
+        // heartbeats are sent from a different thread
+        synchronized (outputStream) {
+            outputStream.writeUTF(message.toString());
+            outputStream.flush();
+        }
+    }
+
+    public static String[] receive(DataInputStream inputStream) throws IOException {
+        return inputStream.readUTF().split(SEPARATOR, -1);
+    }
+
+    /**
+     * Creates the fields of the SETTINGS message based on the current settings. Unset
+     * optional settings are sent as "null".
+     * @param thresholds The thresholds of the clustering rounds.
+     * @param fastMode Whether the fast mode is used.
+     * @param temporaryDirectory The temporary directory the workers should use.
+     * @return The message's fields.
+     */
+    public static String[] createSettingsMessage(List<Float> thresholds, boolean fastMode, File temporaryDirectory) {
+        StringBuilder thresholdString = new StringBuilder();
+        for (Float threshold : thresholds) {
+            if (thresholdString.length() > 0) {
+                thresholdString.append(",");
+            }
+            thresholdString.append(threshold);
+        }
+
+        String minComparisons = "adaptive";
+        if (Defaults.getNumberOfComparisonAssessor().getClass() == MinNumberComparisonsAssessor.class) {
+            minComparisons = String.valueOf(
+                    ((MinNumberComparisonsAssessor) Defaults.getNumberOfComparisonAssessor()).getMinNumberComparisons());
+        }
+
+        return new String[] {
+                SETTINGS,
+                "thresholds=" + thresholdString,
+                "fastMode=" + fastMode,
+                "temporaryDirectory=" + temporaryDirectory.getAbsolutePath(),
+                "precursorTolerance=" + Defaults.getDefaultPrecursorIonTolerance(),
+                "fragmentTolerance=" + Defaults.getFragmentIonTolerance(),
+                "ppmThreshold=" + ClusteringSettings.ppmThreshold,
+                "loadingMode=" + ClusteringSettings.getLoadingMode(),
+                "minComparisons=" + minComparisons,
+                "minAdaptiveComparisons=" + ClusteringSettings.minAdaptiveComparisons,
+                "consensusMinPeaks=" + ClusteringSettings.consensusMinPeaks,
+                "cdfFile=" + ClusteringSettings.cdfFile,
+                "saveDebugInformation=" + ClusteringSettings.saveDebugInformation,
+                "saveAddingScore=" + ClusteringSettings.saveAddingScore,
+                "cacheSimilarityScores=" + ClusteringSettings.cacheSimilarityScores,
+                "windowMemoryBudget=" + ClusteringSettings.windowMemoryBudget
+        };
+    }
+
+    /**
+     * Converts the key=value fields of a SETTINGS message into a Map.
+     * @param message The received message.
+     * @return Map with the setting's name as key.
+     */
+    public static Map<String, String> parseSettings(String[] message) throws IOException {
+        if (message.length < 1 || !SETTINGS.equals(message[0])) {
+            throw new IOException("Expected settings but received '" + message[0] + "'");
+        }
+
+        Map<String, String> settings = new HashMap<String, String>();
+
+        for (int i = 1; i < message.length; i++) {
+            int index = message[i].indexOf('=');
+            if (index < 0) {
+                throw new IOException("Invalid setting '" + message[i] + "'");
+            }
+            settings.put(message[i].substring(0, index), message[i].substring(index + 1));
+        }
+
+        return settings;
+    }
+
+    public static List<Float> parseThresholds(String thresholdString) {
+        List<Float> thresholds = new ArrayList<Float>();
+
+        for (String threshold : thresholdString.split(",")) {
+            thresholds.add(Float.parseFloat(threshold));
+        }
+
+        return thresholds;
+    }
+}
@@ -184,6 +184,92 @@ public class ClusteringSettings {
      */
     public static Float ppmThreshold = null;
 
+    /**
+     * If set, similarity scores are cached across clustering rounds so
+     * that pairs of unchanged clusters are not compared again.
+     */
+    public static boolean cacheSimilarityScores = true;
+
+    /**
+     * Estimated memory (in bytes) the window of open clusters may use in a single
+     * clustering job before clusters are spilled to disk. 0 disables the limit.
+     */
+    public static long windowMemoryBudget = 0;
+
+    /**
+     * Number of threads used for I/O bound work: writing the binary files during the
+     * conversion and reading ahead the input files of the clustering jobs. 0 uses the
+     * number of parallel jobs.
+     */
+    public static int ioThreads = 0;
+
+    /**
+     * Maximum number of clusters that are read ahead for every clustering job.
+     */
+    public static int prefetchQueueSize = 1000;
+
+    /**
+     * If set, the bins are clustered in a ForkJoinPool and bins that would become
+     * the tail of the run are split at precursor gaps into sub-bins that idle
+     * workers can take over.
+     */
+    public static boolean splitSlowBins = false;
+
+    /**
+     * Bins with more clusters are split into parts of this size that are clustered
+     * in parallel with an overlap (halo) of one precursor tolerance. 0 disables
+     * the splitting.
+     */
+    public static int haloBinClusters = 0;
+
+    /**
+     * Fraction of the maximum heap (-Xmx) that the running clustering jobs may
+     * reserve based on their estimated heap requirement. Jobs that do not fit
+     * wait until other jobs completed. 0 disables the admission control.
+     */
+    public static double heapFraction = 0;
+
+    /**
+     * Wall-clock time (in seconds) a bin may be clustered for. Bins that exceed
+     * this budget are clustered again in fast mode with fewer comparisons.
+     * 0 disables the limit.
+     */
+    public static int binTimeBudget = 0;
+
+    /**
+     * Whether the debug information and the score of every spectrum added to a cluster
+     * are saved. These are set in Defaults as well and only stored here to pass them
+     * on to worker processes.
+     */
+    public static boolean saveDebugInformation = false;
+    public static boolean saveAddingScore = false;
+
+    /**
+     * The file the cumulative distribution function was loaded from. null if the
+     * default function is used.
+     */
+    public static String cdfFile = null;
+
+    /**
+     * Minimum number of comparisons used by the adaptive comparison assessor. null if
+     * the assessor's default is used.
+     */
+    public static Integer minAdaptiveComparisons = null;
+
+    /**
+     * Minimum number of peaks kept in consensus spectra. null if the default is used.
+     */
+    public static Integer consensusMinPeaks = null;
+
+    /**
+     * Returns the number of threads to use for I/O bound work.
+     * @param parallelJobs The number of parallel (compute) jobs.
+     * @return The set number of I/O threads or parallelJobs if not set.
+     */
+    public static int getIoThreads(int parallelJobs) {
+        return (ioThreads > 0) ? ioThreads : parallelJobs;
+    }
+
     /**
      * Determines which kind of spectra should be loaded for clustering.
      * @return
@@ -1,13 +1,17 @@
 package uk.ac.ebi.pride.spectracluster.implementation;
 
 import uk.ac.ebi.pride.spectracluster.consensus.IConsensusSpectrumBuilder;
+import uk.ac.ebi.pride.spectracluster.index.ClusteringIndex;
+import uk.ac.ebi.pride.spectracluster.index.ClusteringIndexWriter;
 import uk.ac.ebi.pride.spectracluster.similarity.ISimilarityChecker;
 import uk.ac.ebi.pride.spectracluster.spectra_list.ParsingMgfScanner;
 import uk.ac.ebi.pride.spectracluster.spectrum.IPeak;
 import uk.ac.ebi.pride.spectracluster.spectrum.ISpectrum;
 import uk.ac.ebi.pride.spectracluster.spectrum.Peak;
 import uk.ac.ebi.pride.spectracluster.spectrum.Spectrum;
+import uk.ac.ebi.pride.spectracluster.util.CompressedFiles;
 import uk.ac.ebi.pride.spectracluster.util.Defaults;
+import uk.ac.ebi.pride.spectracluster.util.ParallelGzipOutputStream;
 import uk.ac.ebi.pride.spectracluster.util.SpectrumConverter;
 import uk.ac.ebi.pride.tools.jmzreader.JMzReader;
 import uk.ac.ebi.pride.tools.jmzreader.model.IndexElement;
@@ -16,6 +20,10 @@ import uk.ac.ebi.pride.tools.mgf_parser.MgfFile;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -43,13 +51,26 @@ public class ScoreCalculator {
         // index all MGF files
         Map<String, List<IndexElement>> mgfFileIndices = indexMgfFiles(mgfPathMap);
 
-        // add the scores
-        Path tmpFile = Files.createTempFile(null, ".clustering");
+        // add the scores - compressed files stay compressed
+        Path tmpFile = Files.createTempFile(null, CompressedFiles.isCompressed(clusteringFile) ?
+                ".clustering" + CompressedFiles.GZIP_SUFFIX : ".clustering");
 
-        addSimilarityScores(clusteringFile.toPath(), tmpFile, mgfPathMap, mgfFileIndices);
+        // the offsets of the clusters change, the index is re-created
+        File tmpIndexFile = ClusteringIndex.getIndexFile(tmpFile.toFile());
+        ClusteringIndexWriter indexWriter = new ClusteringIndexWriter(tmpIndexFile);
+
+        try {
+            addSimilarityScores(clusteringFile.toPath(), tmpFile, mgfPathMap, mgfFileIndices, indexWriter);
+        } catch (Exception e) {
+            indexWriter.abort();
+            Files.deleteIfExists(tmpFile);
+            throw e;
+        }
 
         // replace the original file
         Files.move(tmpFile, clusteringFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmpIndexFile.toPath(), ClusteringIndex.getIndexFile(clusteringFile).toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
     }
 
     /**
@@ -63,9 +84,27 @@ public class ScoreCalculator {
      */
     protected void addSimilarityScores(Path clusteringIn, Path clusteringOut, Map<String, Path> pathMap, Map<String,
             List<IndexElement>> fileIndices) throws Exception {
+        addSimilarityScores(clusteringIn, clusteringOut, pathMap, fileIndices, null);
+    }
+
+    /**
+     * Add the similarity scores to the .clustering file and index the newly created file.
+     *
+     * @param clusteringIn .clustering file to create the similarity scores for
+     * @param clusteringOut Path to the newly created .clustering file.
+     * @param pathMap A Map with the MGF filename as key and the complete Path as value
+     * @param fileIndices A Map with the MGF filename as key and the List of Indices as value
+     * @param indexWriter The writer of the new file's index. Closed once the file was written. May be null.
+     * @throws Exception
+     */
+    protected void addSimilarityScores(Path clusteringIn, Path clusteringOut, Map<String, Path> pathMap, Map<String,
+            List<IndexElement>> fileIndices, ClusteringIndexWriter indexWriter) throws Exception {
+        OutputStream outputStream = CompressedFiles.openOutputStream(clusteringOut.toFile(), 1);
+
         // process the .clustering file line by line
-        try (BufferedReader reader = Files.newBufferedReader(clusteringIn);
-             BufferedWriter writer = Files.newBufferedWriter(clusteringOut)) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                CompressedFiles.openInputStream(clusteringIn.toFile()), StandardCharsets.UTF_8));
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8))) {
             // initialize consensus spec variables
             float precursor = 0F;
             List<Float> mz = null;
@@ -76,6 +115,7 @@ public class ScoreCalculator {
 
             // process the file line by line
             String line = null;
+            long offset = 0;
 
             while ((line = reader.readLine()) != null) {
                 if (line.startsWith("av_precursor_mz=")) {
@@ -99,9 +139,25 @@ public class ScoreCalculator {
                             String.valueOf(score) + "\n";
                 }
 
-                writer.write(line + "\n");
+                String outputLine = line + "\n";
+
+                if (indexWriter != null) {
+                    indexWriter.addLine(line, offset);
+                    offset += outputLine.getBytes(StandardCharsets.UTF_8).length;
+                }
+
+                writer.write(outputLine);
             }
         }
+
+        if (indexWriter != null) {
+            if (outputStream instanceof ParallelGzipOutputStream) {
+                ParallelGzipOutputStream gzipOutputStream = (ParallelGzipOutputStream) outputStream;
+                indexWriter.setCompressedBlocks(gzipOutputStream.getBlockSize(), gzipOutputStream.getMemberOffsets());
+            }
+
+            indexWriter.close(clusteringOut.toFile().length());
+        }
     }
 
     /**
@@ -272,10 +328,11 @@ public class ScoreCalculator {
      * @param clusteringFile The clustering file to process.
      */
     protected Set<String> extractMgfFilenames(File clusteringFile) throws Exception {
-        Path path = clusteringFile.toPath();
         Set<String> mgfFilenames = new HashSet<>();
 
-        try (Stream<String> lines = Files.lines(path).filter(s -> s.contains("SPEC\t"))) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                CompressedFiles.openInputStream(clusteringFile), StandardCharsets.UTF_8));
+             Stream<String> lines = reader.lines().filter(s -> s.contains("SPEC\t"))) {
             lines.forEach((String line) -> {
                 String[] fields = line.split("\t");
 
@@ -3,32 +3,36 @@ package uk.ac.ebi.pride.spectracluster.implementation;
 import org.apache.commons.io.filefilter.FileFilterUtils;
 import uk.ac.ebi.pride.spectracluster.binning.BinaryFileRebinner;
 import uk.ac.ebi.pride.spectracluster.binning.BinningSpectrumConverter;
+import uk.ac.ebi.pride.spectracluster.binning.IBinningPlanListener;
 import uk.ac.ebi.pride.spectracluster.cdf.SpectraPerBinNumberComparisonAssessor;
 import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
 import uk.ac.ebi.pride.spectracluster.clustering.BinaryClusterFileReference;
 import uk.ac.ebi.pride.spectracluster.clustering.BinaryFileClusterer;
-import uk.ac.ebi.pride.spectracluster.conversion.MergingCGFConverter;
+import uk.ac.ebi.pride.spectracluster.clustering.VirtualBinaryFile;
+import uk.ac.ebi.pride.spectracluster.conversion.MergingClusteringConverter;
+import uk.ac.ebi.pride.spectracluster.conversion.ParallelClusterFormatter;
+import uk.ac.ebi.pride.spectracluster.distributed.ClusteringCoordinator;
+import uk.ac.ebi.pride.spectracluster.index.ClusteringIndex;
 import uk.ac.ebi.pride.spectracluster.io.CGFSpectrumIterable;
-import uk.ac.ebi.pride.spectracluster.io.DotClusterClusterAppender;
 import uk.ac.ebi.pride.spectracluster.merging.BinaryFileMergingClusterer;
+import uk.ac.ebi.pride.spectracluster.merging.BoundaryMergingClusterer;
 import uk.ac.ebi.pride.spectracluster.spectra_list.SpectrumReference;
 import uk.ac.ebi.pride.spectracluster.util.BinaryFileScanner;
+import uk.ac.ebi.pride.spectracluster.util.CompressedFiles;
 import uk.ac.ebi.pride.spectracluster.util.Defaults;
 import uk.ac.ebi.pride.spectracluster.util.IProgressListener;
 import uk.ac.ebi.pride.spectracluster.util.ProgressUpdate;
+import uk.ac.ebi.pride.spectracluster.util.RunManifest;
+import uk.ac.ebi.pride.spectracluster.util.RunReport;
 import uk.ac.ebi.pride.spectracluster.util.function.spectrum.RemoveReporterIonPeaksFunction;
 import uk.ac.ebi.pride.spectracluster.util.predicate.IPredicate;
 import uk.ac.ebi.pride.spectracluster.util.predicate.cluster.ClusterOnlyIdentifiedPredicate;
 import uk.ac.ebi.pride.spectracluster.util.predicate.cluster.ClusterOnlyUnidentifiedPredicate;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.FilenameFilter;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Locale;
+import java.io.InputStream;
+import java.util.*;
 
 /**
  * This class takes care of the actual clustering
@@ -56,12 +60,70 @@ public class SpectraClusterStandalone {
     private int parallelJobs;
     private boolean useFastMode = false;
 
+    /**
+     * Additional final thresholds for which separate result files are
+     * created during the same run.
+     */
+    private List<Float> additionalResultThresholds = new ArrayList<Float>();
+
     /**
      * This variable only exists for debugging purposes. If set to false, temporary files
      * (ie. intermediate files created during merging) are kept.
      */
     private boolean deleteTemporaryFiles = true;
 
+    /**
+     * If set, completed jobs are recorded in a run manifest in the temporary
+     * directory so that an interrupted run can be resumed.
+     */
+    private boolean resumable = false;
+    private RunManifest runManifest = null;
+    /**
+     * Temporary files that are only deleted once a resumable run is complete.
+     */
+    private List<File> deferredDeletions = new ArrayList<File>();
+
+    /**
+     * If set, the conversion, clustering and merging steps are run as
+     * one overlapping pipeline.
+     */
+    private boolean streamingMode = false;
+
+    /**
+     * If set, only the clusters close to the boundaries of the clustered
+     * files are re-clustered during merging.
+     */
+    private boolean boundaryMerge = false;
+
+    /**
+     * If set, only the final threshold is used when merging the
+     * clustered files.
+     */
+    private boolean mergeFinalThresholdOnly = false;
+
+    /**
+     * If set, the clustered files are re-binned without rewriting
+     * their clusters.
+     */
+    private boolean virtualRebinning = false;
+
+    /**
+     * Number of worker JVMs launched to cluster the binary files. If
+     * set to 0, the files are clustered in this JVM unless a coordinator
+     * port is set.
+     */
+    private int workerProcesses = 0;
+
+    /**
+     * Port the workers connect to. 0 uses any free port.
+     */
+    private int coordinatorPort = 0;
+
+    /**
+     * Records bins that required a fallback, for example being re-clustered with fewer comparisons.
+     */
+    private RunReport runReport = new RunReport();
+
     /**
      * Create a new SpectraClusterStandalone object.
      * @throws Exception In case the temporary directory cannot be initialized (ie. created)
@@ -97,12 +159,108 @@ public class SpectraClusterStandalone {
             );
         }
 
+        if (streamingMode) {
+            clusterPeaklistFilesStreaming(peaklistFiles, binarySpectraDirectory, clusteringThresholds, resultFile);
+            return;
+        }
+
+        openRunManifest(clusteringThresholds, peaklistFiles);
+
         // convert the binary files
-        List<BinaryClusterFileReference> binaryFiles = convertInputFiles(peaklistFiles, binarySpectraDirectory);
+        List<BinaryClusterFileReference> binaryFiles;
+
+        if (runManifest != null && runManifest.isStageComplete(RunManifest.CONVERSION)) {
+            notifyProgressListeners(new ProgressUpdate("Resuming run, input files were already converted",
+                    ProgressUpdate.CLUSTERING_STAGE.CONVERSION));
+            binaryFiles = findExistingBinaryFiles(binarySpectraDirectory);
+        }
+        else {
+            // remove binary files of an incomplete conversion
+            if (runManifest != null && binarySpectraDirectory.isDirectory()) {
+                File[] incompleteFiles = binarySpectraDirectory.listFiles(
+                        (FilenameFilter) FileFilterUtils.suffixFileFilter(".cls"));
+
+                if (incompleteFiles != null) {
+                    for (File incompleteFile : incompleteFiles) {
+                        incompleteFile.delete();
+                    }
+                }
+            }
+
+            binaryFiles = convertInputFiles(peaklistFiles, binarySpectraDirectory);
+
+            if (runManifest != null) {
+                runManifest.recordStageComplete(RunManifest.CONVERSION);
+            }
+        }
 
         clusterBinaryFiles(binaryFiles, clusteringThresholds, resultFile);
     }
 
+    /**
+     * Clusters the peak list files in streaming mode. Every bin is clustered as soon as
+     * it was written and merged as soon as its neighbours are clustered.
+     * @param peaklistFiles Peak list files to cluster.
+     * @param binarySpectraDirectory Directory to write the binary files to.
+     * @param clusteringThresholds The clustering thresholds to use.
+     * @param resultFile File object were the final result file (.clustering) format will be written to.
+     * @throws Exception
+     */
+    private void clusterPeaklistFilesStreaming(List<File> peaklistFiles, File binarySpectraDirectory,
+                                               List<Float> clusteringThresholds, File resultFile) throws Exception {
+        if (!additionalResultThresholds.isEmpty()) {
+            throw new Exception("The streaming mode cannot be combined with additional result thresholds");
+        }
+        if (resumable) {
+            throw new Exception("The streaming mode cannot be combined with resumable runs");
+        }
+
+        final BinningSpectrumConverter binningSpectrumConverter = createSpectrumConverter(binarySpectraDirectory);
+
+        // the spectra per bin must be known before the first bin is clustered
+        binningSpectrumConverter.addBinningPlanListener(new IBinningPlanListener() {
+            @Override
+            public void onBinningPlanned(List<BinaryClusterFileReference> plannedFiles) {
+                countSpectraPerBin(binningSpectrumConverter.getSpectrumReferences());
+            }
+        });
+
+        StreamingClusteringPipeline pipeline = new StreamingClusteringPipeline(parallelJobs, clusteringThresholds,
+                useFastMode, createClusterPredicate(), temporaryDirectory);
+        pipeline.setDeleteBinaryFiles(!keepBinaryFiles);
+        pipeline.setDeleteTemporaryFiles(deleteTemporaryFiles);
+        pipeline.setMergeFinalThresholdOnly(mergeFinalThresholdOnly);
+
+        // if verbose mode is enabled add the progress listeners to receive all updates
+        if (verbose) {
+            for (IProgressListener progressListener : progressListeners) {
+                pipeline.addProgressListener(progressListener);
+            }
+        }
+
+        // the pipeline reports the merged files in m/z order, they are written as soon as they are available
+        MergingClusteringConverter clusteringConverter = new MergingClusteringConverter(resultFile,
+                getClusteringName(clusteringThresholds), deleteTemporaryFiles, true);
+        clusteringConverter.setFormattingThreads(parallelJobs);
+
+        notifyProgressListeners(new ProgressUpdate(
+                String.format("Converting and clustering %d input files...", peaklistFiles.size()),
+                ProgressUpdate.CLUSTERING_STAGE.CONVERSION));
+
+        try {
+            pipeline.process(binningSpectrumConverter, getFilenameArray(peaklistFiles), clusteringConverter);
+        } catch (Exception e) {
+            clusteringConverter.abort();
+            throw e;
+        }
+
+        if (!keepBinaryFiles) {
+            binarySpectraDirectory.delete();
+        }
+
+        closeClusteringFile(clusteringConverter);
+    }
+
     /**
      * Cluster the converted or existing binary files.
      * @param binaryFiles BinaryClusterFileRefernece representing the binary files to cluster.
@@ -115,18 +273,56 @@ public class SpectraClusterStandalone {
      */
     private void clusterBinaryFiles(List<BinaryClusterFileReference> binaryFiles, List<Float> clusteringThresholds,
                                     File resultFile) throws Exception {
+        // add the rounds needed for the additional result files
+        List<Float> roundThresholds = addResultThresholds(clusteringThresholds, additionalResultThresholds);
+
+        Map<Float, List<BinaryClusterFileReference>> snapshotFiles = new HashMap<Float, List<BinaryClusterFileReference>>();
+        for (Float threshold : additionalResultThresholds) {
+            if (!threshold.equals(roundThresholds.get(roundThresholds.size() - 1))) {
+                snapshotFiles.put(threshold, null);
+            }
+        }
+
         // the actual clustering
-        List<BinaryClusterFileReference> clusteredFiles = clusterFiles(binaryFiles, clusteringThresholds);
+        List<BinaryClusterFileReference> clusteredFiles = clusterFiles(binaryFiles, roundThresholds, snapshotFiles);
 
-        // merge the results
-        File combinedResultFile = mergeClusteringResults(clusteredFiles, clusteringThresholds);
+        // create the result files for the additional thresholds
+        for (int i = 0; i < roundThresholds.size(); i++) {
+            Float threshold = roundThresholds.get(i);
 
-        // create the output file
-        convertCgfToClustering(combinedResultFile, resultFile, clusteringThresholds.get(clusteringThresholds.size() - 1));
+            if (!snapshotFiles.containsKey(threshold)) {
+                continue;
+            }
+
+            File thresholdResultFile = getResultFileForThreshold(resultFile, threshold);
+            mergeClusteringResults(snapshotFiles.get(threshold), roundThresholds.subList(0, i + 1),
+                    String.valueOf(threshold), thresholdResultFile);
+        }
+
+        // merge the results and create the output file
+        mergeClusteringResults(clusteredFiles, roundThresholds, "final", resultFile);
+
+        writeRunReport(resultFile);
+
+        completeRun();
+    }
 
-        if (!combinedResultFile.delete()) {
-            // TODO: add notification at later stage
+    /**
+     * Writes the run report next to the result file if any event was recorded.
+     * @param resultFile The run's result file.
+     */
+    private void writeRunReport(File resultFile) throws Exception {
+        if (runReport.isEmpty()) {
+            return;
         }
+
+        File reportFile = RunReport.getReportFile(resultFile);
+        runReport.write(reportFile);
+
+        notifyProgressListeners(new ProgressUpdate(
+                String.format("%d bins required a fallback, see %s", runReport.getEvents().size(),
+                        reportFile.getPath()),
+                ProgressUpdate.CLUSTERING_STAGE.OUTPUT));
     }
 
     /**
@@ -161,6 +357,8 @@ public class SpectraClusterStandalone {
             throw new Exception("No existing binary files found.");
         }
 
+        openRunManifest(clusteringThresholds, Collections.<File>emptyList());
+
         clusterBinaryFiles(binaryFiles, clusteringThresholds, resultFile);
     }
 
@@ -318,6 +516,30 @@ public class SpectraClusterStandalone {
         this.useFastMode = useFastMode;
     }
 
+    /**
+     * Additional final thresholds for which separate result files are created. These
+     * thresholds must be higher than the final clustering threshold. The clustering is
+     * only performed once, the results at the additional thresholds are taken from the
+     * respective intermediate round. The result files are named after the final result
+     * file (see getResultFileForThreshold).
+     * @return
+     */
+    public List<Float> getAdditionalResultThresholds() {
+        return Collections.unmodifiableList(additionalResultThresholds);
+    }
+
+    /**
+     * Additional final thresholds for which separate result files are created. These
+     * thresholds must be higher than the final clustering threshold. The clustering is
+     * only performed once, the results at the additional thresholds are taken from the
+     * respective intermediate round. The result files are named after the final result
+     * file (see getResultFileForThreshold).
+     * @param additionalResultThresholds
+     */
+    public void setAdditionalResultThresholds(List<Float> additionalResultThresholds) {
+        this.additionalResultThresholds = new ArrayList<Float>(additionalResultThresholds);
+    }
+
     /**
      * This variable only exists for debugging purposes. If set to false, temporary files
      * (ie. intermediate files created during merging) are kept.
@@ -336,6 +558,143 @@ public class SpectraClusterStandalone {
         this.deleteTemporaryFiles = deleteTemporaryFiles;
     }
 
+    /**
+     * If set, all completed jobs are recorded in a run manifest in the temporary
+     * directory. If a run is interrupted, it can be resumed by starting it again
+     * with the same temporary directory and settings. Completed jobs are then
+     * skipped. In this mode all intermediate files are kept until the run
+     * is complete.
+     * @return
+     */
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    /**
+     * If set, all completed jobs are recorded in a run manifest in the temporary
+     * directory. If a run is interrupted, it can be resumed by starting it again
+     * with the same temporary directory and settings. Completed jobs are then
+     * skipped. In this mode all intermediate files are kept until the run
+     * is complete.
+     * @param resumable
+     */
+    public void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
+
+    /**
+     * If set, the conversion, clustering and merging steps are run as one
+     * overlapping pipeline. This mode cannot be combined with additional result
+     * thresholds or resumable runs.
+     * @return
+     */
+    public boolean isStreamingMode() {
+        return streamingMode;
+    }
+
+    /**
+     * If set, the conversion, clustering and merging steps are run as one
+     * overlapping pipeline. This mode cannot be combined with additional result
+     * thresholds or resumable runs.
+     * @param streamingMode
+     */
+    public void setStreamingMode(boolean streamingMode) {
+        this.streamingMode = streamingMode;
+    }
+
+    /**
+     * If set, only the clusters close to the boundaries of two clustered files are
+     * re-clustered during merging. The interior of the files is not rewritten. This
+     * mode is not used in resumable runs.
+     * @return
+     */
+    public boolean isBoundaryMerge() {
+        return boundaryMerge;
+    }
+
+    /**
+     * If set, only the clusters close to the boundaries of two clustered files are
+     * re-clustered during merging. The interior of the files is not rewritten. This
+     * mode is not used in resumable runs.
+     * @param boundaryMerge
+     */
+    public void setBoundaryMerge(boolean boundaryMerge) {
+        this.boundaryMerge = boundaryMerge;
+    }
+
+    /**
+     * If set, only a single round with the final threshold is run when merging
+     * the clustered files. The clusters are then directly compared with each other.
+     * @return
+     */
+    public boolean isMergeFinalThresholdOnly() {
+        return mergeFinalThresholdOnly;
+    }
+
+    /**
+     * If set, only a single round with the final threshold is run when merging
+     * the clustered files. The clusters are then directly compared with each other.
+     * @param mergeFinalThresholdOnly
+     */
+    public void setMergeFinalThresholdOnly(boolean mergeFinalThresholdOnly) {
+        this.mergeFinalThresholdOnly = mergeFinalThresholdOnly;
+    }
+
+    /**
+     * If set, the re-binned files are only described as slices of the clustered
+     * files instead of being written to disk. This mode is not used in resumable runs.
+     * @return
+     */
+    public boolean isVirtualRebinning() {
+        return virtualRebinning;
+    }
+
+    /**
+     * If set, the re-binned files are only described as slices of the clustered
+     * files instead of being written to disk. This mode is not used in resumable runs.
+     * @param virtualRebinning
+     */
+    public void setVirtualRebinning(boolean virtualRebinning) {
+        this.virtualRebinning = virtualRebinning;
+    }
+
+    /**
+     * Number of worker JVMs that are launched on this machine to cluster the
+     * binary files.
+     * @return
+     */
+    public int getWorkerProcesses() {
+        return workerProcesses;
+    }
+
+    /**
+     * Number of worker JVMs that are launched on this machine to cluster the
+     * binary files. Clustering in separate JVMs is disabled if set to 0 and
+     * no coordinator port is set.
+     * @param workerProcesses
+     */
+    public void setWorkerProcesses(int workerProcesses) {
+        this.workerProcesses = workerProcesses;
+    }
+
+    /**
+     * Port of the coordinator that additional (remote) workers connect to.
+     * @return
+     */
+    public int getCoordinatorPort() {
+        return coordinatorPort;
+    }
+
+    /**
+     * Port of the coordinator that additional (remote) workers connect to. If
+     * set, the binary files are clustered by workers even if no local worker
+     * is launched.
+     * @param coordinatorPort
+     */
+    public void setCoordinatorPort(int coordinatorPort) {
+        this.coordinatorPort = coordinatorPort;
+    }
+
     /**
      * Create a temporary directory in the OS' default location.
      * @param prefix The prefix to use for the temporary directory.
@@ -385,6 +744,29 @@ public class SpectraClusterStandalone {
     private List<BinaryClusterFileReference> convertInputFiles(List<File> peaklistFilenames,
                                                                File binarySpectraDirectory)
             throws Exception {
+        BinningSpectrumConverter binningSpectrumConverter = createSpectrumConverter(binarySpectraDirectory);
+
+        // tell the listeners that the conversion has started
+        notifyProgressListeners(new ProgressUpdate(
+                String.format("Converting %d input files...", peaklistFilenames.size()),
+                ProgressUpdate.CLUSTERING_STAGE.CONVERSION));
+
+        binningSpectrumConverter.processPeaklistFiles(getFilenameArray(peaklistFilenames));
+
+        // count the spectra per bin
+        countSpectraPerBin(binningSpectrumConverter.getSpectrumReferences());
+
+        return binningSpectrumConverter.getWrittenFiles();
+    }
+
+    /**
+     * Creates the converter to write the binary files. The binary spectra directory
+     * is created if it does not exist.
+     * @param binarySpectraDirectory Directory into which the binary files should be written to.
+     * @return The converter.
+     * @throws Exception
+     */
+    private BinningSpectrumConverter createSpectrumConverter(File binarySpectraDirectory) throws Exception {
         // if the binary spectra directory doesn't exist, create it
         if (!binarySpectraDirectory.exists()) {
             if (!binarySpectraDirectory.mkdir()) {
@@ -392,8 +774,9 @@ public class SpectraClusterStandalone {
             }
         }
 
+        // writing the binary files is I/O bound
         BinningSpectrumConverter binningSpectrumConverter = new BinningSpectrumConverter(binarySpectraDirectory,
-                parallelJobs, useFastMode);
+                ClusteringSettings.getIoThreads(parallelJobs), useFastMode);
 
         binningSpectrumConverter.setLoadingMode(ClusteringSettings.getLoadingMode());
 
@@ -404,30 +787,50 @@ public class SpectraClusterStandalone {
             }
         }
 
-        // tell the listeners that the conversion has started
-        notifyProgressListeners(new ProgressUpdate(
-                String.format("Converting %d input files...", peaklistFilenames.size()),
-                ProgressUpdate.CLUSTERING_STAGE.CONVERSION));
+        return binningSpectrumConverter;
+    }
 
-        // convert to a String[] array - not a very nice way at the moment
-        String[] peakListFilenameArray = new String[peaklistFilenames.size()];
-        for (int i = 0; i < peaklistFilenames.size(); i++) {
-            peakListFilenameArray[i] = peaklistFilenames.get(i).toString();
+    /**
+     * Converts the list of files to a String[] array.
+     * @param files
+     * @return
+     */
+    private String[] getFilenameArray(List<File> files) {
+        String[] filenameArray = new String[files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            filenameArray[i] = files.get(i).toString();
         }
 
-        binningSpectrumConverter.processPeaklistFiles(peakListFilenameArray);
+        return filenameArray;
+    }
 
-        // count the spectra per bin
+    /**
+     * Counts the spectra per bin if the number of comparisons is based on it.
+     * @param specRefs The spectra to count.
+     */
+    private void countSpectraPerBin(List<SpectrumReference> specRefs) {
         if (Defaults.getNumberOfComparisonAssessor().getClass() == SpectraPerBinNumberComparisonAssessor.class) {
             SpectraPerBinNumberComparisonAssessor assessor = (SpectraPerBinNumberComparisonAssessor) Defaults.getNumberOfComparisonAssessor();
-            List<SpectrumReference> specRefs = binningSpectrumConverter.getSpectrumReferences();
 
             for (SpectrumReference specRef : specRefs) {
                 assessor.countSpectrum(specRef.getPrecursorMz());
             }
         }
+    }
 
-        return binningSpectrumConverter.getWrittenFiles();
+    /**
+     * Creates the predicate to ignore clusters based on the loading mode.
+     * @return The predicate or null if all clusters should be processed.
+     */
+    private IPredicate<ICluster> createClusterPredicate() {
+        if (ClusteringSettings.getLoadingMode() == ClusteringSettings.LOADING_MODE.ONLY_IDENTIFIED) {
+            return new ClusterOnlyIdentifiedPredicate();
+        }
+        if (ClusteringSettings.getLoadingMode() == ClusteringSettings.LOADING_MODE.ONLY_UNIDENTIFIED) {
+            return new ClusterOnlyUnidentifiedPredicate();
+        }
+
+        return null;
     }
 
     /**
@@ -466,7 +869,8 @@ public class SpectraClusterStandalone {
             loadingPredicate = new ClusterOnlyUnidentifiedPredicate();
         }
 
-        return BinaryFileScanner.scanBinaryFiles(spectraPerBinNumberComparisonAssessor, loadingPredicate, existingBinaryFiles);
+        return BinaryFileScanner.scanBinaryFiles(spectraPerBinNumberComparisonAssessor, loadingPredicate,
+                ClusteringSettings.getIoThreads(parallelJobs), existingBinaryFiles);
     }
 
     /**
@@ -477,28 +881,42 @@ public class SpectraClusterStandalone {
      *                             means a higher accuracy. In these cases the list should be sorted from
      *                             highest to lowest (clustering should start with the highest accuracy and
      *                             decrease with each subsequent clustering round).
+     * @param snapshotFiles Copies of the results are kept for all thresholds that are present as keys in this
+     *                      Map. The sorted copies are stored as the respective value once the clustering is complete.
      * @return A list of BinaryClusterFileReferenceS that represent the result files.
      * @throws Exception
      */
     private List<BinaryClusterFileReference> clusterFiles(List<BinaryClusterFileReference> binaryFiles,
-                                                          List<Float> clusteringThresholds)
+                                                          List<Float> clusteringThresholds,
+                                                          Map<Float, List<BinaryClusterFileReference>> snapshotFiles)
             throws Exception {
         // create the needed temporary directories
-        File clusteringResultDirectory = createTemporaryDirectory("clustering_results", temporaryDirectory);
-        File tmpClusteringResultDirectory = createTemporaryDirectory("clustering_results_tmp", temporaryDirectory);
+        File clusteringResultDirectory = createStageDirectory("clustering_results");
+        File tmpClusteringResultDirectory = createStageDirectory("clustering_results_tmp");
 
-        IPredicate<ICluster> clusterPredicate = null;
-
-        if (ClusteringSettings.getLoadingMode() == ClusteringSettings.LOADING_MODE.ONLY_IDENTIFIED) {
-            clusterPredicate = new ClusterOnlyIdentifiedPredicate();
+        Map<Float, File> snapshotDirectories = new HashMap<Float, File>();
+        for (Float threshold : snapshotFiles.keySet()) {
+            snapshotDirectories.put(threshold, createStageDirectory("clustering_results_" + threshold));
         }
-        if (ClusteringSettings.getLoadingMode() == ClusteringSettings.LOADING_MODE.ONLY_UNIDENTIFIED) {
-            clusterPredicate = new ClusterOnlyUnidentifiedPredicate();
+
+        IPredicate<ICluster> clusterPredicate = createClusterPredicate();
+
+        // cluster the files in separate worker JVMs
+        if (workerProcesses > 0 || coordinatorPort > 0) {
+            if (!snapshotDirectories.isEmpty() || runManifest != null) {
+                throw new Exception("Clustering in worker processes cannot be combined with additional result thresholds or resumable runs");
+            }
+
+            return clusterFilesInWorkers(binaryFiles, clusteringThresholds, clusteringResultDirectory,
+                    tmpClusteringResultDirectory);
         }
 
         // cluster the files
         BinaryFileClusterer binaryFileClusterer = new BinaryFileClusterer(parallelJobs, clusteringResultDirectory,
                 clusteringThresholds, useFastMode, tmpClusteringResultDirectory, clusterPredicate);
+        binaryFileClusterer.setSnapshotDirectories(snapshotDirectories);
+        binaryFileClusterer.setRunManifest(runManifest);
+        binaryFileClusterer.setRunReport(runReport);
 
         // if verbose mode is enabled add the progress listeners to receive all updates
         if (verbose) {
@@ -522,13 +940,13 @@ public class SpectraClusterStandalone {
         // delete the binary input files if set
         if (!keepBinaryFiles) {
             for (BinaryClusterFileReference binaryFile : binaryFiles) {
-                binaryFile.getResultFile().delete();
+                deleteTemporaryFile(binaryFile.getResultFile());
             }
 
             // delete the directory
             if (binaryFiles.size() > 0) {
                 File parentDirectory = new File(binaryFiles.get(0).getResultFile().getParent());
-                parentDirectory.delete();
+                deleteTemporaryFile(parentDirectory);
             }
         }
 
@@ -537,9 +955,130 @@ public class SpectraClusterStandalone {
         clusteredFiles = new ArrayList<BinaryClusterFileReference>(clusteredFiles);
         Collections.sort(clusteredFiles);
 
+        for (Float threshold : snapshotDirectories.keySet()) {
+            List<BinaryClusterFileReference> thresholdFiles =
+                    new ArrayList<BinaryClusterFileReference>(binaryFileClusterer.getSnapshotFiles(threshold));
+            Collections.sort(thresholdFiles);
+            snapshotFiles.put(threshold, thresholdFiles);
+        }
+
+        return clusteredFiles;
+    }
+
+    /**
+     * Clusters the passed binary files using a ClusteringCoordinator. The bins are
+     * clustered by the launched local workers and any remote worker that connects
+     * to the coordinator's port.
+     * @param binaryFiles The input files to cluster in binary format.
+     * @param clusteringThresholds The clustering thresholds to use.
+     * @param clusteringResultDirectory Directory to write the clustered files to.
+     * @param tmpClusteringResultDirectory Directory for the workers' temporary files.
+     * @return A list of BinaryClusterFileReferenceS that represent the result files.
+     * @throws Exception
+     */
+    private List<BinaryClusterFileReference> clusterFilesInWorkers(List<BinaryClusterFileReference> binaryFiles,
+                                                                   List<Float> clusteringThresholds,
+                                                                   File clusteringResultDirectory,
+                                                                   File tmpClusteringResultDirectory)
+            throws Exception {
+        ClusteringCoordinator coordinator = new ClusteringCoordinator(coordinatorPort, workerProcesses,
+                clusteringResultDirectory, clusteringThresholds, useFastMode, tmpClusteringResultDirectory);
+
+        // if verbose mode is enabled add the progress listeners to receive all updates
+        if (verbose) {
+            for (IProgressListener progressListener : progressListeners) {
+                coordinator.addProgressListener(progressListener);
+            }
+        }
+
+        coordinator.start();
+
+        notifyProgressListeners(new ProgressUpdate(
+                String.format("Clustering %d binary files using %d worker processes (coordinator port %d)...",
+                        binaryFiles.size(), workerProcesses, coordinator.getPort()),
+                ProgressUpdate.CLUSTERING_STAGE.CLUSTERING
+        ));
+
+        coordinator.clusterFiles(binaryFiles);
+
+        // delete the temporary directory
+        if (!tmpClusteringResultDirectory.delete()) {
+            // TODO: a notification could be added at a later stage.
+        }
+        // delete the binary input files if set
+        if (!keepBinaryFiles) {
+            for (BinaryClusterFileReference binaryFile : binaryFiles) {
+                deleteTemporaryFile(binaryFile.getResultFile());
+            }
+
+            if (binaryFiles.size() > 0) {
+                deleteTemporaryFile(new File(binaryFiles.get(0).getResultFile().getParent()));
+            }
+        }
+
+        // sort result files by min m/z
+        List<BinaryClusterFileReference> clusteredFiles =
+                new ArrayList<BinaryClusterFileReference>(coordinator.getResultFiles());
+        Collections.sort(clusteredFiles);
+
         return clusteredFiles;
     }
 
+    /**
+     * Adds the additional result thresholds to the list of clustering thresholds. The
+     * returned list is sorted from highest to lowest threshold.
+     * @param clusteringThresholds The clustering thresholds to use.
+     * @param resultThresholds The additional thresholds for which result files should be created.
+     * @return The thresholds of all clustering rounds.
+     * @throws Exception If a result threshold is lower than the final clustering threshold.
+     */
+    private List<Float> addResultThresholds(List<Float> clusteringThresholds, List<Float> resultThresholds)
+            throws Exception {
+        if (resultThresholds.isEmpty()) {
+            return clusteringThresholds;
+        }
+
+        float finalThreshold = clusteringThresholds.get(clusteringThresholds.size() - 1);
+        Set<Float> roundThresholds = new HashSet<Float>(clusteringThresholds);
+
+        for (Float resultThreshold : resultThresholds) {
+            if (resultThreshold < finalThreshold) {
+                throw new Exception("Result threshold " + resultThreshold + " is lower than the final clustering threshold " +
+                        finalThreshold);
+            }
+
+            roundThresholds.add(resultThreshold);
+        }
+
+        List<Float> sortedThresholds = new ArrayList<Float>(roundThresholds);
+        Collections.sort(sortedThresholds, Collections.reverseOrder());
+
+        return sortedThresholds;
+    }
+
+    /**
+     * Returns the name of the result file for an additional result threshold. The
+     * threshold is added to the name of the final result file (ie. result.clustering
+     * becomes result_0.995.clustering and result.clustering.gz becomes result_0.995.clustering.gz).
+     * @param resultFile The final result file.
+     * @param threshold The threshold.
+     * @return The result file for the threshold.
+     */
+    public static File getResultFileForThreshold(File resultFile, float threshold) {
+        // compressed files keep their suffix
+        String compressionSuffix = CompressedFiles.isCompressed(resultFile) ?
+                resultFile.getName().substring(CompressedFiles.getUncompressedFile(resultFile).getName().length()) : "";
+        String name = CompressedFiles.getUncompressedFile(resultFile).getName();
+        int extensionIndex = name.lastIndexOf('.');
+
+        if (extensionIndex < 1) {
+            return new File(resultFile.getParentFile(), name + "_" + threshold + compressionSuffix);
+        }
+
+        return new File(resultFile.getParentFile(),
+                name.substring(0, extensionIndex) + "_" + threshold + name.substring(extensionIndex) + compressionSuffix);
+    }
+
     /**
      * Merge existing binary files that were created through a previous clustering
      * process.
@@ -560,54 +1099,69 @@ public class SpectraClusterStandalone {
                 ProgressUpdate.CLUSTERING_STAGE.MERGING
         ));
 
-        List<BinaryClusterFileReference> binaryFileReferences = BinaryFileScanner.scanBinaryFiles(binaryFiles);
+        List<BinaryClusterFileReference> binaryFileReferences = BinaryFileScanner.scanBinaryFiles(null, null,
+                ClusteringSettings.getIoThreads(parallelJobs), binaryFiles);
 
-        // merge the files
-        File combinedResultFile = mergeClusteringResults(binaryFileReferences, thresholds);
-
-        // create the output file
-        convertCgfToClustering(combinedResultFile, finalResultFile, thresholds.get(thresholds.size() - 1));
+        // merge the files and create the output file
+        mergeClusteringResults(binaryFileReferences, thresholds, "final", finalResultFile);
     }
 
     /**
      * Merges the result files (clusters at the borders of two result files are re-processed based on the precursor
-     * tolerance). The resulting clustering are automatically merged into a single CGF file.
+     * tolerance). The resulting clusters are written directly to the .clustering file in m/z order.
      * @param clusteredFiles Clustered (binary) files to merge.
      * @param clusteringThresholds The clustering thresholds to use. The thresholds are processed according
      *                             to the order of the list. For most similarity metrics a higher threshold                             means a higher accuracy. In these cases the list should be sorted from                             highest to lowest (clustering should start with the highest accuracy and                             decrease with each subsequent clustering round).
-     * @return The resulting CGF file as a File object.
+     * @param runName Name of the merging run. Only used to identify the run in the run manifest.
+     * @param clusteringFile The .clustering file to write. This file will be overwritten if it exists.
      * @throws Exception
      */
-    private File mergeClusteringResults(List<BinaryClusterFileReference> clusteredFiles, List<Float> clusteringThresholds)
+    private void mergeClusteringResults(List<BinaryClusterFileReference> clusteredFiles, List<Float> clusteringThresholds,
+                                        String runName, File clusteringFile)
             throws Exception {
         if (clusteredFiles.size() < 1) {
             throw new Exception("No clustering result files found for merging.");
         }
 
+        if (boundaryMerge && runManifest == null) {
+            if (BoundaryMergingClusterer.isApplicable(clusteredFiles, Defaults.getDefaultPrecursorIonTolerance())) {
+                mergeClusteringResultsAtBoundaries(clusteredFiles, clusteringThresholds, runName, clusteringFile);
+                return;
+            }
+
+            notifyProgressListeners(new ProgressUpdate(
+                    "Clustered files are too narrow to only merge their boundaries, re-binning all files",
+                    ProgressUpdate.CLUSTERING_STAGE.MERGING));
+        }
+
         // create the required temporary directories
-        File mergedResultsDirectory = createTemporaryDirectory("merged_results", temporaryDirectory);
-        File mergedResultsDirectoryTmp = createTemporaryDirectory("merged_results_tmp", temporaryDirectory);
-        File rebinnedFilesDirectory = createTemporaryDirectory("rebinned_files", temporaryDirectory);
+        File mergedResultsDirectory = createStageDirectory("merged_results_" + runName);
+        File mergedResultsDirectoryTmp = createStageDirectory("merged_results_tmp_" + runName);
+        File rebinnedFilesDirectory = createStageDirectory("rebinned_files_" + runName);
 
         // re-bin the input files
-        notifyProgressListeners(new ProgressUpdate(
-                String.format("Re-binning %d binary files...", clusteredFiles.size()),
-                ProgressUpdate.CLUSTERING_STAGE.MERGING
-        ));
-        List<BinaryClusterFileReference> rebinnedFiles = BinaryFileRebinner.rebinBinaryFiles(clusteredFiles,
-                rebinnedFilesDirectory, Defaults.getDefaultPrecursorIonTolerance());
+        List<BinaryClusterFileReference> rebinnedFiles = rebinClusteringResults(clusteredFiles, rebinnedFilesDirectory,
+                RunManifest.REBINNING + "_" + runName);
 
         // delete the input files if set and if the files were re-binned (only happening if there is more than one file)
-        if (deleteTemporaryFiles && clusteredFiles.size() > 1) {
+        // virtually re-binned files are read from the input files, these are deleted with their directory
+        boolean rebinnedVirtually = !rebinnedFiles.isEmpty() && rebinnedFiles.get(0) instanceof VirtualBinaryFile;
+
+        if (deleteTemporaryFiles && clusteredFiles.size() > 1 && !rebinnedVirtually) {
             for (BinaryClusterFileReference reference : clusteredFiles) {
-                reference.getResultFile().delete();
+                deleteTemporaryFile(reference.getResultFile());
             }
         }
 
+        // in a resumable run, the intermediate files are only deleted once the run is complete
+        boolean deleteMergedFiles = deleteTemporaryFiles && runManifest == null;
+
         // create the merger
         BinaryFileMergingClusterer mergingClusterer = new BinaryFileMergingClusterer(parallelJobs, mergedResultsDirectory,
-                clusteringThresholds, useFastMode, Defaults.getDefaultPrecursorIonTolerance() * 2, deleteTemporaryFiles,
+                clusteringThresholds, useFastMode, Defaults.getDefaultPrecursorIonTolerance() * 2, deleteMergedFiles,
                 mergedResultsDirectoryTmp);
+        mergingClusterer.setRunManifest(runManifest, RunManifest.MERGING + "_" + runName);
+        mergingClusterer.setFinalThresholdOnly(mergeFinalThresholdOnly);
 
         // if verbose mode is enabled add the progress listeners to receive all updates
         if (verbose) {
@@ -616,10 +1170,12 @@ public class SpectraClusterStandalone {
             }
         }
 
-        // create the combined output file as soon as a job is done
-        File combinedResultFile = File.createTempFile("combined_clustering_results", ".cgf", temporaryDirectory);
-        MergingCGFConverter mergingCGFConverter = new MergingCGFConverter(combinedResultFile, deleteTemporaryFiles);
-        mergingClusterer.addListener(mergingCGFConverter);
+        // the merged files are written in m/z order while the remaining files are merged
+        // in a resumed run, completed merging jobs are reported again and the output file is re-created
+        MergingClusteringConverter clusteringConverter = new MergingClusteringConverter(clusteringFile,
+                getClusteringName(clusteringThresholds), deleteMergedFiles, false);
+        clusteringConverter.setFormattingThreads(parallelJobs);
+        mergingClusterer.addListener(clusteringConverter);
 
         // launch the merging job
         notifyProgressListeners(new ProgressUpdate(
@@ -627,7 +1183,15 @@ public class SpectraClusterStandalone {
                 ProgressUpdate.CLUSTERING_STAGE.MERGING
         ));
 
-        mergingClusterer.clusterFiles(rebinnedFiles);
+        try {
+            mergingClusterer.clusterFiles(rebinnedFiles);
+        } catch (Exception e) {
+            clusteringConverter.abort();
+            throw e;
+        }
+
+        // complete the output file before the merged files are deleted
+        closeClusteringFile(clusteringConverter);
 
         // delete the temporary directory after merging - this directory should be empty
         if (!mergedResultsDirectoryTmp.delete()) {
@@ -636,24 +1200,268 @@ public class SpectraClusterStandalone {
 
         // delete the temporary directories if set
         if (deleteTemporaryFiles) {
+            if (runManifest != null) {
+                for (BinaryClusterFileReference reference : rebinnedFiles) {
+                    deleteTemporaryFile(reference.getResultFile());
+                }
+                for (BinaryClusterFileReference reference : mergingClusterer.getResultFiles()) {
+                    deleteTemporaryFile(reference.getResultFile());
+                }
+            }
+
             File clusteredFilesDirectory = clusteredFiles.get(0).getResultFile().getParentFile();
+            deleteTemporaryFile(clusteredFilesDirectory);
+            deleteTemporaryFile(rebinnedFilesDirectory);
+            deleteTemporaryFile(mergedResultsDirectory);
+        }
+    }
+
+    /**
+     * Merges the result files by only re-clustering the clusters close to the boundaries of
+     * two files. The interior of the files is directly written to the .clustering file.
+     * @param clusteredFiles Clustered (binary) files to merge.
+     * @param clusteringThresholds The clustering thresholds to use.
+     * @param runName Name of the merging run.
+     * @param clusteringFile The .clustering file to write. This file will be overwritten if it exists.
+     * @throws Exception
+     */
+    private void mergeClusteringResultsAtBoundaries(List<BinaryClusterFileReference> clusteredFiles,
+                                                   List<Float> clusteringThresholds, String runName,
+                                                   File clusteringFile)
+            throws Exception {
+        File mergedResultsDirectory = createStageDirectory("merged_results_" + runName);
+        File mergedResultsDirectoryTmp = createStageDirectory("merged_results_tmp_" + runName);
+
+        BoundaryMergingClusterer mergingClusterer = new BoundaryMergingClusterer(parallelJobs, mergedResultsDirectory,
+                clusteringThresholds, useFastMode, Defaults.getDefaultPrecursorIonTolerance(), deleteTemporaryFiles,
+                mergedResultsDirectoryTmp);
+        mergingClusterer.setFinalThresholdOnly(mergeFinalThresholdOnly);
 
-            if (!clusteredFilesDirectory.delete()) {
-                // TODO: add notification at a later stage
+        // if verbose mode is enabled add the progress listeners to receive all updates
+        if (verbose) {
+            for (IProgressListener progressListener : progressListeners) {
+                mergingClusterer.addProgressListener(progressListener);
+            }
+        }
+
+        // the clustered files are deleted by the converter once their interior was written
+        MergingClusteringConverter clusteringConverter = new MergingClusteringConverter(clusteringFile,
+                getClusteringName(clusteringThresholds), deleteTemporaryFiles, false);
+        clusteringConverter.setFormattingThreads(parallelJobs);
+        mergingClusterer.addListener(clusteringConverter);
+
+        notifyProgressListeners(new ProgressUpdate(
+                String.format("Merging the boundaries of %d binary files...", clusteredFiles.size()),
+                ProgressUpdate.CLUSTERING_STAGE.MERGING
+        ));
+
+        try {
+            mergingClusterer.clusterFiles(clusteredFiles);
+        } catch (Exception e) {
+            clusteringConverter.abort();
+            throw e;
+        }
+
+        // complete the output file before the merged files are deleted
+        closeClusteringFile(clusteringConverter);
+
+        // delete the temporary directory after merging - this directory should be empty
+        if (!mergedResultsDirectoryTmp.delete()) {
+            // TODO: add notification at a later stage
+        }
+
+        if (deleteTemporaryFiles) {
+            File clusteredFilesDirectory = clusteredFiles.get(0).getResultFile().getParentFile();
+            deleteTemporaryFile(clusteredFilesDirectory);
+            deleteTemporaryFile(mergedResultsDirectory);
+        }
+    }
+
+    /**
+     * Re-bins the clustering results. In a resumable run, the re-binning is only
+     * repeated if it was not completed in a previous run.
+     * @param clusteredFiles The files to re-bin.
+     * @param rebinnedFilesDirectory The directory to write the re-binned files to.
+     * @param manifestStage Name of the stage in the run manifest.
+     * @return The re-binned files.
+     * @throws Exception
+     */
+    private List<BinaryClusterFileReference> rebinClusteringResults(List<BinaryClusterFileReference> clusteredFiles,
+                                                                    File rebinnedFilesDirectory, String manifestStage)
+            throws Exception {
+        if (runManifest != null && runManifest.isStageComplete(manifestStage)) {
+            List<BinaryClusterFileReference> rebinnedFiles = runManifest.getStageResults(manifestStage);
+
+            if (rebinnedFiles != null) {
+                notifyProgressListeners(new ProgressUpdate("Resuming run, files were already re-binned",
+                        ProgressUpdate.CLUSTERING_STAGE.MERGING));
+                return rebinnedFiles;
+            }
+        }
+
+        notifyProgressListeners(new ProgressUpdate(
+                String.format("Re-binning %d binary files...", clusteredFiles.size()),
+                ProgressUpdate.CLUSTERING_STAGE.MERGING
+        ));
+
+        // the re-binning cannot be resumed within the stage - remove incomplete files
+        if (runManifest != null) {
+            File[] incompleteFiles = rebinnedFilesDirectory.listFiles();
+
+            if (incompleteFiles != null) {
+                for (File incompleteFile : incompleteFiles) {
+                    incompleteFile.delete();
+                }
             }
+        }
+
+        List<BinaryClusterFileReference> rebinnedFiles;
 
-            rebinnedFilesDirectory.delete();
+        if (virtualRebinning && runManifest == null) {
+            rebinnedFiles = BinaryFileRebinner.rebinBinaryFilesVirtually(clusteredFiles, rebinnedFilesDirectory,
+                    Defaults.getDefaultPrecursorIonTolerance(), parallelJobs);
+        } else {
+            rebinnedFiles = BinaryFileRebinner.rebinBinaryFiles(clusteredFiles, rebinnedFilesDirectory,
+                    Defaults.getDefaultPrecursorIonTolerance(), parallelJobs);
+        }
 
-            if (!mergedResultsDirectory.delete()) {
-                // TODO: add notification at a later stage
+        if (runManifest != null) {
+            for (BinaryClusterFileReference rebinnedFile : rebinnedFiles) {
+                runManifest.recordCompletedJob(manifestStage, rebinnedFile.getResultFile(), rebinnedFile);
             }
+
+            runManifest.recordStageComplete(manifestStage);
+        }
+
+        return rebinnedFiles;
+    }
+
+    /**
+     * Opens the run manifest in the temporary directory if the run is resumable.
+     * @param clusteringThresholds The clustering thresholds used.
+     * @param inputFiles The processed input files.
+     * @throws Exception
+     */
+    private void openRunManifest(List<Float> clusteringThresholds, List<File> inputFiles) throws Exception {
+        if (!resumable) {
+            return;
         }
 
-        return combinedResultFile;
+        // all settings that influence the written files
+        StringBuilder settings = new StringBuilder();
+        settings.append("thresholds=").append(clusteringThresholds)
+                .append(";result_thresholds=").append(additionalResultThresholds)
+                .append(";precursor_tolerance=").append(Defaults.getDefaultPrecursorIonTolerance())
+                .append(";ppm=").append(ClusteringSettings.ppmThreshold)
+                .append(";fragment_tolerance=").append(Defaults.getFragmentIonTolerance())
+                .append(";fast_mode=").append(useFastMode)
+                .append(";loading_mode=").append(ClusteringSettings.getLoadingMode())
+                .append(";reporters=").append(reporterType)
+                .append(";window_memory_budget=").append(ClusteringSettings.windowMemoryBudget)
+                .append(";merge_final_threshold_only=").append(mergeFinalThresholdOnly);
+
+        for (File inputFile : inputFiles) {
+            settings.append(";").append(inputFile.getAbsolutePath()).append("=")
+                    .append(RunManifest.getFingerprint(inputFile));
+        }
+
+        if (!temporaryDirectory.isDirectory() && !temporaryDirectory.mkdirs()) {
+            throw new Exception("Failed to create temporary directory " + temporaryDirectory);
+        }
+
+        runManifest = new RunManifest(temporaryDirectory, settings.toString());
+    }
+
+    /**
+     * Creates the directory for a stage of the clustering process. In a resumable run, the
+     * directory's name is fixed so that it can be found again.
+     * @param name The directory's name.
+     * @return The directory.
+     * @throws Exception
+     */
+    private File createStageDirectory(String name) throws Exception {
+        if (runManifest == null) {
+            return createTemporaryDirectory(name, temporaryDirectory);
+        }
+
+        File directory = new File(temporaryDirectory, name);
+
+        if (!directory.isDirectory() && !directory.mkdir()) {
+            throw new Exception("Failed to create temporary directory " + directory);
+        }
+
+        return directory;
+    }
+
+    /**
+     * Deletes a temporary file or (empty) directory. In a resumable run the
+     * file is only deleted once the run is complete.
+     * @param file The file to delete.
+     */
+    private void deleteTemporaryFile(File file) {
+        if (runManifest != null) {
+            deferredDeletions.add(file);
+            return;
+        }
+
+        if (!file.delete()) {
+            // TODO: add notification at a later stage
+        }
+    }
+
+    /**
+     * Deletes the files that were kept to resume the run and the run manifest.
+     * @throws Exception
+     */
+    private void completeRun() throws Exception {
+        if (runManifest == null) {
+            return;
+        }
+
+        // files are deleted before their directories
+        for (File file : deferredDeletions) {
+            if (file.isFile()) {
+                file.delete();
+            }
+        }
+        for (File file : deferredDeletions) {
+            file.delete();
+        }
+
+        deferredDeletions.clear();
+        runManifest.delete();
+        runManifest = null;
+    }
+
+    /**
+     * Writes the remaining clusters of the converter and closes its .clustering file.
+     * @param clusteringConverter The converter to close.
+     * @throws Exception
+     */
+    private void closeClusteringFile(MergingClusteringConverter clusteringConverter) throws Exception {
+        notifyProgressListeners(new ProgressUpdate("Writing results to .clustering format...",
+                ProgressUpdate.CLUSTERING_STAGE.OUTPUT));
+
+        clusteringConverter.close();
+
+        notifyProgressListeners(new ProgressUpdate(
+                String.format("%d clusters successfully written to %s", clusteringConverter.getnClustersWritten(),
+                        clusteringConverter.getClusteringFile().toString()),
+                ProgressUpdate.CLUSTERING_STAGE.OUTPUT));
+    }
+
+    /**
+     * The name of the clustering written to the header of the .clustering file.
+     * @param clusteringThresholds The thresholds used. The last threshold is the target threshold.
+     * @return The clustering's name.
+     */
+    private String getClusteringName(List<Float> clusteringThresholds) {
+        return "GreedyClustering_" + String.valueOf(clusteringThresholds.get(clusteringThresholds.size() - 1));
     }
 
     /**
-     * Convert a cgf file to a .clustering file.
+     * Convert a cgf file to a .clustering file. Files ending in ".gz" are read and written compressed.
+     * A ClusteringIndex is written next to the .clustering file.
      * @param cgfResultFile The .cgf input file to convert.
      * @param clusteringOutputFile File to write the .clustering file to. This file will be overwritten if it exists.
      * @param targetThreshold The final threshold used during the clustering process. This will be written as
@@ -661,19 +1469,21 @@ public class SpectraClusterStandalone {
      * @throws Exception
      */
     public void convertCgfToClustering(File cgfResultFile, File clusteringOutputFile, float targetThreshold) throws Exception {
-        FileInputStream fileInputStream = new FileInputStream(cgfResultFile);
-        FileWriter writer = new FileWriter(clusteringOutputFile);
+        InputStream fileInputStream = CompressedFiles.openInputStream(cgfResultFile);
+        ParallelClusterFormatter formatter = new ParallelClusterFormatter(
+                CompressedFiles.openOutputStream(clusteringOutputFile, parallelJobs), parallelJobs);
+        formatter.writeIndex(ClusteringIndex.getIndexFile(clusteringOutputFile));
 
         int nClusterWritten = 0;
 
         notifyProgressListeners(new ProgressUpdate("Converting results to .clustering format...",
                 ProgressUpdate.CLUSTERING_STAGE.OUTPUT));
 
-        DotClusterClusterAppender.INSTANCE.appendStart(writer, "GreedyClustering_" + String.valueOf(targetThreshold));
+        formatter.appendStart("GreedyClustering_" + String.valueOf(targetThreshold));
         CGFSpectrumIterable iterable = new CGFSpectrumIterable(fileInputStream);
 
         for (ICluster cluster : iterable) {
-            DotClusterClusterAppender.INSTANCE.appendCluster(writer, cluster);
+            formatter.appendCluster(cluster);
             nClusterWritten++;
 
             if (nClusterWritten % 10000 == 0 && isVerbose()) {
@@ -683,7 +1493,8 @@ public class SpectraClusterStandalone {
             }
         }
 
-        writer.close();
+        formatter.close();
+        fileInputStream.close();
 
         notifyProgressListeners(new ProgressUpdate(
                 String.format("%d clusters successfully written to %s", nClusterWritten, clusteringOutputFile.toString()),
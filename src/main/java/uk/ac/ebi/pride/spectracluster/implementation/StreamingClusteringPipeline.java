@@ -0,0 +1,389 @@
+package uk.ac.ebi.pride.spectracluster.implementation;
+
+import uk.ac.ebi.pride.spectracluster.binning.BinaryFileRebinner;
+import uk.ac.ebi.pride.spectracluster.binning.BinningSpectrumConverter;
+import uk.ac.ebi.pride.spectracluster.binning.IBinningPlanListener;
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryClusterFileReference;
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryFileClusteringCallable;
+import uk.ac.ebi.pride.spectracluster.clustering.IBinaryClusteringResultListener;
+import uk.ac.ebi.pride.spectracluster.util.ClusteringJobReference;
+import uk.ac.ebi.pride.spectracluster.util.CompletionJobRunner;
+import uk.ac.ebi.pride.spectracluster.util.Defaults;
+import uk.ac.ebi.pride.spectracluster.util.IProgressListener;
+import uk.ac.ebi.pride.spectracluster.util.ProgressUpdate;
+import uk.ac.ebi.pride.spectracluster.util.predicate.IPredicate;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the conversion, clustering, re-binning and merging steps
+ * as one overlapping pipeline:
+ *
+ * - every bin is clustered as soon as its binary file was written
+ * - neighbouring bins are re-binned as soon as both are clustered
+ * - every re-binned file is merged as soon as it was written
+ * - merged files are passed to the result listener in m/z order as soon
+ *   as all files with a lower m/z were reported
+ *
+ * The result is the same as when the steps are run one after the other.
+ * All events are processed by the thread calling process, all jobs run in
+ * a shared thread pool.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class StreamingClusteringPipeline implements IBinningPlanListener, IBinaryClusteringResultListener {
+    private enum STAGE {
+        CONVERSION,
+        CLUSTERING,
+        MERGING
+    }
+
+    /**
+     * Result of a job run by the pipeline.
+     */
+    private static class StageResult {
+        public final STAGE stage;
+        public final int index;
+        public final ClusteringJobReference jobReference;
+
+        public StageResult(STAGE stage, int index, ClusteringJobReference jobReference) {
+            this.stage = stage;
+            this.index = index;
+            this.jobReference = jobReference;
+        }
+    }
+
+    private final int parallelJobs;
+    private final List<Float> thresholds;
+    private final boolean fastMode;
+    private final IPredicate<ICluster> clusterPredicate;
+    private final File temporaryDirectory;
+
+    private boolean deleteBinaryFiles = true;
+    private boolean deleteTemporaryFiles = true;
+    private boolean mergeFinalThresholdOnly = false;
+    private List<IProgressListener> progressListeners = new ArrayList<IProgressListener>();
+
+    private CompletionJobRunner<StageResult> jobRunner;
+    private ExecutorService ioExecutor;
+    private File clusteringResultDirectory;
+    private File tmpClusteringResultDirectory;
+    private File rebinnedFilesDirectory;
+    private File mergedResultsDirectory;
+    private File tmpMergedResultsDirectory;
+
+    /**
+     * The files the converter is going to write sorted by m/z. Set by the converter's thread.
+     */
+    private volatile List<BinaryClusterFileReference> plannedFiles;
+    private volatile Map<String, Integer> plannedFileIndices;
+
+    private BinaryClusterFileReference[] clusteredFiles;
+    private BinaryFileRebinner rebinner;
+    private int nextRebinningIndex = 0;
+    private int nRebinnedFiles = 0;
+    private Map<Integer, BinaryClusterFileReference> mergedFiles = new HashMap<Integer, BinaryClusterFileReference>();
+    private int nextResultIndex = 0;
+    private IBinaryClusteringResultListener resultListener;
+
+    /**
+     * Creates a new pipeline.
+     * @param parallelJobs Number of clustering and merging jobs to run in parallel.
+     * @param thresholds The clustering thresholds to use.
+     * @param fastMode If set, no peak filter is applied during the comparisons.
+     * @param clusterPredicate If set, clusters that do not fulfill this predicate are ignored.
+     * @param temporaryDirectory Directory to create the temporary directories in.
+     */
+    public StreamingClusteringPipeline(int parallelJobs, List<Float> thresholds, boolean fastMode,
+                                       IPredicate<ICluster> clusterPredicate, File temporaryDirectory) {
+        this.parallelJobs = parallelJobs;
+        this.thresholds = thresholds;
+        this.fastMode = fastMode;
+        this.clusterPredicate = clusterPredicate;
+        this.temporaryDirectory = temporaryDirectory;
+    }
+
+    /**
+     * Converts and clusters the passed peak list files.
+     * @param converter The converter to use. Its output directory must exist.
+     * @param peaklistFilenames The files to process.
+     * @param resultListener Listener that receives the merged result files in m/z order.
+     * @throws Exception
+     */
+    public void process(final BinningSpectrumConverter converter, final String[] peaklistFilenames,
+                        IBinaryClusteringResultListener resultListener) throws Exception {
+        this.resultListener = resultListener;
+
+        clusteringResultDirectory = SpectraClusterStandalone.createTemporaryDirectory("clustering_results", temporaryDirectory);
+        tmpClusteringResultDirectory = SpectraClusterStandalone.createTemporaryDirectory("clustering_results_tmp", temporaryDirectory);
+        rebinnedFilesDirectory = SpectraClusterStandalone.createTemporaryDirectory("rebinned_files", temporaryDirectory);
+        mergedResultsDirectory = SpectraClusterStandalone.createTemporaryDirectory("merged_results", temporaryDirectory);
+        tmpMergedResultsDirectory = SpectraClusterStandalone.createTemporaryDirectory("merged_results_tmp", temporaryDirectory);
+
+        // one additional thread for the conversion job which mostly waits for its writers
+        jobRunner = new CompletionJobRunner<StageResult>(parallelJobs + 1);
+        ioExecutor = Executors.newFixedThreadPool(ClusteringSettings.getIoThreads(parallelJobs));
+
+        converter.addBinningPlanListener(this);
+        converter.addWrittenFileListener(this);
+
+        jobRunner.submit(new Callable<StageResult>() {
+            @Override
+            public StageResult call() throws Exception {
+                converter.processPeaklistFiles(peaklistFilenames);
+
+                return new StageResult(STAGE.CONVERSION, -1, null);
+            }
+        });
+
+        try {
+            boolean conversionComplete = false;
+
+            while (!conversionComplete || !isComplete()) {
+                StageResult result = jobRunner.takeCompleted();
+
+                switch (result.stage) {
+                    case CONVERSION:
+                        conversionComplete = true;
+
+                        if (plannedFiles == null || plannedFiles.isEmpty()) {
+                            throw new Exception("No spectra found in the input files.");
+                        }
+                        break;
+                    case CLUSTERING:
+                        onClusteringCompleted(result.index, result.jobReference);
+                        break;
+                    case MERGING:
+                        onMergingCompleted(result.index, result.jobReference);
+                        break;
+                }
+            }
+        }
+        catch (Exception e) {
+            jobRunner.cancelAll();
+            throw e;
+        }
+        finally {
+            // stops all readers in case a job failed
+            ioExecutor.shutdownNow();
+        }
+
+        jobRunner.shutdown();
+
+        // delete the (empty) temporary directories
+        tmpClusteringResultDirectory.delete();
+        tmpMergedResultsDirectory.delete();
+
+        if (deleteTemporaryFiles) {
+            clusteringResultDirectory.delete();
+            rebinnedFilesDirectory.delete();
+            mergedResultsDirectory.delete();
+        }
+    }
+
+    /**
+     * Called by the converter before the first file is written.
+     * @param plannedFiles All files that will be written sorted by m/z.
+     */
+    @Override
+    public void onBinningPlanned(List<BinaryClusterFileReference> plannedFiles) {
+        Map<String, Integer> indices = new HashMap<String, Integer>();
+
+        for (int i = 0; i < plannedFiles.size(); i++) {
+            String path = plannedFiles.get(i).getResultFile().getAbsolutePath();
+
+            if (indices.containsKey(path)) {
+                throw new IllegalStateException("Multiple bins are written to " + path);
+            }
+
+            indices.put(path, i);
+        }
+
+        this.clusteredFiles = new BinaryClusterFileReference[plannedFiles.size()];
+        this.plannedFileIndices = indices;
+        this.plannedFiles = plannedFiles;
+    }
+
+    /**
+     * Called by the converter as soon as a binary file was written.
+     * @param writtenFile The written file.
+     */
+    @Override
+    public void onNewResultFile(BinaryClusterFileReference writtenFile) {
+        final Integer index = plannedFileIndices.get(writtenFile.getResultFile().getAbsolutePath());
+
+        if (index == null) {
+            throw new IllegalStateException("Unexpected binary file " + writtenFile.getResultFile());
+        }
+
+        File outputFile = new File(clusteringResultDirectory, writtenFile.getResultFile().getName());
+        final BinaryFileClusteringCallable clusteringCallable = new BinaryFileClusteringCallable(outputFile,
+                writtenFile.getResultFile(), thresholds, fastMode, tmpClusteringResultDirectory, clusterPredicate);
+        clusteringCallable.setIoExecutor(ioExecutor);
+
+        submitJob(STAGE.CLUSTERING, index, clusteringCallable);
+    }
+
+    private void submitJob(final STAGE stage, final int index, final Callable<ClusteringJobReference> job) {
+        jobRunner.submit(new Callable<StageResult>() {
+            @Override
+            public StageResult call() throws Exception {
+                return new StageResult(stage, index, job.call());
+            }
+        });
+    }
+
+    private void onClusteringCompleted(int index, ClusteringJobReference jobReference) throws Exception {
+        BinaryClusterFileReference clusteredFile = jobReference.getOutputFile();
+        clusteredFiles[index] = clusteredFile;
+
+        if (deleteBinaryFiles) {
+            jobReference.getInputFile().delete();
+        }
+
+        notifyProgressListeners(new ProgressUpdate(
+                String.format("Completed clustering %d spectra (%.2f m/z to %.2f m/z)",
+                        clusteredFile.getnSpectra(), clusteredFile.getMinMz(), clusteredFile.getMaxMz()),
+                ProgressUpdate.CLUSTERING_STAGE.CLUSTERING));
+
+        rebinClusteredFiles();
+    }
+
+    /**
+     * Re-bins the clustered files as long as the next file and its
+     * neighbour are available.
+     * @throws Exception
+     */
+    private void rebinClusteredFiles() throws Exception {
+        int nFiles = clusteredFiles.length;
+
+        // a single file does not need to be re-binned
+        if (nFiles == 1) {
+            if (nextRebinningIndex == 0 && clusteredFiles[0] != null) {
+                nextRebinningIndex++;
+                onNewRebinnedFile(clusteredFiles[0]);
+            }
+            return;
+        }
+
+        if (rebinner == null) {
+            rebinner = new BinaryFileRebinner(rebinnedFilesDirectory, Defaults.getDefaultPrecursorIonTolerance(), nFiles);
+        }
+
+        while (nextRebinningIndex < nFiles && clusteredFiles[nextRebinningIndex] != null &&
+                (nextRebinningIndex == nFiles - 1 || clusteredFiles[nextRebinningIndex + 1] != null)) {
+            BinaryClusterFileReference clusteredFile = clusteredFiles[nextRebinningIndex];
+            BinaryClusterFileReference nextClusteredFile = (nextRebinningIndex < nFiles - 1) ?
+                    clusteredFiles[nextRebinningIndex + 1] : null;
+
+            List<BinaryClusterFileReference> rebinnedFiles = rebinner.processInputFile(clusteredFile, nextClusteredFile);
+            nextRebinningIndex++;
+
+            if (deleteTemporaryFiles) {
+                clusteredFile.getResultFile().delete();
+            }
+
+            for (BinaryClusterFileReference rebinnedFile : rebinnedFiles) {
+                onNewRebinnedFile(rebinnedFile);
+            }
+        }
+    }
+
+    private void onNewRebinnedFile(BinaryClusterFileReference rebinnedFile) throws Exception {
+        int index = nRebinnedFiles++;
+
+        // the first file is not merged
+        if (index == 0) {
+            mergedFiles.put(index, rebinnedFile);
+            reportMergedFiles();
+            return;
+        }
+
+        // only the overlapping region is clustered again
+        double maxMz = rebinnedFile.getMinMz() + Defaults.getDefaultPrecursorIonTolerance() * 2;
+        File outputFile = new File(mergedResultsDirectory, rebinnedFile.getResultFile().getName());
+        BinaryFileClusteringCallable mergingCallable = new BinaryFileClusteringCallable(outputFile,
+                rebinnedFile.getResultFile(), thresholds, fastMode, 0, (float) maxMz, tmpMergedResultsDirectory, null);
+        mergingCallable.setIoExecutor(ioExecutor);
+        mergingCallable.setFinalRoundOnly(mergeFinalThresholdOnly);
+
+        submitJob(STAGE.MERGING, index, mergingCallable);
+    }
+
+    private void onMergingCompleted(int index, ClusteringJobReference jobReference) throws Exception {
+        mergedFiles.put(index, jobReference.getOutputFile());
+
+        if (deleteTemporaryFiles) {
+            jobReference.getInputFile().delete();
+        }
+
+        reportMergedFiles();
+    }
+
+    /**
+     * Passes all merged files to the result listener for which all files
+     * with a lower m/z were already reported.
+     */
+    private void reportMergedFiles() {
+        while (mergedFiles.containsKey(nextResultIndex)) {
+            BinaryClusterFileReference mergedFile = mergedFiles.remove(nextResultIndex);
+            nextResultIndex++;
+
+            resultListener.onNewResultFile(mergedFile);
+
+            notifyProgressListeners(new ProgressUpdate(
+                    String.format("Completed merging %d spectra (%.2f m/z to %.2f m/z)",
+                            mergedFile.getnSpectra(), mergedFile.getMinMz(), mergedFile.getMaxMz()),
+                    ProgressUpdate.CLUSTERING_STAGE.MERGING, nextResultIndex, nRebinnedFiles));
+        }
+    }
+
+    /**
+     * The pipeline is complete once all files were re-binned and all
+     * re-binned files were reported.
+     * @return
+     */
+    private boolean isComplete() {
+        return clusteredFiles != null && nextRebinningIndex == clusteredFiles.length &&
+                nextResultIndex == nRebinnedFiles;
+    }
+
+    private void notifyProgressListeners(ProgressUpdate progressUpdate) {
+        for (IProgressListener progressListener : progressListeners) {
+            progressListener.onProgressUpdate(progressUpdate);
+        }
+    }
+
+    public void addProgressListener(IProgressListener progressListener) {
+        progressListeners.add(progressListener);
+    }
+
+    /**
+     * If set, the converted binary files are deleted once they were clustered.
+     * @param deleteBinaryFiles
+     */
+    public void setDeleteBinaryFiles(boolean deleteBinaryFiles) {
+        this.deleteBinaryFiles = deleteBinaryFiles;
+    }
+
+    /**
+     * If set, intermediate files are deleted as soon as they were processed.
+     * @param deleteTemporaryFiles
+     */
+    public void setDeleteTemporaryFiles(boolean deleteTemporaryFiles) {
+        this.deleteTemporaryFiles = deleteTemporaryFiles;
+    }
+
+    /**
+     * If set, only the final threshold is used to merge neighbouring bins.
+     * @param mergeFinalThresholdOnly
+     */
+    public void setMergeFinalThresholdOnly(boolean mergeFinalThresholdOnly) {
+        this.mergeFinalThresholdOnly = mergeFinalThresholdOnly;
+    }
+}
@@ -0,0 +1,73 @@
+package uk.ac.ebi.pride.spectracluster.index;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The fields of a cluster in a .clustering file that are stored in
+ * the ClusteringIndex. The entries are created by parsing the
+ * cluster's text so that the index always matches the written file.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class ClusterIndexEntry {
+    public static final String CLUSTER_START = "=Cluster=";
+
+    private static final String ID_PREFIX = "id=";
+    private static final String PRECURSOR_MZ_PREFIX = "av_precursor_mz=";
+    private static final String SPECTRUM_PREFIX = "SPEC\t";
+
+    private String id = "";
+    private double precursorMz = 0;
+    private final List<String> spectrumIds = new ArrayList<String>();
+
+    /**
+     * Parses the text of a single cluster.
+     * @param clusterText The cluster's lines starting with "=Cluster=".
+     * @return The parsed entry.
+     */
+    public static ClusterIndexEntry fromText(String clusterText) {
+        ClusterIndexEntry entry = new ClusterIndexEntry();
+
+        int lineStart = 0;
+        while (lineStart < clusterText.length()) {
+            int lineEnd = clusterText.indexOf('\n', lineStart);
+
+            if (lineEnd < 0) {
+                lineEnd = clusterText.length();
+            }
+
+            entry.parseLine(clusterText.substring(lineStart, lineEnd));
+            lineStart = lineEnd + 1;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Adds the information of a line belonging to this cluster.
+     * @param line The line without the line break.
+     */
+    public void parseLine(String line) {
+        if (line.startsWith(ID_PREFIX)) {
+            id = line.substring(ID_PREFIX.length());
+        } else if (line.startsWith(PRECURSOR_MZ_PREFIX)) {
+            precursorMz = Double.parseDouble(line.substring(PRECURSOR_MZ_PREFIX.length()));
+        } else if (line.startsWith(SPECTRUM_PREFIX)) {
+            int idEnd = line.indexOf('\t', SPECTRUM_PREFIX.length());
+            spectrumIds.add(line.substring(SPECTRUM_PREFIX.length(), idEnd < 0 ? line.length() : idEnd));
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public double getPrecursorMz() {
+        return precursorMz;
+    }
+
+    public List<String> getSpectrumIds() {
+        return spectrumIds;
+    }
+}
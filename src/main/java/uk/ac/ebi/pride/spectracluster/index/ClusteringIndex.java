@@ -0,0 +1,352 @@
+package uk.ac.ebi.pride.spectracluster.index;
+
+import uk.ac.ebi.pride.spectracluster.util.CompressedFiles;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Binary index of a .clustering file. The index is stored next to
+ * the .clustering file (INDEX_SUFFIX) and allows looking up clusters
+ * by their id, the id of a member spectrum, or their precursor m/z
+ * without reading the whole file.
+ *
+ * The index file starts with a header followed by these tables:
+ *  - the gzip members of compressed files (uncompressed offset, compressed offset)
+ *  - the offset of every cluster in the uncompressed file, in file order
+ *  - (hash of the cluster id, cluster number) sorted by hash
+ *  - (precursor m/z, cluster number) sorted by m/z
+ *  - (hash of the spectrum id, cluster number) sorted by hash
+ *
+ * All lookups are binary searches on the index file. Since ids are
+ * stored as hashes, every found cluster is read and compared to the
+ * query.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class ClusteringIndex implements Closeable {
+    public static final String INDEX_SUFFIX = ".idx";
+
+    static final int MAGIC = 0x53434958;
+    static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 4;
+    private static final int RECORD_SIZE = 16;
+
+    private final File clusteringFile;
+    private final RandomAccessFile indexFile;
+    private final Charset charset = Charset.defaultCharset();
+
+    private final long nClusters;
+    private final long nSpectra;
+    private final long[] blockOffsets;
+    private final long[] memberOffsets;
+
+    private final long offsetsStart;
+    private final long idTableStart;
+    private final long mzTableStart;
+    private final long spectrumTableStart;
+
+    private final byte[] recordBuffer = new byte[RECORD_SIZE];
+    private final ByteBuffer record = ByteBuffer.wrap(recordBuffer);
+
+    /**
+     * Opens the index of the .clustering file.
+     * @param clusteringFile The .clustering file.
+     * @throws IOException If the index does not exist or does not match the file.
+     */
+    public ClusteringIndex(File clusteringFile) throws IOException {
+        this.clusteringFile = clusteringFile;
+
+        File file = getIndexFile(clusteringFile);
+        if (!file.exists()) {
+            throw new FileNotFoundException("No index found for " + clusteringFile);
+        }
+
+        this.indexFile = new RandomAccessFile(file, "r");
+
+        try {
+            if (indexFile.readInt() != MAGIC || indexFile.readInt() != VERSION) {
+                throw new IOException(file + " is not a supported index file");
+            }
+
+            if (indexFile.readLong() != clusteringFile.length()) {
+                throw new IOException("The index " + file + " is outdated, " + clusteringFile + " was changed");
+            }
+
+            nClusters = indexFile.readLong();
+            nSpectra = indexFile.readLong();
+
+            int nBlocks = indexFile.readInt();
+            blockOffsets = new long[nBlocks];
+            memberOffsets = new long[nBlocks];
+
+            byte[] blockTable = new byte[nBlocks * RECORD_SIZE];
+            indexFile.readFully(blockTable);
+
+            ByteBuffer blockBuffer = ByteBuffer.wrap(blockTable);
+            for (int i = 0; i < nBlocks; i++) {
+                blockOffsets[i] = blockBuffer.getLong();
+                memberOffsets[i] = blockBuffer.getLong();
+            }
+        } catch (IOException e) {
+            indexFile.close();
+            throw e;
+        }
+
+        offsetsStart = HEADER_SIZE + (long) blockOffsets.length * RECORD_SIZE;
+        idTableStart = offsetsStart + nClusters * 8;
+        mzTableStart = idTableStart + nClusters * RECORD_SIZE;
+        spectrumTableStart = mzTableStart + nClusters * RECORD_SIZE;
+    }
+
+    public static File getIndexFile(File clusteringFile) {
+        return new File(clusteringFile.getPath() + INDEX_SUFFIX);
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the String's characters.
+     */
+    static long hash(String string) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < string.length(); i++) {
+            hash ^= string.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    /**
+     * Finds the cluster with the defined id.
+     * @param clusterId The cluster's id.
+     * @return The clusters' text (empty if the cluster does not exist).
+     * @throws IOException
+     */
+    public List<String> findCluster(String clusterId) throws IOException {
+        List<String> clusters = new ArrayList<String>();
+
+        for (long ordinal : findOrdinals(idTableStart, nClusters, hash(clusterId))) {
+            String clusterText = readCluster(ordinal);
+
+            if (ClusterIndexEntry.fromText(clusterText).getId().equals(clusterId)) {
+                clusters.add(clusterText);
+            }
+        }
+
+        return clusters;
+    }
+
+    /**
+     * Finds the clusters containing the defined spectrum.
+     * @param spectrumId The spectrum's id as written in the SPEC line.
+     * @return The clusters' text.
+     * @throws IOException
+     */
+    public List<String> findClustersBySpectrum(String spectrumId) throws IOException {
+        List<String> clusters = new ArrayList<String>();
+
+        // a spectrum may be listed twice in the same cluster
+        for (long ordinal : new TreeSet<Long>(findOrdinals(spectrumTableStart, nSpectra, hash(spectrumId)))) {
+            String clusterText = readCluster(ordinal);
+
+            if (ClusterIndexEntry.fromText(clusterText).getSpectrumIds().contains(spectrumId)) {
+                clusters.add(clusterText);
+            }
+        }
+
+        return clusters;
+    }
+
+    /**
+     * Finds all clusters with a precursor m/z within the range.
+     * @param minMz The minimum precursor m/z (inclusive).
+     * @param maxMz The maximum precursor m/z (inclusive).
+     * @return The clusters' text sorted by precursor m/z.
+     * @throws IOException
+     */
+    public List<String> findClustersByMz(double minMz, double maxMz) throws IOException {
+        List<String> clusters = new ArrayList<String>();
+
+        // the bits of positive doubles have the same order as their values
+        long minKey = Double.doubleToLongBits(Math.max(minMz, 0));
+        long maxKey = Double.doubleToLongBits(maxMz);
+
+        for (long i = lowerBound(mzTableStart, nClusters, minKey); i < nClusters; i++) {
+            readRecord(mzTableStart, i);
+
+            if (getKey() > maxKey) {
+                break;
+            }
+
+            clusters.add(readCluster(getValue()));
+        }
+
+        return clusters;
+    }
+
+    public long getnClusters() {
+        return nClusters;
+    }
+
+    @Override
+    public void close() throws IOException {
+        indexFile.close();
+    }
+
+    /**
+     * Returns the values of all records with the key.
+     */
+    private List<Long> findOrdinals(long tableStart, long nRecords, long key) throws IOException {
+        List<Long> ordinals = new ArrayList<Long>();
+
+        for (long i = lowerBound(tableStart, nRecords, key); i < nRecords; i++) {
+            readRecord(tableStart, i);
+
+            if (getKey() != key) {
+                break;
+            }
+
+            ordinals.add(getValue());
+        }
+
+        return ordinals;
+    }
+
+    /**
+     * Position of the first record whose key is not less than the defined key.
+     */
+    private long lowerBound(long tableStart, long nRecords, long key) throws IOException {
+        long low = 0;
+        long high = nRecords;
+
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            readRecord(tableStart, middle);
+
+            if (getKey() < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    private void readRecord(long tableStart, long position) throws IOException {
+        indexFile.seek(tableStart + position * RECORD_SIZE);
+        indexFile.readFully(recordBuffer);
+    }
+
+    private long getKey() {
+        return record.getLong(0);
+    }
+
+    private long getValue() {
+        return record.getLong(8);
+    }
+
+    /**
+     * Reads the text of the cluster with the defined number.
+     */
+    private String readCluster(long ordinal) throws IOException {
+        indexFile.seek(offsetsStart + ordinal * 8);
+        long offset = indexFile.readLong();
+
+        InputStream inputStream = openClusteringFile(offset);
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, charset));
+            StringBuilder clusterText = new StringBuilder();
+            boolean clusterStarted = false;
+            String line;
+
+            // the cluster ends with the next cluster's start
+            while ((line = reader.readLine()) != null) {
+                if (line.equals(ClusterIndexEntry.CLUSTER_START)) {
+                    if (clusterStarted) {
+                        break;
+                    }
+                    clusterStarted = true;
+                }
+
+                // ignore blank lines preceding the cluster
+                if (clusterStarted) {
+                    clusterText.append(line).append("\n");
+                }
+            }
+
+            return clusterText.toString();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Opens the .clustering file at the defined position of the uncompressed data.
+     */
+    private InputStream openClusteringFile(long offset) throws IOException {
+        FileInputStream fileInputStream = new FileInputStream(clusteringFile);
+
+        try {
+            if (blockOffsets.length == 0) {
+                fileInputStream.getChannel().position(offset);
+                return new BufferedInputStream(fileInputStream);
+            }
+
+            // only the member containing the position has to be decompressed
+            int block = findBlock(offset);
+
+            fileInputStream.getChannel().position(memberOffsets[block]);
+            InputStream inputStream = new BufferedInputStream(new GZIPInputStream(fileInputStream));
+            skipFully(inputStream, offset - blockOffsets[block]);
+
+            return inputStream;
+        } catch (IOException e) {
+            fileInputStream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Last block starting before or at the position.
+     */
+    private int findBlock(long offset) {
+        int low = 0;
+        int high = blockOffsets.length - 1;
+
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+
+            if (blockOffsets[middle] <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return low;
+    }
+
+    private static void skipFully(InputStream inputStream, long nBytes) throws IOException {
+        while (nBytes > 0) {
+            long skippedBytes = inputStream.skip(nBytes);
+
+            if (skippedBytes <= 0) {
+                if (inputStream.read() == -1) {
+                    throw new EOFException("Unexpected end of compressed file");
+                }
+                skippedBytes = 1;
+            }
+
+            nBytes -= skippedBytes;
+        }
+    }
+}
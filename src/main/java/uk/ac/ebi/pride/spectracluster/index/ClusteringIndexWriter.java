@@ -0,0 +1,240 @@
+package uk.ac.ebi.pride.spectracluster.index;
+
+import uk.ac.ebi.pride.spectracluster.util.CompressedFiles;
+
+import java.io.*;
+import java.nio.charset.Charset;
+
+/**
+ * Writes the ClusteringIndex of a .clustering file. The clusters are
+ * added in the order they were written together with their offset in
+ * the (uncompressed) file. Clusters can either be added directly or
+ * through the file's lines.
+ *
+ * The lookup tables are sorted on disk (see RecordSorter) so that
+ * the memory usage does not depend on the size of the file.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class ClusteringIndexWriter {
+    private final File indexFile;
+    private final File offsetsFile;
+    private final DataOutputStream offsetsStream;
+
+    private final RecordSorter idRecords;
+    private final RecordSorter mzRecords;
+    private final RecordSorter spectrumRecords;
+    private long nClusters = 0;
+
+    private long[] blockOffsets = new long[0];
+    private long[] memberOffsets = new long[0];
+
+    /**
+     * The cluster currently added through addLine
+     */
+    private ClusterIndexEntry currentEntry = null;
+    private long currentOffset = 0;
+
+    /**
+     * Creates a new ClusteringIndexWriter. Temporary files are created in the
+     * index file's directory.
+     * @param indexFile The index file to write. This file will be overwritten if it exists.
+     * @throws IOException
+     */
+    public ClusteringIndexWriter(File indexFile) throws IOException {
+        this.indexFile = indexFile;
+        this.offsetsFile = new File(indexFile.getPath() + ".offsets.tmp");
+        this.offsetsStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(offsetsFile)));
+
+        File temporaryDirectory = indexFile.getAbsoluteFile().getParentFile();
+        this.idRecords = new RecordSorter(temporaryDirectory);
+        this.mzRecords = new RecordSorter(temporaryDirectory);
+        this.spectrumRecords = new RecordSorter(temporaryDirectory);
+    }
+
+    /**
+     * Adds a cluster to the index. Clusters must be added in the order
+     * they were written.
+     * @param offset The position of the cluster's first byte in the uncompressed file.
+     * @param entry The cluster's indexed fields.
+     * @throws IOException
+     */
+    public void addCluster(long offset, ClusterIndexEntry entry) throws IOException {
+        long ordinal = nClusters++;
+
+        offsetsStream.writeLong(offset);
+        idRecords.add(ClusteringIndex.hash(entry.getId()), ordinal);
+        mzRecords.add(Double.doubleToLongBits(entry.getPrecursorMz()), ordinal);
+
+        for (String spectrumId : entry.getSpectrumIds()) {
+            spectrumRecords.add(ClusteringIndex.hash(spectrumId), ordinal);
+        }
+    }
+
+    /**
+     * Adds the next line of the .clustering file. Lines of the file's
+     * header are ignored.
+     * @param line The line without the line break.
+     * @param offset The position of the line's first byte in the uncompressed file.
+     * @throws IOException
+     */
+    public void addLine(String line, long offset) throws IOException {
+        if (line.equals(ClusterIndexEntry.CLUSTER_START)) {
+            addCurrentEntry();
+            currentEntry = new ClusterIndexEntry();
+            currentOffset = offset;
+        } else if (currentEntry != null) {
+            currentEntry.parseLine(line);
+        }
+    }
+
+    private void addCurrentEntry() throws IOException {
+        if (currentEntry != null) {
+            addCluster(currentOffset, currentEntry);
+            currentEntry = null;
+        }
+    }
+
+    /**
+     * Defines the gzip members of a compressed file as written by
+     * ParallelGzipOutputStream.
+     * @param blockSize Uncompressed size of every member.
+     * @param memberOffsets Offset of every member in the compressed file.
+     */
+    public void setCompressedBlocks(int blockSize, long[] memberOffsets) {
+        this.memberOffsets = memberOffsets;
+        this.blockOffsets = new long[memberOffsets.length];
+
+        for (int i = 0; i < memberOffsets.length; i++) {
+            blockOffsets[i] = (long) i * blockSize;
+        }
+    }
+
+    /**
+     * Writes the index file and deletes all temporary files.
+     * @param clusteringFileLength Size of the .clustering file on disk. Used to detect outdated indexes.
+     * @throws IOException
+     */
+    public void close(long clusteringFileLength) throws IOException {
+        try {
+            addCurrentEntry();
+            offsetsStream.close();
+
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(indexFile), CompressedFiles.BUFFER_SIZE));
+
+            try {
+                outputStream.writeInt(ClusteringIndex.MAGIC);
+                outputStream.writeInt(ClusteringIndex.VERSION);
+                outputStream.writeLong(clusteringFileLength);
+                outputStream.writeLong(nClusters);
+                outputStream.writeLong(spectrumRecords.getnRecords());
+                outputStream.writeInt(memberOffsets.length);
+
+                for (int i = 0; i < memberOffsets.length; i++) {
+                    outputStream.writeLong(blockOffsets[i]);
+                    outputStream.writeLong(memberOffsets[i]);
+                }
+
+                copyOffsets(outputStream);
+                idRecords.writeSorted(outputStream);
+                mzRecords.writeSorted(outputStream);
+                spectrumRecords.writeSorted(outputStream);
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            deleteTemporaryFiles();
+        }
+    }
+
+    /**
+     * Deletes all temporary files and the (incomplete) index file.
+     */
+    public void abort() {
+        try {
+            offsetsStream.close();
+        } catch (IOException e) {
+            // the index is deleted anyway
+        }
+
+        deleteTemporaryFiles();
+        indexFile.delete();
+    }
+
+    private void copyOffsets(OutputStream outputStream) throws IOException {
+        InputStream inputStream = new FileInputStream(offsetsFile);
+
+        try {
+            byte[] buffer = new byte[CompressedFiles.BUFFER_SIZE];
+            int readBytes;
+
+            while ((readBytes = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, readBytes);
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private void deleteTemporaryFiles() {
+        offsetsFile.delete();
+        idRecords.delete();
+        mzRecords.delete();
+        spectrumRecords.delete();
+    }
+
+    /**
+     * Creates the index of an existing .clustering file. Compressed files
+     * that were not written by this tool are treated as a single block, looking
+     * up a cluster then requires decompressing the file up to its position.
+     * @param clusteringFile The .clustering file to index.
+     * @return The written index file.
+     * @throws IOException
+     */
+    public static File indexClusteringFile(File clusteringFile) throws IOException {
+        File indexFile = ClusteringIndex.getIndexFile(clusteringFile);
+        ClusteringIndexWriter indexWriter = new ClusteringIndexWriter(indexFile);
+
+        try {
+            if (CompressedFiles.isCompressed(clusteringFile)) {
+                indexWriter.setCompressedBlocks(0, new long[]{0});
+            }
+
+            InputStream inputStream = CompressedFiles.openInputStream(clusteringFile);
+            Charset charset = Charset.defaultCharset();
+
+            try {
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                long offset = 0;
+                long lineOffset = 0;
+                int b;
+
+                while ((b = inputStream.read()) != -1) {
+                    offset++;
+
+                    if (b == '\n') {
+                        indexWriter.addLine(new String(line.toByteArray(), charset), lineOffset);
+                        line.reset();
+                        lineOffset = offset;
+                    } else {
+                        line.write(b);
+                    }
+                }
+
+                if (line.size() > 0) {
+                    indexWriter.addLine(new String(line.toByteArray(), charset), lineOffset);
+                }
+            } finally {
+                inputStream.close();
+            }
+
+            indexWriter.close(clusteringFile.length());
+        } catch (IOException e) {
+            indexWriter.abort();
+            throw e;
+        }
+
+        return indexFile;
+    }
+}
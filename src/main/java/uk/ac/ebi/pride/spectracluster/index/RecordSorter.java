@@ -0,0 +1,267 @@
+package uk.ac.ebi.pride.spectracluster.index;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts (key, value) records of two longs by their key. Records are
+ * held in memory until RUN_SIZE records were added. Every full run is
+ * sorted and written to a temporary file, the runs are merged when the
+ * records are written. At most MAX_MERGE_FAN_IN runs are opened at once,
+ * more runs are first merged in groups into larger runs.
+ *
+ * Created by jg on 19.10.26.
+ */
+class RecordSorter {
+    /**
+     * Maximum number of records held in memory
+     */
+    public static final int RUN_SIZE = 1024 * 1024;
+    /**
+     * Maximum number of runs that are merged at once
+     */
+    public static final int MAX_MERGE_FAN_IN = 64;
+    /**
+     * Number of records below which the sort uses insertion sort
+     */
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final File temporaryDirectory;
+    private final List<File> runFiles = new ArrayList<File>();
+
+    private long[] keys = new long[1024];
+    private long[] values = new long[1024];
+    private int size = 0;
+    private long nRecords = 0;
+
+    /**
+     * @param temporaryDirectory Directory to write the sorted runs to.
+     */
+    public RecordSorter(File temporaryDirectory) {
+        this.temporaryDirectory = temporaryDirectory;
+    }
+
+    public void add(long key, long value) throws IOException {
+        if (size == keys.length) {
+            if (size >= RUN_SIZE) {
+                writeRun();
+            } else {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+        }
+
+        keys[size] = key;
+        values[size] = value;
+        size++;
+        nRecords++;
+    }
+
+    public long getnRecords() {
+        return nRecords;
+    }
+
+    /**
+     * Writes all records sorted by their key.
+     * @param outputStream The stream to write to.
+     * @throws IOException
+     */
+    public void writeSorted(DataOutputStream outputStream) throws IOException {
+        sort(0, size - 1);
+
+        if (runFiles.isEmpty()) {
+            for (int i = 0; i < size; i++) {
+                outputStream.writeLong(keys[i]);
+                outputStream.writeLong(values[i]);
+            }
+
+            return;
+        }
+
+        writeRun();
+
+        // merge groups of runs until the remaining runs can be opened at once
+        List<File> currentRuns = new ArrayList<File>(runFiles);
+
+        while (currentRuns.size() > MAX_MERGE_FAN_IN) {
+            List<File> mergedRuns = new ArrayList<File>();
+
+            for (int i = 0; i < currentRuns.size(); i += MAX_MERGE_FAN_IN) {
+                List<File> group = currentRuns.subList(i, Math.min(i + MAX_MERGE_FAN_IN, currentRuns.size()));
+
+                if (group.size() == 1) {
+                    mergedRuns.add(group.get(0));
+                    continue;
+                }
+
+                File mergedRun = File.createTempFile("index_run_", ".tmp", temporaryDirectory);
+                runFiles.add(mergedRun);
+                mergedRuns.add(mergedRun);
+
+                DataOutputStream runStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mergedRun)));
+
+                try {
+                    mergeRuns(group, runStream);
+                } finally {
+                    runStream.close();
+                }
+
+                for (File runFile : group) {
+                    runFile.delete();
+                    runFiles.remove(runFile);
+                }
+            }
+
+            currentRuns = mergedRuns;
+        }
+
+        mergeRuns(currentRuns, outputStream);
+    }
+
+    /**
+     * Deletes all temporary files.
+     */
+    public void delete() {
+        for (File runFile : runFiles) {
+            runFile.delete();
+        }
+
+        runFiles.clear();
+    }
+
+    private void writeRun() throws IOException {
+        sort(0, size - 1);
+
+        File runFile = File.createTempFile("index_run_", ".tmp", temporaryDirectory);
+        runFiles.add(runFile);
+
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile)));
+
+        try {
+            for (int i = 0; i < size; i++) {
+                outputStream.writeLong(keys[i]);
+                outputStream.writeLong(values[i]);
+            }
+        } finally {
+            outputStream.close();
+        }
+
+        size = 0;
+    }
+
+    private void mergeRuns(List<File> runs, DataOutputStream outputStream) throws IOException {
+        PriorityQueue<RunReader> readers = new PriorityQueue<RunReader>(runs.size());
+
+        try {
+            for (File runFile : runs) {
+                RunReader reader = new RunReader(runFile);
+
+                if (reader.next()) {
+                    readers.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+
+            while (!readers.isEmpty()) {
+                RunReader reader = readers.poll();
+                outputStream.writeLong(reader.key);
+                outputStream.writeLong(reader.value);
+
+                if (reader.next()) {
+                    readers.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Quicksort of the parallel key and value arrays.
+     */
+    private void sort(int left, int right) {
+        while (right - left >= INSERTION_SORT_THRESHOLD) {
+            // median of three avoids the worst case for (almost) sorted input
+            int middle = (left + right) >>> 1;
+            if (keys[middle] < keys[left]) swap(middle, left);
+            if (keys[right] < keys[left]) swap(right, left);
+            if (keys[right] < keys[middle]) swap(right, middle);
+            long pivot = keys[middle];
+
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (keys[i] < pivot) i++;
+                while (keys[j] > pivot) j--;
+
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+
+            // recurse into the smaller part to limit the stack depth
+            if (j - left < right - i) {
+                sort(left, j);
+                left = i;
+            } else {
+                sort(i, right);
+                right = j;
+            }
+        }
+
+        for (int i = left + 1; i <= right; i++) {
+            for (int j = i; j > left && keys[j] < keys[j - 1]; j--) {
+                swap(j, j - 1);
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+
+        long value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+
+    private static class RunReader implements Comparable<RunReader> {
+        private final DataInputStream inputStream;
+        private long key;
+        private long value;
+
+        public RunReader(File runFile) throws IOException {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile)));
+        }
+
+        public boolean next() throws IOException {
+            try {
+                key = inputStream.readLong();
+                value = inputStream.readLong();
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        public void close() throws IOException {
+            inputStream.close();
+        }
+
+        @Override
+        public int compareTo(RunReader o) {
+            return Long.compare(key, o.key);
+        }
+    }
+}
@@ -3,16 +3,19 @@ package uk.ac.ebi.pride.spectracluster.merging;
 import uk.ac.ebi.pride.spectracluster.clustering.BinaryClusterFileReference;
 import uk.ac.ebi.pride.spectracluster.clustering.BinaryFileClusteringCallable;
 import uk.ac.ebi.pride.spectracluster.clustering.IBinaryClusteringResultListener;
+import uk.ac.ebi.pride.spectracluster.clustering.IOrderedClusteringResultListener;
+import uk.ac.ebi.pride.spectracluster.clustering.VirtualBinaryFile;
+import uk.ac.ebi.pride.spectracluster.implementation.ClusteringSettings;
 import uk.ac.ebi.pride.spectracluster.util.ClusteringJobReference;
+import uk.ac.ebi.pride.spectracluster.util.CompletionJobRunner;
 import uk.ac.ebi.pride.spectracluster.util.IProgressListener;
 import uk.ac.ebi.pride.spectracluster.util.ProgressUpdate;
+import uk.ac.ebi.pride.spectracluster.util.RunManifest;
 
 import java.io.File;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 
 /**
  * This class is used to cluster the re-binned
@@ -34,12 +37,36 @@ public class BinaryFileMergingClusterer {
     private final boolean deleteInputFiles;
     private final File temporaryDirectory;
 
-    private ExecutorService clusteringExecuteService;
+    private CompletionJobRunner<ClusteringJobReference> clusteringJobRunner;
+    private ExecutorService ioExecutor;
     private List<IBinaryClusteringResultListener> listeners = new ArrayList<IBinaryClusteringResultListener>();
     private List<IProgressListener> progressListeners = new ArrayList<IProgressListener>();
-    private List<Future<ClusteringJobReference>> clusteringFutures = new ArrayList<Future<ClusteringJobReference>>();
 
     private List<BinaryClusterFileReference> resultFiles;
+    /**
+     * Position (in m/z order) of the result of every submitted job
+     */
+    private Map<File, Integer> resultIndices;
+
+    /**
+     * If set, completed jobs are recorded in the manifest under the
+     * defined stage and jobs that were already completed in a previous
+     * run are not repeated.
+     */
+    private RunManifest runManifest;
+    private String manifestStage = RunManifest.MERGING;
+    private int totalJobs;
+
+    /**
+     * If set, only the final threshold is used to merge the clusters.
+     */
+    private boolean finalThresholdOnly = false;
+
+    /**
+     * If set, only these files are merged (or passed on in case of the
+     * first file). Used to only process a shard of the files.
+     */
+    private Set<File> selectedFiles = null;
 
     public BinaryFileMergingClusterer(int nJobs, File outputDirectory, List<Float> thresholds, boolean fastMode,
                                       double windowSize, File temporaryDirectory) {
@@ -58,63 +85,51 @@ public class BinaryFileMergingClusterer {
     }
 
     public void clusterFiles(List<BinaryClusterFileReference> binaryFiles) throws Exception {
-        launchClusteringJobs(binaryFiles);
+        ioExecutor = Executors.newFixedThreadPool(ClusteringSettings.getIoThreads(nJobs));
 
-        waitForCompletedJobs();
-    }
-
-    private void waitForCompletedJobs() throws Exception {
         try {
-            boolean allDone = false;
-            Set<Integer> completedJobs = new HashSet<Integer>();
-
-            while (!allDone) {
-                allDone = true;
-
-                for (int i = 0; i < clusteringFutures.size(); i++) {
-                    if (Thread.currentThread().isInterrupted()) {
-                        throw new InterruptedException();
-                    }
+            launchClusteringJobs(binaryFiles);
 
-                    if (completedJobs.contains(i))
-                        continue;
-
-                    Future<ClusteringJobReference> fileFuture = clusteringFutures.get(i);
+            waitForCompletedJobs();
+        }
+        finally {
+            // stops all readers in case a job failed
+            ioExecutor.shutdownNow();
+        }
+    }
 
-                    if (!fileFuture.isDone()) {
-                        allDone = false;
-                    } else {
-                        // save the written file
-                        BinaryClusterFileReference resultFile = fileFuture.get().getOutputFile();
-                        resultFiles.add(resultFile);
-                        // notify all listeners
-                        notifyListeners(resultFile, completedJobs.size(), clusteringFutures.size());
+    private void waitForCompletedJobs() throws Exception {
+        // process every job as soon as it completes
+        clusteringJobRunner.awaitAll(new CompletionJobRunner.IJobListener<ClusteringJobReference>() {
+            @Override
+            public void onJobCompleted(ClusteringJobReference jobReference, int completedJobs, int submittedJobs) throws Exception {
+                // save the written file
+                BinaryClusterFileReference resultFile = jobReference.getOutputFile();
+
+                if (runManifest != null) {
+                    runManifest.recordCompletedJob(manifestStage, jobReference.getInputFile(), resultFile);
+                }
 
-                        // delete the input file if set
-                        if (deleteInputFiles) {
-                            // ignore if the deletion fails
-                            fileFuture.get().getInputFile().delete();
-                        }
+                resultFiles.add(resultFile);
+                // notify all listeners
+                notifyListeners(resultFile, resultIndices.get(jobReference.getInputFile()), resultFiles.size(), totalJobs);
 
-                        completedJobs.add(i);
-                    }
+                // delete the input file if set
+                if (deleteInputFiles) {
+                    // ignore if the deletion fails
+                    jobReference.getInputFile().delete();
                 }
-
-                Thread.sleep(1000); // only check every second
             }
-
-            // terminate the executor service
-            clusteringExecuteService.awaitTermination(2, TimeUnit.SECONDS);
-        }
-        catch (InterruptedException e) {
-            clusteringExecuteService.shutdownNow();
-            throw e;
-        }
+        });
     }
 
-    private void notifyListeners(BinaryClusterFileReference writtenFile, int completedJobs, int totalJobs) {
+    private void notifyListeners(BinaryClusterFileReference writtenFile, int index, int completedJobs, int totalJobs) {
         for (IBinaryClusteringResultListener listener : listeners) {
-            listener.onNewResultFile(writtenFile);
+            if (listener instanceof IOrderedClusteringResultListener) {
+                ((IOrderedClusteringResultListener) listener).onNewResultFile(writtenFile, index);
+            } else {
+                listener.onNewResultFile(writtenFile);
+            }
         }
 
         ProgressUpdate progressUpdate = new ProgressUpdate(
@@ -130,10 +145,21 @@ public class BinaryFileMergingClusterer {
     private void launchClusteringJobs(List<BinaryClusterFileReference> binaryFiles) {
         try {
             resultFiles = new ArrayList<BinaryClusterFileReference>();
-            clusteringExecuteService = Executors.newFixedThreadPool(nJobs);
+            resultIndices = new HashMap<File, Integer>();
+            clusteringJobRunner = new CompletionJobRunner<ClusteringJobReference>(nJobs);
 
             // make sure the files are sorted according to m/z
             Collections.sort(binaryFiles);
+            totalJobs = binaryFiles.size();
+
+            if (selectedFiles != null) {
+                totalJobs = 0;
+                for (BinaryClusterFileReference binaryFile : binaryFiles) {
+                    if (selectedFiles.contains(binaryFile.getResultFile())) {
+                        totalJobs++;
+                    }
+                }
+            }
 
             for (int i = 0; i < binaryFiles.size(); i++) {
                 if (Thread.currentThread().isInterrupted()) {
@@ -142,10 +168,29 @@ public class BinaryFileMergingClusterer {
 
                 BinaryClusterFileReference binaryClusterFileReference = binaryFiles.get(i);
 
+                // the file is processed by a different shard
+                if (selectedFiles != null && !selectedFiles.contains(binaryClusterFileReference.getResultFile())) {
+                    continue;
+                }
+
+                // files of other shards are not counted
+                int resultIndex = resultIndices.size();
+                resultIndices.put(binaryClusterFileReference.getResultFile(), resultIndex);
+
                 // ignore the first file since it will not be clustered
                 if (i == 0) {
                     resultFiles.add(binaryClusterFileReference);
-                    notifyListeners(binaryClusterFileReference, 1, binaryFiles.size());
+                    notifyListeners(binaryClusterFileReference, resultIndex, 1, totalJobs);
+                    continue;
+                }
+
+                // re-use the result of a previous run
+                BinaryClusterFileReference completedJob = (runManifest != null) ?
+                        runManifest.getCompletedJob(manifestStage, binaryClusterFileReference.getResultFile()) : null;
+
+                if (completedJob != null) {
+                    resultFiles.add(completedJob);
+                    notifyListeners(completedJob, resultIndex, resultFiles.size(), totalJobs);
                     continue;
                 }
 
@@ -155,17 +200,31 @@ public class BinaryFileMergingClusterer {
                 BinaryFileClusteringCallable clusteringCallable =
                         new BinaryFileClusteringCallable(outputFile, binaryClusterFileReference.getResultFile(),
                                 thresholds, fastMode, 0, (float) maxMz, temporaryDirectory, null);
-                Future<ClusteringJobReference> resultFileFuture = clusteringExecuteService.submit(clusteringCallable);
-                clusteringFutures.add(resultFileFuture);
-            }
+                clusteringCallable.setIoExecutor(ioExecutor);
+                clusteringCallable.setFinalRoundOnly(finalThresholdOnly);
+
+                // virtual files are read from the slices of the clustered files
+                if (binaryClusterFileReference instanceof VirtualBinaryFile) {
+                    clusteringCallable.setInputSlices(((VirtualBinaryFile) binaryClusterFileReference).getSlices());
+                }
 
-            clusteringExecuteService.shutdown();
+                clusteringJobRunner.submit(clusteringCallable);
+            }
         }
         catch (InterruptedException e) {
-            clusteringExecuteService.shutdownNow();
+            clusteringJobRunner.cancelAll();
         }
     }
 
+    /**
+     * Only merges the passed files. All files still have to be passed to
+     * clusterFiles since the first file of the complete run is not merged.
+     * @param selectedFiles The result files of the (re-binned) files to merge.
+     */
+    public void setSelectedFiles(Collection<File> selectedFiles) {
+        this.selectedFiles = new HashSet<File>(selectedFiles);
+    }
+
     public void addListener(IBinaryClusteringResultListener listener) {
         listeners.add(listener);
     }
@@ -174,6 +233,28 @@ public class BinaryFileMergingClusterer {
         return Collections.unmodifiableList(resultFiles);
     }
 
+    /**
+     * Sets the manifest to record completed jobs in. Jobs found to be completed
+     * in the manifest are not launched again, their results are reported to the
+     * listeners as if they had just been completed.
+     * @param runManifest The manifest to use. Set to null to disable.
+     * @param manifestStage The stage name to use in the manifest.
+     */
+    public void setRunManifest(RunManifest runManifest, String manifestStage) {
+        this.runManifest = runManifest;
+        this.manifestStage = manifestStage;
+    }
+
+    /**
+     * If set, only a single round with the final threshold is run on the overlapping
+     * regions and the clusters are directly compared with each other. Otherwise,
+     * all clustering rounds are repeated.
+     * @param finalThresholdOnly
+     */
+    public void setFinalThresholdOnly(boolean finalThresholdOnly) {
+        this.finalThresholdOnly = finalThresholdOnly;
+    }
+
     public void addProgressListener(IProgressListener progressListener) {
         progressListeners.add(progressListener);
     }
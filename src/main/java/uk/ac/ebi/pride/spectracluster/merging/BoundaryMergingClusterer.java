@@ -0,0 +1,377 @@
+package uk.ac.ebi.pride.spectracluster.merging;
+
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryClusterFileReference;
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryFileClusteringCallable;
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryFileSlice;
+import uk.ac.ebi.pride.spectracluster.clustering.IBinaryClusteringResultListener;
+import uk.ac.ebi.pride.spectracluster.clustering.IOrderedClusteringResultListener;
+import uk.ac.ebi.pride.spectracluster.clustering.SpillingClusteringWindow;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterAppender;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterIterable;
+import uk.ac.ebi.pride.spectracluster.util.ClusteringJobReference;
+import uk.ac.ebi.pride.spectracluster.util.CompletionJobRunner;
+import uk.ac.ebi.pride.spectracluster.util.IProgressListener;
+import uk.ac.ebi.pride.spectracluster.util.ProgressUpdate;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ * Merges clustering result files by only re-clustering the clusters
+ * close to the boundary of two neighbouring files. This leads to the
+ * same comparisons as re-binning the files and clustering the
+ * overlapping region using the BinaryFileMergingClusterer.
+ *
+ * Every file is read once to extract the clusters within windowSize of
+ * its upper and lower boundary. The two slices at every boundary are
+ * re-clustered, the interior of the files is not rewritten. It is
+ * reported as a BinaryFileSlice of the original file instead.
+ *
+ * This only works if every file is wider than two windows so that the
+ * slices of one file do not overlap (see isApplicable).
+ *
+ * In m/z order, the interior of every file is followed by the merged
+ * boundary to the next file. This order is passed to
+ * IOrderedClusteringResultListeners.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class BoundaryMergingClusterer {
+    private final int nJobs;
+    private final File outputDirectory;
+    private final List<Float> thresholds;
+    private final boolean fastMode;
+    private final double windowSize;
+    private final boolean deleteInputFiles;
+    private final File temporaryDirectory;
+
+    private List<IBinaryClusteringResultListener> listeners = new ArrayList<IBinaryClusteringResultListener>();
+    private List<IProgressListener> progressListeners = new ArrayList<IProgressListener>();
+
+    private List<BinaryClusterFileReference> resultFiles;
+
+    /**
+     * If set, only the final threshold is used to merge the clusters.
+     */
+    private boolean finalThresholdOnly = false;
+
+    /**
+     * Slices extracted from a single file.
+     */
+    private static class FileSlices {
+        public final int index;
+        public final BinaryClusterFileReference lowerSlice;
+        public final BinaryClusterFileReference upperSlice;
+        public final BinaryFileSlice interior;
+
+        public FileSlices(int index, BinaryClusterFileReference lowerSlice, BinaryClusterFileReference upperSlice,
+                          BinaryFileSlice interior) {
+            this.index = index;
+            this.lowerSlice = lowerSlice;
+            this.upperSlice = upperSlice;
+            this.interior = interior;
+        }
+    }
+
+    /**
+     * Creates a new BoundaryMergingClusterer.
+     * @param nJobs Number of parallel jobs.
+     * @param outputDirectory Directory to write the slices and merged boundaries to.
+     * @param thresholds The clustering thresholds to use.
+     * @param fastMode If set, no peak filter is applied during the comparisons.
+     * @param windowSize Size of the re-clustered region on each side of a boundary (ie. the precursor tolerance).
+     * @param deleteInputFiles If set, the slices are deleted once they were merged.
+     * @param temporaryDirectory Directory for temporary files of the clustering jobs.
+     */
+    public BoundaryMergingClusterer(int nJobs, File outputDirectory, List<Float> thresholds, boolean fastMode,
+                                    double windowSize, boolean deleteInputFiles, File temporaryDirectory) {
+        this.nJobs = nJobs;
+        this.outputDirectory = outputDirectory;
+        this.thresholds = thresholds;
+        this.fastMode = fastMode;
+        this.windowSize = windowSize;
+        this.deleteInputFiles = deleteInputFiles;
+        this.temporaryDirectory = temporaryDirectory;
+    }
+
+    /**
+     * Checks whether the files can be merged at their boundaries. This requires
+     * that the lower and upper slice of every file do not overlap.
+     * @param binaryFiles The files to merge.
+     * @param windowSize Size of the re-clustered region on each side of a boundary.
+     * @return
+     */
+    public static boolean isApplicable(List<BinaryClusterFileReference> binaryFiles, double windowSize) {
+        List<BinaryClusterFileReference> sortedFiles = new ArrayList<BinaryClusterFileReference>(binaryFiles);
+        Collections.sort(sortedFiles);
+
+        for (int i = 1; i < sortedFiles.size() - 1; i++) {
+            if (getLowerCut(sortedFiles, i, windowSize) > getUpperCut(sortedFiles, i, windowSize)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Clusters with a precursor m/z below this value belong to the lower slice.
+     */
+    private static double getLowerCut(List<BinaryClusterFileReference> sortedFiles, int index, double windowSize) {
+        if (index == 0) {
+            return -Double.MAX_VALUE;
+        }
+
+        return sortedFiles.get(index - 1).getMaxMz() + windowSize;
+    }
+
+    /**
+     * Clusters with a precursor m/z above this value belong to the upper slice.
+     */
+    private static double getUpperCut(List<BinaryClusterFileReference> sortedFiles, int index, double windowSize) {
+        if (index == sortedFiles.size() - 1) {
+            return Double.MAX_VALUE;
+        }
+
+        return sortedFiles.get(index).getMaxMz() - windowSize;
+    }
+
+    public void clusterFiles(List<BinaryClusterFileReference> binaryFiles) throws Exception {
+        final List<BinaryClusterFileReference> sortedFiles = new ArrayList<BinaryClusterFileReference>(binaryFiles);
+        Collections.sort(sortedFiles);
+        resultFiles = new ArrayList<BinaryClusterFileReference>();
+
+        if (!isApplicable(sortedFiles, windowSize)) {
+            throw new Exception("Files are too narrow to be merged at their boundaries");
+        }
+
+        // a single file does not have to be merged
+        if (sortedFiles.size() == 1) {
+            resultFiles.add(sortedFiles.get(0));
+            notifyListeners(sortedFiles.get(0), 0, 1, 1);
+            return;
+        }
+
+        final FileSlices[] fileSlices = extractSlices(sortedFiles);
+        mergeBoundaries(sortedFiles, fileSlices);
+    }
+
+    /**
+     * Extracts the slices of all files. The interior of every file is reported
+     * to the listeners as soon as its slices are extracted.
+     */
+    private FileSlices[] extractSlices(final List<BinaryClusterFileReference> sortedFiles) throws Exception {
+        final FileSlices[] fileSlices = new FileSlices[sortedFiles.size()];
+        final int totalResults = sortedFiles.size() * 2 - 1;
+        CompletionJobRunner<FileSlices> slicingJobRunner = new CompletionJobRunner<FileSlices>(nJobs);
+
+        for (int i = 0; i < sortedFiles.size(); i++) {
+            final int index = i;
+            final double lowerCut = getLowerCut(sortedFiles, i, windowSize);
+            final double upperCut = getUpperCut(sortedFiles, i, windowSize);
+
+            slicingJobRunner.submit(new Callable<FileSlices>() {
+                @Override
+                public FileSlices call() throws Exception {
+                    return extractSlices(index, sortedFiles.get(index), lowerCut, upperCut);
+                }
+            });
+        }
+
+        slicingJobRunner.awaitAll(new CompletionJobRunner.IJobListener<FileSlices>() {
+            @Override
+            public void onJobCompleted(FileSlices slices, int completedJobs, int totalJobs) throws Exception {
+                fileSlices[slices.index] = slices;
+                resultFiles.add(slices.interior);
+                notifyListeners(slices.interior, slices.index * 2, resultFiles.size(), totalResults);
+            }
+        });
+
+        return fileSlices;
+    }
+
+    /**
+     * Re-clusters the upper slice of every file together with the lower slice of
+     * the following file.
+     */
+    private void mergeBoundaries(List<BinaryClusterFileReference> sortedFiles, FileSlices[] fileSlices) throws Exception {
+        final int totalResults = sortedFiles.size() * 2 - 1;
+        CompletionJobRunner<ClusteringJobReference> mergingJobRunner = new CompletionJobRunner<ClusteringJobReference>(nJobs);
+        // the boundary following every file
+        final Map<File, Integer> boundaryIndices = new HashMap<File, Integer>();
+
+        for (int i = 0; i < sortedFiles.size() - 1; i++) {
+            if (Thread.currentThread().isInterrupted()) {
+                mergingJobRunner.cancelAll();
+                throw new InterruptedException();
+            }
+
+            final List<File> sliceFiles = new ArrayList<File>(2);
+            sliceFiles.add(fileSlices[i].upperSlice.getResultFile());
+            sliceFiles.add(fileSlices[i + 1].lowerSlice.getResultFile());
+
+            final File boundaryFile = new File(outputDirectory, String.format("boundary_%04d.cls", i));
+            boundaryIndices.put(boundaryFile, i);
+            File outputFile = new File(outputDirectory, String.format("merged_boundary_%04d.cls", i));
+            final BinaryFileClusteringCallable clusteringCallable = new BinaryFileClusteringCallable(outputFile,
+                    boundaryFile, thresholds, fastMode, temporaryDirectory);
+            clusteringCallable.setFinalRoundOnly(finalThresholdOnly);
+
+            mergingJobRunner.submit(new Callable<ClusteringJobReference>() {
+                @Override
+                public ClusteringJobReference call() throws Exception {
+                    // the slices are sorted so they can simply be merged
+                    SpillingClusteringWindow.mergeSortedFiles(sliceFiles, boundaryFile);
+
+                    if (deleteInputFiles) {
+                        for (File sliceFile : sliceFiles) {
+                            sliceFile.delete();
+                        }
+                    }
+
+                    return clusteringCallable.call();
+                }
+            });
+        }
+
+        mergingJobRunner.awaitAll(new CompletionJobRunner.IJobListener<ClusteringJobReference>() {
+            @Override
+            public void onJobCompleted(ClusteringJobReference jobReference, int completedJobs, int totalJobs) throws Exception {
+                BinaryClusterFileReference resultFile = jobReference.getOutputFile();
+                resultFiles.add(resultFile);
+                notifyListeners(resultFile, boundaryIndices.get(jobReference.getInputFile()) * 2 + 1,
+                        resultFiles.size(), totalResults);
+
+                if (deleteInputFiles) {
+                    jobReference.getInputFile().delete();
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the clusters below the lower and above the upper cut into
+     * separate files. The remaining clusters are only counted.
+     */
+    private FileSlices extractSlices(int index, BinaryClusterFileReference binaryFile, double lowerCut, double upperCut)
+            throws Exception {
+        String name = binaryFile.getResultFile().getName().replaceAll("\\.cls$", "");
+        File lowerFile = new File(outputDirectory, name + "_lower.cls");
+        File upperFile = new File(outputDirectory, name + "_upper.cls");
+
+        SliceWriter lowerWriter = new SliceWriter(lowerFile);
+        SliceWriter upperWriter = new SliceWriter(upperFile);
+        SliceWriter interiorCounter = new SliceWriter(null);
+
+        ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(
+                new FileInputStream(binaryFile.getResultFile())));
+
+        try {
+            for (ICluster cluster : new BinaryClusterIterable(inputStream)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+
+                if (cluster.getPrecursorMz() < lowerCut) {
+                    lowerWriter.add(cluster);
+                }
+                else if (cluster.getPrecursorMz() > upperCut) {
+                    upperWriter.add(cluster);
+                }
+                else {
+                    interiorCounter.add(cluster);
+                }
+            }
+        }
+        finally {
+            inputStream.close();
+            lowerWriter.close();
+            upperWriter.close();
+        }
+
+        BinaryFileSlice interior = new BinaryFileSlice(binaryFile.getResultFile(), interiorCounter.minMz,
+                interiorCounter.maxMz, interiorCounter.nClusters, lowerCut, upperCut);
+
+        return new FileSlices(index, lowerWriter.getReference(), upperWriter.getReference(), interior);
+    }
+
+    /**
+     * Writes the clusters of a slice and keeps track of its statistics. If
+     * no file is set, the clusters are only counted.
+     */
+    private static class SliceWriter {
+        private final File file;
+        private final ObjectOutputStream outputStream;
+        public double minMz = Double.MAX_VALUE, maxMz = 0;
+        public int nClusters = 0;
+
+        public SliceWriter(File file) throws IOException {
+            this.file = file;
+            this.outputStream = (file != null) ?
+                    new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file))) : null;
+        }
+
+        public void add(ICluster cluster) throws IOException {
+            if (outputStream != null) {
+                BinaryClusterAppender.INSTANCE.appendCluster(outputStream, cluster);
+            }
+
+            minMz = Math.min(minMz, cluster.getPrecursorMz());
+            maxMz = Math.max(maxMz, cluster.getPrecursorMz());
+            nClusters++;
+        }
+
+        public void close() throws IOException {
+            if (outputStream != null) {
+                BinaryClusterAppender.INSTANCE.appendEnd(outputStream);
+                outputStream.close();
+            }
+        }
+
+        public BinaryClusterFileReference getReference() {
+            return new BinaryClusterFileReference(file, minMz, maxMz, nClusters);
+        }
+    }
+
+    public void addListener(IBinaryClusteringResultListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * If set, only a single round with the final threshold is run on the boundary
+     * regions and the clusters are directly compared with each other.
+     * @param finalThresholdOnly
+     */
+    public void setFinalThresholdOnly(boolean finalThresholdOnly) {
+        this.finalThresholdOnly = finalThresholdOnly;
+    }
+
+    public void addProgressListener(IProgressListener progressListener) {
+        progressListeners.add(progressListener);
+    }
+
+    public List<BinaryClusterFileReference> getResultFiles() {
+        return Collections.unmodifiableList(resultFiles);
+    }
+
+    private void notifyListeners(BinaryClusterFileReference writtenFile, int index, int completedJobs, int totalJobs) {
+        for (IBinaryClusteringResultListener listener : listeners) {
+            if (listener instanceof IOrderedClusteringResultListener) {
+                ((IOrderedClusteringResultListener) listener).onNewResultFile(writtenFile, index);
+            } else {
+                listener.onNewResultFile(writtenFile);
+            }
+        }
+
+        ProgressUpdate progressUpdate = new ProgressUpdate(
+                String.format("Completed merging %d clusters (%.2f m/z to %.2f m/z)",
+                        writtenFile.getnSpectra(), writtenFile.getMinMz(), writtenFile.getMaxMz()),
+                ProgressUpdate.CLUSTERING_STAGE.MERGING, completedJobs, totalJobs);
+
+        for (IProgressListener progressListener : progressListeners) {
+            progressListener.onProgressUpdate(progressUpdate);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package uk.ac.ebi.pride.spectracluster.util;
+
+import uk.ac.ebi.pride.spectracluster.clustering.BinCostEstimator;
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryClusterFileReference;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A shard ("i of n") of the bins of a run. This allows every task of
+ * a batch scheduler's job array to process its own subset of the bins.
+ *
+ * The bins are assigned deterministically: all processes of the array
+ * see the same input files and assign them from highest to lowest
+ * estimated cost to the shard with the lowest total cost so far.
+ *
+ * Every shard records its result files in a small marker file. Once all
+ * shards are completed, these markers are used to validate that no shard
+ * is missing before the results are combined.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class BinShard {
+    public static final String MARKER_PREFIX = "shard_";
+    public static final String MARKER_SUFFIX = ".tsv";
+
+    private static final String HEADER_LINE = "#shard";
+
+    /**
+     * 1-based index of the shard
+     */
+    private final int index;
+    private final int nShards;
+
+    public BinShard(int index, int nShards) throws Exception {
+        if (nShards < 1 || index < 1 || index > nShards) {
+            throw new Exception("Invalid shard " + index + "/" + nShards + ": the shard must be between 1 and the number of shards");
+        }
+
+        this.index = index;
+        this.nShards = nShards;
+    }
+
+    /**
+     * Parses a shard definition in the form "i/n".
+     * @param definition The definition to parse.
+     * @return The shard.
+     * @throws Exception If the definition is invalid.
+     */
+    public static BinShard parse(String definition) throws Exception {
+        String[] fields = definition.split("/");
+
+        if (fields.length != 2) {
+            throw new Exception("Invalid shard '" + definition + "'. Shards must be defined as i/n");
+        }
+
+        try {
+            return new BinShard(Integer.parseInt(fields[0].trim()), Integer.parseInt(fields[1].trim()));
+        } catch (NumberFormatException e) {
+            throw new Exception("Invalid shard '" + definition + "'. Shards must be defined as i/n");
+        }
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getnShards() {
+        return nShards;
+    }
+
+    /**
+     * Returns the files assigned to this shard. The result only depends on
+     * the passed files, not on their order.
+     * @param binaryFiles All files of the run.
+     * @param costEstimator The estimator used to balance the shards.
+     * @return The files of this shard sorted by m/z.
+     */
+    public List<BinaryClusterFileReference> selectFiles(List<BinaryClusterFileReference> binaryFiles,
+                                                        BinCostEstimator costEstimator) {
+        // the cost sort is stable, sorting by name first makes ties deterministic
+        List<BinaryClusterFileReference> sortedFiles = new ArrayList<BinaryClusterFileReference>(binaryFiles);
+        Collections.sort(sortedFiles, new Comparator<BinaryClusterFileReference>() {
+            @Override
+            public int compare(BinaryClusterFileReference o1, BinaryClusterFileReference o2) {
+                return o1.getResultFile().getName().compareTo(o2.getResultFile().getName());
+            }
+        });
+        sortedFiles = costEstimator.sortByCost(sortedFiles);
+
+        double[] shardCosts = new double[nShards];
+        List<BinaryClusterFileReference> selectedFiles = new ArrayList<BinaryClusterFileReference>();
+
+        for (BinaryClusterFileReference binaryFile : sortedFiles) {
+            int cheapestShard = 0;
+            for (int i = 1; i < nShards; i++) {
+                if (shardCosts[i] < shardCosts[cheapestShard]) {
+                    cheapestShard = i;
+                }
+            }
+
+            shardCosts[cheapestShard] += costEstimator.estimateCost(binaryFile);
+
+            if (cheapestShard == index - 1) {
+                selectedFiles.add(binaryFile);
+            }
+        }
+
+        Collections.sort(selectedFiles);
+
+        return selectedFiles;
+    }
+
+    /**
+     * Records the shard's result files in the directory.
+     * @param directory The directory to write the marker to.
+     * @param resultFiles The shard's result files.
+     * @return The written marker file.
+     * @throws IOException
+     */
+    public File writeMarker(File directory, List<BinaryClusterFileReference> resultFiles) throws IOException {
+        File markerFile = new File(directory, MARKER_PREFIX + index + "_of_" + nShards + MARKER_SUFFIX);
+        // the marker is only created once it is complete
+        File tmpMarkerFile = new File(directory, markerFile.getName() + ".tmp");
+
+        BufferedWriter writer = new BufferedWriter(new FileWriter(tmpMarkerFile));
+        try {
+            writer.write(HEADER_LINE + "\t" + index + "\t" + nShards + "\n");
+
+            for (BinaryClusterFileReference resultFile : resultFiles) {
+                writer.write(String.format("%s\t%s\t%s\t%d\n", resultFile.getResultFile().getAbsolutePath(),
+                        String.valueOf(resultFile.getMinMz()), String.valueOf(resultFile.getMaxMz()),
+                        resultFile.getnSpectra()));
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (markerFile.exists() && !markerFile.delete()) {
+            throw new IOException("Failed to replace " + markerFile);
+        }
+        if (!tmpMarkerFile.renameTo(markerFile)) {
+            throw new IOException("Failed to create " + markerFile);
+        }
+
+        return markerFile;
+    }
+
+    /**
+     * Collects the result files of all shards from the markers found in the
+     * passed directories. Fails if a shard is missing, was recorded twice, the
+     * shards were created with different numbers of shards, or a result file
+     * no longer exists.
+     * @param directories The directories containing the shard markers.
+     * @return All result files sorted by m/z.
+     * @throws Exception If the shards are incomplete.
+     */
+    public static List<BinaryClusterFileReference> gatherShards(File... directories) throws Exception {
+        Map<Integer, File> markers = new HashMap<Integer, File>();
+        List<BinaryClusterFileReference> resultFiles = new ArrayList<BinaryClusterFileReference>();
+        int nShards = -1;
+
+        for (File directory : directories) {
+            File[] markerFiles = directory.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.startsWith(MARKER_PREFIX) && name.endsWith(MARKER_SUFFIX);
+                }
+            });
+
+            if (markerFiles == null) {
+                throw new Exception(directory + " is not a directory");
+            }
+
+            for (File markerFile : markerFiles) {
+                BufferedReader reader = new BufferedReader(new FileReader(markerFile));
+
+                try {
+                    String[] header = readFields(reader, markerFile, 3);
+
+                    if (!HEADER_LINE.equals(header[0])) {
+                        throw new Exception(markerFile + " is not a shard marker");
+                    }
+
+                    int markerIndex = Integer.parseInt(header[1]);
+                    int markerShards = Integer.parseInt(header[2]);
+
+                    if (nShards != -1 && markerShards != nShards) {
+                        throw new Exception(String.format("%s was created for %d shards but other shards used %d",
+                                markerFile, markerShards, nShards));
+                    }
+                    nShards = markerShards;
+
+                    if (markers.containsKey(markerIndex)) {
+                        throw new Exception(String.format("Shard %d was found twice: %s and %s", markerIndex,
+                                markers.get(markerIndex), markerFile));
+                    }
+                    markers.put(markerIndex, markerFile);
+
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.trim().isEmpty()) {
+                            continue;
+                        }
+
+                        String[] fields = line.split("\t");
+                        if (fields.length != 4) {
+                            throw new Exception("Invalid line in " + markerFile + ": " + line);
+                        }
+
+                        File resultFile = new File(fields[0]);
+                        if (!resultFile.exists()) {
+                            throw new Exception(String.format("Result file %s of shard %d does not exist",
+                                    resultFile, markerIndex));
+                        }
+
+                        resultFiles.add(new BinaryClusterFileReference(resultFile, Double.parseDouble(fields[1]),
+                                Double.parseDouble(fields[2]), Integer.parseInt(fields[3])));
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+        }
+
+        if (nShards == -1) {
+            throw new Exception("No shard markers found");
+        }
+
+        for (int i = 1; i <= nShards; i++) {
+            if (!markers.containsKey(i)) {
+                throw new Exception(String.format("Shard %d of %d is missing", i, nShards));
+            }
+        }
+
+        Collections.sort(resultFiles);
+
+        return resultFiles;
+    }
+
+    private static String[] readFields(BufferedReader reader, File file, int nFields) throws Exception {
+        String line = reader.readLine();
+
+        if (line == null) {
+            throw new Exception(file + " is empty");
+        }
+
+        String[] fields = line.split("\t");
+        if (fields.length != nFields) {
+            throw new Exception("Invalid line in " + file + ": " + line);
+        }
+
+        return fields;
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + nShards;
+    }
+}
@@ -8,7 +8,9 @@ import uk.ac.ebi.pride.spectracluster.util.predicate.IPredicate;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * This class holds methods to process a list of
@@ -44,15 +46,131 @@ public class BinaryFileScanner {
     public static List<BinaryClusterFileReference> scanBinaryFiles(SpectraPerBinNumberComparisonAssessor spectraPerBinNumberComparisonAssessor,
                                                                    IPredicate<ICluster> clusterAddingPredicate,
                                                                    File... inputFiles) throws IOException {
+        return scanBinaryFiles(spectraPerBinNumberComparisonAssessor, clusterAddingPredicate, 1, inputFiles);
+    }
+
+    /**
+     * Scans the passed binary clustering files using nThreads parallel
+     * threads. Every file records the precursor m/z values it found. These
+     * are counted by the (not thread-safe) assessor in the calling thread,
+     * in the order of the input files, as soon as all previous files were
+     * scanned. The recorded values are released once they were counted.
+     * The returned references are in the order of the input files.
+     * @param spectraPerBinNumberComparisonAssessor If set, the found cluster are counted as spectra per bin.
+     * @param clusterAddingPredicate Predicate which needs to be fulfilled for clusters to be considered. If set
+     *                               to NULL, all clusteres are processed.
+     * @param nThreads Number of files to scan in parallel. Should be limited to the number of I/O threads.
+     * @param inputFiles
+     * @return
+     * @throws InterruptedIOException If the scanning was interrupted.
+     */
+    public static List<BinaryClusterFileReference> scanBinaryFiles(SpectraPerBinNumberComparisonAssessor spectraPerBinNumberComparisonAssessor,
+                                                                   IPredicate<ICluster> clusterAddingPredicate,
+                                                                   int nThreads,
+                                                                   File... inputFiles) throws IOException {
         List<BinaryClusterFileReference> binaryClusterFileReferences = new ArrayList<BinaryClusterFileReference>(inputFiles.length);
+        boolean recordPrecursors = spectraPerBinNumberComparisonAssessor != null;
+
+        // scan the files in the calling thread
+        if (nThreads < 2 || inputFiles.length < 2) {
+            for (File currentInputFile : inputFiles) {
+                FileScanResult scanResult = scanBinaryFile(currentInputFile, clusterAddingPredicate, recordPrecursors);
+                binaryClusterFileReferences.add(scanResult.fileReference);
+                countPrecursors(scanResult, spectraPerBinNumberComparisonAssessor);
+            }
+
+            return binaryClusterFileReferences;
+        }
+
+        CompletionJobRunner<FileScanResult> jobRunner =
+                new CompletionJobRunner<FileScanResult>(Math.min(nThreads, inputFiles.length));
+
+        for (int i = 0; i < inputFiles.length; i++) {
+            final File currentInputFile = inputFiles[i];
+            final int fileIndex = i;
+            final IPredicate<ICluster> predicate = clusterAddingPredicate;
+            final boolean record = recordPrecursors;
+
+            jobRunner.submit(new Callable<FileScanResult>() {
+                @Override
+                public FileScanResult call() throws Exception {
+                    FileScanResult scanResult = scanBinaryFile(currentInputFile, predicate, record);
+                    scanResult.fileIndex = fileIndex;
+
+                    return scanResult;
+                }
+            });
+        }
+
+        // results that completed before a previous file
+        final FileScanResult[] pendingResults = new FileScanResult[inputFiles.length];
+        final List<BinaryClusterFileReference> fileReferences = binaryClusterFileReferences;
+        final SpectraPerBinNumberComparisonAssessor assessor = spectraPerBinNumberComparisonAssessor;
+
+        try {
+            // merge the results in the order of the input files
+            jobRunner.awaitAll(new CompletionJobRunner.IJobListener<FileScanResult>() {
+                @Override
+                public void onJobCompleted(FileScanResult result, int completedJobs, int totalJobs) throws Exception {
+                    pendingResults[result.fileIndex] = result;
+
+                    while (fileReferences.size() < pendingResults.length &&
+                            pendingResults[fileReferences.size()] != null) {
+                        FileScanResult scanResult = pendingResults[fileReferences.size()];
+                        pendingResults[fileReferences.size()] = null;
+
+                        countPrecursors(scanResult, assessor);
+                        scanResult.precursorMzs = null;
 
-        for (File currentInputFile : inputFiles) {
-            ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(currentInputFile)));
+                        fileReferences.add(scanResult.fileReference);
+                    }
+                }
+            });
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Scanning of binary files was interrupted");
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new IOException(e);
+        }
+
+        return binaryClusterFileReferences;
+    }
+
+    /**
+     * Result of scanning a single file.
+     */
+    private static class FileScanResult {
+        public int fileIndex;
+        public BinaryClusterFileReference fileReference;
+        /**
+         * The precursor m/z of all considered clusters (the first nCluster values are set).
+         */
+        public float[] precursorMzs;
+    }
+
+    private static FileScanResult scanBinaryFile(File currentInputFile, IPredicate<ICluster> clusterAddingPredicate,
+                                                 boolean recordPrecursors) throws IOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException();
+        }
+
+        ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(currentInputFile)));
+
+        try {
             BinaryClusterIterable clusterIterable = new BinaryClusterIterable(inputStream);
 
             // scan the file to get the min and max m/z
             double minMz = Double.MAX_VALUE, maxMz = 0;
             int nCluster = 0;
+            float[] precursorMzs = new float[recordPrecursors ? 1024 : 0];
 
             for (ICluster cluster : clusterIterable) {
                 if (Thread.currentThread().isInterrupted()) {
@@ -70,19 +188,41 @@ public class BinaryFileScanner {
                     maxMz = cluster.getPrecursorMz();
                 }
 
-                if (spectraPerBinNumberComparisonAssessor != null) {
-                    spectraPerBinNumberComparisonAssessor.countSpectrum(cluster.getPrecursorMz());
+                if (recordPrecursors) {
+                    if (nCluster == precursorMzs.length) {
+                        precursorMzs = Arrays.copyOf(precursorMzs, precursorMzs.length * 2);
+                    }
+                    precursorMzs[nCluster] = cluster.getPrecursorMz();
                 }
 
                 nCluster++;
             }
 
             // save the file reference as a CLusteringResult object
-            BinaryClusterFileReference binaryClusterFileReference = new BinaryClusterFileReference(
-                    currentInputFile, minMz, maxMz, nCluster);
-            binaryClusterFileReferences.add(binaryClusterFileReference);
+            FileScanResult scanResult = new FileScanResult();
+            scanResult.fileReference = new BinaryClusterFileReference(currentInputFile, minMz, maxMz, nCluster);
+            scanResult.precursorMzs = precursorMzs;
+
+            return scanResult;
+        }
+        finally {
+            inputStream.close();
         }
+    }
 
-        return binaryClusterFileReferences;
+    private static void countPrecursors(FileScanResult scanResult,
+                                        SpectraPerBinNumberComparisonAssessor spectraPerBinNumberComparisonAssessor)
+            throws InterruptedIOException {
+        if (spectraPerBinNumberComparisonAssessor == null) {
+            return;
+        }
+
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException();
+        }
+
+        for (int i = 0; i < scanResult.fileReference.getnSpectra(); i++) {
+            spectraPerBinNumberComparisonAssessor.countSpectrum(scanResult.precursorMzs[i]);
+        }
     }
 }
@@ -3,6 +3,8 @@ package uk.ac.ebi.pride.spectracluster.util;
 import uk.ac.ebi.pride.spectracluster.clustering.BinaryClusterFileReference;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * Created by jg on 14.03.16.
@@ -10,10 +12,26 @@ import java.io.File;
 public class ClusteringJobReference {
     private final File inputFile;
     private final BinaryClusterFileReference outputFile;
+    private final ClusteringJobStatistics statistics;
+    /**
+     * Copies of the result at intermediate thresholds
+     */
+    private final Map<Float, BinaryClusterFileReference> snapshotFiles;
 
     public ClusteringJobReference(File inputFile, BinaryClusterFileReference outputFile) {
+        this(inputFile, outputFile, new ClusteringJobStatistics());
+    }
+
+    public ClusteringJobReference(File inputFile, BinaryClusterFileReference outputFile, ClusteringJobStatistics statistics) {
+        this(inputFile, outputFile, statistics, Collections.<Float, BinaryClusterFileReference>emptyMap());
+    }
+
+    public ClusteringJobReference(File inputFile, BinaryClusterFileReference outputFile, ClusteringJobStatistics statistics,
+                                  Map<Float, BinaryClusterFileReference> snapshotFiles) {
         this.inputFile = inputFile;
         this.outputFile = outputFile;
+        this.statistics = statistics;
+        this.snapshotFiles = snapshotFiles;
     }
 
     public File getInputFile() {
@@ -23,4 +41,17 @@ public class ClusteringJobReference {
     public BinaryClusterFileReference getOutputFile() {
         return outputFile;
     }
+
+    public ClusteringJobStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Copies of the result that were taken after the round with the respective
+     * threshold was completed.
+     * @return Map with the threshold as key.
+     */
+    public Map<Float, BinaryClusterFileReference> getSnapshotFiles() {
+        return Collections.unmodifiableMap(snapshotFiles);
+    }
 }
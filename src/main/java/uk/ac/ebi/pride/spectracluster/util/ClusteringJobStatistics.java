@@ -0,0 +1,121 @@
+package uk.ac.ebi.pride.spectracluster.util;
+
+/**
+ * Statistics collected while a single clustering job
+ * is processed.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class ClusteringJobStatistics {
+    /**
+     * Number of similarity scores taken from the score cache.
+     */
+    private long scoreCacheHits = 0;
+    /**
+     * Number of similarity scores that had to be calculated.
+     */
+    private long scoreCacheMisses = 0;
+    /**
+     * Number of clusters written to spill files because the window exceeded the memory budget.
+     */
+    private long spilledClusters = 0;
+    /**
+     * Total size of all written spill files in bytes.
+     */
+    private long spilledBytes = 0;
+    /**
+     * Number of spilled clusters that were reloaded into the window.
+     */
+    private long reloadedClusters = 0;
+    /**
+     * Time in milliseconds required to process the job.
+     */
+    private long processingTime = 0;
+    /**
+     * Number of parts the bin was split into after it ran out of memory. 0 if the
+     * bin was clustered without a retry.
+     */
+    private int outOfMemoryParts = 0;
+    /**
+     * Set if the bin exceeded its time budget and was re-clustered with fewer comparisons.
+     */
+    private boolean timeBudgetExceeded = false;
+
+    public long getScoreCacheHits() {
+        return scoreCacheHits;
+    }
+
+    public void setScoreCacheHits(long scoreCacheHits) {
+        this.scoreCacheHits = scoreCacheHits;
+    }
+
+    public long getScoreCacheMisses() {
+        return scoreCacheMisses;
+    }
+
+    public void setScoreCacheMisses(long scoreCacheMisses) {
+        this.scoreCacheMisses = scoreCacheMisses;
+    }
+
+    public long getSpilledClusters() {
+        return spilledClusters;
+    }
+
+    public void setSpilledClusters(long spilledClusters) {
+        this.spilledClusters = spilledClusters;
+    }
+
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    public void setSpilledBytes(long spilledBytes) {
+        this.spilledBytes = spilledBytes;
+    }
+
+    public long getReloadedClusters() {
+        return reloadedClusters;
+    }
+
+    public void setReloadedClusters(long reloadedClusters) {
+        this.reloadedClusters = reloadedClusters;
+    }
+
+    public long getProcessingTime() {
+        return processingTime;
+    }
+
+    public void setProcessingTime(long processingTime) {
+        this.processingTime = processingTime;
+    }
+
+    public int getOutOfMemoryParts() {
+        return outOfMemoryParts;
+    }
+
+    public void setOutOfMemoryParts(int outOfMemoryParts) {
+        this.outOfMemoryParts = outOfMemoryParts;
+    }
+
+    public boolean isTimeBudgetExceeded() {
+        return timeBudgetExceeded;
+    }
+
+    public void setTimeBudgetExceeded(boolean timeBudgetExceeded) {
+        this.timeBudgetExceeded = timeBudgetExceeded;
+    }
+
+    /**
+     * The fraction of similarity scores that were taken from the cache.
+     * @return The hit rate (0 - 1) or 0 if no scores were requested.
+     */
+    public double getScoreCacheHitRate() {
+        long total = scoreCacheHits + scoreCacheMisses;
+
+        if (total == 0) {
+            return 0;
+        }
+
+        return (double) scoreCacheHits / total;
+    }
+}
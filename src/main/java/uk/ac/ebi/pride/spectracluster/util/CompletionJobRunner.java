@@ -0,0 +1,165 @@
+package uk.ac.ebi.pride.spectracluster.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Runs jobs in a thread pool and reports every job as soon as it
+ * is completed. Completed jobs are taken from an ExecutorCompletionService
+ * so no polling is required.
+ *
+ * If a job fails, all other jobs are cancelled and the job's exception is
+ * thrown by takeCompleted / awaitAll. If the waiting thread is interrupted,
+ * all jobs are cancelled as well.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class CompletionJobRunner<T> {
+    /**
+     * Listener that is called in the waiting thread for every
+     * completed job.
+     */
+    public interface IJobListener<T> {
+        void onJobCompleted(T result, int completedJobs, int totalJobs) throws Exception;
+    }
+
+    private final ExecutorService executorService;
+    private final CompletionService<T> completionService;
+    private final List<Future<T>> futures = Collections.synchronizedList(new ArrayList<Future<T>>());
+    private volatile int completedJobs = 0;
+
+    /**
+     * Creates a new runner with a fixed thread pool.
+     * @param nThreads Number of jobs to run in parallel.
+     */
+    public CompletionJobRunner(int nThreads) {
+        this(Executors.newFixedThreadPool(nThreads));
+    }
+
+    /**
+     * Creates a new runner using the passed executor service. The executor service
+     * is shut down once all jobs are completed or cancelled.
+     * @param executorService The executor service to run the jobs in.
+     */
+    public CompletionJobRunner(ExecutorService executorService) {
+        this.executorService = executorService;
+        this.completionService = new ExecutorCompletionService<T>(executorService);
+    }
+
+    /**
+     * Submits a new job. Jobs may also be submitted by other threads
+     * (including running jobs) while the results are being collected
+     * using takeCompleted or awaitAll. awaitAll only waits for jobs that
+     * were submitted before the last collected job completed.
+     * @param job The job to run.
+     * @return The job's future.
+     */
+    public Future<T> submit(Callable<T> job) {
+        Future<T> future = completionService.submit(job);
+        futures.add(future);
+
+        return future;
+    }
+
+    /**
+     * Waits for the next job to complete.
+     * @return The job's result.
+     * @throws Exception The exception thrown by the job. In this case all other jobs are cancelled.
+     */
+    public T takeCompleted() throws Exception {
+        if (completedJobs >= futures.size()) {
+            throw new IllegalStateException("No more jobs to complete");
+        }
+
+        try {
+            Future<T> completedFuture = completionService.take();
+            T result = completedFuture.get();
+            completedJobs++;
+
+            return result;
+        }
+        catch (InterruptedException e) {
+            cancelAll();
+            throw e;
+        }
+        catch (ExecutionException e) {
+            cancelAll();
+
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+        catch (CancellationException e) {
+            cancelAll();
+            throw new InterruptedException("Job was cancelled");
+        }
+    }
+
+    /**
+     * Waits for all submitted jobs to complete. The listener is called
+     * in the calling thread as soon as a job completes. The executor service
+     * is shut down once all jobs are completed.
+     * @param listener The listener to notify. May be null.
+     * @return The results in the order the jobs completed.
+     * @throws Exception The exception thrown by the first failed job.
+     */
+    public List<T> awaitAll(IJobListener<T> listener) throws Exception {
+        List<T> results = new ArrayList<T>(futures.size());
+
+        try {
+            while (completedJobs < futures.size()) {
+                T result = takeCompleted();
+                results.add(result);
+
+                if (listener != null) {
+                    listener.onJobCompleted(result, completedJobs, futures.size());
+                }
+            }
+        }
+        catch (Exception e) {
+            cancelAll();
+            throw e;
+        }
+
+        // jobs may submit further jobs until they are completed
+        shutdown();
+
+        return results;
+    }
+
+    /**
+     * Shuts down the executor service once all submitted jobs are completed.
+     * No new jobs can be submitted afterwards.
+     */
+    public void shutdown() {
+        executorService.shutdown();
+    }
+
+    /**
+     * Cancels all running jobs and shuts down the executor service.
+     */
+    public void cancelAll() {
+        synchronized (futures) {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        executorService.shutdownNow();
+    }
+
+    public int getSubmittedJobs() {
+        return futures.size();
+    }
+
+    public int getCompletedJobs() {
+        return completedJobs;
+    }
+}
@@ -0,0 +1,106 @@
+package uk.ac.ebi.pride.spectracluster.util;
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens result files (.clustering, .cgf) that may be gzip compressed.
+ * Files are treated as compressed if their name ends with ".gz".
+ *
+ * Created by jg on 19.10.26.
+ */
+public final class CompressedFiles {
+    public static final String GZIP_SUFFIX = ".gz";
+
+    /**
+     * Size of the buffers in bytes
+     */
+    public static final int BUFFER_SIZE = 1024 * 1024;
+
+    private CompressedFiles() {
+
+    }
+
+    public static boolean isCompressed(File file) {
+        return file.getName().toLowerCase().endsWith(GZIP_SUFFIX);
+    }
+
+    /**
+     * Returns the file without the ".gz" suffix. Uncompressed files are returned as they are.
+     * @param file The file.
+     * @return The file's uncompressed name.
+     */
+    public static File getUncompressedFile(File file) {
+        if (!isCompressed(file)) {
+            return file;
+        }
+
+        String name = file.getName();
+
+        return new File(file.getParentFile(), name.substring(0, name.length() - GZIP_SUFFIX.length()));
+    }
+
+    /**
+     * Opens a buffered stream to write the file. Compressed files are written
+     * using a ParallelGzipOutputStream which is returned directly since it
+     * already buffers complete blocks.
+     * @param file The file to write. This file will be overwritten if it exists.
+     * @param nThreads Number of threads used to compress the file.
+     * @return The opened stream.
+     * @throws IOException
+     */
+    public static OutputStream openOutputStream(File file, int nThreads) throws IOException {
+        OutputStream outputStream = new FileOutputStream(file);
+
+        if (isCompressed(file)) {
+            return new ParallelGzipOutputStream(outputStream, nThreads);
+        }
+
+        return new BufferedOutputStream(outputStream, BUFFER_SIZE);
+    }
+
+    /**
+     * Opens a buffered stream to read the file. Compressed files are decompressed
+     * while reading.
+     * @param file The file to read.
+     * @return The opened stream.
+     * @throws IOException
+     */
+    public static InputStream openInputStream(File file) throws IOException {
+        InputStream inputStream = new FileInputStream(file);
+
+        // GZIPInputStream also reads all members of multi-member files
+        if (isCompressed(file)) {
+            inputStream = new GZIPInputStream(inputStream, BUFFER_SIZE);
+        }
+
+        return new BufferedInputStream(inputStream, BUFFER_SIZE);
+    }
+
+    /**
+     * Decompresses the file.
+     * @param compressedFile The compressed file.
+     * @param outputFile The file to write the decompressed data to.
+     * @throws IOException
+     */
+    public static void decompress(File compressedFile, File outputFile) throws IOException {
+        InputStream inputStream = openInputStream(compressedFile);
+
+        try {
+            OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(outputFile), BUFFER_SIZE);
+
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int readBytes;
+
+                while ((readBytes = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, readBytes);
+                }
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+}
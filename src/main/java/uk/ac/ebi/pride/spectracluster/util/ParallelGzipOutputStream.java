@@ -0,0 +1,228 @@
+package uk.ac.ebi.pride.spectracluster.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a multi-member gzip stream. The data is split into blocks that
+ * are compressed as separate gzip members by a pool of threads. The
+ * members are written in their original order.
+ *
+ * Multi-member files are part of the gzip specification. They can be
+ * decompressed by the standard tools (gzip, zcat) and by Java's
+ * GZIPInputStream, the result is the concatenated data of all blocks.
+ *
+ * Since every member holds exactly one block, a position in the uncompressed
+ * data can be read by decompressing only the member containing it (see
+ * getMemberOffsets).
+ *
+ * Created by jg on 19.10.26.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+    /**
+     * Size of the uncompressed blocks in bytes
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    /**
+     * Maximum number of compressed blocks waiting to be written per thread
+     */
+    public static final int PENDING_BLOCKS_PER_THREAD = 2;
+
+    private final OutputStream outputStream;
+    private final int blockSize;
+    /**
+     * Null if the blocks are compressed by the writing thread
+     */
+    private final ExecutorService compressionExecutor;
+    private final int maxPendingBlocks;
+
+    private final LinkedList<Future<byte[]>> pendingBlocks = new LinkedList<Future<byte[]>>();
+    private byte[] currentBlock;
+    private int currentBlockSize = 0;
+    private int writtenBlocks = 0;
+    /**
+     * Position of every written member in the compressed stream
+     */
+    private long[] memberOffsets = new long[64];
+    private long compressedLength = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates a new ParallelGzipOutputStream using the default block size.
+     * @param outputStream The stream to write the compressed data to.
+     * @param nThreads Number of compression threads. If less than 2, the blocks are compressed by the writing thread.
+     */
+    public ParallelGzipOutputStream(OutputStream outputStream, int nThreads) {
+        this(outputStream, nThreads, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a new ParallelGzipOutputStream.
+     * @param outputStream The stream to write the compressed data to.
+     * @param nThreads Number of compression threads. If less than 2, the blocks are compressed by the writing thread.
+     * @param blockSize Size of the uncompressed blocks in bytes.
+     */
+    public ParallelGzipOutputStream(OutputStream outputStream, int nThreads, int blockSize) {
+        this.outputStream = outputStream;
+        this.blockSize = blockSize;
+        this.currentBlock = new byte[blockSize];
+
+        if (nThreads > 1) {
+            // the compression threads must not keep the application running if the writing fails
+            compressionExecutor = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "gzip-compressor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            maxPendingBlocks = nThreads * PENDING_BLOCKS_PER_THREAD;
+        } else {
+            compressionExecutor = null;
+            maxPendingBlocks = 0;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        currentBlock[currentBlockSize++] = (byte) b;
+
+        if (currentBlockSize == blockSize) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int copiedBytes = Math.min(length, blockSize - currentBlockSize);
+            System.arraycopy(bytes, offset, currentBlock, currentBlockSize, copiedBytes);
+
+            currentBlockSize += copiedBytes;
+            offset += copiedBytes;
+            length -= copiedBytes;
+
+            if (currentBlockSize == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Only flushes the underlying stream. Incomplete blocks are not
+     * compressed since this would reduce the compression ratio.
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        outputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            // an empty stream still has to be a valid gzip file
+            if (currentBlockSize > 0 || writtenBlocks + pendingBlocks.size() == 0) {
+                submitBlock();
+            }
+
+            while (!pendingBlocks.isEmpty()) {
+                writeNextBlock();
+            }
+        } finally {
+            if (compressionExecutor != null) {
+                compressionExecutor.shutdownNow();
+            }
+
+            outputStream.close();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] block = Arrays.copyOf(currentBlock, currentBlockSize);
+        currentBlockSize = 0;
+
+        if (compressionExecutor == null) {
+            writeMember(compressBlock(block));
+            return;
+        }
+
+        pendingBlocks.add(compressionExecutor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return compressBlock(block);
+            }
+        }));
+
+        // limit the number of blocks held in memory
+        while (pendingBlocks.size() > maxPendingBlocks) {
+            writeNextBlock();
+        }
+    }
+
+    private void writeNextBlock() throws IOException {
+        try {
+            writeMember(pendingBlocks.removeFirst().get());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress block", e.getCause());
+        }
+    }
+
+    private void writeMember(byte[] member) throws IOException {
+        if (writtenBlocks == memberOffsets.length) {
+            memberOffsets = Arrays.copyOf(memberOffsets, memberOffsets.length * 2);
+        }
+
+        memberOffsets[writtenBlocks++] = compressedLength;
+        outputStream.write(member);
+        compressedLength += member.length;
+    }
+
+    /**
+     * Position of every gzip member in the compressed stream. Member n holds the
+     * uncompressed data starting at n * blockSize. Only complete once the stream
+     * was closed.
+     * @return The members' offsets in bytes.
+     */
+    public long[] getMemberOffsets() {
+        return Arrays.copyOf(memberOffsets, writtenBlocks);
+    }
+
+    /**
+     * Number of compressed bytes written so far.
+     * @return
+     */
+    public long getCompressedLength() {
+        return compressedLength;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Compresses the block as a complete gzip member.
+     */
+    private static byte[] compressBlock(byte[] block) throws IOException {
+        ByteArrayOutputStream compressedBlock = new ByteArrayOutputStream(block.length / 2 + 64);
+        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressedBlock);
+        gzipOutputStream.write(block);
+        gzipOutputStream.close();
+
+        return compressedBlock.toByteArray();
+    }
+}
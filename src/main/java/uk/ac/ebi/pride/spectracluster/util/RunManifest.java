@@ -0,0 +1,233 @@
+package uk.ac.ebi.pride.spectracluster.util;
+
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryClusterFileReference;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The run manifest records which jobs of a clustering run were
+ * completed. This allows a run to be restarted after a crash
+ * without repeating the finished work.
+ *
+ * The manifest is a simple tab-delimited file that is only appended
+ * to. The first line holds a fingerprint of the used settings. If the
+ * settings of the restarted run differ, the manifest is discarded.
+ *
+ * Every completed job is stored together with the fingerprints of its
+ * input and output file. A job is only treated as completed if both files
+ * are still unchanged.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class RunManifest {
+    public static final String MANIFEST_FILENAME = "run_manifest.tsv";
+
+    public static final String CONVERSION = "conversion";
+    public static final String CLUSTERING = "clustering";
+    public static final String REBINNING = "rebinning";
+    public static final String MERGING = "merging";
+
+    private static final String SETTINGS_LINE = "#settings";
+    private static final String STAGE_COMPLETE = "#complete";
+
+    private final File manifestFile;
+    /**
+     * Completed jobs per stage with the input file's path as key
+     */
+    private final Map<String, Map<String, ManifestEntry>> completedJobs = new HashMap<String, Map<String, ManifestEntry>>();
+    private final Set<String> completedStages = new HashSet<String>();
+
+    private Writer writer;
+
+    /**
+     * Opens the run manifest in the defined directory. If a manifest exists and was
+     * created using the same settings, all completed jobs are loaded. Otherwise, a new
+     * manifest is created.
+     * @param directory The (temporary) directory of the run.
+     * @param settingsFingerprint A String representing all settings that influence the result.
+     * @throws IOException
+     */
+    public RunManifest(File directory, String settingsFingerprint) throws IOException {
+        this.manifestFile = new File(directory, MANIFEST_FILENAME);
+
+        boolean isValid = manifestFile.exists() && loadManifest(settingsFingerprint);
+
+        if (isValid) {
+            writer = new BufferedWriter(new FileWriter(manifestFile, true));
+        } else {
+            completedJobs.clear();
+            completedStages.clear();
+
+            writer = new BufferedWriter(new FileWriter(manifestFile, false));
+            writer.write(SETTINGS_LINE + "\t" + settingsFingerprint + "\n");
+            writer.flush();
+        }
+    }
+
+    private boolean loadManifest(String settingsFingerprint) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(manifestFile));
+
+        try {
+            String line = reader.readLine();
+
+            if (line == null || !line.equals(SETTINGS_LINE + "\t" + settingsFingerprint)) {
+                return false;
+            }
+
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+
+                if (fields.length == 2 && STAGE_COMPLETE.equals(fields[0])) {
+                    completedStages.add(fields[1]);
+                    continue;
+                }
+
+                // ignore incomplete lines - these are written when the JVM dies
+                if (fields.length != 8) {
+                    continue;
+                }
+
+                ManifestEntry entry = new ManifestEntry(fields[1], fields[2],
+                        new BinaryClusterFileReference(new File(fields[3]),
+                                Double.parseDouble(fields[5]), Double.parseDouble(fields[6]), Integer.parseInt(fields[7])),
+                        fields[4]);
+
+                getStageJobs(fields[0]).put(entry.inputPath, entry);
+            }
+
+            return true;
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Returns the result of a completed job.
+     * @param stage The stage of the job.
+     * @param inputFile The job's input file.
+     * @return The job's result or null in case the job was not completed or its input or output changed since.
+     */
+    public synchronized BinaryClusterFileReference getCompletedJob(String stage, File inputFile) {
+        ManifestEntry entry = getStageJobs(stage).get(inputFile.getAbsolutePath());
+
+        if (entry == null) {
+            return null;
+        }
+
+        if (!entry.inputFingerprint.equals(getFingerprint(inputFile)) ||
+                !entry.outputFingerprint.equals(getFingerprint(entry.result.getResultFile()))) {
+            return null;
+        }
+
+        return entry.result;
+    }
+
+    /**
+     * Records a completed job.
+     * @param stage The stage of the job.
+     * @param inputFile The job's input file.
+     * @param result The job's result.
+     * @throws IOException
+     */
+    public synchronized void recordCompletedJob(String stage, File inputFile, BinaryClusterFileReference result)
+            throws IOException {
+        ManifestEntry entry = new ManifestEntry(inputFile.getAbsolutePath(), getFingerprint(inputFile), result,
+                getFingerprint(result.getResultFile()));
+
+        // the m/z values are written in full precision to restore the exact file boundaries
+        writer.write(String.format(Locale.US, "%s\t%s\t%s\t%s\t%s\t%s\t%s\t%d\n", stage, entry.inputPath,
+                entry.inputFingerprint, result.getResultFile().getAbsolutePath(), entry.outputFingerprint,
+                String.valueOf(result.getMinMz()), String.valueOf(result.getMaxMz()), result.getnSpectra()));
+        writer.flush();
+
+        getStageJobs(stage).put(entry.inputPath, entry);
+    }
+
+    /**
+     * Marks a whole stage as completed.
+     * @param stage The stage.
+     * @throws IOException
+     */
+    public synchronized void recordStageComplete(String stage) throws IOException {
+        writer.write(STAGE_COMPLETE + "\t" + stage + "\n");
+        writer.flush();
+
+        completedStages.add(stage);
+    }
+
+    public synchronized boolean isStageComplete(String stage) {
+        return completedStages.contains(stage);
+    }
+
+    /**
+     * Returns the results of all jobs recorded for the defined stage.
+     * @param stage The stage.
+     * @return List of results or null in case one of the result files changed.
+     */
+    public synchronized List<BinaryClusterFileReference> getStageResults(String stage) {
+        List<BinaryClusterFileReference> results = new ArrayList<BinaryClusterFileReference>();
+
+        for (ManifestEntry entry : getStageJobs(stage).values()) {
+            if (!entry.outputFingerprint.equals(getFingerprint(entry.result.getResultFile()))) {
+                return null;
+            }
+
+            results.add(entry.result);
+        }
+
+        Collections.sort(results);
+
+        return results;
+    }
+
+    public File getManifestFile() {
+        return manifestFile;
+    }
+
+    /**
+     * Closes the manifest and deletes the file. This should be
+     * called once the run is complete.
+     */
+    public synchronized void delete() throws IOException {
+        writer.close();
+        manifestFile.delete();
+    }
+
+    private Map<String, ManifestEntry> getStageJobs(String stage) {
+        if (!completedJobs.containsKey(stage)) {
+            completedJobs.put(stage, new HashMap<String, ManifestEntry>());
+        }
+
+        return completedJobs.get(stage);
+    }
+
+    /**
+     * Fingerprint of a file based on its size and modification time.
+     * @param file The file.
+     * @return The fingerprint as String
+     */
+    public static String getFingerprint(File file) {
+        if (!file.exists()) {
+            return "missing";
+        }
+
+        return file.length() + ":" + file.lastModified();
+    }
+
+    private static class ManifestEntry {
+        public final String inputPath;
+        public final String inputFingerprint;
+        public final BinaryClusterFileReference result;
+        public final String outputFingerprint;
+
+        public ManifestEntry(String inputPath, String inputFingerprint, BinaryClusterFileReference result,
+                             String outputFingerprint) {
+            this.inputPath = inputPath;
+            this.inputFingerprint = inputFingerprint;
+            this.result = result;
+            this.outputFingerprint = outputFingerprint;
+        }
+    }
+}
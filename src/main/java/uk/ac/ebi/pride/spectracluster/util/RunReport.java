@@ -0,0 +1,72 @@
+package uk.ac.ebi.pride.spectracluster.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Records exceptional events of a clustering run, for example bins
+ * that had to be re-clustered with fewer comparisons. The report is written
+ * as a tab-delimited file next to the result file.
+ *
+ * Created by jg on 19.10.26.
+ */
+public class RunReport {
+    public static final String REPORT_SUFFIX = ".report.tsv";
+
+    public static final String TIME_BUDGET_EXCEEDED = "time_budget_exceeded";
+    public static final String OUT_OF_MEMORY = "out_of_memory";
+
+    private final List<String> events = new ArrayList<String>();
+
+    /**
+     * Records an event.
+     * @param stage The stage of the run (see ProgressUpdate.CLUSTERING_STAGE).
+     * @param file The file (bin) the event refers to.
+     * @param event The event's type.
+     * @param details A human readable description.
+     */
+    public synchronized void addEvent(ProgressUpdate.CLUSTERING_STAGE stage, File file, String event, String details) {
+        events.add(stage + "\t" + file.getName() + "\t" + event + "\t" + details.replace('\t', ' '));
+    }
+
+    public synchronized List<String> getEvents() {
+        return Collections.unmodifiableList(new ArrayList<String>(events));
+    }
+
+    public synchronized boolean isEmpty() {
+        return events.isEmpty();
+    }
+
+    /**
+     * Returns the report file used for the passed result file.
+     * @param resultFile The run's result file.
+     * @return The report file.
+     */
+    public static File getReportFile(File resultFile) {
+        return new File(resultFile.getPath() + REPORT_SUFFIX);
+    }
+
+    /**
+     * Writes all recorded events to the passed file.
+     * @param reportFile The file to write.
+     * @throws IOException
+     */
+    public synchronized void write(File reportFile) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(reportFile));
+
+        try {
+            writer.write("stage\tfile\tevent\tdetails\n");
+
+            for (String event : events) {
+                writer.write(event + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
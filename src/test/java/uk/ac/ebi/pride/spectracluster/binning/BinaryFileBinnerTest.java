@@ -1,13 +1,18 @@
 package uk.ac.ebi.pride.spectracluster.binning;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
 import uk.ac.ebi.pride.spectracluster.clustering.BinaryClusterFileReference;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterAppender;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterIterable;
 import uk.ac.ebi.pride.spectracluster.util.BinaryFileScanner;
 
-import java.io.File;
+import java.io.*;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 
@@ -59,9 +64,138 @@ public class BinaryFileBinnerTest {
         Assert.assertEquals(specIn, specOut);
     }
 
+    @Test
+    public void testParallelRebinning() throws Exception {
+        List<BinaryClusterFileReference> inputFiles = splitTestFile(new double[]{408, 410, 412});
+
+        assertParallelMatchesSequential(inputFiles, 0.5);
+    }
+
+    @Test
+    public void testParallelRebinningWithoutPlan() throws Exception {
+        List<BinaryClusterFileReference> inputFiles = splitTestFile(new double[]{408, 410, 412});
+
+        // the third file reaches beyond the last one, its boundaries depend on the order of its clusters
+        BinaryClusterFileReference thirdFile = inputFiles.get(2);
+        inputFiles.set(2, new BinaryClusterFileReference(thirdFile.getResultFile(), thirdFile.getMinMz(),
+                inputFiles.get(3).getMaxMz() + 1, thirdFile.getnSpectra()));
+
+        assertParallelMatchesSequential(inputFiles, 0.5);
+    }
+
+    @Test
+    public void testParallelRebinningWithWrongReferences() throws Exception {
+        List<BinaryClusterFileReference> inputFiles = splitTestFile(new double[]{408, 410, 412});
+
+        // the planned boundary lies beyond the first file's clusters so the parallel jobs fail
+        BinaryClusterFileReference firstFile = inputFiles.get(0);
+        inputFiles.set(0, new BinaryClusterFileReference(firstFile.getResultFile(), firstFile.getMinMz(),
+                408.9, firstFile.getnSpectra()));
+
+        assertParallelMatchesSequential(inputFiles, 0.5);
+    }
+
+    /**
+     * Re-bins the files sequentially and in parallel and compares the names,
+     * references and clusters of the re-binned files.
+     */
+    private void assertParallelMatchesSequential(List<BinaryClusterFileReference> inputFiles, double windowSize)
+            throws Exception {
+        File sequentialDir = new File(outputDir, "sequential");
+        File parallelDir = new File(outputDir, "parallel");
+        Assert.assertTrue(sequentialDir.mkdir());
+        Assert.assertTrue(parallelDir.mkdir());
+
+        List<BinaryClusterFileReference> sequential = BinaryFileRebinner.rebinBinaryFiles(
+                new ArrayList<BinaryClusterFileReference>(inputFiles), sequentialDir, windowSize);
+        List<BinaryClusterFileReference> parallel = BinaryFileRebinner.rebinBinaryFiles(
+                new ArrayList<BinaryClusterFileReference>(inputFiles), parallelDir, windowSize, 3);
+
+        Assert.assertTrue(sequential.size() > 1);
+        Assert.assertEquals(sequential.size(), parallel.size());
+
+        for (int i = 0; i < sequential.size(); i++) {
+            BinaryClusterFileReference sequentialFile = sequential.get(i);
+            BinaryClusterFileReference parallelFile = parallel.get(i);
+
+            Assert.assertEquals(sequentialFile.getResultFile().getName(), parallelFile.getResultFile().getName());
+            Assert.assertEquals(sequentialFile.getMinMz(), parallelFile.getMinMz(), 0);
+            Assert.assertEquals(sequentialFile.getMaxMz(), parallelFile.getMaxMz(), 0);
+            Assert.assertEquals(sequentialFile.getnSpectra(), parallelFile.getnSpectra());
+            Assert.assertEquals(readClusterIds(sequentialFile.getResultFile()),
+                    readClusterIds(parallelFile.getResultFile()));
+        }
+
+        // no temporary files are left
+        Assert.assertEquals(parallel.size(), parallelDir.list().length);
+    }
+
+    /**
+     * Splits the test file into several sorted files at the defined m/z values.
+     */
+    private List<BinaryClusterFileReference> splitTestFile(double[] splitMzs) throws Exception {
+        File inputDir = new File(outputDir, "input");
+        Assert.assertTrue(inputDir.mkdir());
+
+        List<File> inputFiles = new ArrayList<File>();
+        ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(testFile)));
+        ObjectOutputStream outputStream = null;
+        int currentFile = -1;
+
+        try {
+            for (ICluster cluster : new BinaryClusterIterable(inputStream)) {
+                int file = 0;
+                while (file < splitMzs.length && cluster.getPrecursorMz() >= splitMzs[file]) {
+                    file++;
+                }
+
+                while (currentFile < file) {
+                    if (outputStream != null) {
+                        BinaryClusterAppender.INSTANCE.appendEnd(outputStream);
+                        outputStream.close();
+                    }
+
+                    currentFile++;
+                    File inputFile = new File(inputDir, "input_" + currentFile + ".cls");
+                    inputFiles.add(inputFile);
+                    outputStream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(inputFile)));
+                }
+
+                BinaryClusterAppender.INSTANCE.appendCluster(outputStream, cluster);
+            }
+        } finally {
+            inputStream.close();
+
+            if (outputStream != null) {
+                BinaryClusterAppender.INSTANCE.appendEnd(outputStream);
+                outputStream.close();
+            }
+        }
+
+        // every file must contain clusters
+        Assert.assertEquals(splitMzs.length + 1, inputFiles.size());
+
+        return BinaryFileScanner.scanBinaryFiles(inputFiles.toArray(new File[inputFiles.size()]));
+    }
+
+    private List<String> readClusterIds(File file) throws Exception {
+        ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        List<String> clusterIds = new ArrayList<String>();
+
+        try {
+            for (ICluster cluster : new BinaryClusterIterable(inputStream)) {
+                clusterIds.add(cluster.getId());
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        return clusterIds;
+    }
+
     @After
-    public void tearDown() {
-        outputDir.delete();
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(outputDir);
     }
 
     private File getResource(String name) throws Exception {
@@ -0,0 +1,46 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class BinCostEstimatorTest {
+    @Test
+    public void testDenseBinIsMoreExpensive() {
+        BinCostEstimator estimator = new BinCostEstimator(2);
+
+        BinaryClusterFileReference sparseBin = new BinaryClusterFileReference(new File("sparse.cls"), 300, 400, 1000);
+        BinaryClusterFileReference denseBin = new BinaryClusterFileReference(new File("dense.cls"), 400, 410, 1000);
+
+        Assert.assertTrue(estimator.estimateCost(denseBin) > estimator.estimateCost(sparseBin));
+    }
+
+    @Test
+    public void testLongestFirst() {
+        BinCostEstimator estimator = new BinCostEstimator(2);
+
+        List<BinaryClusterFileReference> files = new ArrayList<BinaryClusterFileReference>();
+        files.add(new BinaryClusterFileReference(new File("small1.cls"), 300, 301, 10));
+        files.add(new BinaryClusterFileReference(new File("small2.cls"), 301, 302, 10));
+        files.add(new BinaryClusterFileReference(new File("small3.cls"), 302, 303, 10));
+        files.add(new BinaryClusterFileReference(new File("large.cls"), 303, 304, 20));
+
+        List<BinaryClusterFileReference> sortedFiles = estimator.sortByCost(files);
+
+        Assert.assertEquals(4, sortedFiles.size());
+        Assert.assertEquals("large.cls", sortedFiles.get(0).getResultFile().getName());
+
+        // submitting the large file last makes it the tail of the run
+        double submittedOrderMakespan = estimator.predictMakespan(files, 2);
+        double sortedMakespan = estimator.predictMakespan(sortedFiles, 2);
+
+        Assert.assertTrue(sortedMakespan < submittedOrderMakespan);
+        Assert.assertEquals(estimator.getTotalCost(files), estimator.predictMakespan(files, 1), 0.0001);
+    }
+}
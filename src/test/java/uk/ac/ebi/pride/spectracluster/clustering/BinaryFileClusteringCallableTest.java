@@ -0,0 +1,110 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.implementation.SpectraClusterStandalone;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterIterable;
+import uk.ac.ebi.pride.spectracluster.spectrum.ISpectrum;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class BinaryFileClusteringCallableTest {
+    @Test
+    public void testFinalRoundOnlyMerge() throws Exception {
+        File testFile = new File(BinaryFileClusteringCallableTest.class.getClassLoader().getResource("convertedSpectra_0406_0415.cls").toURI());
+        File temporaryDirectory = SpectraClusterStandalone.createTemporaryDirectory("final_round_test");
+
+        List<Float> thresholds = new ArrayList<Float>();
+        thresholds.add(0.999F);
+        thresholds.add(0.99F);
+
+        // the converged clusters of a bin as they are merged with the neighbouring bins
+        File clusteredFile = new File(temporaryDirectory, "clustered.cls");
+        new BinaryFileClusteringCallable(clusteredFile, testFile, thresholds, true, temporaryDirectory, null).call();
+
+        File defaultMergeFile = new File(temporaryDirectory, "default_merge.cls");
+        new BinaryFileClusteringCallable(defaultMergeFile, clusteredFile, thresholds, true, temporaryDirectory, null).call();
+
+        File finalRoundMergeFile = new File(temporaryDirectory, "final_round_merge.cls");
+        BinaryFileClusteringCallable finalRoundMerge = new BinaryFileClusteringCallable(finalRoundMergeFile,
+                clusteredFile, thresholds, true, temporaryDirectory, null);
+        finalRoundMerge.setFinalRoundOnly(true);
+        finalRoundMerge.call();
+
+        List<List<String>> inputClusters = getSpectrumIds(clusteredFile);
+        List<List<String>> defaultClusters = getSpectrumIds(defaultMergeFile);
+        List<List<String>> finalRoundClusters = getSpectrumIds(finalRoundMergeFile);
+
+        // both merges report every spectrum exactly once
+        Assert.assertEquals(getAllSpectrumIds(defaultClusters), getAllSpectrumIds(finalRoundClusters));
+        Assert.assertEquals(getAllSpectrumIds(inputClusters), getAllSpectrumIds(finalRoundClusters));
+
+        // both merges only join converged clusters, they never split them
+        assertUnionsOfInputClusters(inputClusters, defaultClusters);
+        assertUnionsOfInputClusters(inputClusters, finalRoundClusters);
+    }
+
+    private void assertUnionsOfInputClusters(List<List<String>> inputClusters, List<List<String>> mergedClusters) {
+        Map<String, Integer> mergedClusterIndex = new HashMap<String, Integer>();
+
+        for (int i = 0; i < mergedClusters.size(); i++) {
+            for (String spectrumId : mergedClusters.get(i)) {
+                mergedClusterIndex.put(spectrumId, i);
+            }
+        }
+
+        for (List<String> inputCluster : inputClusters) {
+            Integer mergedCluster = mergedClusterIndex.get(inputCluster.get(0));
+
+            for (String spectrumId : inputCluster) {
+                Assert.assertEquals(mergedCluster, mergedClusterIndex.get(spectrumId));
+            }
+        }
+
+        Assert.assertTrue(mergedClusters.size() <= inputClusters.size());
+    }
+
+    /**
+     * The sorted ids of all spectra, including duplicates.
+     */
+    private List<String> getAllSpectrumIds(List<List<String>> clusters) {
+        List<String> spectrumIds = new ArrayList<String>();
+
+        for (List<String> cluster : clusters) {
+            spectrumIds.addAll(cluster);
+        }
+
+        Collections.sort(spectrumIds);
+
+        return spectrumIds;
+    }
+
+    /**
+     * The spectrum ids of every cluster in the file.
+     */
+    private List<List<String>> getSpectrumIds(File file) throws Exception {
+        ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        List<List<String>> spectrumIds = new ArrayList<List<String>>();
+
+        try {
+            for (ICluster cluster : new BinaryClusterIterable(inputStream)) {
+                List<String> clusterSpectrumIds = new ArrayList<String>();
+
+                for (ISpectrum spectrum : cluster.getClusteredSpectra()) {
+                    clusterSpectrumIds.add(spectrum.getId());
+                }
+
+                spectrumIds.add(clusterSpectrumIds);
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        return spectrumIds;
+    }
+}
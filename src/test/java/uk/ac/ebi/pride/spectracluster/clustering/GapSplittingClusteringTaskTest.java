@@ -0,0 +1,121 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.implementation.SpectraClusterStandalone;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterIterable;
+import uk.ac.ebi.pride.spectracluster.spectrum.ISpectrum;
+import uk.ac.ebi.pride.spectracluster.util.BinaryFileScanner;
+import uk.ac.ebi.pride.spectracluster.util.ClusteringJobReference;
+import uk.ac.ebi.pride.spectracluster.util.Defaults;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class GapSplittingClusteringTaskTest {
+    private float originalTolerance;
+
+    @Before
+    public void setUp() {
+        // a small tolerance creates gaps within the test file
+        originalTolerance = (float) Defaults.getDefaultPrecursorIonTolerance();
+        Defaults.setDefaultPrecursorIonTolerance(0.05F);
+    }
+
+    @After
+    public void tearDown() {
+        Defaults.setDefaultPrecursorIonTolerance(originalTolerance);
+    }
+
+    @Test
+    public void testSplitMatchesUnsplitResult() throws Exception {
+        File testFile = new File(GapSplittingClusteringTaskTest.class.getClassLoader().getResource("convertedSpectra_0406_0415.cls").toURI());
+        BinaryClusterFileReference inputFile = BinaryFileScanner.scanBinaryFiles(testFile).get(0);
+        File temporaryDirectory = SpectraClusterStandalone.createTemporaryDirectory("gap_splitting_test");
+        double windowSize = Defaults.getDefaultPrecursorIonTolerance() * 2;
+
+        List<Float> thresholds = new ArrayList<Float>();
+        thresholds.add(0.99F);
+
+        // the test file must contain a gap larger than the window
+        List<ICluster> inputClusters = readClusters(testFile);
+        boolean hasGap = false;
+        for (int i = 1; i < inputClusters.size(); i++) {
+            if (inputClusters.get(i).getPrecursorMz() - inputClusters.get(i - 1).getPrecursorMz() > windowSize) {
+                hasGap = true;
+            }
+        }
+        Assert.assertTrue(hasGap);
+
+        File unsplitOutput = new File(temporaryDirectory, "unsplit.cls");
+        new BinaryFileClusteringCallable(unsplitOutput, testFile, thresholds, true, temporaryDirectory, null).call();
+
+        File splitOutput = new File(temporaryDirectory, "split.cls");
+        // split every bin
+        GapSplittingClusteringTask task = new GapSplittingClusteringTask(inputFile, splitOutput, thresholds, true,
+                temporaryDirectory, null, new HashMap<Float, File>(), new BinCostEstimator(windowSize), 0, null);
+        task.setMinSplitClusters(2);
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        ClusteringJobReference result;
+        try {
+            result = pool.submit(task.asCallable()).get();
+        } finally {
+            pool.shutdown();
+        }
+
+        List<List<String>> unsplitClusters = getSpectrumIds(readClusters(unsplitOutput));
+        List<List<String>> splitClusters = getSpectrumIds(readClusters(splitOutput));
+
+        Assert.assertEquals(unsplitClusters.size(), result.getOutputFile().getnSpectra());
+        Assert.assertEquals(new HashSet<List<String>>(unsplitClusters), new HashSet<List<String>>(splitClusters));
+
+        // all sub-bins and their results are deleted
+        for (String remainingFile : temporaryDirectory.list()) {
+            Assert.assertFalse(remainingFile.startsWith("split_bin"));
+            Assert.assertFalse(remainingFile.startsWith("split_result"));
+        }
+    }
+
+    private List<ICluster> readClusters(File file) throws Exception {
+        ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        List<ICluster> clusters = new ArrayList<ICluster>();
+
+        try {
+            for (ICluster cluster : new BinaryClusterIterable(inputStream)) {
+                clusters.add(cluster);
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        return clusters;
+    }
+
+    /**
+     * The sorted spectrum ids of every cluster.
+     */
+    private List<List<String>> getSpectrumIds(List<ICluster> clusters) {
+        List<List<String>> spectrumIds = new ArrayList<List<String>>();
+
+        for (ICluster cluster : clusters) {
+            List<String> clusterSpectrumIds = new ArrayList<String>();
+
+            for (ISpectrum spectrum : cluster.getClusteredSpectra()) {
+                clusterSpectrumIds.add(spectrum.getId());
+            }
+
+            Collections.sort(clusterSpectrumIds);
+            spectrumIds.add(clusterSpectrumIds);
+        }
+
+        return spectrumIds;
+    }
+}
@@ -0,0 +1,117 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.implementation.SpectraClusterStandalone;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterIterable;
+import uk.ac.ebi.pride.spectracluster.spectrum.ISpectrum;
+import uk.ac.ebi.pride.spectracluster.util.BinaryFileScanner;
+import uk.ac.ebi.pride.spectracluster.util.ClusteringJobReference;
+import uk.ac.ebi.pride.spectracluster.util.Defaults;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class HaloBinClustererTest {
+    @Test
+    public void testEverySpectrumReportedOnce() throws Exception {
+        File testFile = new File(HaloBinClustererTest.class.getClassLoader().getResource("convertedSpectra_0406_0415.cls").toURI());
+        BinaryClusterFileReference inputFile = BinaryFileScanner.scanBinaryFiles(testFile).get(0);
+        File temporaryDirectory = SpectraClusterStandalone.createTemporaryDirectory("halo_bin_test");
+        File outputFile = new File(temporaryDirectory, "result.cls");
+
+        List<Float> thresholds = new ArrayList<Float>();
+        thresholds.add(0.99F);
+
+        // the parts are narrower than the tolerance so that spectra straddle the boundaries
+        HaloBinClusterer haloBinClusterer = new HaloBinClusterer(inputFile, outputFile, thresholds, true,
+                temporaryDirectory, null, Defaults.getDefaultPrecursorIonTolerance(), 4, 2);
+        ClusteringJobReference result = haloBinClusterer.call();
+
+        List<String> inputSpectra = getSpectrumIds(testFile);
+        List<String> outputSpectra = getSpectrumIds(outputFile);
+
+        Assert.assertTrue(inputSpectra.size() > 0);
+        Assert.assertEquals(inputSpectra, outputSpectra);
+        Assert.assertTrue(result.getOutputFile().getnSpectra() > 0);
+    }
+
+    @Test
+    public void testInputClustersAreKept() throws Exception {
+        File testFile = new File(HaloBinClustererTest.class.getClassLoader().getResource("merged_0200.cls").toURI());
+        BinaryClusterFileReference inputFile = BinaryFileScanner.scanBinaryFiles(testFile).get(0);
+        File temporaryDirectory = SpectraClusterStandalone.createTemporaryDirectory("halo_bin_test");
+        File outputFile = new File(temporaryDirectory, "result.cls");
+
+        List<Float> thresholds = new ArrayList<Float>();
+        thresholds.add(0.99F);
+
+        HaloBinClusterer haloBinClusterer = new HaloBinClusterer(inputFile, outputFile, thresholds, true,
+                temporaryDirectory, null, Defaults.getDefaultPrecursorIonTolerance(), 4, 2);
+        haloBinClusterer.call();
+
+        Assert.assertEquals(getSpectrumIds(testFile), getSpectrumIds(outputFile));
+
+        // straddling clusters are re-clustered as the original input clusters, their spectra stay together
+        Map<String, String> outputClusters = getSpectrumClusters(outputFile);
+        Map<String, String> inputClusters = getSpectrumClusters(testFile);
+        Map<String, String> inputToOutputCluster = new HashMap<String, String>();
+
+        for (Map.Entry<String, String> spectrumCluster : inputClusters.entrySet()) {
+            String outputCluster = outputClusters.get(spectrumCluster.getKey());
+            String previousOutputCluster = inputToOutputCluster.put(spectrumCluster.getValue(), outputCluster);
+
+            Assert.assertTrue(previousOutputCluster == null || previousOutputCluster.equals(outputCluster));
+        }
+    }
+
+    /**
+     * Maps the id of every spectrum in the file to the id of its cluster.
+     */
+    private Map<String, String> getSpectrumClusters(File file) throws Exception {
+        ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        Map<String, String> spectrumClusters = new HashMap<String, String>();
+
+        try {
+            for (ICluster cluster : new BinaryClusterIterable(inputStream)) {
+                for (ISpectrum spectrum : cluster.getClusteredSpectra()) {
+                    spectrumClusters.put(spectrum.getId(), cluster.getId());
+                }
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        return spectrumClusters;
+    }
+
+    /**
+     * The sorted ids of all spectra in the file, including duplicates.
+     */
+    private List<String> getSpectrumIds(File file) throws Exception {
+        ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        List<String> spectrumIds = new ArrayList<String>();
+
+        try {
+            for (ICluster cluster : new BinaryClusterIterable(inputStream)) {
+                for (ISpectrum spectrum : cluster.getClusteredSpectra()) {
+                    spectrumIds.add(spectrum.getId());
+                }
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        Collections.sort(spectrumIds);
+
+        return spectrumIds;
+    }
+}
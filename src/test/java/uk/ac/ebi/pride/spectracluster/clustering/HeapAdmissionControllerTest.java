@@ -0,0 +1,62 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.ac.ebi.pride.spectracluster.util.CompletionJobRunner;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class HeapAdmissionControllerTest {
+    @Test
+    public void testAdmission() throws Exception {
+        HeapAdmissionController controller = new HeapAdmissionController(100);
+        final AtomicInteger runningJobs = new AtomicInteger(0);
+        final AtomicInteger maxRunningJobs = new AtomicInteger(0);
+
+        CompletionJobRunner<Integer> jobRunner = new CompletionJobRunner<Integer>(4);
+
+        // no two of these jobs fit into the budget together, the last one exceeds it
+        long[] requirements = {60, 60, 60, 150};
+
+        for (long requirement : requirements) {
+            jobRunner.submit(controller.admit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int running = runningJobs.incrementAndGet();
+                    synchronized (maxRunningJobs) {
+                        maxRunningJobs.set(Math.max(maxRunningJobs.get(), running));
+                    }
+
+                    Thread.sleep(50);
+                    runningJobs.decrementAndGet();
+
+                    return running;
+                }
+            }, requirement));
+        }
+
+        jobRunner.awaitAll(null);
+        jobRunner.shutdown();
+
+        Assert.assertEquals(1, maxRunningJobs.get());
+        Assert.assertEquals(0, controller.getReservedHeap());
+    }
+
+    @Test
+    public void testEstimateHeapRequirement() throws Exception {
+        File testFile = new File(HeapAdmissionControllerTest.class.getClassLoader().getResource("convertedSpectra_0406_0415.cls").toURI());
+        BinaryClusterFileReference binaryFile = new BinaryClusterFileReference(testFile, 406, 415, 1000);
+        HeapAdmissionController controller = new HeapAdmissionController(100);
+
+        long requirement = controller.estimateHeapRequirement(binaryFile, 0);
+        Assert.assertTrue(requirement > 1000 * HeapAdmissionController.ESTIMATED_BYTES_PER_SPECTRUM);
+
+        // the window spills to disk at its memory budget
+        Assert.assertEquals(5000, controller.estimateHeapRequirement(binaryFile, 5000));
+    }
+}
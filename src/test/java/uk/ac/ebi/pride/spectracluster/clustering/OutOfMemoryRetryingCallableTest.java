@@ -0,0 +1,60 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.ac.ebi.pride.spectracluster.implementation.SpectraClusterStandalone;
+import uk.ac.ebi.pride.spectracluster.util.BinaryFileScanner;
+import uk.ac.ebi.pride.spectracluster.util.ClusteringJobReference;
+import uk.ac.ebi.pride.spectracluster.util.IProgressListener;
+import uk.ac.ebi.pride.spectracluster.util.ProgressUpdate;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class OutOfMemoryRetryingCallableTest {
+    @Test
+    public void testRetryInParts() throws Exception {
+        File testFile = new File(OutOfMemoryRetryingCallableTest.class.getClassLoader().getResource("convertedSpectra_0406_0415.cls").toURI());
+        BinaryClusterFileReference inputFile = BinaryFileScanner.scanBinaryFiles(testFile).get(0);
+        File temporaryDirectory = SpectraClusterStandalone.createTemporaryDirectory("oom_retry_test");
+        File outputFile = new File(temporaryDirectory, "result.cls");
+
+        List<Float> thresholds = new ArrayList<Float>();
+        thresholds.add(0.99F);
+
+        Callable<ClusteringJobReference> failingJob = new Callable<ClusteringJobReference>() {
+            @Override
+            public ClusteringJobReference call() throws Exception {
+                throw new OutOfMemoryError("Test");
+            }
+        };
+
+        OutOfMemoryRetryingCallable retryingCallable = new OutOfMemoryRetryingCallable(failingJob, inputFile, outputFile,
+                thresholds, true, temporaryDirectory, null, 1, 2, new ReentrantLock());
+
+        final List<ProgressUpdate> progressUpdates = new ArrayList<ProgressUpdate>();
+        retryingCallable.addProgressListener(new IProgressListener() {
+            @Override
+            public void onProgressUpdate(ProgressUpdate progressUpdate) {
+                progressUpdates.add(progressUpdate);
+            }
+        });
+
+        ClusteringJobReference result = retryingCallable.call();
+
+        Assert.assertEquals(2, result.getStatistics().getOutOfMemoryParts());
+        Assert.assertTrue(outputFile.exists());
+        Assert.assertTrue(result.getOutputFile().getnSpectra() > 0);
+        Assert.assertTrue(result.getOutputFile().getnSpectra() <= inputFile.getnSpectra());
+
+        // the retry is reported as a warning
+        Assert.assertEquals(1, progressUpdates.size());
+        Assert.assertTrue(progressUpdates.get(0).getMessage().contains("retrying in 2 parts"));
+    }
+}
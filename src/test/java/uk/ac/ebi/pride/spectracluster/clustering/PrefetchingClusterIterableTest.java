@@ -0,0 +1,94 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class PrefetchingClusterIterableTest {
+    private File testFile;
+
+    @Before
+    public void setUp() throws Exception {
+        testFile = new File(PrefetchingClusterIterableTest.class.getClassLoader().getResource("merged_0200.cls").toURI());
+    }
+
+    @Test
+    public void testPrefetching() throws Exception {
+        List<String> directIds = readClusterIds(null);
+
+        ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+        List<String> prefetchedIds = readClusterIds(ioExecutor);
+        ioExecutor.shutdown();
+
+        Assert.assertFalse(directIds.isEmpty());
+        Assert.assertEquals(directIds, prefetchedIds);
+    }
+
+    @Test
+    public void testCloseBeforeEnd() throws Exception {
+        ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+
+        // the reader stops once the small queue is full
+        PrefetchingClusterIterable clusterIterable = new PrefetchingClusterIterable(testFile, ioExecutor, 10);
+        Assert.assertTrue(clusterIterable.iterator().hasNext());
+        clusterIterable.close();
+
+        ioExecutor.shutdown();
+        Assert.assertTrue(ioExecutor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 30000)
+    public void testMoreIterablesThanThreads() throws Exception {
+        List<String> directIds = readClusterIds(null);
+        ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+
+        // both iterables share the single I/O thread while they are read alternately
+        PrefetchingClusterIterable iterable1 = new PrefetchingClusterIterable(testFile, ioExecutor, 10);
+        PrefetchingClusterIterable iterable2 = new PrefetchingClusterIterable(testFile, ioExecutor, 10);
+        Iterator<ICluster> iterator1 = iterable1.iterator();
+        Iterator<ICluster> iterator2 = iterable2.iterator();
+        List<String> ids1 = new ArrayList<String>();
+        List<String> ids2 = new ArrayList<String>();
+
+        while (iterator1.hasNext() || iterator2.hasNext()) {
+            if (iterator1.hasNext()) {
+                ids1.add(iterator1.next().getId());
+            }
+            if (iterator2.hasNext()) {
+                ids2.add(iterator2.next().getId());
+            }
+        }
+
+        iterable1.close();
+        iterable2.close();
+        ioExecutor.shutdown();
+
+        Assert.assertEquals(directIds, ids1);
+        Assert.assertEquals(directIds, ids2);
+    }
+
+    private List<String> readClusterIds(ExecutorService ioExecutor) throws Exception {
+        List<String> ids = new ArrayList<String>();
+        PrefetchingClusterIterable clusterIterable = new PrefetchingClusterIterable(testFile, ioExecutor, 10);
+
+        for (ICluster cluster : clusterIterable) {
+            ids.add(cluster.getId());
+        }
+
+        clusterIterable.close();
+
+        return ids;
+    }
+}
@@ -0,0 +1,73 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class SimilarityScoreCacheTest {
+    @Test
+    public void testScoresSurviveOneRound() {
+        SimilarityScoreCache cache = new SimilarityScoreCache();
+
+        cache.putScore(1, 2, 0.5);
+        Assert.assertEquals(0.5, cache.getScore(1, 2), 0);
+        Assert.assertTrue(Double.isNaN(cache.getScore(2, 1)));
+
+        cache.startNewRound();
+        Assert.assertEquals(0.5, cache.getScore(1, 2), 0);
+
+        // the score was re-used in the last round and therefore still available
+        cache.startNewRound();
+        Assert.assertEquals(0.5, cache.getScore(1, 2), 0);
+
+        // not used for a whole round
+        cache.startNewRound();
+        cache.startNewRound();
+        Assert.assertTrue(Double.isNaN(cache.getScore(1, 2)));
+
+        Assert.assertEquals(3, cache.getHits());
+        Assert.assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testResize() {
+        SimilarityScoreCache cache = new SimilarityScoreCache();
+
+        for (int i = 1; i <= 10000; i++) {
+            cache.putScore(i, i * 7L, i / 10000.0);
+        }
+
+        for (int i = 1; i <= 10000; i++) {
+            Assert.assertEquals(i / 10000.0, cache.getScore(i, i * 7L), 0);
+        }
+    }
+
+    @Test
+    public void testMaxEntries() {
+        SimilarityScoreCache cache = new SimilarityScoreCache(10);
+
+        for (int i = 1; i <= 20; i++) {
+            cache.putScore(i, i, 1);
+        }
+
+        Assert.assertFalse(Double.isNaN(cache.getScore(10, 10)));
+        Assert.assertTrue(Double.isNaN(cache.getScore(11, 11)));
+    }
+
+    @Test
+    public void testCheckMismatch() {
+        SimilarityScoreCache cache = new SimilarityScoreCache();
+
+        cache.putScore(1, 2, 42, 0.5);
+        Assert.assertEquals(0.5, cache.getScore(1, 2, 42), 0);
+
+        // colliding stamps of different spectra
+        Assert.assertTrue(Double.isNaN(cache.getScore(1, 2, 43)));
+
+        cache.startNewRound();
+        Assert.assertTrue(Double.isNaN(cache.getScore(1, 2, 43)));
+        Assert.assertEquals(0.5, cache.getScore(1, 2, 42), 0);
+    }
+}
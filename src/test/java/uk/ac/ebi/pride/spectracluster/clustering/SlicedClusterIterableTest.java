@@ -0,0 +1,71 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class SlicedClusterIterableTest {
+    private File testFile;
+
+    @Before
+    public void setUp() throws Exception {
+        testFile = new File(SlicedClusterIterableTest.class.getClassLoader().getResource("merged_0200.cls").toURI());
+    }
+
+    @Test
+    public void testSlices() throws Exception {
+        List<ICluster> allClusters = readClusters(new BinaryFileSlice(testFile, 0, 0, 0, 0, Double.MAX_VALUE));
+        Assert.assertFalse(allClusters.isEmpty());
+
+        double splitMz = allClusters.get(allClusters.size() / 2).getPrecursorMz();
+
+        List<BinaryFileSlice> slices = new ArrayList<BinaryFileSlice>();
+        slices.add(new BinaryFileSlice(testFile, 0, 0, 0, 0, splitMz));
+        slices.add(new BinaryFileSlice(testFile, 0, 0, 0, Math.nextUp(splitMz), Double.MAX_VALUE));
+
+        SlicedClusterIterable slicedClusterIterable = new SlicedClusterIterable(slices);
+        List<ICluster> slicedClusters = new ArrayList<ICluster>();
+        int nLowerClusters = 0;
+
+        for (ICluster cluster : slicedClusterIterable) {
+            if (cluster.getPrecursorMz() <= splitMz) {
+                // all clusters of the lower slice are returned first
+                Assert.assertEquals(slicedClusters.size(), nLowerClusters);
+                nLowerClusters++;
+            }
+
+            slicedClusters.add(cluster);
+        }
+
+        slicedClusterIterable.close();
+
+        // every cluster is part of exactly one slice
+        Assert.assertEquals(allClusters.size(), slicedClusters.size());
+        Assert.assertTrue(nLowerClusters > 0);
+        Assert.assertTrue(nLowerClusters < slicedClusters.size());
+    }
+
+    private List<ICluster> readClusters(BinaryFileSlice slice) {
+        List<BinaryFileSlice> slices = new ArrayList<BinaryFileSlice>();
+        slices.add(slice);
+
+        SlicedClusterIterable slicedClusterIterable = new SlicedClusterIterable(slices);
+        List<ICluster> clusters = new ArrayList<ICluster>();
+
+        for (ICluster cluster : slicedClusterIterable) {
+            clusters.add(cluster);
+        }
+
+        slicedClusterIterable.close();
+
+        return clusters;
+    }
+}
@@ -0,0 +1,120 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.engine.GreedyIncrementalClusteringEngine;
+import uk.ac.ebi.pride.spectracluster.engine.IIncrementalClusteringEngine;
+import uk.ac.ebi.pride.spectracluster.implementation.SpectraClusterStandalone;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterIterable;
+import uk.ac.ebi.pride.spectracluster.similarity.CombinedFisherIntensityTest;
+import uk.ac.ebi.pride.spectracluster.spectrum.ISpectrum;
+import uk.ac.ebi.pride.spectracluster.util.Defaults;
+import uk.ac.ebi.pride.spectracluster.util.predicate.ComparisonPredicates;
+import uk.ac.ebi.pride.spectracluster.util.predicate.IComparisonPredicate;
+import uk.ac.ebi.pride.spectracluster.util.predicate.cluster_comparison.ClusterShareMajorPeakPredicate;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class SpillingClusteringWindowTest {
+    @Test
+    public void testSpillingDoesNotChangeResult() throws Exception {
+        File temporaryDirectory = SpectraClusterStandalone.createTemporaryDirectory("spilling_window_test");
+
+        Set<List<String>> expectedClusters = clusterTestFile(0, temporaryDirectory, false);
+        Set<List<String>> spilledClusters = clusterTestFile(
+                20 * SpillingClusteringWindow.ESTIMATED_BYTES_PER_SPECTRUM, temporaryDirectory, true);
+
+        Assert.assertTrue(expectedClusters.size() > 0);
+        Assert.assertEquals(expectedClusters, spilledClusters);
+    }
+
+    /**
+     * Clusters the test file and returns the clusters' sorted spectrum ids.
+     */
+    private Set<List<String>> clusterTestFile(long memoryBudget, File temporaryDirectory, boolean expectSpilling) throws Exception {
+        final IComparisonPredicate<ICluster> comparisonPredicate = new ClusterShareMajorPeakPredicate(5);
+
+        SpillingClusteringWindow clusteringWindow = new SpillingClusteringWindow(
+                new SpillingClusteringWindow.IEngineFactory() {
+                    @Override
+                    public IIncrementalClusteringEngine createEngine(IComparisonPredicate<ICluster> windowPredicate) {
+                        return new GreedyIncrementalClusteringEngine(
+                                new CombinedFisherIntensityTest(Defaults.getFragmentIonTolerance()),
+                                Defaults.getDefaultSpectrumComparator(),
+                                Defaults.getDefaultPrecursorIonTolerance(),
+                                0.99,
+                                null,
+                                ComparisonPredicates.and(windowPredicate, comparisonPredicate));
+                    }
+
+                    @Override
+                    public SpillingClusteringWindow.ISpilledClusterKey createSpilledClusterKey(ICluster cluster) {
+                        return SpilledClusterKeys.sharesMajorPeak(cluster, 5);
+                    }
+                },
+                memoryBudget, Defaults.getDefaultPrecursorIonTolerance(), temporaryDirectory);
+
+        Set<List<String>> result = new HashSet<List<String>>();
+
+        // every run reads new cluster objects
+        File testFile = new File(SpillingClusteringWindowTest.class.getClassLoader().getResource("convertedSpectra_0406_0415.cls").toURI());
+        ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(testFile)));
+
+        try {
+            for (ICluster cluster : new BinaryClusterIterable(inputStream)) {
+                addSpectrumIds(clusteringWindow.addClusterIncremental(cluster), result);
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        addSpectrumIds(clusteringWindow.getClusters(), result);
+
+        List<File> spillFiles = clusteringWindow.getSpillFiles();
+
+        for (File spillFile : spillFiles) {
+            ObjectInputStream spillInputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+
+            try {
+                List<ICluster> clusters = new ArrayList<ICluster>();
+                for (ICluster cluster : new BinaryClusterIterable(spillInputStream)) {
+                    clusters.add(cluster);
+                }
+                addSpectrumIds(clusters, result);
+            } finally {
+                spillInputStream.close();
+            }
+        }
+
+        if (expectSpilling) {
+            Assert.assertTrue(clusteringWindow.getSpilledClusters() > 0);
+        }
+
+        clusteringWindow.deleteSpillFiles();
+
+        return result;
+    }
+
+    private void addSpectrumIds(Iterable<ICluster> clusters, Set<List<String>> result) {
+        for (ICluster cluster : clusters) {
+            List<String> spectrumIds = new ArrayList<String>();
+
+            for (ISpectrum spectrum : cluster.getClusteredSpectra()) {
+                spectrumIds.add(spectrum.getId());
+            }
+
+            Collections.sort(spectrumIds);
+            // every cluster must only be reported once
+            Assert.assertTrue(result.add(spectrumIds));
+        }
+    }
+}
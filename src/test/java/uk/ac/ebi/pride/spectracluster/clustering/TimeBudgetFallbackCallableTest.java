@@ -0,0 +1,98 @@
+package uk.ac.ebi.pride.spectracluster.clustering;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.implementation.ClusteringSettings;
+import uk.ac.ebi.pride.spectracluster.implementation.SpectraClusterStandalone;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterIterable;
+import uk.ac.ebi.pride.spectracluster.util.ClusteringJobReference;
+import uk.ac.ebi.pride.spectracluster.util.IProgressListener;
+import uk.ac.ebi.pride.spectracluster.util.ProgressUpdate;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class TimeBudgetFallbackCallableTest {
+    @Test
+    public void testFallbackReplacesSlowJob() throws Exception {
+        File testFile = new File(TimeBudgetFallbackCallableTest.class.getClassLoader().getResource("convertedSpectra_0406_0415.cls").toURI());
+        File temporaryDirectory = SpectraClusterStandalone.createTemporaryDirectory("time_budget_test");
+        File outputFile = new File(temporaryDirectory, "result.cls");
+
+        // a partial result that must be replaced by the fallback
+        FileOutputStream partialOutput = new FileOutputStream(outputFile);
+        partialOutput.write("partial".getBytes());
+        partialOutput.close();
+
+        List<Float> thresholds = new ArrayList<Float>();
+        thresholds.add(0.99F);
+
+        final boolean[] slowJobFinished = {false};
+
+        // sleeps past the budget once the first clusters leave the window
+        BinaryFileClusteringCallable slowJob = new BinaryFileClusteringCallable(outputFile, testFile, thresholds,
+                false, temporaryDirectory) {
+            @Override
+            public ClusteringJobReference call() throws Exception {
+                ClusteringJobReference result = super.call();
+                slowJobFinished[0] = true;
+                return result;
+            }
+
+            @Override
+            protected void writeOutClusters(Collection<ICluster> clusters, ObjectOutputStream outputStream) throws InterruptedException {
+                Thread.sleep(100);
+                super.writeOutClusters(clusters, outputStream);
+            }
+        };
+
+        // the test file was not converted in fast mode
+        BinaryFileClusteringCallable fallbackJob = new BinaryFileClusteringCallable(outputFile, testFile, thresholds,
+                true, temporaryDirectory);
+        fallbackJob.setMajorPeakCount(ClusteringProcessLauncher.FALLBACK_MAJOR_PEAK_COUNT);
+        fallbackJob.setLoadingPeakFilter(ClusteringSettings.getComparisonFilterFunction());
+
+        TimeBudgetFallbackCallable timeBudgetCallable = new TimeBudgetFallbackCallable(slowJob, fallbackJob, 10);
+
+        final List<ProgressUpdate> progressUpdates = new ArrayList<ProgressUpdate>();
+        timeBudgetCallable.addProgressListener(new IProgressListener() {
+            @Override
+            public void onProgressUpdate(ProgressUpdate progressUpdate) {
+                progressUpdates.add(progressUpdate);
+            }
+        });
+
+        ClusteringJobReference result = timeBudgetCallable.call();
+
+        // the slow job was aborted and the fallback's result is returned
+        Assert.assertFalse(slowJobFinished[0]);
+        Assert.assertTrue(result.getStatistics().isTimeBudgetExceeded());
+        Assert.assertEquals(1, progressUpdates.size());
+        Assert.assertTrue(progressUpdates.get(0).getMessage().contains("exceeded its time budget"));
+
+        // the partial output was replaced by a complete result
+        Assert.assertEquals(countSpectra(testFile), countSpectra(outputFile));
+        Assert.assertEquals(countSpectra(testFile), result.getOutputFile().getnSpectra());
+    }
+
+    private int countSpectra(File file) throws Exception {
+        ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        int nSpectra = 0;
+
+        try {
+            for (ICluster cluster : new BinaryClusterIterable(inputStream)) {
+                nSpectra += cluster.getClusteredSpectraCount();
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        return nSpectra;
+    }
+}
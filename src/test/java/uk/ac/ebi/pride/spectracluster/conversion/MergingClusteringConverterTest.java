@@ -0,0 +1,117 @@
+package uk.ac.ebi.pride.spectracluster.conversion;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryClusterFileReference;
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryFileSlice;
+import uk.ac.ebi.pride.spectracluster.util.BinaryFileScanner;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class MergingClusteringConverterTest {
+    private File testFile;
+
+    @Before
+    public void setUp() throws Exception {
+        testFile = new File(MergingClusteringConverterTest.class.getClassLoader().getResource("convertedSpectra_0406_0415.cls").toURI());
+    }
+
+    @Test
+    public void testUnsortedFilesAreWrittenInOrder() throws Exception {
+        BinaryClusterFileReference reference = BinaryFileScanner.scanBinaryFiles(testFile).get(0);
+        File clusteringFile = File.createTempFile("converter_test", ".clustering");
+        clusteringFile.deleteOnExit();
+
+        MergingClusteringConverter converter = new MergingClusteringConverter(clusteringFile,
+                "GreedyClustering_0.99", false, false);
+
+        // report the upper half first
+        converter.onNewResultFile(getUpperHalf(reference));
+        converter.onNewResultFile(getLowerHalf(reference));
+        converter.close();
+
+        Assert.assertEquals(reference.getnSpectra(), converter.getnClustersWritten());
+        Assert.assertEquals(reference.getnSpectra(), countSortedClusters(clusteringFile));
+        // the input file is kept
+        Assert.assertTrue(testFile.exists());
+    }
+
+    @Test
+    public void testReorderBuffer() throws Exception {
+        BinaryClusterFileReference reference = BinaryFileScanner.scanBinaryFiles(testFile).get(0);
+        File clusteringFile = File.createTempFile("converter_test", ".clustering");
+        clusteringFile.deleteOnExit();
+
+        MergingClusteringConverter converter = new MergingClusteringConverter(clusteringFile,
+                "GreedyClustering_0.99", false, false);
+
+        converter.onNewResultFile(getUpperHalf(reference), 1);
+        // the second file must not be written before the first one
+        Thread.sleep(100);
+        Assert.assertEquals(0, converter.getnClustersWritten());
+
+        converter.onNewResultFile(getLowerHalf(reference), 0);
+        converter.close();
+
+        Assert.assertEquals(reference.getnSpectra(), converter.getnClustersWritten());
+        Assert.assertEquals(reference.getnSpectra(), countSortedClusters(clusteringFile));
+    }
+
+    @Test(expected = Exception.class)
+    public void testMissingFile() throws Exception {
+        BinaryClusterFileReference reference = BinaryFileScanner.scanBinaryFiles(testFile).get(0);
+        File clusteringFile = File.createTempFile("converter_test", ".clustering");
+        clusteringFile.deleteOnExit();
+
+        MergingClusteringConverter converter = new MergingClusteringConverter(clusteringFile,
+                "GreedyClustering_0.99", false, false);
+        converter.onNewResultFile(getUpperHalf(reference), 1);
+        converter.close();
+    }
+
+    private BinaryClusterFileReference getLowerHalf(BinaryClusterFileReference reference) {
+        double splitMz = (reference.getMinMz() + reference.getMaxMz()) / 2;
+        return new BinaryFileSlice(testFile, reference.getMinMz(), splitMz, 0, reference.getMinMz(), splitMz);
+    }
+
+    private BinaryClusterFileReference getUpperHalf(BinaryClusterFileReference reference) {
+        double splitMz = (reference.getMinMz() + reference.getMaxMz()) / 2;
+        return new BinaryFileSlice(testFile, splitMz, reference.getMaxMz(), 0, Math.nextUp(splitMz),
+                reference.getMaxMz());
+    }
+
+    /**
+     * Counts the clusters in the .clustering file and checks that they are sorted by m/z.
+     */
+    private int countSortedClusters(File clusteringFile) throws Exception {
+        BufferedReader reader = new BufferedReader(new FileReader(clusteringFile));
+        int nClusters = 0;
+        double lastMz = 0;
+
+        try {
+            Assert.assertEquals("name=GreedyClustering_0.99", reader.readLine());
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.equals("=Cluster=")) {
+                    nClusters++;
+                }
+                if (line.startsWith("av_precursor_mz=")) {
+                    double precursorMz = Double.parseDouble(line.substring(16));
+                    Assert.assertTrue(precursorMz >= lastMz);
+                    lastMz = precursorMz;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return nClusters;
+    }
+}
@@ -0,0 +1,67 @@
+package uk.ac.ebi.pride.spectracluster.conversion;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterIterable;
+import uk.ac.ebi.pride.spectracluster.io.DotClusterClusterAppender;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class ParallelClusterFormatterTest {
+    private List<ICluster> clusters;
+
+    @Before
+    public void setUp() throws Exception {
+        File testFile = new File(ParallelClusterFormatterTest.class.getClassLoader().getResource("convertedSpectra_0406_0415.cls").toURI());
+        ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(testFile));
+
+        clusters = new ArrayList<ICluster>();
+        for (ICluster cluster : new BinaryClusterIterable(inputStream)) {
+            clusters.add(cluster);
+        }
+
+        inputStream.close();
+    }
+
+    @Test
+    public void testOutputIsIdentical() throws Exception {
+        File expectedFile = File.createTempFile("formatter_test", ".clustering");
+        expectedFile.deleteOnExit();
+
+        FileWriter writer = new FileWriter(expectedFile);
+        DotClusterClusterAppender.INSTANCE.appendStart(writer, "GreedyClustering_0.99");
+        // use several batches
+        for (int i = 0; i < 3; i++) {
+            for (ICluster cluster : clusters) {
+                DotClusterClusterAppender.INSTANCE.appendCluster(writer, cluster);
+            }
+        }
+        DotClusterClusterAppender.INSTANCE.appendEnd(writer);
+        writer.close();
+
+        for (int nThreads : new int[] {1, 4}) {
+            File resultFile = File.createTempFile("formatter_test", ".clustering");
+            resultFile.deleteOnExit();
+
+            ParallelClusterFormatter formatter = new ParallelClusterFormatter(new FileOutputStream(resultFile), nThreads);
+            formatter.appendStart("GreedyClustering_0.99");
+            for (int i = 0; i < 3; i++) {
+                for (ICluster cluster : clusters) {
+                    formatter.appendCluster(cluster);
+                }
+            }
+            formatter.appendEnd();
+            formatter.close();
+
+            Assert.assertArrayEquals(Files.readAllBytes(expectedFile.toPath()), Files.readAllBytes(resultFile.toPath()));
+        }
+    }
+}
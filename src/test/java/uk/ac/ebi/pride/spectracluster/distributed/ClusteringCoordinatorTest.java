@@ -0,0 +1,73 @@
+package uk.ac.ebi.pride.spectracluster.distributed;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryClusterFileReference;
+import uk.ac.ebi.pride.spectracluster.implementation.SpectraClusterStandalone;
+import uk.ac.ebi.pride.spectracluster.util.BinaryFileScanner;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class ClusteringCoordinatorTest {
+    private File testFile;
+
+    @Before
+    public void setUp() throws Exception {
+        testFile = new File(ClusteringCoordinatorTest.class.getClassLoader().getResource("convertedSpectra_0406_0415.cls").toURI());
+    }
+
+    @Test
+    public void testReassignJobOfLostWorker() throws Exception {
+        File outputDirectory = SpectraClusterStandalone.createTemporaryDirectory("coordinator_test");
+        File temporaryDirectory = SpectraClusterStandalone.createTemporaryDirectory("coordinator_test_tmp");
+
+        List<Float> thresholds = new ArrayList<Float>();
+        thresholds.add(0.99F);
+
+        final ClusteringCoordinator coordinator = new ClusteringCoordinator(0, 0, outputDirectory, thresholds,
+                true, temporaryDirectory);
+        coordinator.start();
+
+        // the first worker disconnects as soon as it received its job
+        Thread workerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = new Socket("localhost", coordinator.getPort());
+                    DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+                    DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+
+                    WorkerProtocol.parseSettings(WorkerProtocol.receive(inputStream));
+                    WorkerProtocol.send(outputStream, WorkerProtocol.READY);
+                    Assert.assertEquals(WorkerProtocol.JOB, WorkerProtocol.receive(inputStream)[0]);
+                    socket.close();
+
+                    new ClusteringWorker("localhost", coordinator.getPort()).run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        workerThread.start();
+
+        List<BinaryClusterFileReference> inputFiles = BinaryFileScanner.scanBinaryFiles(testFile);
+        coordinator.clusterFiles(inputFiles);
+        workerThread.join(10000);
+
+        List<BinaryClusterFileReference> resultFiles = coordinator.getResultFiles();
+        Assert.assertEquals(1, resultFiles.size());
+        Assert.assertTrue(resultFiles.get(0).getResultFile().exists());
+        Assert.assertEquals(new File(outputDirectory, testFile.getName()), resultFiles.get(0).getResultFile());
+
+        // the clustering can only merge spectra
+        Assert.assertTrue(resultFiles.get(0).getnSpectra() > 0);
+        Assert.assertTrue(resultFiles.get(0).getnSpectra() <= inputFiles.get(0).getnSpectra());
+    }
+}
@@ -0,0 +1,47 @@
+package uk.ac.ebi.pride.spectracluster.distributed;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import uk.ac.ebi.pride.spectracluster.implementation.ClusteringSettings;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class WorkerProtocolTest {
+    @After
+    public void tearDown() {
+        ClusteringSettings.minAdaptiveComparisons = null;
+        ClusteringSettings.consensusMinPeaks = null;
+        ClusteringSettings.cdfFile = null;
+        ClusteringSettings.saveDebugInformation = false;
+        ClusteringSettings.saveAddingScore = false;
+    }
+
+    @Test
+    public void testSettingsMessage() throws Exception {
+        List<Float> thresholds = new ArrayList<Float>();
+        thresholds.add(0.99F);
+        thresholds.add(0.9F);
+
+        ClusteringSettings.minAdaptiveComparisons = 500;
+        ClusteringSettings.cdfFile = new File("test.cdf").getAbsolutePath();
+        ClusteringSettings.saveAddingScore = true;
+
+        Map<String, String> settings = WorkerProtocol.parseSettings(
+                WorkerProtocol.createSettingsMessage(thresholds, true, new File("tmp")));
+
+        Assert.assertEquals(thresholds, WorkerProtocol.parseThresholds(settings.get("thresholds")));
+        Assert.assertEquals("true", settings.get("fastMode"));
+        Assert.assertEquals("500", settings.get("minAdaptiveComparisons"));
+        Assert.assertEquals("null", settings.get("consensusMinPeaks"));
+        Assert.assertEquals(ClusteringSettings.cdfFile, settings.get("cdfFile"));
+        Assert.assertEquals("false", settings.get("saveDebugInformation"));
+        Assert.assertEquals("true", settings.get("saveAddingScore"));
+    }
+}
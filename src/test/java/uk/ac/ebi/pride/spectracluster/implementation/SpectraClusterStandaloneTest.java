@@ -6,9 +6,10 @@ import org.junit.Test;
 import uk.ac.ebi.pride.spectracluster.cdf.SpectraPerBinNumberComparisonAssessor;
 import uk.ac.ebi.pride.spectracluster.util.Defaults;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.FileReader;
+import java.util.*;
 
 public class SpectraClusterStandaloneTest {
     private List<File> testMgfFiles;
@@ -88,4 +89,117 @@ public class SpectraClusterStandaloneTest {
 
         Assert.assertTrue(resultFile.exists());
     }
+
+    @Test
+    public void testStreamingModeMatchesDefaultMode() throws Exception {
+        Defaults.setDefaultPrecursorIonTolerance(0.5f);
+        Defaults.setFragmentIonTolerance(0.5f);
+        ClusteringSettings.addIntitalSpectrumFilter(ClusteringSettings.SPECTRUM_FILTER.MZ_150.filter);
+        Defaults.setNumberOfComparisonAssessor(new SpectraPerBinNumberComparisonAssessor(Defaults.getDefaultPrecursorIonTolerance()));
+
+        File defaultResultFile = File.createTempFile("clustering_test_", ".clustering");
+        defaultResultFile.deleteOnExit();
+        clusterTestFile(false, defaultResultFile);
+
+        File streamingResultFile = File.createTempFile("clustering_test_", ".clustering");
+        streamingResultFile.deleteOnExit();
+        clusterTestFile(true, streamingResultFile);
+
+        Set<List<String>> defaultClusters = readClusters(defaultResultFile);
+
+        Assert.assertFalse(defaultClusters.isEmpty());
+        Assert.assertEquals(defaultClusters, readClusters(streamingResultFile));
+    }
+
+    @Test
+    public void testAdditionalResultThresholds() throws Exception {
+        Defaults.setDefaultPrecursorIonTolerance(0.5f);
+        Defaults.setFragmentIonTolerance(0.5f);
+        ClusteringSettings.addIntitalSpectrumFilter(ClusteringSettings.SPECTRUM_FILTER.MZ_150.filter);
+        Defaults.setNumberOfComparisonAssessor(new SpectraPerBinNumberComparisonAssessor(Defaults.getDefaultPrecursorIonTolerance()));
+
+        List<Float> thresholds = new SpectraClusterStandalone().generateClusteringThresholds(1.0f, 0.99f, 3);
+        // the thresholds of the first two rounds
+        List<Float> resultThresholds = thresholds.subList(0, 2);
+
+        File resultFile = File.createTempFile("clustering_test_", ".clustering");
+        resultFile.deleteOnExit();
+        clusterTestFile(thresholds, resultThresholds, resultFile);
+
+        // every threshold's result matches a separate run that ends at this threshold
+        for (int i = 0; i < resultThresholds.size(); i++) {
+            File thresholdResultFile = SpectraClusterStandalone.getResultFileForThreshold(resultFile, resultThresholds.get(i));
+            thresholdResultFile.deleteOnExit();
+            Assert.assertTrue(thresholdResultFile.exists());
+
+            File separateResultFile = File.createTempFile("clustering_test_", ".clustering");
+            separateResultFile.deleteOnExit();
+            clusterTestFile(thresholds.subList(0, i + 1), new ArrayList<Float>(), separateResultFile);
+
+            Assert.assertEquals(readClusters(separateResultFile), readClusters(thresholdResultFile));
+        }
+
+        // the final result is not changed by the additional result files
+        File separateResultFile = File.createTempFile("clustering_test_", ".clustering");
+        separateResultFile.deleteOnExit();
+        clusterTestFile(thresholds, new ArrayList<Float>(), separateResultFile);
+
+        Assert.assertEquals(readClusters(separateResultFile), readClusters(resultFile));
+    }
+
+    private void clusterTestFile(List<Float> thresholds, List<Float> resultThresholds, File resultFile)
+            throws Exception {
+        SpectraClusterStandalone spectraClusterStandalone = new SpectraClusterStandalone();
+
+        spectraClusterStandalone.setAdditionalResultThresholds(resultThresholds);
+        spectraClusterStandalone.setKeepBinaryFiles(false);
+        spectraClusterStandalone.setDeleteTemporaryFiles(true);
+        spectraClusterStandalone.setParallelJobs(2);
+
+        spectraClusterStandalone.clusterPeaklistFiles(testMgfFiles, thresholds, resultFile);
+    }
+
+    private void clusterTestFile(boolean streamingMode, File resultFile) throws Exception {
+        SpectraClusterStandalone spectraClusterStandalone = new SpectraClusterStandalone();
+        List<Float> thresholds = spectraClusterStandalone.generateClusteringThresholds(1.0f, 0.99f, 3);
+
+        spectraClusterStandalone.setStreamingMode(streamingMode);
+        spectraClusterStandalone.setKeepBinaryFiles(false);
+        spectraClusterStandalone.setDeleteTemporaryFiles(true);
+        spectraClusterStandalone.setParallelJobs(2);
+
+        spectraClusterStandalone.clusterPeaklistFiles(testMgfFiles, thresholds, resultFile);
+    }
+
+    /**
+     * The sorted spectrum titles of every cluster in the .clustering file.
+     */
+    private Set<List<String>> readClusters(File clusteringFile) throws Exception {
+        Set<List<String>> clusters = new HashSet<>();
+        List<String> currentCluster = null;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(clusteringFile))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("=Cluster=")) {
+                    if (currentCluster != null) {
+                        Collections.sort(currentCluster);
+                        clusters.add(currentCluster);
+                    }
+                    currentCluster = new ArrayList<>();
+                }
+                else if (line.startsWith("SPEC\t") && currentCluster != null) {
+                    currentCluster.add(line.split("\t")[1]);
+                }
+            }
+        }
+
+        if (currentCluster != null) {
+            Collections.sort(currentCluster);
+            clusters.add(currentCluster);
+        }
+
+        return clusters;
+    }
 }
@@ -0,0 +1,161 @@
+package uk.ac.ebi.pride.spectracluster.index;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.ebi.pride.spectracluster.util.ParallelGzipOutputStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class ClusteringIndexTest {
+    private File testDirectory;
+    private String clusteringText;
+
+    @Before
+    public void setUp() throws Exception {
+        testDirectory = Files.createTempDirectory("clustering_index_test").toFile();
+
+        File testFile = new File(ClusteringIndexTest.class.getClassLoader().getResource("test.clustering").toURI());
+        clusteringText = new String(Files.readAllBytes(testFile.toPath()), Charset.defaultCharset());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : testDirectory.listFiles()) {
+            file.delete();
+        }
+        testDirectory.delete();
+    }
+
+    @Test
+    public void testIndexClusteringFile() throws Exception {
+        File clusteringFile = new File(testDirectory, "test.clustering");
+        Files.write(clusteringFile.toPath(), clusteringText.getBytes(Charset.defaultCharset()));
+
+        ClusteringIndexWriter.indexClusteringFile(clusteringFile);
+
+        // only the index remains, all temporary files are deleted
+        Assert.assertEquals(2, testDirectory.listFiles().length);
+
+        checkIndex(clusteringFile);
+    }
+
+    @Test
+    public void testCompressedFile() throws Exception {
+        File clusteringFile = new File(testDirectory, "test.clustering.gz");
+
+        // small blocks so that clusters span several gzip members
+        ParallelGzipOutputStream outputStream = new ParallelGzipOutputStream(new FileOutputStream(clusteringFile), 2, 1000);
+        ClusteringIndexWriter indexWriter = new ClusteringIndexWriter(ClusteringIndex.getIndexFile(clusteringFile));
+        long offset = 0;
+
+        for (String line : clusteringText.split("\n")) {
+            byte[] lineBytes = (line + "\n").getBytes(Charset.defaultCharset());
+
+            indexWriter.addLine(line, offset);
+            outputStream.write(lineBytes);
+            offset += lineBytes.length;
+        }
+
+        outputStream.close();
+        indexWriter.setCompressedBlocks(outputStream.getBlockSize(), outputStream.getMemberOffsets());
+        indexWriter.close(clusteringFile.length());
+
+        Assert.assertTrue(outputStream.getMemberOffsets().length > 10);
+
+        checkIndex(clusteringFile);
+    }
+
+    @Test
+    public void testOutdatedIndex() throws Exception {
+        File clusteringFile = new File(testDirectory, "test.clustering");
+        Files.write(clusteringFile.toPath(), clusteringText.getBytes(Charset.defaultCharset()));
+        ClusteringIndexWriter.indexClusteringFile(clusteringFile);
+
+        Files.write(clusteringFile.toPath(), "name=Test\n".getBytes(Charset.defaultCharset()));
+
+        try {
+            new ClusteringIndex(clusteringFile);
+            Assert.fail("Outdated index was not detected");
+        } catch (Exception e) {
+            // expected
+        }
+    }
+
+    private void checkIndex(File clusteringFile) throws Exception {
+        List<String> expectedClusters = splitClusters(clusteringText);
+        Assert.assertEquals(197, expectedClusters.size());
+
+        ClusteringIndex index = new ClusteringIndex(clusteringFile);
+
+        try {
+            Assert.assertEquals(expectedClusters.size(), index.getnClusters());
+
+            for (String expectedCluster : expectedClusters) {
+                ClusterIndexEntry entry = ClusterIndexEntry.fromText(expectedCluster);
+
+                List<String> clusters = index.findCluster(entry.getId());
+                Assert.assertEquals(1, clusters.size());
+                Assert.assertEquals(expectedCluster, clusters.get(0));
+
+                for (String spectrumId : entry.getSpectrumIds()) {
+                    Assert.assertTrue(index.findClustersBySpectrum(spectrumId).contains(expectedCluster));
+                }
+
+                Assert.assertTrue(index.findClustersByMz(entry.getPrecursorMz(), entry.getPrecursorMz())
+                        .contains(expectedCluster));
+            }
+
+            Assert.assertEquals(0, index.findCluster("unknown").size());
+            Assert.assertEquals(0, index.findClustersBySpectrum("unknown").size());
+
+            // the m/z range is inclusive
+            int nClustersInRange = 0;
+            for (String expectedCluster : expectedClusters) {
+                double precursorMz = ClusterIndexEntry.fromText(expectedCluster).getPrecursorMz();
+
+                if (precursorMz >= 400.3 && precursorMz <= 400.5) {
+                    nClustersInRange++;
+                }
+            }
+
+            Assert.assertTrue(nClustersInRange > 0);
+            Assert.assertEquals(nClustersInRange, index.findClustersByMz(400.3, 400.5).size());
+        } finally {
+            index.close();
+        }
+    }
+
+    private List<String> splitClusters(String text) {
+        List<String> clusters = new ArrayList<String>();
+        StringBuilder currentCluster = null;
+
+        for (String line : text.split("\n")) {
+            if (line.equals(ClusterIndexEntry.CLUSTER_START)) {
+                if (currentCluster != null) {
+                    clusters.add(currentCluster.toString());
+                }
+                currentCluster = new StringBuilder();
+            }
+
+            if (currentCluster != null) {
+                currentCluster.append(line).append("\n");
+            }
+        }
+
+        if (currentCluster != null) {
+            clusters.add(currentCluster.toString());
+        }
+
+        return clusters;
+    }
+}
@@ -0,0 +1,207 @@
+package uk.ac.ebi.pride.spectracluster.merging;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.ebi.pride.spectracluster.binning.BinaryFileRebinner;
+import uk.ac.ebi.pride.spectracluster.cluster.ICluster;
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryClusterFileReference;
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryFileClusteringCallable;
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryFileSlice;
+import uk.ac.ebi.pride.spectracluster.clustering.SlicedClusterIterable;
+import uk.ac.ebi.pride.spectracluster.implementation.SpectraClusterStandalone;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterAppender;
+import uk.ac.ebi.pride.spectracluster.io.BinaryClusterIterable;
+import uk.ac.ebi.pride.spectracluster.spectrum.ISpectrum;
+import uk.ac.ebi.pride.spectracluster.util.BinaryFileScanner;
+import uk.ac.ebi.pride.spectracluster.util.Defaults;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class BoundaryMergingClustererTest {
+    private float originalTolerance;
+    private File temporaryDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        // a small tolerance so that the split test files are wider than two windows
+        originalTolerance = (float) Defaults.getDefaultPrecursorIonTolerance();
+        Defaults.setDefaultPrecursorIonTolerance(0.5F);
+
+        temporaryDirectory = SpectraClusterStandalone.createTemporaryDirectory("boundary_merging_test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Defaults.setDefaultPrecursorIonTolerance(originalTolerance);
+        FileUtils.deleteDirectory(temporaryDirectory);
+    }
+
+    @Test
+    public void testIsApplicable() {
+        List<BinaryClusterFileReference> files = new ArrayList<BinaryClusterFileReference>();
+        files.add(new BinaryClusterFileReference(new File("file1.cls"), 300, 310, 100));
+        files.add(new BinaryClusterFileReference(new File("file2.cls"), 310, 320, 100));
+        files.add(new BinaryClusterFileReference(new File("file3.cls"), 320, 330, 100));
+
+        Assert.assertTrue(BoundaryMergingClusterer.isApplicable(files, 2));
+
+        // the slices of the middle file overlap
+        Assert.assertFalse(BoundaryMergingClusterer.isApplicable(files, 6));
+    }
+
+    @Test
+    public void testNarrowOuterFiles() {
+        // only the files in the middle have two slices
+        List<BinaryClusterFileReference> files = new ArrayList<BinaryClusterFileReference>();
+        files.add(new BinaryClusterFileReference(new File("file1.cls"), 300, 301, 100));
+        files.add(new BinaryClusterFileReference(new File("file2.cls"), 301, 302, 100));
+
+        Assert.assertTrue(BoundaryMergingClusterer.isApplicable(files, 2));
+    }
+
+    @Test
+    public void testMatchesRebinnedMerging() throws Exception {
+        double tolerance = Defaults.getDefaultPrecursorIonTolerance();
+        List<Float> thresholds = new ArrayList<Float>();
+        thresholds.add(0.999F);
+        thresholds.add(0.99F);
+
+        List<BinaryClusterFileReference> clusteredFiles = clusterSplitTestFile(new double[]{409, 412}, thresholds);
+        Assert.assertTrue(BoundaryMergingClusterer.isApplicable(clusteredFiles, tolerance));
+
+        // the default merging as done by SpectraClusterStandalone
+        File rebinnedDirectory = createDirectory("rebinned");
+        List<BinaryClusterFileReference> rebinnedFiles = BinaryFileRebinner.rebinBinaryFiles(
+                new ArrayList<BinaryClusterFileReference>(clusteredFiles), rebinnedDirectory, tolerance);
+
+        BinaryFileMergingClusterer defaultMerger = new BinaryFileMergingClusterer(2, createDirectory("merged"),
+                thresholds, true, tolerance * 2, false, createDirectory("merged_tmp"));
+        defaultMerger.clusterFiles(rebinnedFiles);
+
+        // only re-cluster the boundaries
+        BoundaryMergingClusterer boundaryMerger = new BoundaryMergingClusterer(2, createDirectory("boundaries"),
+                thresholds, true, tolerance, false, createDirectory("boundaries_tmp"));
+        boundaryMerger.clusterFiles(clusteredFiles);
+
+        Set<List<String>> defaultClusters = readClusters(defaultMerger.getResultFiles());
+        Set<List<String>> boundaryClusters = readClusters(boundaryMerger.getResultFiles());
+
+        Assert.assertFalse(defaultClusters.isEmpty());
+        Assert.assertEquals(defaultClusters, boundaryClusters);
+    }
+
+    /**
+     * Splits the test file at the defined m/z values and clusters every part.
+     */
+    private List<BinaryClusterFileReference> clusterSplitTestFile(double[] splitMzs, List<Float> thresholds)
+            throws Exception {
+        File testFile = new File(BoundaryMergingClustererTest.class.getClassLoader().getResource("convertedSpectra_0406_0415.cls").toURI());
+        File splitDirectory = createDirectory("split");
+        File clusteredDirectory = createDirectory("clustered");
+
+        List<File> splitFiles = new ArrayList<File>();
+        ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(testFile)));
+        ObjectOutputStream outputStream = null;
+
+        try {
+            for (ICluster cluster : new BinaryClusterIterable(inputStream)) {
+                int part = 0;
+                while (part < splitMzs.length && cluster.getPrecursorMz() >= splitMzs[part]) {
+                    part++;
+                }
+
+                while (splitFiles.size() <= part) {
+                    if (outputStream != null) {
+                        BinaryClusterAppender.INSTANCE.appendEnd(outputStream);
+                        outputStream.close();
+                    }
+
+                    File splitFile = new File(splitDirectory, String.format("split_%d.cls", splitFiles.size()));
+                    splitFiles.add(splitFile);
+                    outputStream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(splitFile)));
+                }
+
+                BinaryClusterAppender.INSTANCE.appendCluster(outputStream, cluster);
+            }
+        } finally {
+            inputStream.close();
+
+            if (outputStream != null) {
+                BinaryClusterAppender.INSTANCE.appendEnd(outputStream);
+                outputStream.close();
+            }
+        }
+
+        Assert.assertEquals(splitMzs.length + 1, splitFiles.size());
+
+        List<File> clusteredFiles = new ArrayList<File>();
+        for (File splitFile : splitFiles) {
+            File clusteredFile = new File(clusteredDirectory, splitFile.getName());
+            new BinaryFileClusteringCallable(clusteredFile, splitFile, thresholds, true, temporaryDirectory).call();
+            clusteredFiles.add(clusteredFile);
+        }
+
+        return BinaryFileScanner.scanBinaryFiles(clusteredFiles.toArray(new File[clusteredFiles.size()]));
+    }
+
+    /**
+     * The sorted spectrum ids of every cluster in the result files. Slices only
+     * contribute the clusters within their range.
+     */
+    private Set<List<String>> readClusters(List<BinaryClusterFileReference> resultFiles) throws Exception {
+        Set<List<String>> clusters = new HashSet<List<String>>();
+
+        for (BinaryClusterFileReference resultFile : resultFiles) {
+            ObjectInputStream inputStream = null;
+            SlicedClusterIterable slicedIterable = null;
+            Iterable<ICluster> clusterIterable;
+
+            if (resultFile instanceof BinaryFileSlice) {
+                slicedIterable = new SlicedClusterIterable(Collections.singletonList((BinaryFileSlice) resultFile));
+                clusterIterable = slicedIterable;
+            } else {
+                inputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(resultFile.getResultFile())));
+                clusterIterable = new BinaryClusterIterable(inputStream);
+            }
+
+            try {
+                for (ICluster cluster : clusterIterable) {
+                    List<String> spectrumIds = new ArrayList<String>();
+
+                    for (ISpectrum spectrum : cluster.getClusteredSpectra()) {
+                        spectrumIds.add(spectrum.getId());
+                    }
+
+                    Collections.sort(spectrumIds);
+                    Assert.assertTrue(clusters.add(spectrumIds));
+                }
+            } finally {
+                if (inputStream != null) {
+                    inputStream.close();
+                }
+                if (slicedIterable != null) {
+                    slicedIterable.close();
+                }
+            }
+        }
+
+        return clusters;
+    }
+
+    private File createDirectory(String name) throws Exception {
+        File directory = new File(temporaryDirectory, name);
+
+        if (!directory.mkdir()) {
+            throw new Exception("Failed to create directory " + directory);
+        }
+
+        return directory;
+    }
+}
@@ -3,12 +3,14 @@ package uk.ac.ebi.pride.spectracluster.spectra_list;
 import junit.framework.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import uk.ac.ebi.pride.spectracluster.cdf.SpectraPerBinNumberComparisonAssessor;
 import uk.ac.ebi.pride.spectracluster.clustering.BinaryClusterFileReference;
 import uk.ac.ebi.pride.spectracluster.util.BinaryFileScanner;
 import uk.ac.ebi.pride.spectracluster.util.predicate.cluster.ClusterOnlyIdentifiedPredicate;
 import uk.ac.ebi.pride.spectracluster.util.predicate.cluster.ClusterOnlyUnidentifiedPredicate;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -32,6 +34,45 @@ public class BinaryFileScannerTest {
         Assert.assertEquals(11615, fileReference.getnSpectra());
     }
 
+    @Test
+    public void scanParallel() throws Exception {
+        List<BinaryClusterFileReference> references = BinaryFileScanner.scanBinaryFiles(null, null, 2,
+                testFile, testFile, testFile);
+
+        Assert.assertEquals(3, references.size());
+
+        for (BinaryClusterFileReference fileReference : references) {
+            Assert.assertEquals(testFile, fileReference.getResultFile());
+            Assert.assertEquals(11615, fileReference.getnSpectra());
+        }
+    }
+
+    @Test
+    public void scanParallelWithAssessor() throws Exception {
+        File otherFile = new File(BinaryFileScannerTest.class.getClassLoader().getResource("convertedSpectra_0406_0415.cls").toURI());
+
+        RecordingAssessor sequentialAssessor = new RecordingAssessor();
+        List<BinaryClusterFileReference> sequentialReferences = BinaryFileScanner.scanBinaryFiles(sequentialAssessor,
+                null, 1, testFile, otherFile, testFile, otherFile);
+
+        RecordingAssessor parallelAssessor = new RecordingAssessor();
+        List<BinaryClusterFileReference> parallelReferences = BinaryFileScanner.scanBinaryFiles(parallelAssessor,
+                null, 3, testFile, otherFile, testFile, otherFile);
+
+        Assert.assertEquals(4, parallelReferences.size());
+
+        int nSpectra = 0;
+        for (int i = 0; i < parallelReferences.size(); i++) {
+            Assert.assertEquals(sequentialReferences.get(i).getResultFile(), parallelReferences.get(i).getResultFile());
+            Assert.assertEquals(sequentialReferences.get(i).getnSpectra(), parallelReferences.get(i).getnSpectra());
+            nSpectra += parallelReferences.get(i).getnSpectra();
+        }
+
+        // all precursors are counted in the order of the input files
+        Assert.assertEquals(nSpectra, parallelAssessor.precursorMzs.size());
+        Assert.assertEquals(sequentialAssessor.precursorMzs, parallelAssessor.precursorMzs);
+    }
+
     @Test
     public void scanIdentified() throws Exception {
         List<BinaryClusterFileReference> references = BinaryFileScanner.scanBinaryFiles(null,
@@ -53,4 +94,21 @@ public class BinaryFileScannerTest {
         BinaryClusterFileReference fileReference = references.get(0);
         Assert.assertEquals(11615, fileReference.getnSpectra());
     }
+
+    /**
+     * Records every counted precursor m/z.
+     */
+    private static class RecordingAssessor extends SpectraPerBinNumberComparisonAssessor {
+        public final List<Float> precursorMzs = new ArrayList<Float>();
+
+        public RecordingAssessor() {
+            super(1.0F);
+        }
+
+        @Override
+        public void countSpectrum(float precursorMz) {
+            super.countSpectrum(precursorMz);
+            precursorMzs.add(precursorMz);
+        }
+    }
 }
@@ -0,0 +1,104 @@
+package uk.ac.ebi.pride.spectracluster.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.ac.ebi.pride.spectracluster.clustering.BinCostEstimator;
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryClusterFileReference;
+import uk.ac.ebi.pride.spectracluster.implementation.SpectraClusterStandalone;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class BinShardTest {
+    private final BinCostEstimator costEstimator = new BinCostEstimator(2);
+
+    @Test
+    public void testParse() throws Exception {
+        BinShard shard = BinShard.parse("7/32");
+        Assert.assertEquals(7, shard.getIndex());
+        Assert.assertEquals(32, shard.getnShards());
+
+        for (String invalid : new String[] {"0/4", "5/4", "1", "a/4"}) {
+            try {
+                BinShard.parse(invalid);
+                Assert.fail("Invalid shard accepted: " + invalid);
+            } catch (Exception e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testSelectFiles() throws Exception {
+        List<BinaryClusterFileReference> files = createFiles(20);
+        List<BinaryClusterFileReference> shuffledFiles = new ArrayList<BinaryClusterFileReference>(files);
+        Collections.reverse(shuffledFiles);
+
+        Set<File> assignedFiles = new HashSet<File>();
+        int nShards = 3;
+
+        for (int i = 1; i <= nShards; i++) {
+            BinShard shard = new BinShard(i, nShards);
+            List<BinaryClusterFileReference> shardFiles = shard.selectFiles(files, costEstimator);
+
+            // the assignment does not depend on the order of the files
+            Assert.assertEquals(shardFiles, shard.selectFiles(shuffledFiles, costEstimator));
+            Assert.assertFalse(shardFiles.isEmpty());
+
+            for (BinaryClusterFileReference shardFile : shardFiles) {
+                Assert.assertTrue(assignedFiles.add(shardFile.getResultFile()));
+            }
+        }
+
+        // every file is part of exactly one shard
+        Assert.assertEquals(files.size(), assignedFiles.size());
+    }
+
+    @Test
+    public void testGatherShards() throws Exception {
+        File directory = SpectraClusterStandalone.createTemporaryDirectory("shard_test");
+        List<BinaryClusterFileReference> files = new ArrayList<BinaryClusterFileReference>();
+
+        for (int i = 0; i < 4; i++) {
+            File resultFile = new File(directory, "result_" + i + ".cls");
+            Assert.assertTrue(resultFile.createNewFile());
+            files.add(new BinaryClusterFileReference(resultFile, i * 10, i * 10 + 9, 100));
+        }
+
+        new BinShard(1, 2).writeMarker(directory, files.subList(2, 4));
+
+        try {
+            BinShard.gatherShards(directory);
+            Assert.fail("Missing shard not detected");
+        } catch (Exception e) {
+            Assert.assertTrue(e.getMessage().contains("Shard 2 of 2 is missing"));
+        }
+
+        new BinShard(2, 2).writeMarker(directory, files.subList(0, 2));
+
+        List<BinaryClusterFileReference> gatheredFiles = BinShard.gatherShards(directory);
+        Assert.assertEquals(4, gatheredFiles.size());
+
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(files.get(i).getResultFile().getAbsoluteFile(), gatheredFiles.get(i).getResultFile());
+        }
+    }
+
+    private List<BinaryClusterFileReference> createFiles(int nFiles) {
+        List<BinaryClusterFileReference> files = new ArrayList<BinaryClusterFileReference>();
+
+        for (int i = 0; i < nFiles; i++) {
+            files.add(new BinaryClusterFileReference(new File("file" + i + ".cls"), 300 + i * 10, 310 + i * 10,
+                    100 + (i * 37) % 500));
+        }
+
+        return files;
+    }
+}
@@ -0,0 +1,105 @@
+package uk.ac.ebi.pride.spectracluster.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class CompletionJobRunnerTest {
+    @Test
+    public void testCompletionOrder() throws Exception {
+        final CountDownLatch slowJobLatch = new CountDownLatch(1);
+        CompletionJobRunner<Integer> jobRunner = new CompletionJobRunner<Integer>(2);
+
+        // the slow job only completes once the fast one was reported
+        jobRunner.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                slowJobLatch.await();
+                return 1;
+            }
+        });
+        jobRunner.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return 2;
+            }
+        });
+
+        final List<Integer> completed = new ArrayList<Integer>();
+
+        List<Integer> results = jobRunner.awaitAll(new CompletionJobRunner.IJobListener<Integer>() {
+            @Override
+            public void onJobCompleted(Integer result, int completedJobs, int totalJobs) throws Exception {
+                completed.add(result);
+                Assert.assertEquals(completed.size(), completedJobs);
+                Assert.assertEquals(2, totalJobs);
+                slowJobLatch.countDown();
+            }
+        });
+
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals(2, (int) completed.get(0));
+        Assert.assertEquals(1, (int) completed.get(1));
+    }
+
+    @Test
+    public void testSubmitWhileCollecting() throws Exception {
+        final CompletionJobRunner<Integer> jobRunner = new CompletionJobRunner<Integer>(2);
+
+        // the first job submits a follow-up job while awaitAll is already waiting
+        jobRunner.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                Thread.sleep(100);
+
+                jobRunner.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return 2;
+                    }
+                });
+
+                return 1;
+            }
+        });
+
+        List<Integer> results = jobRunner.awaitAll(null);
+
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals(2, jobRunner.getCompletedJobs());
+    }
+
+    @Test
+    public void testErrorPropagation() throws Exception {
+        CompletionJobRunner<Integer> jobRunner = new CompletionJobRunner<Integer>(2);
+
+        jobRunner.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                throw new Exception("Failed job");
+            }
+        });
+        jobRunner.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                Thread.sleep(60000);
+                return 1;
+            }
+        });
+
+        try {
+            jobRunner.awaitAll(null);
+            Assert.fail("Exception not propagated");
+        }
+        catch (Exception e) {
+            Assert.assertEquals("Failed job", e.getMessage());
+        }
+    }
+}
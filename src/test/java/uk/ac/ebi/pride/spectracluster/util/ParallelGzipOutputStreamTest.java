@@ -0,0 +1,61 @@
+package uk.ac.ebi.pride.spectracluster.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class ParallelGzipOutputStreamTest {
+    @Test
+    public void testMultiMemberOutput() throws Exception {
+        // text-like data spanning several blocks
+        byte[] data = new byte[10000];
+        Random random = new Random(1);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('0' + random.nextInt(10));
+        }
+
+        for (int nThreads : new int[] {1, 4}) {
+            ByteArrayOutputStream compressedData = new ByteArrayOutputStream();
+            ParallelGzipOutputStream outputStream = new ParallelGzipOutputStream(compressedData, nThreads, 1024);
+
+            // mix single bytes and arrays
+            outputStream.write(data[0]);
+            outputStream.write(data, 1, 5000);
+            outputStream.write(data, 5001, data.length - 5001);
+            outputStream.close();
+
+            Assert.assertArrayEquals(data, decompress(compressedData.toByteArray()));
+        }
+    }
+
+    @Test
+    public void testEmptyStream() throws Exception {
+        ByteArrayOutputStream compressedData = new ByteArrayOutputStream();
+        new ParallelGzipOutputStream(compressedData, 2).close();
+
+        Assert.assertTrue(compressedData.size() > 0);
+        Assert.assertEquals(0, decompress(compressedData.toByteArray()).length);
+    }
+
+    private byte[] decompress(byte[] compressedData) throws Exception {
+        InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(compressedData));
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        byte[] buffer = new byte[4096];
+        int readBytes;
+        while ((readBytes = inputStream.read(buffer)) != -1) {
+            data.write(buffer, 0, readBytes);
+        }
+        inputStream.close();
+
+        return data.toByteArray();
+    }
+}
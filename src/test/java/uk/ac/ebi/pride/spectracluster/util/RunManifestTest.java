@@ -0,0 +1,113 @@
+package uk.ac.ebi.pride.spectracluster.util;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.ebi.pride.spectracluster.clustering.BinaryClusterFileReference;
+
+import java.io.File;
+import java.io.FileWriter;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class RunManifestTest {
+    File directory;
+    File inputFile;
+    File outputFile;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("manifest_test", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new Exception("Failed to create temporary directory");
+        }
+
+        inputFile = writeFile("input.cls", "input");
+        outputFile = writeFile("output.cls", "output");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        RunManifest manifest = new RunManifest(directory, "settings");
+        Assert.assertNull(manifest.getCompletedJob(RunManifest.CLUSTERING, inputFile));
+
+        manifest.recordCompletedJob(RunManifest.CLUSTERING, inputFile,
+                new BinaryClusterFileReference(outputFile, 300, 301.5, 10));
+        manifest.recordStageComplete(RunManifest.CONVERSION);
+
+        // re-open the manifest as in a restarted run
+        RunManifest resumedManifest = new RunManifest(directory, "settings");
+        BinaryClusterFileReference completedJob = resumedManifest.getCompletedJob(RunManifest.CLUSTERING, inputFile);
+
+        Assert.assertNotNull(completedJob);
+        Assert.assertEquals(outputFile.getAbsolutePath(), completedJob.getResultFile().getAbsolutePath());
+        Assert.assertEquals(300, completedJob.getMinMz(), 0.001);
+        Assert.assertEquals(301.5, completedJob.getMaxMz(), 0.001);
+        Assert.assertEquals(10, completedJob.getnSpectra());
+        Assert.assertTrue(resumedManifest.isStageComplete(RunManifest.CONVERSION));
+        Assert.assertFalse(resumedManifest.isStageComplete(RunManifest.CLUSTERING));
+        Assert.assertNull(resumedManifest.getCompletedJob(RunManifest.MERGING, inputFile));
+    }
+
+    @Test
+    public void testMzRoundTrip() throws Exception {
+        // more digits than a fixed-point format keeps
+        double minMz = 300.123456789123;
+        double maxMz = 301.000000000001;
+
+        RunManifest manifest = new RunManifest(directory, "settings");
+        manifest.recordCompletedJob(RunManifest.CLUSTERING, inputFile,
+                new BinaryClusterFileReference(outputFile, minMz, maxMz, 10));
+
+        BinaryClusterFileReference completedJob = new RunManifest(directory, "settings")
+                .getCompletedJob(RunManifest.CLUSTERING, inputFile);
+
+        Assert.assertEquals(minMz, completedJob.getMinMz(), 0);
+        Assert.assertEquals(maxMz, completedJob.getMaxMz(), 0);
+    }
+
+    @Test
+    public void testChangedSettings() throws Exception {
+        RunManifest manifest = new RunManifest(directory, "settings");
+        manifest.recordCompletedJob(RunManifest.CLUSTERING, inputFile,
+                new BinaryClusterFileReference(outputFile, 300, 301.5, 10));
+
+        RunManifest resumedManifest = new RunManifest(directory, "other settings");
+        Assert.assertNull(resumedManifest.getCompletedJob(RunManifest.CLUSTERING, inputFile));
+    }
+
+    @Test
+    public void testChangedOutput() throws Exception {
+        RunManifest manifest = new RunManifest(directory, "settings");
+        manifest.recordCompletedJob(RunManifest.CLUSTERING, inputFile,
+                new BinaryClusterFileReference(outputFile, 300, 301.5, 10));
+
+        // an incompletely written output file
+        writeFile("output.cls", "out");
+
+        RunManifest resumedManifest = new RunManifest(directory, "settings");
+        Assert.assertNull(resumedManifest.getCompletedJob(RunManifest.CLUSTERING, inputFile));
+    }
+
+    private File writeFile(String name, String content) throws Exception {
+        File file = new File(directory, name);
+        FileWriter writer = new FileWriter(file);
+        writer.write(content);
+        writer.close();
+
+        return file;
+    }
+}
@@ -0,0 +1,42 @@
+package uk.ac.ebi.pride.spectracluster.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+
+/**
+ * Created by jg on 19.10.26.
+ */
+public class RunReportTest {
+    @Test
+    public void testWriteReport() throws Exception {
+        RunReport runReport = new RunReport();
+        Assert.assertTrue(runReport.isEmpty());
+
+        runReport.addEvent(ProgressUpdate.CLUSTERING_STAGE.CLUSTERING, new File("/tmp/bin_1.cls"),
+                RunReport.TIME_BUDGET_EXCEEDED, "exceeded\t60 s");
+        Assert.assertFalse(runReport.isEmpty());
+        Assert.assertEquals(1, runReport.getEvents().size());
+
+        File resultFile = File.createTempFile("run_report_test", ".clustering");
+        resultFile.deleteOnExit();
+        File reportFile = RunReport.getReportFile(resultFile);
+        reportFile.deleteOnExit();
+        Assert.assertEquals(resultFile.getPath() + RunReport.REPORT_SUFFIX, reportFile.getPath());
+
+        runReport.write(reportFile);
+
+        BufferedReader reader = new BufferedReader(new FileReader(reportFile));
+        try {
+            Assert.assertEquals("stage\tfile\tevent\tdetails", reader.readLine());
+            // tabs in the details must not create additional columns
+            Assert.assertEquals("CLUSTERING\tbin_1.cls\ttime_budget_exceeded\texceeded 60 s", reader.readLine());
+            Assert.assertNull(reader.readLine());
+        } finally {
+            reader.close();
+        }
+    }
+}